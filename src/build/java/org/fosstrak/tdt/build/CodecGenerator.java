@@ -0,0 +1,764 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt.build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Generates a codec class in package org.fosstrak.tdt for each scheme
+ * definition in a directory, run by the build before the sources are
+ * compiled:
+ * 
+ * <pre>
+ * CodecGenerator &lt;scheme directory&gt; &lt;source directory&gt;
+ * </pre>
+ * 
+ * A generated codec converts between the binary, tag-encoding and pure
+ * identity levels of its scheme. For each option, the literals and groups of
+ * the patterns and grammars are written out as straight-line code with fixed
+ * offsets, lengths and limits, in place of the patterns, field lookups and
+ * BigInteger arithmetic of the generic engine. Options it cannot express in
+ * this way, such as those with compaction or non-numeric fields, are left to
+ * the generic engine, as are schemes whose levels have rules. The generated
+ * classes are listed in a class GeneratedCodecs, which the engine loads if it
+ * is present.
+ * 
+ * Each codec records the digest of the definition it was generated from,
+ * computed as by org.fosstrak.tdt.SchemeDigest, so that it is not used with a
+ * definition that has been changed since.
+ */
+public class CodecGenerator {
+
+	private static final String[] LEVELS = { "BINARY", "TAG_ENCODING", "PURE_IDENTITY" };
+
+	private static final String[] LEVEL_NAMES = { "Binary", "Tag", "Pure" };
+
+	private static final int BINARY = 0;
+
+	private static final Pattern GROUP = Pattern.compile("\\(\\[(01|0-7|0-9)\\]\\{(\\d+)(?:,(\\d+))?\\}\\)");
+
+	private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.err.println("usage: CodecGenerator <scheme directory> <source directory>");
+			System.exit(1);
+		}
+		File[] files = new File(args[0]).listFiles();
+		if (files == null) {
+			throw new IOException("Not a directory: " + args[0]);
+		}
+		Arrays.sort(files);
+		File dir = new File(args[1], "org/fosstrak/tdt");
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		List<String> classes = new ArrayList<String>();
+		for (File file : files) {
+			if (!file.getName().endsWith(".xml")) {
+				continue;
+			}
+			Document document = factory.newDocumentBuilder().parse(file);
+			for (Element scheme : children(document.getDocumentElement(), "scheme")) {
+				CodecGenerator generator = new CodecGenerator(scheme);
+				String source = generator.generate(file.getName());
+				if (source != null) {
+					write(new File(dir, generator.className + ".java"), source);
+					classes.add(generator.className);
+				}
+			}
+		}
+		write(new File(dir, "GeneratedCodecs.java"), registry(classes));
+		System.out.println("Generated " + classes.size() + " codecs in " + dir);
+	}
+
+	/** A literal or a group of digits of a pattern. */
+	private static class Token {
+		final String literal;
+		final int min;
+		final int max;
+		// highest character of the group: '1', '7' or '9'
+		final char last;
+
+		Token(String literal) {
+			this.literal = literal;
+			this.min = literal.length();
+			this.max = literal.length();
+			this.last = 0;
+		}
+
+		Token(int min, int max, char last) {
+			this.literal = null;
+			this.min = min;
+			this.max = max;
+			this.last = last;
+		}
+	}
+
+	private static class FieldModel {
+		final Element element;
+		final String name;
+		final int seq;
+		final int bitLength;
+		final int length;
+
+		FieldModel(Element element) {
+			this.element = element;
+			this.name = element.getAttribute("name");
+			this.seq = Integer.parseInt(element.getAttribute("seq"));
+			this.bitLength = element.hasAttribute("bitLength") ? Integer.parseInt(element.getAttribute("bitLength")) : -1;
+			this.length = element.hasAttribute("length") ? Integer.parseInt(element.getAttribute("length")) : -1;
+		}
+	}
+
+	private static class OptionModel {
+		final String key;
+		// null if the pattern cannot be matched by generated code
+		final List<Token> tokens;
+		final List<String> grammar;
+		final Map<String, FieldModel> fields = new LinkedHashMap<String, FieldModel>();
+		final Map<Integer, FieldModel> bySeq = new HashMap<Integer, FieldModel>();
+
+		OptionModel(Element option, boolean binary) {
+			key = option.getAttribute("optionKey");
+			tokens = tokenize(option.getAttribute("pattern"), binary);
+			grammar = grammar(option.getAttribute("grammar"));
+			for (Element field : children(option, "field")) {
+				FieldModel model = new FieldModel(field);
+				fields.put(model.name, model);
+				bySeq.put(model.seq, model);
+			}
+		}
+
+		/** the group of the pattern that holds the field */
+		Token group(FieldModel field) {
+			int seq = 0;
+			for (Token token : tokens) {
+				if (token.literal == null && ++seq == field.seq) {
+					return token;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Element scheme;
+
+	private final String name;
+
+	private final String className;
+
+	private final List<List<OptionModel>> options = new ArrayList<List<OptionModel>>();
+
+	// option keys that can be converted, in the order of the binary options
+	private final List<String> keys = new ArrayList<String>();
+
+	// names of the fields of the convertible options, which become variables
+	private final List<String> names = new ArrayList<String>();
+
+	private CodecGenerator(Element scheme) {
+		this.scheme = scheme;
+		this.name = scheme.getAttribute("name");
+		StringBuilder s = new StringBuilder("Generated");
+		boolean upper = true;
+		for (char c : name.toCharArray()) {
+			if (Character.isLetterOrDigit(c)) {
+				s.append(upper ? Character.toUpperCase(c) : Character.toLowerCase(c));
+				upper = false;
+			} else {
+				upper = true;
+			}
+		}
+		this.className = s.append("Codec").toString();
+	}
+
+	/**
+	 * @return the source of the codec, or null if no option of the scheme can
+	 *         be converted by generated code
+	 */
+	private String generate(String fileName) throws Exception {
+		if (!scheme.hasAttribute("tagLength")) {
+			return null;
+		}
+		for (int i = 0; i < LEVELS.length; i++) {
+			Element level = level(LEVELS[i]);
+			if (level == null || !children(level, "rule").isEmpty()) {
+				return null;
+			}
+			options.add(new ArrayList<OptionModel>());
+			for (Element option : children(level, "option")) {
+				options.get(i).add(new OptionModel(option, i == BINARY));
+			}
+		}
+		for (OptionModel option : options.get(BINARY)) {
+			if (isConvertible(option.key)) {
+				keys.add(option.key);
+			}
+		}
+		if (keys.isEmpty()) {
+			return null;
+		}
+		TreeSet<String> fieldNames = new TreeSet<String>();
+		for (String key : keys) {
+			for (int i = 0; i < LEVELS.length; i++) {
+				fieldNames.addAll(option(i, key).fields.keySet());
+			}
+		}
+		names.addAll(fieldNames);
+
+		StringBuilder out = new StringBuilder();
+		out.append("/*\n * Generated by org.fosstrak.tdt.build.CodecGenerator from ").append(fileName)
+				.append(".\n * Do not edit.\n */\n\n");
+		out.append("package org.fosstrak.tdt;\n\n");
+		out.append("import java.util.Map;\n\n");
+		out.append("import org.epcglobalinc.tdt.LevelTypeList;\n\n");
+		out.append("final class ").append(className).append(" extends GeneratedCodec {\n\n");
+		out.append("\t").append(className).append("() {\n");
+		out.append("\t\tsuper(").append(quote(name)).append(", ").append(quote(digest())).append(");\n");
+		out.append("\t}\n\n");
+
+		out.append("\tpublic boolean convert(CharSequence s, LevelTypeList inputLevel, Map<String, String> parameters,\n");
+		out.append("\t\t\tLevelTypeList outputLevel, StringBuilder out) {\n");
+		out.append("\t\tif (!isSupported(outputLevel)) {\n\t\t\treturn false;\n\t\t}\n");
+		out.append("\t\tint option;\n");
+		for (int i = 0; i < LEVELS.length; i++) {
+			out.append(i == 0 ? "\t\tif" : " else if").append(" (inputLevel == LevelTypeList.").append(LEVELS[i])
+					.append(") {\n");
+			out.append("\t\t\toption = match").append(LEVEL_NAMES[i]).append("(s);\n\t\t}");
+		}
+		out.append(" else {\n\t\t\treturn false;\n\t\t}\n");
+		out.append("\t\tswitch (option) {\n");
+		for (int k = 0; k < keys.size(); k++) {
+			out.append("\t\tcase ").append(k).append(":\n");
+			out.append("\t\t\treturn convert").append(k).append("(s, inputLevel, parameters, outputLevel, out);\n");
+		}
+		out.append("\t\tdefault:\n\t\t\treturn false;\n\t\t}\n\t}\n");
+
+		for (int i = 0; i < LEVELS.length; i++) {
+			generateMatch(out, i);
+		}
+		for (int k = 0; k < keys.size(); k++) {
+			generateConvert(out, k);
+		}
+		out.append("}\n");
+		return out.toString();
+	}
+
+	/**
+	 * Generates the method that returns the index in keys of the only option
+	 * of a level whose pattern matches the input, as the generic engine
+	 * chooses the option, or -1.
+	 */
+	private void generateMatch(StringBuilder out, int level) {
+		String method = "match" + LEVEL_NAMES[level];
+		out.append("\n\tprivate static int ").append(method).append("(CharSequence s) {\n");
+		for (OptionModel option : options.get(level)) {
+			if (option.tokens == null) {
+				// the generic engine may choose an option that cannot be matched here
+				out.append("\t\treturn -1;\n\t}\n");
+				return;
+			}
+		}
+		out.append("\t\tint matches = 0;\n\t\tint option = -1;\n");
+		for (int o = 0; o < options.get(level).size(); o++) {
+			OptionModel option = options.get(level).get(o);
+			out.append("\t\tif (").append(method).append(o).append("(s)) {\n");
+			out.append("\t\t\tmatches++;\n");
+			out.append("\t\t\toption = ").append(keys.indexOf(option.key)).append(";\n\t\t}\n");
+		}
+		out.append("\t\treturn matches == 1 ? option : -1;\n\t}\n");
+
+		for (int o = 0; o < options.get(level).size(); o++) {
+			OptionModel option = options.get(level).get(o);
+			out.append("\n\t// ").append(option.key).append(": ").append(pattern(option)).append("\n");
+			out.append("\tprivate static boolean ").append(method).append(o).append("(CharSequence s) {\n");
+			if (level == BINARY) {
+				int offset = 0;
+				out.append("\t\treturn s.length() >= ").append(length(option.tokens));
+				for (Token token : option.tokens) {
+					if (token.literal != null) {
+						out.append("\n\t\t\t\t&& CodecFields.startsWith(s, ").append(quote(token.literal)).append(", ").append(offset)
+								.append(")");
+					} else {
+						out.append("\n\t\t\t\t&& CodecFields.isBits(s, ").append(offset).append(", ").append(token.min)
+								.append(")");
+					}
+					offset += token.min;
+				}
+				out.append(";\n\t}\n");
+			} else {
+				out.append("\t\tint pos = 0;\n");
+				int runs = 0;
+				for (Token token : option.tokens) {
+					if (token.literal != null) {
+						out.append("\t\tif (!CodecFields.startsWith(s, ").append(quote(token.literal)).append(", pos)) {\n");
+						out.append("\t\t\treturn false;\n\t\t}\n");
+						out.append("\t\tpos += ").append(token.min).append(";\n");
+					} else if (token.min == token.max) {
+						out.append("\t\tif (!CodecFields.isDigits(s, pos, ").append(token.min).append(", '")
+								.append(token.last).append("')) {\n");
+						out.append("\t\t\treturn false;\n\t\t}\n");
+						out.append("\t\tpos += ").append(token.min).append(";\n");
+					} else {
+						// as greedy as the pattern; fewer digits cannot match the literal that follows
+						String run = "run" + (++runs);
+						out.append("\t\tint ").append(run).append(" = Math.min(CodecFields.digitRun(s, pos, '")
+								.append(token.last).append("'), ").append(token.max).append(");\n");
+						out.append("\t\tif (").append(run).append(" < ").append(token.min)
+								.append(") {\n\t\t\treturn false;\n\t\t}\n");
+						out.append("\t\tpos += ").append(run).append(";\n");
+					}
+				}
+				out.append("\t\treturn true;\n\t}\n");
+			}
+		}
+	}
+
+	private void generateConvert(StringBuilder out, int k) {
+		String key = keys.get(k);
+		out.append("\n\t// option ").append(key).append("\n");
+		out.append("\tprivate static boolean convert").append(k)
+				.append("(CharSequence s, LevelTypeList inputLevel, Map<String, String> parameters,\n");
+		out.append("\t\t\tLevelTypeList outputLevel, StringBuilder out) {\n");
+		for (int n = 0; n < names.size(); n++) {
+			out.append("\t\tlong f").append(n).append(" = -1; // ").append(names.get(n)).append("\n");
+		}
+
+		// parse the input
+		OptionModel binary = option(BINARY, key);
+		out.append("\t\tif (inputLevel == LevelTypeList.BINARY) {\n");
+		out.append("\t\t\tif (s.length() != ").append(length(binary.tokens)).append(") {\n\t\t\t\treturn false;\n\t\t\t}\n");
+		int offset = 0;
+		int seq = 0;
+		for (Token token : binary.tokens) {
+			if (token.literal == null) {
+				FieldModel field = binary.bySeq.get(++seq);
+				String v = variable(field.name);
+				out.append("\t\t\t").append(v).append(" = CodecFields.parseBits(s, ").append(offset).append(", ")
+						.append(token.min).append(");\n");
+				appendRangeCheck(out, "\t\t\t", key, field.name);
+			}
+			offset += token.min;
+		}
+		for (int i = 1; i < LEVELS.length; i++) {
+			OptionModel option = option(i, key);
+			out.append("\t\t} else").append(i == LEVELS.length - 1 ? "" : " if (inputLevel == LevelTypeList." + LEVELS[i] + ")")
+					.append(" {\n");
+			out.append("\t\t\tint pos = 0;\n");
+			seq = 0;
+			for (Token token : option.tokens) {
+				if (token.literal != null) {
+					out.append("\t\t\tpos += ").append(token.min).append(";\n");
+					continue;
+				}
+				FieldModel field = option.bySeq.get(++seq);
+				String v = variable(field.name);
+				if (token.min == token.max) {
+					out.append("\t\t\t").append(v).append(" = CodecFields.parseDigits(s, pos, pos + ").append(token.min)
+							.append(");\n");
+					out.append("\t\t\tpos += ").append(token.min).append(";\n");
+				} else {
+					out.append("\t\t\tint run").append(seq).append(" = Math.min(CodecFields.digitRun(s, pos, '")
+							.append(token.last).append("'), ").append(token.max).append(");\n");
+					out.append("\t\t\t").append(v).append(" = CodecFields.parseNumber(s, pos, pos + run").append(seq)
+							.append(", ").append(token.max).append(");\n");
+					out.append("\t\t\tpos += run").append(seq).append(";\n");
+				}
+				appendRangeCheck(out, "\t\t\t", key, field.name);
+			}
+			out.append("\t\t\tif (pos != s.length()) {\n\t\t\t\treturn false;\n\t\t\t}\n");
+		}
+		out.append("\t\t}\n");
+
+		// format the output
+		for (int i = 0; i < LEVELS.length; i++) {
+			OptionModel option = option(i, key);
+			out.append(i == 0 ? "\t\tif" : "\t\t} else if").append(" (outputLevel == LevelTypeList.").append(LEVELS[i])
+					.append(") {\n");
+			List<String> used = new ArrayList<String>();
+			for (String token : option.grammar) {
+				if (!token.startsWith("'") && !used.contains(token)) {
+					used.add(token);
+					FieldModel field = option.fields.get(token);
+					String v = variable(token);
+					// fields that are not part of the input are taken from the parameters
+					out.append("\t\t\tif (").append(v).append(" < 0) {\n");
+					out.append("\t\t\t\t").append(v).append(" = CodecFields.parameter(parameters, ").append(quote(token))
+							.append(");\n");
+					appendRangeCheck(out, "\t\t\t\t", key, token);
+					out.append("\t\t\t}\n");
+					if (i == BINARY) {
+						out.append("\t\t\tif (").append(v).append(" >= 1L << ").append(field.bitLength)
+								.append(") {\n\t\t\t\treturn false;\n\t\t\t}\n");
+					} else if (field.length >= 0) {
+						out.append("\t\t\tif (!CodecFields.fitsDigits(").append(v).append(", ").append(field.length)
+								.append(")) {\n\t\t\t\treturn false;\n\t\t\t}\n");
+					}
+				}
+			}
+			for (String token : option.grammar) {
+				if (token.startsWith("'")) {
+					out.append("\t\t\tout.append(").append(quote(token.substring(1, token.length() - 1))).append(");\n");
+				} else {
+					FieldModel field = option.fields.get(token);
+					String v = variable(token);
+					if (i == BINARY) {
+						out.append("\t\t\tCodecFields.appendBits(out, ").append(v).append(", ").append(field.bitLength)
+								.append(");\n");
+					} else if (field.length >= 0) {
+						out.append("\t\t\tCodecFields.appendDigits(out, ").append(v).append(", ").append(field.length)
+								.append(");\n");
+					} else {
+						out.append("\t\t\tout.append(").append(v).append(");\n");
+					}
+				}
+			}
+			out.append("\t\t\treturn true;\n");
+		}
+		out.append("\t\t}\n\t\treturn false;\n\t}\n");
+	}
+
+	/**
+	 * Appends a check of the value of a field against the decimalMinimum and
+	 * decimalMaximum of the field in all three levels of the option, which
+	 * also rejects the -1 of a value that could not be parsed.
+	 */
+	private void appendRangeCheck(StringBuilder out, String indent, String key, String fieldName) {
+		BigInteger min = BigInteger.ZERO;
+		BigInteger max = LONG_MAX;
+		for (int i = 0; i < LEVELS.length; i++) {
+			FieldModel field = option(i, key).fields.get(fieldName);
+			if (field == null) {
+				continue;
+			}
+			if (field.element.hasAttribute("decimalMinimum")) {
+				min = min.max(new BigInteger(field.element.getAttribute("decimalMinimum")));
+			}
+			if (field.element.hasAttribute("decimalMaximum")) {
+				max = max.min(new BigInteger(field.element.getAttribute("decimalMaximum")));
+			}
+		}
+		String v = variable(fieldName);
+		out.append(indent).append("if (").append(v).append(" < ").append(min).append("L || ").append(v).append(" > ")
+				.append(max).append("L) {\n");
+		out.append(indent).append("\treturn false;\n").append(indent).append("}\n");
+	}
+
+	/**
+	 * An option can be converted by generated code if each of the three levels
+	 * has exactly one option with its key, their patterns can be matched,
+	 * each group is a numeric field whose padding is that of the group, and
+	 * each field of a grammar is defined.
+	 */
+	private boolean isConvertible(String key) {
+		for (int i = 0; i < LEVELS.length; i++) {
+			int count = 0;
+			for (OptionModel option : options.get(i)) {
+				if (option.key.equals(key)) {
+					count++;
+				}
+			}
+			if (count != 1) {
+				return false;
+			}
+			OptionModel option = option(i, key);
+			if (option.tokens == null || option.grammar == null) {
+				return false;
+			}
+			int groups = 0;
+			for (Token token : option.tokens) {
+				if (token.literal == null) {
+					groups++;
+				}
+			}
+			if (groups != option.fields.size()) {
+				return false;
+			}
+			for (FieldModel field : option.fields.values()) {
+				Element e = field.element;
+				Token group = option.group(field);
+				String charset = e.getAttribute("characterSet");
+				if (group == null || e.hasAttribute("compaction") || e.hasAttribute("compression")
+						|| !(charset.equals("[0-9]*") || charset.equals("[0-7]*") || charset.equals("[01]*"))) {
+					return false;
+				}
+				for (String attribute : new String[] { "decimalMinimum", "decimalMaximum" }) {
+					if (e.hasAttribute(attribute) && !e.getAttribute(attribute).matches("[0-9]{1,30}")) {
+						return false;
+					}
+				}
+				if (i == BINARY) {
+					if (field.bitLength != group.min || field.bitLength > 62
+							|| (e.hasAttribute("bitPadDir") && !e.getAttribute("bitPadDir").equals("LEFT"))) {
+						return false;
+					}
+				} else if (group.min == group.max) {
+					// the generic engine pads the value to the length of the field;
+					// an empty field cannot be converted by the generic engine
+					if (field.length != group.min || field.length == 0 || field.length > 18
+							|| !e.getAttribute("padChar").equals("0") || !e.getAttribute("padDir").equals("LEFT")) {
+						return false;
+					}
+				} else if (field.length >= 0) {
+					return false;
+				}
+			}
+			for (String token : option.grammar) {
+				if (!token.startsWith("'") && !option.fields.containsKey(token)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private OptionModel option(int level, String key) {
+		for (OptionModel option : options.get(level)) {
+			if (option.key.equals(key)) {
+				return option;
+			}
+		}
+		return null;
+	}
+
+	private String variable(String fieldName) {
+		return "f" + names.indexOf(fieldName);
+	}
+
+	private Element level(String type) {
+		for (Element level : children(scheme, "level")) {
+			if (level.getAttribute("type").equals(type)) {
+				return level;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Splits a pattern into literals and groups of digits. Returns null if the
+	 * pattern has other constructs, or a group of variable length that is not
+	 * followed by the end of the pattern or by a literal that cannot start with
+	 * a digit, since the pattern could then backtrack into the group.
+	 */
+	private static List<Token> tokenize(String pattern, boolean binary) {
+		List<Token> tokens = new ArrayList<Token>();
+		StringBuilder literal = new StringBuilder();
+		int i = 0;
+		while (i < pattern.length()) {
+			char c = pattern.charAt(i);
+			if (c == '(') {
+				Matcher m = GROUP.matcher(pattern).region(i, pattern.length());
+				if (!m.lookingAt()) {
+					return null;
+				}
+				if (literal.length() > 0) {
+					tokens.add(new Token(literal.toString()));
+					literal.setLength(0);
+				}
+				int min = Integer.parseInt(m.group(2));
+				int max = m.group(3) == null ? min : Integer.parseInt(m.group(3));
+				char last = m.group(1).charAt(m.group(1).length() - 1);
+				if (binary != (last == '1') || min > max) {
+					return null;
+				}
+				tokens.add(new Token(min, max, last));
+				i = m.end();
+			} else if (c == '\\' && i + 1 < pattern.length() && !Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+				literal.append(pattern.charAt(i + 1));
+				i += 2;
+			} else if ("\\.[]{}()*+?^$|".indexOf(c) >= 0 || (binary && c != '0' && c != '1')) {
+				return null;
+			} else {
+				literal.append(c);
+				i++;
+			}
+		}
+		if (literal.length() > 0) {
+			tokens.add(new Token(literal.toString()));
+		}
+		for (int t = 0; t < tokens.size() - 1; t++) {
+			Token token = tokens.get(t);
+			Token next = tokens.get(t + 1);
+			if (token.literal == null && token.min != token.max
+					&& (next.literal == null || Character.isDigit(next.literal.charAt(0)))) {
+				return null;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Splits a grammar into quoted literals, which keep their quotes, and
+	 * field names. Returns null if a quote is not closed.
+	 */
+	private static List<String> grammar(String grammar) {
+		List<String> tokens = new ArrayList<String>();
+		int i = 0;
+		while (i < grammar.length()) {
+			char c = grammar.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '\'') {
+				int end = grammar.indexOf('\'', i + 1);
+				if (end < 0) {
+					return null;
+				}
+				tokens.add(grammar.substring(i, end + 1));
+				i = end + 1;
+			} else {
+				int end = i;
+				while (end < grammar.length() && !Character.isWhitespace(grammar.charAt(end))) {
+					end++;
+				}
+				tokens.add(grammar.substring(i, end));
+				i = end;
+			}
+		}
+		return tokens;
+	}
+
+	private static int length(List<Token> tokens) {
+		int length = 0;
+		for (Token token : tokens) {
+			length += token.min;
+		}
+		return length;
+	}
+
+	private static String pattern(OptionModel option) {
+		StringBuilder s = new StringBuilder();
+		for (Token token : option.tokens) {
+			if (token.literal != null) {
+				s.append(token.literal);
+			} else {
+				s.append('[').append(token.min == token.max ? Integer.toString(token.min) : token.min + "-" + token.max)
+						.append(']');
+			}
+		}
+		return s.toString();
+	}
+
+	/**
+	 * The digest of the definition, computed from the same attributes and in
+	 * the same way as org.fosstrak.tdt.SchemeDigest computes it from the
+	 * unmarshalled definition.
+	 */
+	private String digest() throws Exception {
+		StringBuilder text = new StringBuilder();
+		line(text, scheme, "scheme", "name", "optionKey", "tagLength");
+		for (Element level : children(scheme, "level")) {
+			if (!Arrays.asList(LEVELS).contains(level.getAttribute("type"))) {
+				continue;
+			}
+			line(text, level, "level", "type", "prefixMatch");
+			for (Element option : children(level, "option")) {
+				line(text, option, "option", "optionKey", "pattern", "grammar");
+				for (Element field : children(option, "field")) {
+					line(text, field, "field", "seq", "name", "bitLength", "characterSet", "compaction", "padChar",
+							"padDir", "bitPadDir", "decimalMinimum", "decimalMaximum", "length");
+				}
+			}
+			for (Element rule : children(level, "rule")) {
+				line(text, rule, "rule", "type", "inputFormat", "seq", "newFieldName", "function");
+			}
+		}
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.toString().getBytes("UTF-8"));
+		return String.format("%040x", new BigInteger(1, digest));
+	}
+
+	private static void line(StringBuilder text, Element element, String kind, String... attributes) {
+		text.append(kind);
+		for (String attribute : attributes) {
+			text.append('|').append(element.getAttribute(attribute));
+		}
+		text.append('\n');
+	}
+
+	private static List<Element> children(Element parent, String localName) {
+		List<Element> elements = new ArrayList<Element>();
+		NodeList nodes = parent.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); i++) {
+			Node node = nodes.item(i);
+			if (node instanceof Element && localName.equals(node.getLocalName())) {
+				elements.add((Element) node);
+			}
+		}
+		return elements;
+	}
+
+	private static String registry(List<String> classes) {
+		StringBuilder out = new StringBuilder();
+		out.append("/*\n * Generated by org.fosstrak.tdt.build.CodecGenerator.\n * Do not edit.\n */\n\n");
+		out.append("package org.fosstrak.tdt;\n\n");
+		out.append("final class GeneratedCodecs {\n\n");
+		out.append("\tstatic final EpcCodec[] CODECS = {");
+		for (int i = 0; i < classes.size(); i++) {
+			out.append(i == 0 ? "\n" : ",\n").append("\t\tnew ").append(classes.get(i)).append("()");
+		}
+		out.append(" };\n\n");
+		out.append("\tprivate GeneratedCodecs() {\n\t}\n}\n");
+		return out.toString();
+	}
+
+	private static String quote(String s) {
+		StringBuilder q = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				q.append('\\');
+			}
+			q.append(c);
+		}
+		return q.append('"').toString();
+	}
+
+	private static void write(File file, String source) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(source);
+		} finally {
+			out.close();
+		}
+	}
+}
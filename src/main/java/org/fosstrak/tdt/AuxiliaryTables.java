@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathVariableResolver;
+
+import org.epcglobalinc.tdt.Rule;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * The auxiliary tables used by TABLELOOKUP rules. A table is identified by the
+ * tableURL and tableXPath of its rule and is loaded once; a table that fails
+ * to load is remembered as such and is not read again.
+ * 
+ * Most tables are looked up with an XPath expression of the form
+ * <code>/table/row[@inputColumn='$1']/@outputColumn</code> (child elements
+ * instead of attributes are also recognised). Such a table is read into a hash
+ * index from input column to output column, so that a lookup does not touch
+ * the document at all. Any other expression is evaluated with XPath; the
+ * expression is compiled once with <code>$1</code> bound to a variable, and
+ * the parsed documents are shared between tables.
+ */
+class AuxiliaryTables {
+
+	/** row path, input column, output column */
+	private static final Pattern INDEXABLE = Pattern.compile(
+			"\\s*(/[^\\[\\]']+)\\[\\s*(@?[\\w.:-]+)\\s*=\\s*'\\$1'\\s*\\]\\s*/\\s*(@?[\\w.:-]+)\\s*");
+
+	private static final QName VALUE = new QName("tdtvalue");
+
+	private final URL auxiliary;
+
+	private final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<String, Table>();
+
+	private final ConcurrentMap<String, Document> documents = new ConcurrentHashMap<String, Document>();
+
+	/**
+	 * @param auxiliary
+	 *            URL of the engine's auxiliary file; a table whose file name
+	 *            is found next to it is read from there instead of from its
+	 *            tableURL
+	 */
+	AuxiliaryTables(URL auxiliary) {
+		this.auxiliary = auxiliary;
+	}
+
+	/**
+	 * Loads the table of a TABLELOOKUP rule ahead of its first lookup.
+	 */
+	void prepare(Rule rule) {
+		getTable(rule);
+	}
+
+	/**
+	 * @return the value of the output column in the row whose input column
+	 *         equals value, or null if there is no such row
+	 */
+	String lookup(Rule rule, String value) {
+		return getTable(rule).lookup(value);
+	}
+
+	private Table getTable(Rule rule) {
+		String key = rule.getTableURL() + " " + rule.getTableXPath();
+		Table table = tables.get(key);
+		if (table == null) {
+			try {
+				table = createTable(rule.getTableURL(), rule.getTableXPath());
+			} catch (TDTException e) {
+				table = new FailedTable(e.getMessage());
+			}
+			Table previous = tables.putIfAbsent(key, table);
+			if (previous != null) {
+				table = previous;
+			}
+		}
+		if (table instanceof FailedTable) {
+			throw new TDTException(((FailedTable) table).message);
+		}
+		return table;
+	}
+
+	private Table createTable(String tableURL, String tableXPath) {
+		if (tableURL == null || tableXPath == null) {
+			throw new TDTException("TABLELOOKUP rule needs both tableURL and tableXPath");
+		}
+		Document document = getDocument(tableURL);
+		// the DOM is not thread-safe, even for reading
+		synchronized (document) {
+			try {
+				Matcher m = INDEXABLE.matcher(tableXPath);
+				if (m.matches()) {
+					return new IndexedTable(document, m.group(1), m.group(2), m.group(3));
+				}
+				return new XPathTable(document, tableXPath);
+			} catch (XPathExpressionException e) {
+				throw new TDTException("Invalid tableXPath " + tableXPath + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private Document getDocument(String tableURL) {
+		Document document = documents.get(tableURL);
+		if (document == null) {
+			URL url = resolve(tableURL);
+			try {
+				InputStream in = url.openStream();
+				try {
+					document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new TDTException("Could not read table " + url + ": " + e.getMessage());
+			} catch (SAXException e) {
+				throw new TDTException("Could not parse table " + url + ": " + e.getMessage());
+			} catch (ParserConfigurationException e) {
+				throw new TDTException("Could not parse table " + url + ": " + e.getMessage());
+			}
+			Document previous = documents.putIfAbsent(tableURL, document);
+			if (previous != null) {
+				document = previous;
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * Prefers a local copy next to the auxiliary file over the published
+	 * tableURL.
+	 */
+	private URL resolve(String tableURL) {
+		String name = tableURL.substring(tableURL.lastIndexOf('/') + 1);
+		if (auxiliary != null && name.length() > 0) {
+			try {
+				URL local = new URL(auxiliary, name);
+				InputStream in = local.openStream();
+				in.close();
+				return local;
+			} catch (IOException e) {
+				// not available locally
+			}
+		}
+		try {
+			return new URL(tableURL);
+		} catch (MalformedURLException e) {
+			throw new TDTException("Invalid tableURL " + tableURL + ": " + e.getMessage());
+		}
+	}
+
+	private interface Table {
+		String lookup(String value);
+	}
+
+	/**
+	 * Stands in for a table that could not be loaded.
+	 */
+	private static class FailedTable implements Table {
+		private final String message;
+
+		FailedTable(String message) {
+			this.message = message;
+		}
+
+		public String lookup(String value) {
+			throw new TDTException(message);
+		}
+	}
+
+	/**
+	 * Hash index from the input column to the output column of each row.
+	 */
+	private static class IndexedTable implements Table {
+		private final Map<String, String> index = new HashMap<String, String>();
+
+		IndexedTable(Document document, String rows, String inputColumn, String outputColumn)
+				throws XPathExpressionException {
+			NodeList nodes = (NodeList) XPathFactory.newInstance().newXPath().evaluate(
+					rows, document, XPathConstants.NODESET);
+			for (int i = 0; i < nodes.getLength(); i++) {
+				Node row = nodes.item(i);
+				String in = column(row, inputColumn);
+				String out = column(row, outputColumn);
+				// like XPath, the first matching row in document order wins
+				if (in != null && out != null && !index.containsKey(in)) {
+					index.put(in, out);
+				}
+			}
+		}
+
+		public String lookup(String value) {
+			return index.get(value);
+		}
+
+		private static String column(Node row, String column) {
+			if (!(row instanceof Element)) {
+				return null;
+			}
+			Element e = (Element) row;
+			if (column.startsWith("@")) {
+				String name = column.substring(1);
+				return e.hasAttribute(name) ? e.getAttribute(name) : null;
+			}
+			for (Node child = e.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (child instanceof Element && column.equals(child.getNodeName())) {
+					return child.getTextContent();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Evaluates a compiled XPath expression in which <code>$1</code> has been
+	 * replaced by a variable.
+	 */
+	private static class XPathTable implements Table {
+		private final Document document;
+		private final XPathExpression expression;
+		private String value;
+
+		XPathTable(Document document, String tableXPath) throws XPathExpressionException {
+			this.document = document;
+			XPath xpath = XPathFactory.newInstance().newXPath();
+			xpath.setXPathVariableResolver(new XPathVariableResolver() {
+				public Object resolveVariable(QName name) {
+					return VALUE.equals(name) ? value : null;
+				}
+			});
+			String expr = tableXPath.replace("'$1'", "$tdtvalue").replace("\"$1\"", "$tdtvalue")
+					.replace("$1", "$tdtvalue");
+			this.expression = xpath.compile(expr);
+		}
+
+		public String lookup(String value) {
+			// neither the expression nor the DOM are thread-safe
+			synchronized (document) {
+				this.value = value;
+				try {
+					String rv = expression.evaluate(document);
+					return rv.length() == 0 ? null : rv;
+				} catch (XPathExpressionException e) {
+					throw new TDTException("Table lookup of " + value + " failed: " + e.getMessage());
+				} finally {
+					this.value = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.epcglobalinc.tdt.Field;
+import org.epcglobalinc.tdt.Option;
+
+/**
+ * The position of each field in the binary encoding of one option of a
+ * scheme, read from the pattern of the option. Only patterns that consist of
+ * literal bits and groups of a fixed number of bits, such as
+ * 00110000([01]{3})101([01]{24})([01]{20})([01]{38}), have a layout.
+ */
+final class BinaryLayout {
+
+	/** one token of a binary pattern: literal bits or a group of a fixed number of bits */
+	private static final Pattern TOKEN = Pattern.compile("\\G(?:([01]+)|\\(\\[01\\]\\{(\\d+)\\}\\))");
+
+	private final String schemeName;
+
+	private final String optionKey;
+
+	private final String pattern;
+
+	private final int length;
+
+	// literal bits as offset, length and value, at most 63 bits each
+	private final int[] literalOffsets;
+
+	private final int[] literalLengths;
+
+	private final long[] literalValues;
+
+	// offset and length of each field, and whether it is an unsigned integer
+	private final Map<String, int[]> fields = new HashMap<String, int[]>();
+
+	// smallest and largest value of each integer field
+	private final Map<String, long[]> ranges = new HashMap<String, long[]>();
+
+	private BinaryLayout(String schemeName, String optionKey, String pattern, int length, List<long[]> literals) {
+		this.schemeName = schemeName;
+		this.optionKey = optionKey;
+		this.pattern = pattern;
+		this.length = length;
+		literalOffsets = new int[literals.size()];
+		literalLengths = new int[literals.size()];
+		literalValues = new long[literals.size()];
+		for (int i = 0; i < literals.size(); i++) {
+			literalOffsets[i] = (int) literals.get(i)[0];
+			literalLengths[i] = (int) literals.get(i)[1];
+			literalValues[i] = literals.get(i)[2];
+		}
+	}
+
+	/**
+	 * @return the layout of a binary option, or null if its pattern is not
+	 *         made of literal bits and fixed-width groups only, or does not
+	 *         agree with the bit lengths of its fields
+	 */
+	static BinaryLayout parse(String schemeName, Option option) {
+		String pattern = option.getPattern();
+		if (pattern == null) {
+			return null;
+		}
+		List<long[]> literals = new ArrayList<long[]>();
+		List<int[]> groups = new ArrayList<int[]>();
+		Matcher matcher = TOKEN.matcher(pattern);
+		int offset = 0;
+		int end = 0;
+		while (end < pattern.length() && matcher.find()) {
+			if (matcher.group(1) != null) {
+				String bits = matcher.group(1);
+				for (int i = 0; i < bits.length(); i += 63) {
+					String chunk = bits.substring(i, Math.min(bits.length(), i + 63));
+					literals.add(new long[] { offset + i, chunk.length(), Long.parseLong(chunk, 2) });
+				}
+				offset += bits.length();
+			} else {
+				int bits = Integer.parseInt(matcher.group(2));
+				groups.add(new int[] { offset, bits });
+				offset += bits;
+			}
+			end = matcher.end();
+		}
+		if (end != pattern.length()) {
+			return null;
+		}
+
+		BinaryLayout layout = new BinaryLayout(schemeName, option.getOptionKey(), pattern, offset, literals);
+		for (Field field : option.getField()) {
+			int seq = field.getSeq().intValue();
+			if (seq < 1 || seq > groups.size()) {
+				return null;
+			}
+			int[] group = groups.get(seq - 1);
+			if (field.getBitLength() != null && field.getBitLength().intValue() != group[1]) {
+				return null;
+			}
+			boolean integer = field.getCompaction() == null && group[1] < 64;
+			layout.fields.put(field.getName(), new int[] { group[0], group[1], integer ? 1 : 0 });
+			if (integer) {
+				long maximum = group[1] == 63 ? Long.MAX_VALUE : (1L << group[1]) - 1;
+				layout.ranges.put(field.getName(), new long[] { Math.max(0, decimal(field.getDecimalMinimum(), 0)),
+						Math.min(maximum, decimal(field.getDecimalMaximum(), maximum)) });
+			}
+		}
+		return layout;
+	}
+
+	String getSchemeName() {
+		return schemeName;
+	}
+
+	String getOptionKey() {
+		return optionKey;
+	}
+
+	/**
+	 * @return the value of a decimalMinimum or decimalMaximum attribute, or
+	 *         otherwise if it is absent or too large
+	 */
+	private static long decimal(String value, long otherwise) {
+		if (value == null || !value.matches("[0-9]{1,18}")) {
+			return otherwise;
+		}
+		return Long.parseLong(value);
+	}
+
+	/**
+	 * @return the pattern of the option, which is the same for options that
+	 *         have the same layout
+	 */
+	String getPattern() {
+		return pattern;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the value of the first 8 bits if they are literal, otherwise -1
+	 */
+	int getHeader() {
+		if (literalOffsets.length == 0 || literalOffsets[0] != 0 || literalLengths[0] < 8) {
+			return -1;
+		}
+		return (int) (literalValues[0] >>> (literalLengths[0] - 8));
+	}
+
+	/**
+	 * @return true if binary has the length and literal bits of the layout;
+	 *         the bits of the fields are not checked
+	 */
+	boolean matches(CharSequence binary) {
+		if (binary.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < literalOffsets.length; i++) {
+			if (CodecFields.parseBits(binary, literalOffsets[i], literalLengths[i]) != literalValues[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the packed EPC at offset in buffer has the length and
+	 *         literal bits of the layout; the bits of the fields are not
+	 *         checked
+	 */
+	boolean matches(byte[] buffer, int offset, int bytes) {
+		if (bytes != PackedBits.bytes(length)) {
+			return false;
+		}
+		for (int i = 0; i < literalOffsets.length; i++) {
+			if (PackedBits.get(buffer, offset, literalOffsets[i], literalLengths[i]) != literalValues[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the literal bits of the layout in the mask and value of a packed
+	 * binary EPC, see {@link PackedBits}.
+	 */
+	void setLiteralBits(byte[] mask, byte[] value) {
+		for (int i = 0; i < literalOffsets.length; i++) {
+			PackedBits.set(mask, literalOffsets[i], literalLengths[i], -1L);
+			PackedBits.set(value, literalOffsets[i], literalLengths[i], literalValues[i]);
+		}
+	}
+
+	/**
+	 * @return the names of the fields, in the order of their bits
+	 */
+	String[] getFieldNames() {
+		List<Map.Entry<String, int[]>> entries = new ArrayList<Map.Entry<String, int[]>>(fields.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+			public int compare(Map.Entry<String, int[]> a, Map.Entry<String, int[]> b) {
+				return a.getValue()[0] - b.getValue()[0];
+			}
+		});
+		String[] names = new String[entries.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = entries.get(i).getKey();
+		}
+		return names;
+	}
+
+	/**
+	 * @return offset and number of bits of a field, and 1 if it is an
+	 *         unsigned integer or 0 if it is encoded otherwise; null if the
+	 *         option has no such field
+	 */
+	int[] getField(String name) {
+		return fields.get(name);
+	}
+
+	/**
+	 * @return true if the option has a field of this name, however it is
+	 *         encoded
+	 */
+	boolean hasField(String name) {
+		return fields.containsKey(name);
+	}
+
+	/**
+	 * @return offset and number of bits of an unsigned integer field, or null
+	 *         if the option has no such field or it is encoded otherwise
+	 */
+	int[] getIntegerField(String name) {
+		int[] field = fields.get(name);
+		if (field == null || field[2] == 0) {
+			return null;
+		}
+		return field;
+	}
+
+	/**
+	 * @return the smallest and largest value of an integer field, from its
+	 *         decimalMinimum and decimalMaximum and its number of bits, or
+	 *         null if the option has no such field
+	 */
+	long[] getRange(String name) {
+		return ranges.get(name);
+	}
+
+	/**
+	 * @return the distinct bit lengths of the layouts, indexed by the value
+	 *         of their 8-bit header; null for headers that no layout has
+	 */
+	static int[][] lengthsByHeader(List<BinaryLayout> layouts) {
+		int[][] lengths = new int[256][];
+		for (BinaryLayout layout : layouts) {
+			int header = layout.getHeader();
+			if (header < 0) {
+				continue;
+			}
+			int[] known = lengths[header];
+			if (known == null) {
+				lengths[header] = new int[] { layout.getLength() };
+			} else if (indexOf(known, layout.getLength()) < 0) {
+				int[] more = new int[known.length + 1];
+				System.arraycopy(known, 0, more, 0, known.length);
+				more[known.length] = layout.getLength();
+				lengths[header] = more;
+			}
+		}
+		return lengths;
+	}
+
+	private static int indexOf(int[] values, int value) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
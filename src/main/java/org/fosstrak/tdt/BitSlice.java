@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view of bits held in a ByteBuffer as a sequence of the characters 0 and
+ * 1, so that a binary EPC read from a tag can be converted without copying
+ * it. The bits are read with absolute gets, so the position of the buffer is
+ * left alone. Like {@link CharSlice}, the view is reset for each value and
+ * must not be kept after the conversion.
+ */
+final class BitSlice implements CharSequence {
+
+	private ByteBuffer buffer;
+
+	// index in the buffer of the first bit, counted from the most significant bit of byte 0
+	private int start;
+
+	private int length;
+
+	BitSlice reset(ByteBuffer buffer, int start, int length) {
+		if (start < 0 || length < 0 || start + length > buffer.limit() * 8) {
+			throw new IndexOutOfBoundsException("start " + start + ", length " + length + ", limit "
+					+ buffer.limit());
+		}
+		this.buffer = buffer;
+		this.start = start;
+		this.length = length;
+		return this;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+		}
+		int bit = start + index;
+		return (buffer.get(bit >>> 3) & (0x80 >>> (bit & 7))) == 0 ? '0' : '1';
+	}
+
+	public CharSequence subSequence(int from, int to) {
+		if (from < 0 || to > length || from > to) {
+			throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + length);
+		}
+		return toString().substring(from, to);
+	}
+
+	@Override
+	public String toString() {
+		char[] bits = new char[length];
+		for (int i = 0; i < length; i++) {
+			bits[i] = charAt(i);
+		}
+		return new String(bits);
+	}
+}
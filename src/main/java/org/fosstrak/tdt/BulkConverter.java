@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Translates files of packed binary EPCs, such as reader logs, in which each
+ * EPC is a record of the same number of bytes, e.g. 12 bytes for 96-bit
+ * EPCs. The input file is mapped into memory and split into chunks of whole
+ * records that are translated in parallel; the bits of each record are read
+ * in place, so no String is built for the input values that a codec handles.
+ * 
+ * The translations are written as ASCII, either one per line, in the order of
+ * the records, or as fixed-width records, padded with spaces and ending with
+ * a newline, at the position of the input record in the file. A record that
+ * cannot be translated, or whose translation does not fit the width, is
+ * written as an empty line or a blank record.
+ * 
+ * <pre>
+ * java org.fosstrak.tdt.BulkConverter epcs.bin epcs.txt PURE_IDENTITY [record length [width [threads [scheme]]]]
+ * </pre>
+ */
+public final class BulkConverter {
+
+	/**
+	 * the largest chunk that is mapped at once, so that the bit index of each
+	 * record in the chunk fits an int
+	 */
+	private static final int MAX_CHUNK = Integer.MAX_VALUE / 8;
+
+	/**
+	 * size of the buffer in which each chunk collects its output
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final TDTEngine engine;
+
+	private final LevelTypeList outputLevel;
+
+	private final Map<String, String> inputParameters;
+
+	private final String schemeName;
+
+	BulkConverter(TDTEngine engine, LevelTypeList outputLevel, Map<String, String> inputParameters,
+			String schemeName) {
+		this.engine = engine;
+		this.outputLevel = outputLevel;
+		this.inputParameters = new HashMap<String, String>(inputParameters);
+		this.schemeName = schemeName;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3 || args.length > 7) {
+			System.err.println("usage: BulkConverter <records> <output> <level> [record length [width [threads [scheme]]]]");
+			System.exit(1);
+		}
+		int recordLength = args.length > 3 ? Integer.parseInt(args[3]) : 12;
+		int width = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+		int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+		BulkConverter converter = new TDTEngine().bulkConverter(LevelTypeList.fromValue(args[2]),
+				new HashMap<String, String>(), args.length > 6 ? args[6] : null);
+		long count = converter.convert(new File(args[0]), recordLength, new File(args[1]), width, threads);
+		System.out.println("Translated " + count + " of " + new File(args[0]).length() / recordLength
+				+ " EPCs into " + args[1]);
+	}
+
+	/**
+	 * Translates a file of packed binary EPCs.
+	 * 
+	 * @param records
+	 *            the input file; its length must be a multiple of the
+	 *            record length
+	 * @param recordLength
+	 *            number of bytes of each record, which holds an EPC of 8
+	 *            times as many bits
+	 * @param output
+	 *            the file to write
+	 * @param width
+	 *            number of bytes of each output record, including the
+	 *            newline, or 0 to write one translation per line
+	 * @param threads
+	 *            the number of chunks to translate in parallel
+	 * @return the number of records translated
+	 * @throws IOException
+	 *             thrown if a file cannot be read or written
+	 */
+	public long convert(File records, int recordLength, File output, int width, int threads) throws IOException {
+		if (recordLength <= 0 || recordLength > MAX_CHUNK) {
+			throw new IllegalArgumentException("record length " + recordLength);
+		}
+		return convert(records, recordLength, output, width, threads, MAX_CHUNK / recordLength);
+	}
+
+	/**
+	 * Translates a file of packed binary EPCs in chunks of at most the given
+	 * number of records.
+	 */
+	long convert(File records, int recordLength, File output, int width, int threads, long maxChunk)
+			throws IOException {
+		if (recordLength <= 0 || recordLength > MAX_CHUNK || width < 0 || width == 1) {
+			throw new IllegalArgumentException("record length " + recordLength + ", width " + width);
+		}
+		RandomAccessFile in = new RandomAccessFile(records, "r");
+		try {
+			long length = in.length();
+			if (length % recordLength != 0) {
+				throw new IOException(records + " is not a whole number of " + recordLength + " byte records");
+			}
+			long count = length / recordLength;
+
+			// split at record boundaries, into chunks that can be mapped
+			threads = Math.max(1, threads);
+			long perChunk = Math.max(1, (count + threads - 1) / threads);
+			perChunk = Math.min(perChunk, Math.min(maxChunk, MAX_CHUNK / recordLength));
+			List<Long> bounds = new ArrayList<Long>();
+			for (long record = 0; record < count; record += perChunk) {
+				bounds.add(record);
+			}
+			bounds.add(count);
+
+			RandomAccessFile out = new RandomAccessFile(output, "rw");
+			try {
+				out.setLength(width > 0 ? count * width : 0);
+				return convert(in.getChannel(), recordLength, bounds, out.getChannel(), width, threads, output);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private long convert(final FileChannel in, final int recordLength, List<Long> bounds, final FileChannel out,
+			final int width, int threads, File output) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final File directory = output.getAbsoluteFile().getParentFile();
+		List<Future<Chunk>> chunks = new ArrayList<Future<Chunk>>();
+		final Queue<File> parts = new ConcurrentLinkedQueue<File>();
+		try {
+			for (int i = 0; i + 1 < bounds.size(); i++) {
+				final long from = bounds.get(i);
+				final long to = bounds.get(i + 1);
+				chunks.add(pool.submit(new Callable<Chunk>() {
+					public Chunk call() throws IOException {
+						MappedByteBuffer epcs = in.map(FileChannel.MapMode.READ_ONLY, from * recordLength,
+								(to - from) * recordLength);
+						if (width > 0) {
+							return convert(epcs, recordLength, out, from * width, width);
+						}
+						File part = File.createTempFile("epcs", ".part", directory);
+						parts.add(part);
+						RandomAccessFile lines = new RandomAccessFile(part, "rw");
+						try {
+							Chunk chunk = convert(epcs, recordLength, lines.getChannel(), 0, 0);
+							chunk.part = part;
+							return chunk;
+						} finally {
+							lines.close();
+						}
+					}
+				}));
+			}
+			long converted = 0;
+			long position = 0;
+			for (Future<Chunk> future : chunks) {
+				Chunk chunk = future.get();
+				converted += chunk.converted;
+				if (chunk.part != null) {
+					position += append(chunk.part, out, position);
+				}
+			}
+			return converted;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while translating into " + output);
+		} catch (ExecutionException e) {
+			IOException ioe = new IOException("Could not translate into " + output + ": " + e.getCause());
+			ioe.initCause(e.getCause());
+			throw ioe;
+		} finally {
+			for (Future<Chunk> future : chunks) {
+				future.cancel(true);
+			}
+			pool.shutdownNow();
+			try {
+				pool.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			// including the parts of chunks that were cancelled as they finished
+			for (File part : parts) {
+				part.delete();
+			}
+		}
+	}
+
+	/**
+	 * The result of one chunk: the number of records translated and, for
+	 * output one per line, the temporary file holding the lines.
+	 */
+	private static class Chunk {
+		long converted;
+		File part;
+	}
+
+	/**
+	 * Translates the records of a chunk, writing the output to channel from
+	 * the given position.
+	 */
+	private Chunk convert(ByteBuffer epcs, int recordLength, FileChannel channel, long position, int width)
+			throws IOException {
+		ConversionContext context = new ConversionContext();
+		BitSlice bits = new BitSlice();
+		StringBuilder value = new StringBuilder();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, width));
+		int bitLength = recordLength * 8;
+		Chunk chunk = new Chunk();
+		for (int record = 0, records = epcs.limit() / recordLength; record < records; record++) {
+			if ((record & 0xfff) == 0 && Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("Interrupted while translating");
+			}
+			bits.reset(epcs, record * bitLength, bitLength);
+			value.setLength(0);
+			try {
+				Map<String, String> parameters = context.parameters(inputParameters, bitLength);
+				if (schemeName != null) {
+					engine.convertBinary(schemeName, bits, parameters, outputLevel, context, value);
+				} else {
+					engine.convert(bits, 0, bitLength, parameters, outputLevel, value, context);
+				}
+				if (width > 0 && value.length() >= width) {
+					value.setLength(0);
+				} else {
+					chunk.converted++;
+				}
+			} catch (TDTException e) {
+				value.setLength(0);
+			}
+
+			int size = width > 0 ? width : value.length() + 1;
+			if (buffer.remaining() < size) {
+				position += write(buffer, channel, position);
+				if (buffer.capacity() < size) {
+					// a line longer than the buffer
+					buffer = ByteBuffer.allocateDirect(size);
+				}
+			}
+			for (int i = 0; i < value.length(); i++) {
+				buffer.put((byte) value.charAt(i));
+			}
+			for (int i = value.length(); i < size - 1; i++) {
+				buffer.put((byte) ' ');
+			}
+			buffer.put((byte) '\n');
+		}
+		write(buffer, channel, position);
+		if (Thread.currentThread().isInterrupted()) {
+			// the chunk is cancelled and nobody will take its result
+			throw new InterruptedIOException("Interrupted while translating");
+		}
+		return chunk;
+	}
+
+	/**
+	 * Writes the contents of the buffer to channel at the given position and
+	 * clears it.
+	 * 
+	 * @return the number of bytes written
+	 */
+	private static int write(ByteBuffer buffer, FileChannel channel, long position) throws IOException {
+		buffer.flip();
+		int size = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		buffer.clear();
+		return size;
+	}
+
+	/**
+	 * Appends a temporary file of lines to the output at the given position.
+	 * 
+	 * @return the number of bytes appended
+	 */
+	private static long append(File part, FileChannel out, long position) throws IOException {
+		RandomAccessFile lines = new RandomAccessFile(part, "r");
+		try {
+			FileChannel channel = lines.getChannel();
+			long size = channel.size();
+			for (long done = 0; done < size;) {
+				done += channel.transferTo(done, size - done, out.position(position + done));
+			}
+			return size;
+		} finally {
+			lines.close();
+		}
+	}
+}
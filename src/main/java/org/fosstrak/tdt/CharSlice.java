@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+/**
+ * A view of part of a CharSequence, so that a value held in a larger buffer
+ * can be converted without copying it. The view is reset for each value and
+ * must not be kept after the conversion.
+ */
+final class CharSlice implements CharSequence {
+
+	private CharSequence sequence;
+
+	private int start;
+
+	private int end;
+
+	CharSlice reset(CharSequence sequence, int start, int end) {
+		if (start < 0 || end > sequence.length() || start > end) {
+			throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + sequence.length());
+		}
+		this.sequence = sequence;
+		this.start = start;
+		this.end = end;
+		return this;
+	}
+
+	public int length() {
+		return end - start;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= end - start) {
+			throw new IndexOutOfBoundsException("index " + index + ", length " + (end - start));
+		}
+		return sequence.charAt(start + index);
+	}
+
+	public CharSequence subSequence(int from, int to) {
+		if (from < 0 || to > end - start || from > to) {
+			throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + (end - start));
+		}
+		return sequence.subSequence(start + from, start + to);
+	}
+
+	@Override
+	public String toString() {
+		return sequence.subSequence(start, end).toString();
+	}
+}
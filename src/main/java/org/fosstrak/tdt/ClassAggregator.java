@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Groups decoded EPCs by class, i.e. by scheme and the values of the fields
+ * other than the serial number, such as the company prefix and item
+ * reference of an SGTIN, and compresses the serial numbers of each class
+ * into sorted runs of consecutive values. Obtained from
+ * {@link FieldProjection#aggregator(String, File, int)}; rows are added from
+ * the {@link EpcColumns} of the same projection.
+ * 
+ * <p>
+ * Once more serial numbers are held than the aggregator was created for, the
+ * runs found so far are written to a temporary file in sorted order, and the
+ * files are merged when the classes are listed, so memory stays bounded
+ * however large the snapshot. An aggregator is not thread-safe.
+ * </p>
+ */
+public final class ClassAggregator {
+
+	/**
+	 * Receives the runs of serial numbers of each class.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called once per class, in the order of the scheme names of the
+		 * columns and then of the class values.
+		 * 
+		 * @param classValues
+		 *            value of each class field, in the order of the
+		 *            projection without the serial field
+		 * @param firsts
+		 *            first serial number of each run, in ascending order
+		 * @param lasts
+		 *            last serial number of each run
+		 * @param runs
+		 *            number of runs; the arrays are only valid during the
+		 *            call and may be longer
+		 */
+		void classRanges(String schemeName, long[] classValues, long[] firsts, long[] lasts, int runs)
+				throws IOException;
+	}
+
+	private static final Comparator<Key> KEY_ORDER = new Comparator<Key>() {
+		public int compare(Key a, Key b) {
+			return a.compareTo(b);
+		}
+	};
+
+	private final String[] fieldNames;
+
+	// index in fieldNames of each class field and of the serial field
+	private final int[] classFields;
+
+	private final int serialField;
+
+	private final File spillDirectory;
+
+	private final int maxSerials;
+
+	private final Map<Key, Serials> classes = new HashMap<Key, Serials>();
+
+	private final Key probe;
+
+	private final List<File> spills = new ArrayList<File>();
+
+	private String[] schemeNames;
+
+	private int buffered;
+
+	private long skipped;
+
+	ClassAggregator(String[] fieldNames, String serialFieldName, File spillDirectory, int maxSerials) {
+		this.fieldNames = fieldNames;
+		this.spillDirectory = spillDirectory;
+		this.maxSerials = maxSerials;
+		classFields = new int[fieldNames.length - 1];
+		int serial = -1;
+		for (int i = 0, j = 0; i < fieldNames.length; i++) {
+			if (fieldNames[i].equals(serialFieldName) && serial < 0) {
+				serial = i;
+			} else if (j < classFields.length) {
+				classFields[j++] = i;
+			}
+		}
+		if (serial < 0) {
+			throw new TDTException("No field " + serialFieldName + " in " + Arrays.toString(fieldNames));
+		}
+		serialField = serial;
+		probe = new Key(0, new long[classFields.length]);
+	}
+
+	/**
+	 * Adds the rows of the columns. Rows without a scheme, a class field or
+	 * a numeric serial number are skipped.
+	 * 
+	 * @throws IOException
+	 *             if the runs could not be written to a temporary file
+	 */
+	public void add(EpcColumns columns) throws IOException {
+		if (!Arrays.equals(columns.getFieldNames(), fieldNames)) {
+			throw new TDTException("The columns are not those of the projection of the aggregator");
+		}
+		if (schemeNames == null) {
+			schemeNames = columns.getSchemeNames();
+		} else if (!Arrays.equals(schemeNames, columns.getSchemeNames())) {
+			throw new TDTException("The columns were created for other definitions");
+		}
+		byte[] schemeIds = columns.getSchemeIds();
+		rows: for (int row = 0; row < columns.size(); row++) {
+			long serial = columns.getLong(row, serialField);
+			if (schemeIds[row] < 0 || serial < 0) {
+				skipped++;
+				continue;
+			}
+			probe.schemeId = schemeIds[row];
+			for (int i = 0; i < classFields.length; i++) {
+				probe.values[i] = columns.getLong(row, classFields[i]);
+				if (probe.values[i] < 0) {
+					skipped++;
+					continue rows;
+				}
+			}
+			probe.hash();
+			Serials serials = classes.get(probe);
+			if (serials == null) {
+				serials = new Serials();
+				classes.put(probe.copy(), serials);
+			}
+			serials.add(serial);
+			if (++buffered >= maxSerials) {
+				spill();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of rows skipped so far
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Hands the runs of each class to the handler, then empties the
+	 * aggregator and deletes its temporary files.
+	 * 
+	 * @throws IOException
+	 *             if a temporary file could not be read, or the handler
+	 *             fails
+	 */
+	public void finish(Handler handler) throws IOException {
+		try {
+			if (spills.isEmpty()) {
+				for (Key key : sortedKeys()) {
+					Serials serials = classes.get(key);
+					serials.compress();
+					handler.classRanges(schemeNames[key.schemeId], key.values.clone(), serials.firsts,
+							serials.lasts, serials.runs);
+				}
+			} else {
+				if (!classes.isEmpty()) {
+					spill();
+				}
+				merge(handler);
+			}
+		} finally {
+			for (File file : spills) {
+				file.delete();
+			}
+			spills.clear();
+			classes.clear();
+			buffered = 0;
+		}
+	}
+
+	private List<Key> sortedKeys() {
+		List<Key> keys = new ArrayList<Key>(classes.keySet());
+		Collections.sort(keys, KEY_ORDER);
+		return keys;
+	}
+
+	/**
+	 * Writes the runs of each class to a new temporary file, in the order of
+	 * the classes and then of the runs, and empties the classes.
+	 */
+	private void spill() throws IOException {
+		File file = File.createTempFile("epc-classes", ".runs", spillDirectory);
+		spills.add(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+				64 * 1024));
+		try {
+			for (Key key : sortedKeys()) {
+				Serials serials = classes.get(key);
+				serials.compress();
+				for (int run = 0; run < serials.runs; run++) {
+					out.writeByte(key.schemeId);
+					for (long value : key.values) {
+						out.writeLong(value);
+					}
+					out.writeLong(serials.firsts[run]);
+					out.writeLong(serials.lasts[run]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		classes.clear();
+		buffered = 0;
+	}
+
+	/**
+	 * Merges the runs of the temporary files, joining the runs of a class
+	 * that overlap or follow each other.
+	 */
+	private void merge(Handler handler) throws IOException {
+		PriorityQueue<SpillReader> queue = new PriorityQueue<SpillReader>(spills.size(),
+				new Comparator<SpillReader>() {
+					public int compare(SpillReader a, SpillReader b) {
+						int order = a.key.compareTo(b.key);
+						return order != 0 ? order : Long.compare(a.first, b.first);
+					}
+				});
+		List<SpillReader> readers = new ArrayList<SpillReader>();
+		try {
+			for (File file : spills) {
+				SpillReader reader = new SpillReader(file, classFields.length);
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			Key current = null;
+			Serials runs = new Serials();
+			while (!queue.isEmpty()) {
+				SpillReader reader = queue.poll();
+				if (current == null || !current.equals(reader.key)) {
+					if (current != null) {
+						handler.classRanges(schemeNames[current.schemeId], current.values.clone(), runs.firsts,
+								runs.lasts, runs.runs);
+					}
+					current = reader.key.copy();
+					runs.runs = 0;
+				}
+				runs.addRun(reader.first, reader.last);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			if (current != null) {
+				handler.classRanges(schemeNames[current.schemeId], current.values.clone(), runs.firsts, runs.lasts,
+						runs.runs);
+			}
+		} finally {
+			for (SpillReader reader : readers) {
+				reader.in.close();
+			}
+		}
+	}
+
+	/** a class: the scheme and the values of the class fields */
+	private static final class Key implements Comparable<Key> {
+		int schemeId;
+
+		final long[] values;
+
+		private int hash;
+
+		Key(int schemeId, long[] values) {
+			this.schemeId = schemeId;
+			this.values = values;
+		}
+
+		void hash() {
+			hash = 31 * schemeId + Arrays.hashCode(values);
+		}
+
+		Key copy() {
+			Key key = new Key(schemeId, values.clone());
+			key.hash = hash;
+			return key;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return schemeId == other.schemeId && Arrays.equals(values, other.values);
+		}
+
+		public int compareTo(Key other) {
+			if (schemeId != other.schemeId) {
+				return schemeId < other.schemeId ? -1 : 1;
+			}
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != other.values[i]) {
+					return values[i] < other.values[i] ? -1 : 1;
+				}
+			}
+			return 0;
+		}
+	}
+
+	/** the serial numbers of a class, and then their runs */
+	private static final class Serials {
+		long[] serials = new long[4];
+
+		int size;
+
+		long[] firsts = new long[4];
+
+		long[] lasts = new long[4];
+
+		int runs;
+
+		void add(long serial) {
+			if (size == serials.length) {
+				serials = Arrays.copyOf(serials, size * 2);
+			}
+			serials[size++] = serial;
+		}
+
+		/**
+		 * Sorts the serial numbers added and appends their runs; the serial
+		 * numbers are dropped.
+		 */
+		void compress() {
+			Arrays.sort(serials, 0, size);
+			for (int i = 0; i < size; i++) {
+				addRun(serials[i], serials[i]);
+			}
+			serials = new long[4];
+			size = 0;
+		}
+
+		/**
+		 * Appends a run that does not start before the last one, joining it to
+		 * the last one if they overlap or follow each other.
+		 */
+		void addRun(long first, long last) {
+			if (runs > 0 && first <= lasts[runs - 1] + 1) {
+				lasts[runs - 1] = Math.max(lasts[runs - 1], last);
+				return;
+			}
+			if (runs == firsts.length) {
+				firsts = Arrays.copyOf(firsts, runs * 2);
+				lasts = Arrays.copyOf(lasts, runs * 2);
+			}
+			firsts[runs] = first;
+			lasts[runs] = last;
+			runs++;
+		}
+	}
+
+	/** reads the runs of a temporary file one at a time */
+	private static final class SpillReader {
+		final DataInputStream in;
+
+		final Key key;
+
+		long first;
+
+		long last;
+
+		SpillReader(File file, int classFields) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			key = new Key(0, new long[classFields]);
+		}
+
+		/**
+		 * @return false at the end of the file
+		 */
+		boolean next() throws IOException {
+			int schemeId = in.read();
+			if (schemeId < 0) {
+				return false;
+			}
+			key.schemeId = schemeId;
+			for (int i = 0; i < key.values.length; i++) {
+				key.values[i] = in.readLong();
+			}
+			key.hash();
+			first = in.readLong();
+			last = in.readLong();
+			return true;
+		}
+	}
+}
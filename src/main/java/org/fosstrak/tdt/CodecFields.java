@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Map;
+
+/**
+ * Reads and writes numeric fields directly from and to the characters of
+ * binary strings and URIs, for the codecs. None of the methods allocate.
+ */
+final class CodecFields {
+
+	private static final long[] POWERS_OF_TEN = new long[19];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private CodecFields() {
+	}
+
+	/**
+	 * @return true if s contains prefix starting at offset, as
+	 *         {@link String#startsWith(String, int)}
+	 */
+	static boolean startsWith(CharSequence s, String prefix, int offset) {
+		if (offset < 0 || offset > s.length() - prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (s.charAt(offset + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the index of the first c in s at or after start, or -1
+	 */
+	static int indexOf(CharSequence s, char c, int start) {
+		for (int i = start; i < s.length(); i++) {
+			if (s.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the value of length bits of s starting at start, or -1 if they
+	 *         are not all 0 or 1
+	 */
+	static long parseBits(CharSequence s, int start, int length) {
+		long value = 0;
+		for (int i = start; i < start + length; i++) {
+			char c = s.charAt(i);
+			if (c != '0' && c != '1') {
+				return -1;
+			}
+			value = (value << 1) | (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return true if s has length characters 0 or 1 starting at start
+	 */
+	static boolean isBits(CharSequence s, int start, int length) {
+		if (s.length() < start + length) {
+			return false;
+		}
+		for (int i = start; i < start + length; i++) {
+			char c = s.charAt(i);
+			if (c != '0' && c != '1') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the value of the digits of s between start and end, which may
+	 *         have leading zeros, or -1 if they are not all digits
+	 */
+	static long parseDigits(CharSequence s, int start, int end) {
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return true if s has length digits no higher than max starting at start
+	 */
+	static boolean isDigits(CharSequence s, int start, int length, char max) {
+		if (s.length() < start + length) {
+			return false;
+		}
+		for (int i = start; i < start + length; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > max) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of consecutive digits no higher than max in s
+	 *         starting at start
+	 */
+	static int digitRun(CharSequence s, int start, char max) {
+		int i = start;
+		while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= max) {
+			i++;
+		}
+		return i - start;
+	}
+
+	/**
+	 * @return the value of the number between start and end, or -1 if it is
+	 *         empty, longer than maxDigits, has leading zeros or does not fit
+	 *         in a long
+	 */
+	static long parseNumber(CharSequence s, int start, int end, int maxDigits) {
+		int length = end - start;
+		if (length < 1 || length > maxDigits || (length > 1 && s.charAt(start) == '0')) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9' || value > (Long.MAX_VALUE - (c - '0')) / 10) {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return the value of a numeric parameter, or -1 if it is missing or not
+	 *         a number without leading zeros
+	 */
+	static long parameter(Map<String, String> parameters, String name) {
+		String value = parameters.get(name);
+		if (value == null) {
+			return -1;
+		}
+		return parseNumber(value, 0, value.length(), 18);
+	}
+
+	/**
+	 * @return true if the value can be written with the given number of digits
+	 */
+	static boolean fitsDigits(long value, int digits) {
+		return digits >= POWERS_OF_TEN.length || value < POWERS_OF_TEN[digits];
+	}
+
+	static void appendBits(StringBuilder out, long value, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			out.append((value >>> i & 1) == 0 ? '0' : '1');
+		}
+	}
+
+	/**
+	 * Appends the value padded with leading zeros to length digits; nothing is
+	 * appended if length is 0.
+	 */
+	static void appendDigits(StringBuilder out, long value, int length) {
+		if (length == 0) {
+			return;
+		}
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		for (int i = digits; i < length; i++) {
+			out.append('0');
+		}
+		out.append(value);
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Arrays;
+
+/**
+ * The Company Prefix Index table used by the 64-bit schemes, which encode a
+ * GS1 Company Prefix as its index in the table published at
+ * http://www.onsepc.com/ManagerTranslation.xml.
+ * 
+ * A company prefix is kept as a long together with its number of digits,
+ * since its leading zeros are significant. Decoding looks the index up in a
+ * dense array, and returns a string that is created once per entry, so that
+ * decoding does not allocate. Encoding uses an open-addressing hash table
+ * from company prefix to index.
+ * 
+ * The table is filled in while the auxiliary file is loaded and is read-only
+ * afterwards.
+ */
+class CompanyPrefixIndexTable {
+
+	/** the longest GS1 Company Prefix */
+	static final int MAX_DIGITS = 12;
+
+	// a company prefix and its number of digits, packed as (prefix << 4) | digits;
+	// 0 is never a valid key, so it marks an empty slot
+	private long[] byIndex = new long[16];
+
+	private String[] strings = new String[16];
+
+	private long[] keys = new long[32];
+
+	private int[] values = new int[32];
+
+	private int size;
+
+	/**
+	 * Adds an entry to the table, replacing any entry with the same index.
+	 */
+	void put(int index, String companyPrefix) {
+		if (index < 0) {
+			throw new TDTException("Negative company prefix index " + index);
+		}
+		long key = pack(companyPrefix, 0, companyPrefix.length());
+		if (key == 0) {
+			throw new TDTException("Invalid GS1 Company Prefix " + companyPrefix);
+		}
+		if (index >= byIndex.length) {
+			int n = Math.max(byIndex.length * 2, index + 1);
+			byIndex = Arrays.copyOf(byIndex, n);
+			strings = Arrays.copyOf(strings, n);
+		}
+		long previous = byIndex[index];
+		if (previous == 0) {
+			size++;
+		}
+		byIndex[index] = key;
+		strings[index] = companyPrefix;
+		if (previous != 0 && previous != key) {
+			// drop the previous company prefix from the hash table
+			rebuild(keys.length);
+		} else {
+			if (size * 2 > keys.length) {
+				rebuild(keys.length * 2);
+			}
+			insert(key, index);
+		}
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the company prefix with the given index, or null if there is
+	 *         none
+	 */
+	String getCompanyPrefix(int index) {
+		return index >= 0 && index < strings.length ? strings[index] : null;
+	}
+
+	/**
+	 * @param index
+	 *            the decimal digits of a company prefix index
+	 * @return the company prefix with that index, or null if there is none
+	 */
+	String getCompanyPrefix(CharSequence index) {
+		int n = index.length();
+		if (n == 0 || n > 9) {
+			return null;
+		}
+		int i = 0;
+		for (int k = 0; k < n; k++) {
+			char c = index.charAt(k);
+			if (c < '0' || c > '9') {
+				return null;
+			}
+			i = i * 10 + (c - '0');
+		}
+		return getCompanyPrefix(i);
+	}
+
+	/**
+	 * @return the index of the given company prefix, or -1 if it has none
+	 */
+	int getIndex(CharSequence companyPrefix) {
+		long key = pack(companyPrefix, 0, companyPrefix.length());
+		return key == 0 ? -1 : find(key);
+	}
+
+	/**
+	 * @return the packed key of the digits from start to end, or 0 if they
+	 *         are not a valid company prefix
+	 */
+	private static long pack(CharSequence s, int start, int end) {
+		int digits = end - start;
+		if (digits < 1 || digits > MAX_DIGITS) {
+			return 0;
+		}
+		long value = 0;
+		for (int k = start; k < end; k++) {
+			char c = s.charAt(k);
+			if (c < '0' || c > '9') {
+				return 0;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return (value << 4) | digits;
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private int find(long key) {
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key) {
+				return values[i];
+			}
+			if (k == 0) {
+				return -1;
+			}
+		}
+	}
+
+	private void insert(long key, int value) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0 && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	private void rebuild(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		for (int i = 0; i < byIndex.length; i++) {
+			if (byIndex[i] != 0) {
+				insert(byIndex[i], i);
+			}
+		}
+	}
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A set of GS1 Company Prefixes, used to find the length of the company
+ * prefix at the start of a GS1 key such as a GTIN or an SSCC.
+ * 
+ * The prefixes are held as numbers in one sorted array, grouped by their
+ * number of digits, so that a list of millions of prefixes takes 8 bytes per
+ * prefix. {@link #getLength(CharSequence, int)} tries the longest possible
+ * prefix first, with one binary search per length, and does not allocate.
+ * 
+ * An index is immutable; use a {@link Builder} to create one. An index can
+ * be written to a file with {@link #write(File)}, and such a file can be
+ * memory-mapped with {@link #map(File)} instead of being read into the heap.
+ * The pages of a mapped file live in the operating system's file cache, so
+ * they are shared by every engine and every JVM on the host that maps the
+ * same file.
+ */
+class CompanyPrefixLengthIndex {
+
+	/** the shortest GS1 Company Prefix */
+	static final int MIN_DIGITS = 4;
+
+	/** the longest GS1 Company Prefix */
+	static final int MAX_DIGITS = 12;
+
+	static final CompanyPrefixLengthIndex EMPTY = new Builder().build();
+
+	/** identifies a compiled file, "TDTGCP" and format version 1 */
+	private static final long MAGIC = 0x5444544743500001L;
+
+	/** the number of longs before the prefixes of a compiled file */
+	private static final int HEADER = MAX_DIGITS + 3;
+
+	/**
+	 * the files mapped and still in use, so that each file is only mapped
+	 * once; an index that is no longer used is released with its mapping
+	 */
+	private static final ConcurrentMap<String, MappedReference> mapped = new ConcurrentHashMap<String, MappedReference>();
+
+	private static final ReferenceQueue<CompanyPrefixLengthIndex> released = new ReferenceQueue<CompanyPrefixLengthIndex>();
+
+	// the prefixes of n digits are prefixes[offsets[n]] .. prefixes[offsets[n + 1] - 1]
+	private final LongBuffer prefixes;
+
+	private final int[] offsets;
+
+	// for a mapped file, its length and time stamp when it was mapped
+	private final long fileLength;
+
+	private final long fileModified;
+
+	private CompanyPrefixLengthIndex(LongBuffer prefixes, int[] offsets, long fileLength, long fileModified) {
+		this.prefixes = prefixes;
+		this.offsets = offsets;
+		this.fileLength = fileLength;
+		this.fileModified = fileModified;
+	}
+
+	/**
+	 * Maps a file written by {@link #write(File)}. Each file is mapped once
+	 * per JVM; mapping it again returns the same index unless the file has
+	 * changed in the meantime or the index is no longer used.
+	 * 
+	 * @throws IOException
+	 *             thrown if the file cannot be read or is not a compiled list
+	 *             of company prefixes
+	 */
+	static CompanyPrefixLengthIndex map(File file) throws IOException {
+		for (Reference<?> ref; (ref = released.poll()) != null;) {
+			mapped.remove(((MappedReference) ref).key, ref);
+		}
+		String key = file.getCanonicalPath();
+		MappedReference ref = mapped.get(key);
+		CompanyPrefixLengthIndex index = ref == null ? null : ref.get();
+		if (index != null && index.fileLength == file.length() && index.fileModified == file.lastModified()) {
+			return index;
+		}
+		if (ref != null) {
+			// the old mapping is left to the engines that still use it
+			mapped.remove(key, ref);
+		}
+		long length = file.length();
+		long modified = file.lastModified();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try {
+			// the mapping stays valid after the channel is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			raf.close();
+		}
+		LongBuffer longs = buffer.asLongBuffer();
+		if (length % 8 != 0 || longs.limit() < HEADER || longs.get(0) != MAGIC) {
+			throw new IOException(file + " is not a compiled list of GS1 Company Prefixes");
+		}
+		int[] offsets = new int[MAX_DIGITS + 2];
+		for (int n = 0; n < offsets.length; n++) {
+			long offset = longs.get(n + 1);
+			if (offset < 0 || offset > longs.limit() - HEADER || (n > 0 && offset < offsets[n - 1])) {
+				throw new IOException(file + " is not a compiled list of GS1 Company Prefixes");
+			}
+			offsets[n] = (int) offset;
+		}
+		longs.position(HEADER);
+		index = new CompanyPrefixLengthIndex(longs.slice(), offsets, length, modified);
+		mapped.put(key, new MappedReference(key, index));
+		return index;
+	}
+
+	private static final class MappedReference extends WeakReference<CompanyPrefixLengthIndex> {
+		final String key;
+
+		MappedReference(String key, CompanyPrefixLengthIndex index) {
+			super(index, released);
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Writes the index to a file that can be mapped with {@link #map(File)}.
+	 * The index is written to a temporary file that then replaces the file in
+	 * one step, since an engine may still have the old file mapped.
+	 */
+	void write(File file) throws IOException {
+		File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+		boolean written = false;
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				FileChannel channel = out.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER * 8);
+				header.putLong(MAGIC);
+				for (int n = 0; n < offsets.length; n++) {
+					header.putLong(offsets[n]);
+				}
+				header.flip();
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+				ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+				for (int i = 0; i < size(); i++) {
+					if (!block.hasRemaining()) {
+						block.flip();
+						while (block.hasRemaining()) {
+							channel.write(block);
+						}
+						block.clear();
+					}
+					block.putLong(prefixes.get(i));
+				}
+				block.flip();
+				while (block.hasRemaining()) {
+					channel.write(block);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			written = true;
+		} finally {
+			if (!written) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of company prefixes
+	 */
+	int size() {
+		return offsets[MAX_DIGITS + 1];
+	}
+
+	/**
+	 * Finds the longest company prefix at the given position.
+	 * 
+	 * @param s
+	 *            contains the digits of a GS1 key
+	 * @param start
+	 *            position of the first digit of the company prefix
+	 * @return the number of digits of the longest company prefix in the index
+	 *         that the digits from start begin with, or -1 if there is none
+	 */
+	int getLength(CharSequence s, int start) {
+		int end = Math.min(s.length(), start + MAX_DIGITS);
+		long value = 0;
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			value = value * 10 + (c - '0');
+			n++;
+		}
+		for (; n >= MIN_DIGITS; n--) {
+			int from = offsets[n];
+			int to = offsets[n + 1];
+			if (from < to && contains(from, to, value)) {
+				return n;
+			}
+			value /= 10;
+		}
+		return -1;
+	}
+
+	private boolean contains(int from, int to, long value) {
+		int low = from;
+		int high = to - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long v = prefixes.get(mid);
+			if (v < value) {
+				low = mid + 1;
+			} else if (v > value) {
+				high = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Collects company prefixes for a new index.
+	 */
+	static class Builder {
+		private final long[][] values = new long[MAX_DIGITS + 1][];
+
+		private final int[] counts = new int[MAX_DIGITS + 1];
+
+		Builder() {
+			for (int n = MIN_DIGITS; n <= MAX_DIGITS; n++) {
+				values[n] = new long[16];
+			}
+		}
+
+		/**
+		 * Adds all prefixes of an existing index.
+		 */
+		Builder add(CompanyPrefixLengthIndex index) {
+			for (int n = MIN_DIGITS; n <= MAX_DIGITS; n++) {
+				for (int i = index.offsets[n]; i < index.offsets[n + 1]; i++) {
+					add(index.prefixes.get(i), n);
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Adds all prefixes collected by another builder.
+		 */
+		Builder add(Builder other) {
+			for (int n = MIN_DIGITS; n <= MAX_DIGITS; n++) {
+				for (int i = 0; i < other.counts[n]; i++) {
+					add(other.values[n][i], n);
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Adds the company prefix at the start of a line of a list of
+		 * company prefixes. Leading white space and quotes are skipped; the
+		 * rest of the line after the digits is ignored.
+		 * 
+		 * @return false if the line does not start with a valid company
+		 *         prefix
+		 */
+		boolean addLine(CharSequence line) {
+			int start = 0;
+			while (start < line.length() && (line.charAt(start) == '"' || Character.isWhitespace(line.charAt(start)))) {
+				start++;
+			}
+			int end = start;
+			while (end < line.length() && line.charAt(end) >= '0' && line.charAt(end) <= '9') {
+				end++;
+			}
+			return add(line, start, end);
+		}
+
+		/**
+		 * Adds the digits from start to end as a company prefix.
+		 * 
+		 * @return false if they are not a valid company prefix
+		 */
+		boolean add(CharSequence s, int start, int end) {
+			int n = end - start;
+			if (n < MIN_DIGITS || n > MAX_DIGITS) {
+				return false;
+			}
+			long value = 0;
+			for (int i = start; i < end; i++) {
+				char c = s.charAt(i);
+				if (c < '0' || c > '9') {
+					return false;
+				}
+				value = value * 10 + (c - '0');
+			}
+			add(value, n);
+			return true;
+		}
+
+		void add(long value, int digits) {
+			if (counts[digits] == values[digits].length) {
+				values[digits] = Arrays.copyOf(values[digits], counts[digits] * 2);
+			}
+			values[digits][counts[digits]++] = value;
+		}
+
+		CompanyPrefixLengthIndex build() {
+			int[] offsets = new int[MAX_DIGITS + 2];
+			int total = 0;
+			for (int n = 0; n <= MAX_DIGITS; n++) {
+				offsets[n] = total;
+				if (values[n] != null) {
+					Arrays.sort(values[n], 0, counts[n]);
+					counts[n] = unique(values[n], counts[n]);
+					total += counts[n];
+				}
+			}
+			offsets[MAX_DIGITS + 1] = total;
+			long[] prefixes = new long[total];
+			for (int n = MIN_DIGITS; n <= MAX_DIGITS; n++) {
+				System.arraycopy(values[n], 0, prefixes, offsets[n], counts[n]);
+			}
+			return new CompanyPrefixLengthIndex(LongBuffer.wrap(prefixes), offsets, -1, -1);
+		}
+
+		private static int unique(long[] a, int n) {
+			int j = 0;
+			for (int i = 0; i < n; i++) {
+				if (j == 0 || a[i] != a[j - 1]) {
+					a[j++] = a[i];
+				}
+			}
+			return j;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles a text list of GS1 Company Prefixes, such as the list published at
+ * http://www.onsepc.com/ManagerList.csv, into a file that a TDTEngine can map
+ * into memory with {@link TDTEngine#setCompiledListOfGCPs(File)}.
+ * 
+ * The list is read in the same way as by
+ * {@link TDTEngine#addListOfGCPs(java.io.InputStream)}: one company prefix at
+ * the start of each line. It is split into chunks at line boundaries that are
+ * parsed in parallel.
+ * 
+ * <pre>
+ * java org.fosstrak.tdt.CompanyPrefixListCompiler ManagerList.csv gcp.bin [threads]
+ * </pre>
+ */
+public class CompanyPrefixListCompiler {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("usage: CompanyPrefixListCompiler <list> <compiled file> [threads]");
+			System.exit(1);
+		}
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int count = compile(new File(args[0]), new File(args[1]), threads);
+		System.out.println("Compiled " + count + " GS1 Company Prefixes into " + args[1]);
+	}
+
+	/**
+	 * Compiles a text list of company prefixes.
+	 * 
+	 * @param list
+	 *            the text list, one company prefix at the start of each line
+	 * @param compiled
+	 *            the file to write
+	 * @param threads
+	 *            the number of chunks to parse in parallel
+	 * @return the number of distinct company prefixes
+	 * @throws IOException
+	 *             thrown if a file cannot be read or written
+	 */
+	public static int compile(File list, File compiled, int threads) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(list, "r");
+		final MappedByteBuffer text;
+		try {
+			if (raf.length() > Integer.MAX_VALUE) {
+				throw new IOException(list + " is too large");
+			}
+			text = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+
+		// split at line boundaries
+		int length = text.limit();
+		threads = Math.max(1, threads);
+		List<Integer> bounds = new ArrayList<Integer>();
+		bounds.add(0);
+		for (int i = 1; i < threads; i++) {
+			int pos = Math.max((int) ((long) length * i / threads), bounds.get(bounds.size() - 1));
+			while (pos < length && text.get(pos) != '\n') {
+				pos++;
+			}
+			bounds.add(Math.min(pos + 1, length));
+		}
+		bounds.add(length);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<CompanyPrefixLengthIndex.Builder>> chunks = new ArrayList<Future<CompanyPrefixLengthIndex.Builder>>();
+			for (int i = 0; i + 1 < bounds.size(); i++) {
+				final int from = bounds.get(i);
+				final int to = bounds.get(i + 1);
+				chunks.add(pool.submit(new Callable<CompanyPrefixLengthIndex.Builder>() {
+					public CompanyPrefixLengthIndex.Builder call() {
+						return parse(text, from, to);
+					}
+				}));
+			}
+			CompanyPrefixLengthIndex.Builder all = new CompanyPrefixLengthIndex.Builder();
+			for (Future<CompanyPrefixLengthIndex.Builder> chunk : chunks) {
+				all.add(chunk.get());
+			}
+			CompanyPrefixLengthIndex index = all.build();
+			index.write(compiled);
+			return index.size();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while compiling " + list);
+		} catch (ExecutionException e) {
+			IOException ioe = new IOException("Could not compile " + list + ": " + e.getCause());
+			ioe.initCause(e.getCause());
+			throw ioe;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static CompanyPrefixLengthIndex.Builder parse(MappedByteBuffer text, int from, int to) {
+		CompanyPrefixLengthIndex.Builder builder = new CompanyPrefixLengthIndex.Builder();
+		StringBuilder line = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			char c = (char) (text.get(i) & 0xff);
+			if (c == '\n') {
+				builder.addLine(line);
+				line.setLength(0);
+			} else {
+				line.append(c);
+			}
+		}
+		builder.addLine(line);
+		return builder;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Buffers that {@link TDTEngine} reuses from one conversion to the next: the
+ * output being built, the matchers of the option patterns and the map of
+ * field values. Passing the same context to each conversion avoids
+ * allocating these anew every time; for the conversions handled by a codec,
+ * nothing is allocated apart from the returned String.
+ * 
+ * <p>
+ * A context must not be used by more than one conversion at a time. Either
+ * use {@link #forCurrentThread()} from a pool of platform threads, or create
+ * one context per task, e.g. for tasks run on virtual threads, and pass it to
+ * each conversion of the task.
+ * </p>
+ */
+public final class ConversionContext {
+
+	private static final ThreadLocal<ConversionContext> CONTEXTS = new ThreadLocal<ConversionContext>() {
+		@Override
+		protected ConversionContext initialValue() {
+			return new ConversionContext();
+		}
+	};
+
+	// matchers of patterns from earlier registries are dropped once there are this many
+	private static final int MAX_MATCHERS = 512;
+
+	private final StringBuilder output = new StringBuilder(128);
+
+	private final StringBuilder staging = new StringBuilder(128);
+
+	private final CharSlice slice = new CharSlice();
+
+	private final HexSlice hex = new HexSlice();
+
+	private final Map<Pattern, Matcher> matchers = new IdentityHashMap<Pattern, Matcher>();
+
+	private final Map<String, String> fields = new HashMap<String, String>();
+
+	private final Map<String, String> parameters = new HashMap<String, String>();
+
+	/**
+	 * @return the context of the calling thread
+	 */
+	public static ConversionContext forCurrentThread() {
+		return CONTEXTS.get();
+	}
+
+	/**
+	 * @return the buffer that the output of a conversion is built in, emptied
+	 */
+	StringBuilder output() {
+		output.setLength(0);
+		return output;
+	}
+
+	/**
+	 * @return the buffer that the output of a conversion to an Appendable is
+	 *         staged in, emptied
+	 */
+	StringBuilder staging() {
+		staging.setLength(0);
+		return staging;
+	}
+
+	/**
+	 * @return a view of the characters of sequence between start and end
+	 */
+	CharSlice slice(CharSequence sequence, int start, int end) {
+		return slice.reset(sequence, start, end);
+	}
+
+	/**
+	 * @return a view of the bits of the hex digits of sequence from start on
+	 */
+	HexSlice hex(CharSequence sequence, int start, int firstBit, int length) {
+		return hex.reset(sequence, start, firstBit, length);
+	}
+
+	/**
+	 * @return a copy of the parameters with the given taglength
+	 */
+	Map<String, String> parameters(Map<String, String> parameters, int tagLength) {
+		this.parameters.clear();
+		this.parameters.putAll(parameters);
+		this.parameters.put("taglength", Integer.toString(tagLength));
+		return this.parameters;
+	}
+
+	/**
+	 * @return a matcher of the pattern, reset to the input
+	 */
+	Matcher matcher(Pattern pattern, CharSequence input) {
+		Matcher matcher = matchers.get(pattern);
+		if (matcher == null) {
+			if (matchers.size() >= MAX_MATCHERS) {
+				matchers.clear();
+			}
+			matcher = pattern.matcher(input);
+			matchers.put(pattern, matcher);
+		} else {
+			matcher.reset(input);
+		}
+		return matcher;
+	}
+
+	/**
+	 * @return the map of field values, holding a copy of the parameters
+	 */
+	Map<String, String> fields(Map<String, String> parameters) {
+		fields.clear();
+		fields.putAll(parameters);
+		return fields;
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads an archive written by {@link EpcArchiveWriter}. Obtained from
+ * {@link TDTEngine#openArchive(File)}.
+ * 
+ * <p>
+ * The file is memory-mapped: in one piece if it is smaller than 2 GB,
+ * otherwise one block at a time. Each block can be read on its own, using
+ * the index at the end of the file. A reader may be shared between threads
+ * once opened; the visitors and columns passed to it must not be.
+ * </p>
+ */
+public final class EpcArchiveReader implements Closeable {
+
+	/**
+	 * Receives the EPCs of a block.
+	 */
+	public interface Visitor {
+
+		/**
+		 * @param schemeId
+		 *            index of the scheme in {@link EpcArchiveReader#getSchemeNames()},
+		 *            or -1 if the EPC did not have the layout of a single
+		 *            scheme when it was written
+		 * @param packed
+		 *            the EPC, with the first bit in the most significant bit
+		 *            of the first byte; only valid during the call
+		 * @param bitLength
+		 *            number of bits of the EPC
+		 */
+		void epc(int schemeId, byte[] packed, int bitLength) throws IOException;
+	}
+
+	private final RandomAccessFile file;
+
+	// the whole file, or null if it is mapped one block at a time
+	private final MappedByteBuffer whole;
+
+	private final String[] schemeNames;
+
+	private final long[] blockOffsets;
+
+	private final int[] blockCounts;
+
+	private final int[] blockLengths;
+
+	EpcArchiveReader(File path) throws IOException {
+		file = new RandomAccessFile(path, "r");
+		try {
+			long length = file.length();
+			whole = length <= Integer.MAX_VALUE ? file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length)
+					: null;
+			if (length < 28 || file.readInt() != EpcArchiveWriter.MAGIC) {
+				throw new IOException(path + " is not an EPC archive");
+			}
+			if (file.readInt() != EpcArchiveWriter.VERSION) {
+				throw new IOException(path + " is an EPC archive of another version");
+			}
+			schemeNames = new String[file.readInt()];
+			for (int i = 0; i < schemeNames.length; i++) {
+				schemeNames[i] = file.readUTF();
+			}
+			file.seek(length - 16);
+			long indexOffset = file.readLong();
+			int blocks = file.readInt();
+			if (file.readInt() != EpcArchiveWriter.MAGIC || indexOffset < 0
+					|| indexOffset + 16L * blocks != length - 16) {
+				throw new IOException(path + " is not a complete EPC archive");
+			}
+			blockOffsets = new long[blocks];
+			blockCounts = new int[blocks];
+			blockLengths = new int[blocks];
+			file.seek(indexOffset);
+			for (int i = 0; i < blocks; i++) {
+				blockOffsets[i] = file.readLong();
+				blockCounts[i] = file.readInt();
+				blockLengths[i] = file.readInt();
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the names of the schemes, indexed by the scheme ids of the
+	 *         archive
+	 */
+	public String[] getSchemeNames() {
+		return schemeNames.clone();
+	}
+
+	/**
+	 * @return the number of blocks
+	 */
+	public int getBlockCount() {
+		return blockOffsets.length;
+	}
+
+	/**
+	 * @return the number of EPCs of a block
+	 */
+	public int getCount(int block) {
+		return blockCounts[block];
+	}
+
+	/**
+	 * @return the number of EPCs of the archive
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int count : blockCounts) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Hands the EPCs of a block to the visitor, in sorted order.
+	 * 
+	 * @throws IOException
+	 *             if the block cannot be read or is corrupt, or the visitor
+	 *             fails
+	 */
+	public void read(int block, Visitor visitor) throws IOException {
+		ByteBuffer in = block(block);
+		byte[] epc = new byte[32];
+		int bitLength = 0;
+		int schemeId = -1;
+		try {
+			for (int n = 0; n < blockCounts[block]; n++) {
+				int tag = readVarint(in);
+				if ((tag & EpcArchiveWriter.NEW_LENGTH) != 0) {
+					bitLength = readVarint(in);
+				}
+				if ((tag & EpcArchiveWriter.NEW_SCHEME) != 0) {
+					schemeId = in.get() & 0xff;
+					if (schemeId == EpcArchiveWriter.UNKNOWN_SCHEME) {
+						schemeId = -1;
+					}
+				}
+				int shared = tag >>> 2;
+				int bytes = PackedBits.bytes(bitLength);
+				if (bytes > epc.length) {
+					byte[] larger = new byte[Math.max(bytes, epc.length * 2)];
+					System.arraycopy(epc, 0, larger, 0, epc.length);
+					epc = larger;
+				}
+				if (shared > bytes) {
+					throw new IOException("Block " + block + " of the EPC archive is corrupt");
+				}
+				in.get(epc, shared, bytes - shared);
+				visitor.epc(schemeId, epc, bitLength);
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Block " + block + " of the EPC archive is corrupt: " + e);
+		}
+	}
+
+	/**
+	 * Decodes the EPCs of a block into the next rows of the columns, through
+	 * the layouts of the projection, as
+	 * {@link FieldProjection#decode(byte[], int, int, int, EpcColumns)} does.
+	 * 
+	 * @return the number of EPCs decoded, which is less than the number of
+	 *         EPCs of the block once the columns are full
+	 */
+	public int decode(int block, final FieldProjection projection, final EpcColumns columns) throws IOException {
+		final int[] decoded = new int[1];
+		read(block, new Visitor() {
+			public void epc(int schemeId, byte[] packed, int bitLength) {
+				decoded[0] += projection.decode(packed, 0, PackedBits.bytes(bitLength), 1, columns);
+			}
+		});
+		return decoded[0];
+	}
+
+	/**
+	 * Closes the file. A mapping of the whole file stays valid until it is
+	 * garbage collected.
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private ByteBuffer block(int block) throws IOException {
+		if (whole != null) {
+			ByteBuffer in = whole.duplicate();
+			in.position((int) blockOffsets[block]);
+			in.limit((int) blockOffsets[block] + blockLengths[block]);
+			return in;
+		}
+		return file.getChannel().map(FileChannel.MapMode.READ_ONLY, blockOffsets[block], blockLengths[block]);
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Writes packed binary EPCs to a compact archive, to be read with
+ * {@link EpcArchiveReader}. Obtained from
+ * {@link TDTEngine#archiveWriter(File, int, String...)}.
+ * 
+ * <p>
+ * The EPCs are written in blocks of a fixed number of EPCs. Within a block
+ * they are sorted, and each is stored as the number of bytes it shares with
+ * the one before, followed by the bytes that differ, so that e.g. the EPCs
+ * of one GTIN with nearby serial numbers take two or three bytes each. The
+ * scheme of each EPC, as found from the layouts of the binary encodings, and
+ * its number of bits are only stored where they change. An index of the
+ * blocks at the end of the file lets the reader go straight to any block.
+ * </p>
+ * 
+ * <p>
+ * The file starts with the magic number and version, followed by the names
+ * of the schemes that the scheme ids refer to; all numbers are big-endian.
+ * The order of the EPCs within a block is not kept. A writer is not
+ * thread-safe.
+ * </p>
+ */
+public final class EpcArchiveWriter implements Closeable {
+
+	static final int MAGIC = 0x45504341;
+
+	static final int VERSION = 1;
+
+	/** scheme id of EPCs that do not have the layout of a single scheme */
+	static final int UNKNOWN_SCHEME = 255;
+
+	// flags in the low bits of the varint in front of each EPC of a block
+	static final int NEW_LENGTH = 1;
+
+	static final int NEW_SCHEME = 2;
+
+	private final DataOutputStream out;
+
+	private final List<BinaryLayout> layouts = new ArrayList<BinaryLayout>();
+
+	private final String[] schemeNames;
+
+	private final int blockSize;
+
+	// the EPCs of the current block, packed one after the other
+	private byte[] epcs = new byte[4096];
+
+	private int used;
+
+	private int[] offsets;
+
+	private int[] bitLengths;
+
+	private Integer[] order;
+
+	private int count;
+
+	private byte[] block = new byte[4096];
+
+	private int blockLength;
+
+	private long position;
+
+	private final List<long[]> index = new ArrayList<long[]>();
+
+	EpcArchiveWriter(File file, int blockSize, List<BinaryLayout> layouts, String[] restrictTo) throws IOException {
+		if (blockSize < 1) {
+			throw new TDTException("A block holds at least one EPC");
+		}
+		this.blockSize = blockSize;
+		List<String> restricted = restrictTo.length == 0 ? null : Arrays.asList(restrictTo);
+		TreeSet<String> names = new TreeSet<String>();
+		for (BinaryLayout layout : layouts) {
+			if (restricted == null || restricted.contains(layout.getSchemeName())) {
+				this.layouts.add(layout);
+				names.add(layout.getSchemeName());
+			}
+		}
+		if (names.size() >= UNKNOWN_SCHEME) {
+			throw new TDTException("Too many schemes for one byte of the archive: " + names.size());
+		}
+		schemeNames = names.toArray(new String[names.size()]);
+		offsets = new int[blockSize];
+		bitLengths = new int[blockSize];
+		order = new Integer[blockSize];
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(schemeNames.length);
+		for (String name : schemeNames) {
+			out.writeUTF(name);
+		}
+		position = out.size();
+	}
+
+	/**
+	 * @return the names of the schemes, indexed by the scheme ids of the
+	 *         archive
+	 */
+	public String[] getSchemeNames() {
+		return schemeNames.clone();
+	}
+
+	/**
+	 * Adds a binary EPC given as a string of 0 and 1.
+	 */
+	public void add(CharSequence binary) throws IOException {
+		byte[] packed = PackedBits.pack(binary);
+		add(packed, 0, binary.length());
+	}
+
+	/**
+	 * Adds a packed binary EPC.
+	 * 
+	 * @param buffer
+	 *            holds the EPC, with the first bit in the most significant bit
+	 *            of the first byte
+	 * @param offset
+	 *            index of the first byte of the EPC
+	 * @param bitLength
+	 *            number of bits of the EPC
+	 */
+	public void add(byte[] buffer, int offset, int bitLength) throws IOException {
+		int bytes = PackedBits.bytes(bitLength);
+		if (used + bytes > epcs.length) {
+			epcs = Arrays.copyOf(epcs, Math.max(epcs.length * 2, used + bytes));
+		}
+		System.arraycopy(buffer, offset, epcs, used, bytes);
+		offsets[count] = used;
+		bitLengths[count] = bitLength;
+		used += bytes;
+		if (++count == blockSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the last block and the index, and closes the file.
+	 */
+	public void close() throws IOException {
+		try {
+			if (count > 0) {
+				flush();
+			}
+			long indexOffset = position;
+			for (long[] entry : index) {
+				out.writeLong(entry[0]);
+				out.writeInt((int) entry[1]);
+				out.writeInt((int) entry[2]);
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(index.size());
+			out.writeInt(MAGIC);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void flush() throws IOException {
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, 0, count, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int length = Math.min(bitLengths[a], bitLengths[b]);
+				int bytes = PackedBits.bytes(length);
+				for (int i = 0; i < bytes; i++) {
+					int x = epcs[offsets[a] + i] & 0xff;
+					int y = epcs[offsets[b] + i] & 0xff;
+					if (x != y) {
+						return x - y;
+					}
+				}
+				return bitLengths[a] - bitLengths[b];
+			}
+		});
+		blockLength = 0;
+		int previous = -1;
+		int previousScheme = -1;
+		for (int n = 0; n < count; n++) {
+			int epc = order[n];
+			int bytes = PackedBits.bytes(bitLengths[epc]);
+			int scheme = schemeId(epcs, offsets[epc], bytes);
+			int shared = 0;
+			if (previous >= 0) {
+				int limit = Math.min(bytes, PackedBits.bytes(bitLengths[previous]));
+				while (shared < limit && epcs[offsets[epc] + shared] == epcs[offsets[previous] + shared]) {
+					shared++;
+				}
+			}
+			boolean newLength = previous < 0 || bitLengths[epc] != bitLengths[previous];
+			boolean newScheme = scheme != previousScheme;
+			writeVarint((shared << 2) | (newScheme ? NEW_SCHEME : 0) | (newLength ? NEW_LENGTH : 0));
+			if (newLength) {
+				writeVarint(bitLengths[epc]);
+			}
+			if (newScheme) {
+				writeByte(scheme);
+			}
+			writeBytes(epcs, offsets[epc] + shared, bytes - shared);
+			previous = epc;
+			previousScheme = scheme;
+		}
+		out.write(block, 0, blockLength);
+		index.add(new long[] { position, count, blockLength });
+		position += blockLength;
+		count = 0;
+		used = 0;
+	}
+
+	/**
+	 * @return the id of the only scheme whose layout the EPC has, or
+	 *         {@link #UNKNOWN_SCHEME}
+	 */
+	private int schemeId(byte[] buffer, int offset, int bytes) {
+		String scheme = null;
+		for (BinaryLayout layout : layouts) {
+			if (layout.matches(buffer, offset, bytes)) {
+				if (scheme != null && !scheme.equals(layout.getSchemeName())) {
+					return UNKNOWN_SCHEME;
+				}
+				scheme = layout.getSchemeName();
+			}
+		}
+		return scheme == null ? UNKNOWN_SCHEME : Arrays.binarySearch(schemeNames, scheme);
+	}
+
+	private void writeVarint(int value) {
+		while ((value & ~0x7f) != 0) {
+			writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		writeByte(value);
+	}
+
+	private void writeByte(int value) {
+		if (blockLength == block.length) {
+			block = Arrays.copyOf(block, block.length * 2);
+		}
+		block[blockLength++] = (byte) value;
+	}
+
+	private void writeBytes(byte[] bytes, int offset, int length) {
+		if (blockLength + length > block.length) {
+			block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + length));
+		}
+		System.arraycopy(bytes, offset, block, blockLength, length);
+		blockLength += length;
+	}
+}
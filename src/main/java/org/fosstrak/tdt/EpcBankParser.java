@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Reads the EPC out of the contents of the EPC memory bank of a Gen2 tag, as
+ * reported by a reader: the StoredCRC word at 00h, the PC word at 10h, then
+ * the EPC from 20h. If the XI bit of the PC is set, the XPC words follow the
+ * EPC area at 210h and 220h and are read if the bank is that long. The
+ * length of the EPC is taken from the PC; the bits of the EPC are handed to
+ * the engine as a view of the bank, so the fast conversions of the binary
+ * encodings run straight off the buffer. Obtained from
+ * {@link TDTEngine#epcBankParser(boolean)}.
+ * 
+ * <p>
+ * Words are big-endian, as they are sent by the tag, whatever the byte
+ * order of the buffer, and are read with absolute gets from the position of the buffer on, which is left unchanged.
+ * </p>
+ * 
+ * <p>
+ * A parser holds the state of the last bank parsed and is not thread-safe;
+ * use one per thread.
+ * </p>
+ */
+public final class EpcBankParser {
+
+	// bits of the PC word
+	private static final int PC_XI = 0x0200;
+
+	private static final int PC_TOGGLE = 0x0100;
+
+	// bit of XPC_W1 that is set if XPC_W2 follows
+	private static final int XPC_XEB = 0x8000;
+
+	// byte offsets of XPC_W1 and XPC_W2 in the bank, i.e. bit addresses 210h and 220h
+	private static final int XPC_W1_OFFSET = 0x42;
+
+	private static final int XPC_W2_OFFSET = 0x44;
+
+	private final TDTEngine engine;
+
+	private final boolean verifyCrc;
+
+	// bit lengths of the binary encodings, by header
+	private final int[][] lengths;
+
+	private final BitSlice epc = new BitSlice();
+
+	private final ConversionContext context = new ConversionContext();
+
+	private final StringBuilder output = new StringBuilder(64);
+
+	private int storedCrc;
+
+	private int pc;
+
+	private int xpcW1;
+
+	private int xpcW2;
+
+	private int epcOffset;
+
+	EpcBankParser(TDTEngine engine, int[][] lengths, boolean verifyCrc) {
+		this.engine = engine;
+		this.lengths = lengths;
+		this.verifyCrc = verifyCrc;
+	}
+
+	/**
+	 * Parses the contents of an EPC memory bank. If the header of the EPC
+	 * belongs to a binary encoding of the definitions, the returned bits stop
+	 * at the end of the encoding, otherwise they fill the words given by the
+	 * PC.
+	 * 
+	 * @return the bits of the EPC, as a view of the bank that is only valid
+	 *         until the next bank is parsed
+	 * @throws TDTException
+	 *             if the bank is shorter than the PC says, the StoredCRC does
+	 *             not match or the toggle bit of the PC marks an ISO
+	 *             application family identifier instead of an EPC
+	 */
+	public CharSequence parse(ByteBuffer bank) {
+		int from = bank.position();
+		if (bank.limit() - from < 4) {
+			throw new TDTException("An EPC bank holds at least the StoredCRC and PC words, got "
+					+ (bank.limit() - from) + " bytes");
+		}
+		storedCrc = word(bank, from);
+		pc = word(bank, from + 2);
+		if ((pc & PC_TOGGLE) != 0) {
+			throw new TDTException("The PC " + Integer.toHexString(pc) + " marks an ISO application, not an EPC");
+		}
+		epcOffset = from + 4;
+		xpcW1 = 0;
+		xpcW2 = 0;
+		if ((pc & PC_XI) != 0 && bank.limit() - from >= XPC_W1_OFFSET + 2) {
+			xpcW1 = word(bank, from + XPC_W1_OFFSET);
+			if ((xpcW1 & XPC_XEB) != 0 && bank.limit() - from >= XPC_W2_OFFSET + 2) {
+				xpcW2 = word(bank, from + XPC_W2_OFFSET);
+			}
+		}
+		int words = pc >>> 11;
+		if (bank.limit() - epcOffset < words * 2) {
+			throw new TDTException("The PC " + Integer.toHexString(pc) + " gives an EPC of " + words
+					+ " words but the bank holds " + (bank.limit() - epcOffset) + " bytes after it");
+		}
+		if (verifyCrc) {
+			int crc = crc16(bank, from + 2, from + 4, 0xffff);
+			crc = crc16(bank, epcOffset, epcOffset + words * 2, crc) ^ 0xffff;
+			if (crc != storedCrc) {
+				throw new TDTException("StoredCRC " + Integer.toHexString(storedCrc)
+						+ " does not match the CRC-16 " + Integer.toHexString(crc) + " of the PC and EPC");
+			}
+		}
+		int length = words * 16;
+		int[] known = words == 0 ? null : lengths[bank.get(epcOffset) & 0xff];
+		if (known != null) {
+			int longest = 0;
+			for (int candidate : known) {
+				if (candidate <= length && candidate > longest) {
+					longest = candidate;
+				}
+			}
+			if (longest > 0) {
+				length = longest;
+			}
+		}
+		return epc.reset(bank, epcOffset * 8, length);
+	}
+
+	/**
+	 * Parses the contents of an EPC memory bank, see
+	 * {@link #parse(ByteBuffer)}, and appends the EPC translated to the
+	 * given level to output.
+	 * 
+	 * @param inputParameters
+	 *            additional parameters, as for
+	 *            {@link TDTEngine#convert(String, Map, LevelTypeList)}; the
+	 *            taglength is set from the bank
+	 */
+	public void convert(ByteBuffer bank, Map<String, String> inputParameters, LevelTypeList outputLevel,
+			StringBuilder output) {
+		CharSequence bits = parse(bank);
+		engine.convert(bits, 0, bits.length(), context.parameters(inputParameters, bits.length()), outputLevel,
+				output, context);
+	}
+
+	/**
+	 * Translates the EPCs of several memory banks to the given level, as
+	 * {@link #convert(ByteBuffer, Map, LevelTypeList, StringBuilder)} does.
+	 * 
+	 * @return the translation of each bank, or null for the banks that could
+	 *         not be parsed or translated
+	 */
+	public String[] convert(ByteBuffer[] banks, Map<String, String> inputParameters, LevelTypeList outputLevel) {
+		String[] results = new String[banks.length];
+		for (int i = 0; i < banks.length; i++) {
+			output.setLength(0);
+			try {
+				convert(banks[i], inputParameters, outputLevel, output);
+				results[i] = output.toString();
+			} catch (TDTException e) {
+				results[i] = null;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return the StoredCRC word of the last bank parsed
+	 */
+	public int getStoredCrc() {
+		return storedCrc;
+	}
+
+	/**
+	 * @return the PC word of the last bank parsed
+	 */
+	public int getPc() {
+		return pc;
+	}
+
+	/**
+	 * @return the XPC_W1 word of the last bank parsed, or 0 if the XI bit of
+	 *         the PC is not set or the bank does not reach 210h
+	 */
+	public int getXpcW1() {
+		return xpcW1;
+	}
+
+	/**
+	 * @return the XPC_W2 word of the last bank parsed, or 0 if XPC_W1 does
+	 *         not announce it or the bank does not reach 220h
+	 */
+	public int getXpcW2() {
+		return xpcW2;
+	}
+
+	/**
+	 * @return the index in the buffer of the first byte of the EPC of the
+	 *         last bank parsed, e.g. for
+	 *         {@link FieldProjection#project(byte[], int, int, long[])} on
+	 *         the array of the buffer
+	 */
+	public int getEpcOffset() {
+		return epcOffset;
+	}
+
+	/**
+	 * @return the number of bits of the EPC of the last bank parsed
+	 */
+	public int getEpcLength() {
+		return epc.length();
+	}
+
+	// big-endian whatever the byte order of the buffer
+	private static int word(ByteBuffer bank, int index) {
+		return ((bank.get(index) & 0xff) << 8) | (bank.get(index + 1) & 0xff);
+	}
+
+	/**
+	 * Continues the CRC-16 of Gen2 (polynomial 0x1021, most significant bit
+	 * first) over the bytes of buffer from index from to index to. Start with
+	 * 0xffff; the StoredCRC is the ones' complement of the result.
+	 */
+	static int crc16(ByteBuffer buffer, int from, int to, int crc) {
+		for (int i = from; i < to; i++) {
+			crc ^= (buffer.get(i) & 0xff) << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+		}
+		return crc & 0xffff;
+	}
+}
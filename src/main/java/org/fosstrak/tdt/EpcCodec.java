@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Map;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+import org.epcglobalinc.tdt.Scheme;
+
+/**
+ * A specialised codec for one coding scheme, which the engine consults before
+ * its generic, definition-driven conversion. Codecs are discovered with
+ * {@link java.util.ServiceLoader}; an implementation is registered by listing
+ * its class name in META-INF/services/org.fosstrak.tdt.EpcCodec.
+ * 
+ * The engine only passes a value to a codec if the prefix of the value cannot
+ * belong to any other scheme or level that the engine has loaded, so a codec
+ * does not need to repeat the scheme selection of the generic engine. A codec
+ * must give exactly the same result as the generic engine for every value it
+ * converts; for anything it does not handle, it returns false and the
+ * conversion is left to the generic engine.
+ */
+public interface EpcCodec {
+
+	/**
+	 * @return the name of the scheme handled by this codec, as given by the
+	 *         name attribute of the scheme in the TDT definition files, e.g.
+	 *         SGTIN-96
+	 */
+	String getSchemeName();
+
+	/**
+	 * Prepares the codec for a loaded definition of its scheme. The codec
+	 * should check that the definition agrees with what it implements, since
+	 * definition files can be replaced at runtime.
+	 * 
+	 * @param scheme
+	 *            the definition of the scheme
+	 * @return a codec to use with the given definition, or null if the codec
+	 *         cannot be used with it
+	 */
+	EpcCodec bind(Scheme scheme);
+
+	/**
+	 * Converts a value of the scheme from one level to another.
+	 * 
+	 * @param input
+	 *            the value to convert, with any URI escaping removed; it may
+	 *            be a view of the caller's buffer and must not be kept after
+	 *            the call
+	 * @param inputLevel
+	 *            the level whose prefix the input value matched
+	 * @param inputParameters
+	 *            the parameters supplied with the input value, such as filter;
+	 *            must not be modified
+	 * @param outputLevel
+	 *            the required output level
+	 * @param output
+	 *            buffer to append the converted value to; it is reused from
+	 *            one conversion to the next, so the codec should not allocate
+	 *            its own
+	 * @return true if the converted value was appended, or false to leave
+	 *         the conversion to the generic engine, in which case nothing
+	 *         may have been appended
+	 */
+	boolean convert(CharSequence input, LevelTypeList inputLevel, Map<String, String> inputParameters,
+			LevelTypeList outputLevel, StringBuilder output);
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Arrays;
+
+/**
+ * Fields of many EPCs held column by column in primitive arrays, e.g. to
+ * aggregate millions of reads by company prefix without parsing strings.
+ * Created by {@link FieldProjection#columns(int)} and filled by the decode
+ * methods of the same projection.
+ * 
+ * <p>
+ * Each field has one column, whose type follows from the binary encodings of
+ * the projection: an int column if the field is an integer of at most 31
+ * bits in each of them, a long column if it is an integer of at most 63
+ * bits, and a String column if any of them encodes it otherwise, e.g. the
+ * alphanumeric serial number of SGTIN-198. In an int or long column, -1
+ * stands for an EPC that does not have the field. String columns hold
+ * integers in decimal and other values as at the pure identity level.
+ * </p>
+ * 
+ * <p>
+ * The accessors return the arrays themselves, of which the first
+ * {@link #size()} rows are filled. Columns are not thread-safe.
+ * </p>
+ */
+public final class EpcColumns {
+
+	static final byte INT = 0;
+
+	static final byte LONG = 1;
+
+	static final byte STRING = 2;
+
+	// the layouts of the projection that the columns were created for
+	final FieldProjection.Layouts layouts;
+
+	private final String[] fieldNames;
+
+	private final String[] schemeNames;
+
+	private final byte[] types;
+
+	final byte[] schemeIds;
+
+	final int[][] ints;
+
+	final long[][] longs;
+
+	final String[][] strings;
+
+	int size;
+
+	EpcColumns(FieldProjection.Layouts layouts, String[] fieldNames, String[] schemeNames, byte[] types, int capacity) {
+		this.layouts = layouts;
+		this.fieldNames = fieldNames;
+		this.schemeNames = schemeNames;
+		this.types = types;
+		schemeIds = new byte[capacity];
+		ints = new int[fieldNames.length][];
+		longs = new long[fieldNames.length][];
+		strings = new String[fieldNames.length][];
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (types[i] == INT) {
+				ints[i] = new int[capacity];
+			} else if (types[i] == LONG) {
+				longs[i] = new long[capacity];
+			} else {
+				strings[i] = new String[capacity];
+			}
+		}
+	}
+
+	/**
+	 * @return the number of rows filled
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of rows that the columns can hold
+	 */
+	public int getCapacity() {
+		return schemeIds.length;
+	}
+
+	/**
+	 * Empties the columns, so that they can be filled again.
+	 */
+	public void clear() {
+		for (String[] column : strings) {
+			if (column != null) {
+				Arrays.fill(column, 0, size, null);
+			}
+		}
+		size = 0;
+	}
+
+	/**
+	 * @return the names of the fields, in the order of the projection
+	 */
+	public String[] getFieldNames() {
+		return fieldNames.clone();
+	}
+
+	/**
+	 * @return the names of the schemes that {@link #getSchemeIds()} refers
+	 *         to
+	 */
+	public String[] getSchemeNames() {
+		return schemeNames.clone();
+	}
+
+	/**
+	 * @return the scheme of each row, as an index in
+	 *         {@link #getSchemeNames()}, or -1 if the EPC of the row has no
+	 *         single known layout, in which case its fields are -1 or null,
+	 *         or if its layout is shared by several schemes, such as
+	 *         SGTIN-96 and LGTIN-96 unless the projection is restricted to
+	 *         one of them
+	 */
+	public byte[] getSchemeIds() {
+		return schemeIds;
+	}
+
+	/**
+	 * @return the column of a field, or null if it is not an int column
+	 */
+	public int[] getInts(String fieldName) {
+		return ints[indexOf(fieldName)];
+	}
+
+	/**
+	 * @return the column of a field, or null if it is not a long column
+	 */
+	public long[] getLongs(String fieldName) {
+		return longs[indexOf(fieldName)];
+	}
+
+	/**
+	 * @return the column of a field, or null if it is not a String column
+	 */
+	public String[] getStrings(String fieldName) {
+		return strings[indexOf(fieldName)];
+	}
+
+	/**
+	 * @return the value of a field in a row as a long, whatever the type of
+	 *         its column; -1 if the EPC does not have it or it is not a
+	 *         number
+	 */
+	public long getLong(int row, String fieldName) {
+		return getLong(row, indexOf(fieldName));
+	}
+
+	long getLong(int row, int i) {
+		if (types[i] == INT) {
+			return ints[i][row];
+		} else if (types[i] == LONG) {
+			return longs[i][row];
+		}
+		String value = strings[i][row];
+		return value != null && value.matches("[0-9]{1,18}") ? Long.parseLong(value) : -1;
+	}
+
+	private int indexOf(String fieldName) {
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (fieldNames[i].equals(fieldName)) {
+				return i;
+			}
+		}
+		throw new TDTException("No field " + fieldName + " in the columns");
+	}
+
+	/**
+	 * Sets the value of an integer field in the last row.
+	 */
+	void set(int field, long value) {
+		if (types[field] == INT) {
+			ints[field][size - 1] = (int) value;
+		} else if (types[field] == LONG) {
+			longs[field][size - 1] = value;
+		} else {
+			strings[field][size - 1] = value < 0 ? null : Long.toString(value);
+		}
+	}
+}
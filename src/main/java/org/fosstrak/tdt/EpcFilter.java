@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A predicate on the fields of binary EPCs, compiled into tests against their
+ * bits so that EPCs can be filtered without being converted. Obtained from
+ * {@link TDTEngine#filter(String...)}, which matches every EPC of the given
+ * schemes, and narrowed with {@link #equalTo(String, long)},
+ * {@link #in(String, long...)} and {@link #between(String, long, long)}, or
+ * from {@link TDTEngine#compilePattern(String)}, which compiles an EPC pattern
+ * URI. Filters are combined with {@link #anyOf(EpcFilter...)}.
+ * 
+ * <p>
+ * The filter holds one test for each binary option of the schemes. Literal
+ * bits of the option, such as the header and partition value, and fields
+ * compared with a single value are folded into one mask and value, which are
+ * compared a byte at a time; fields compared with a range or a set of values
+ * are read as unsigned integers. Values are those the bits encode, so e.g. the
+ * company prefix 0614141 is 614141.
+ * </p>
+ * 
+ * <p>
+ * Filters are immutable and may be shared between threads. They are compiled
+ * against the definitions loaded in the engine when they are created.
+ * </p>
+ */
+public final class EpcFilter {
+
+	private final Test[] tests;
+
+	// the tests whose mask covers the first byte, by the value of that byte
+	private final Test[][] byHeader = new Test[256][];
+
+	// the other tests
+	private final Test[] others;
+
+	EpcFilter(List<BinaryLayout> layouts) {
+		this(testsOf(layouts));
+	}
+
+	private EpcFilter(Test[] tests) {
+		this.tests = tests;
+		List<Test> rest = new ArrayList<Test>();
+		int[] counts = new int[byHeader.length];
+		for (Test test : tests) {
+			if (test.mask.length > 0 && test.mask[0] == (byte) 0xff) {
+				counts[test.value[0] & 0xff]++;
+			} else {
+				rest.add(test);
+			}
+		}
+		for (Test test : tests) {
+			if (test.mask.length > 0 && test.mask[0] == (byte) 0xff) {
+				int header = test.value[0] & 0xff;
+				if (byHeader[header] == null) {
+					byHeader[header] = new Test[counts[header]];
+					counts[header] = 0;
+				}
+				byHeader[header][counts[header]++] = test;
+			}
+		}
+		others = rest.toArray(new Test[rest.size()]);
+	}
+
+	private static Test[] testsOf(List<BinaryLayout> layouts) {
+		Test[] tests = new Test[layouts.size()];
+		for (int i = 0; i < tests.length; i++) {
+			tests[i] = new Test(layouts.get(i));
+		}
+		return tests;
+	}
+
+	/**
+	 * @return a filter that matches the EPCs that any of the filters match
+	 */
+	public static EpcFilter anyOf(EpcFilter... filters) {
+		return anyOf(Arrays.asList(filters));
+	}
+
+	static EpcFilter anyOf(List<EpcFilter> filters) {
+		List<Test> tests = new ArrayList<Test>();
+		for (EpcFilter filter : filters) {
+			tests.addAll(Arrays.asList(filter.tests));
+		}
+		return new EpcFilter(tests.toArray(new Test[tests.size()]));
+	}
+
+	/**
+	 * @return a filter that also requires the field to have the given value
+	 */
+	public EpcFilter equalTo(String field, long value) {
+		return between(field, value, value);
+	}
+
+	/**
+	 * @return a filter that also requires the field to have one of the given
+	 *         values
+	 */
+	public EpcFilter in(String field, long... values) {
+		if (values.length == 1) {
+			return between(field, values[0], values[0]);
+		}
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		List<Test> narrowed = new ArrayList<Test>();
+		for (Test test : tests) {
+			int[] bits = fieldOf(test, field);
+			if (bits != null) {
+				narrowed.add(test.with(bits, 0, -1, sorted));
+			}
+		}
+		return narrowed(field, narrowed);
+	}
+
+	/**
+	 * @return a filter that also requires the value of the field to be at
+	 *         least min and at most max
+	 */
+	public EpcFilter between(String field, long min, long max) {
+		List<Test> narrowed = new ArrayList<Test>();
+		for (Test test : tests) {
+			int[] bits = fieldOf(test, field);
+			if (bits == null) {
+				continue;
+			}
+			long largest = bits[1] == 63 ? Long.MAX_VALUE : (1L << bits[1]) - 1;
+			long low = Math.max(min, 0);
+			long high = Math.min(max, largest);
+			if (low > high) {
+				// no value of the field is in range
+				narrowed.add(null);
+			} else if (low == high) {
+				narrowed.add(test.withValue(bits, low));
+			} else if (low > 0 || high < largest) {
+				narrowed.add(test.with(bits, low, high, null));
+			} else {
+				narrowed.add(test);
+			}
+		}
+		return narrowed(field, narrowed);
+	}
+
+	private int[] fieldOf(Test test, String field) {
+		return test.layout.getIntegerField(field);
+	}
+
+	private EpcFilter narrowed(String field, List<Test> narrowed) {
+		if (narrowed.isEmpty() && tests.length > 0) {
+			throw new TDTException("No binary option of the schemes of the filter has an integer field " + field);
+		}
+		List<Test> remaining = new ArrayList<Test>();
+		for (Test test : narrowed) {
+			if (test != null) {
+				remaining.add(test);
+			}
+		}
+		return new EpcFilter(remaining.toArray(new Test[remaining.size()]));
+	}
+
+	/**
+	 * @param binary
+	 *            a binary EPC, as a string of 0 and 1
+	 * @return true if the EPC is of one of the schemes of the filter and its
+	 *         fields satisfy the filter
+	 */
+	public boolean matches(CharSequence binary) {
+		if (binary.length() >= 8) {
+			long header = CodecFields.parseBits(binary, 0, 8);
+			if (header >= 0 && byHeader[(int) header] != null) {
+				for (Test test : byHeader[(int) header]) {
+					if (test.matches(binary)) {
+						return true;
+					}
+				}
+			}
+		}
+		for (Test test : others) {
+			if (test.matches(binary)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param epc
+	 *            a packed binary EPC, with the first bit in the most
+	 *            significant bit of the first byte
+	 * @return true if the EPC is of one of the schemes of the filter and its
+	 *         fields satisfy the filter
+	 */
+	public boolean matches(byte[] epc) {
+		return matches(epc, 0, epc.length);
+	}
+
+	/**
+	 * @param buffer
+	 *            holds a packed binary EPC, with the first bit in the most
+	 *            significant bit of the first byte
+	 * @param offset
+	 *            index of the first byte of the EPC
+	 * @param length
+	 *            number of bytes of the EPC
+	 * @return true if the EPC is of one of the schemes of the filter and its
+	 *         fields satisfy the filter
+	 */
+	public boolean matches(byte[] buffer, int offset, int length) {
+		if (length > 0) {
+			Test[] candidates = byHeader[buffer[offset] & 0xff];
+			if (candidates != null) {
+				for (Test test : candidates) {
+					if (test.matches(buffer, offset, length)) {
+						return true;
+					}
+				}
+			}
+		}
+		for (Test test : others) {
+			if (test.matches(buffer, offset, length)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Computes the Gen2 Select commands that select the tags whose EPC has
+	 * the bits that every test of the filter requires: the runs of bits that
+	 * all the masks cover with the same value and that hold the header or
+	 * part of a field compared with a single value; reserved bits are left
+	 * out. Fields compared with a range or a set of values are not selected,
+	 * so the tags selected are a superset of those that match.
+	 * 
+	 * @return one mask for each run of bits, at most 255 bits long, in the
+	 *         order of the bits
+	 */
+	List<SelectMask> selectMasks() {
+		if (tests.length == 0) {
+			throw new TDTException("The filter does not match any EPC");
+		}
+		int length = tests[0].layout.getLength();
+		for (Test test : tests) {
+			length = Math.min(length, test.layout.getLength());
+		}
+		byte[] mask = tests[0].mask.clone();
+		byte[] fixed = new byte[mask.length];
+		for (Test test : tests) {
+			for (int i = 0; i < PackedBits.bytes(length); i++) {
+				mask[i] &= test.mask[i] & ~(test.value[i] ^ tests[0].value[i]);
+				fixed[i] |= test.fixed[i];
+			}
+		}
+
+		List<SelectMask> masks = new ArrayList<SelectMask>();
+		StringBuilder run = new StringBuilder();
+		boolean useful = false;
+		for (int bit = 0; bit <= length; bit++) {
+			boolean selected = bit < length && PackedBits.get(mask, 0, bit, 1) != 0;
+			if (selected) {
+				run.append(PackedBits.get(tests[0].value, 0, bit, 1) != 0 ? '1' : '0');
+				useful |= bit < 8 || PackedBits.get(fixed, 0, bit, 1) != 0;
+			}
+			if (run.length() > 0 && (!selected || run.length() == 255)) {
+				int start = selected ? bit + 1 - run.length() : bit - run.length();
+				if (useful) {
+					masks.add(new SelectMask(SelectMask.EPC_OFFSET + start, run.toString()));
+				}
+				run.setLength(0);
+				useful = false;
+			}
+		}
+		return masks;
+	}
+
+	/**
+	 * Tests packed binary EPCs of the same length stored one after the other,
+	 * e.g. records read from a file or a socket.
+	 * 
+	 * @param buffer
+	 *            holds the packed EPCs
+	 * @param offset
+	 *            index of the first byte of the first EPC
+	 * @param length
+	 *            number of bytes of each EPC
+	 * @param count
+	 *            number of EPCs
+	 * @param matches
+	 *            receives the index of each EPC that matches, in order; must
+	 *            have room for count indexes
+	 * @return the number of EPCs that match
+	 */
+	public int matchAll(byte[] buffer, int offset, int length, int count, int[] matches) {
+		int found = 0;
+		for (int i = 0; i < count; i++) {
+			if (matches(buffer, offset + i * length, length)) {
+				matches[found++] = i;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * The tests for one binary option: a mask and value over its bits, and
+	 * the fields that are compared with a range or a set of values.
+	 */
+	private static final class Test {
+		final BinaryLayout layout;
+
+		final byte[] mask;
+
+		final byte[] value;
+
+		// the bits of the mask that hold fields compared with a single value
+		final byte[] fixed;
+
+		// offset and length of each field compared with a range or set
+		final int[] offsets;
+
+		final int[] lengths;
+
+		final long[] mins;
+
+		final long[] maxs;
+
+		// sorted values of the fields compared with a set, otherwise null
+		final long[][] sets;
+
+		Test(BinaryLayout layout) {
+			this.layout = layout;
+			mask = new byte[PackedBits.bytes(layout.getLength())];
+			value = new byte[mask.length];
+			layout.setLiteralBits(mask, value);
+			fixed = new byte[mask.length];
+			offsets = new int[0];
+			lengths = new int[0];
+			mins = new long[0];
+			maxs = new long[0];
+			sets = new long[0][];
+		}
+
+		private Test(Test test, byte[] mask, byte[] value, byte[] fixed, int fields) {
+			layout = test.layout;
+			this.mask = mask;
+			this.value = value;
+			this.fixed = fixed;
+			offsets = Arrays.copyOf(test.offsets, fields);
+			lengths = Arrays.copyOf(test.lengths, fields);
+			mins = Arrays.copyOf(test.mins, fields);
+			maxs = Arrays.copyOf(test.maxs, fields);
+			sets = Arrays.copyOf(test.sets, fields);
+		}
+
+		/**
+		 * @return this test with the field folded into the mask, or null if
+		 *         the mask already requires another value
+		 */
+		Test withValue(int[] field, long fieldValue) {
+			byte[] fieldMask = new byte[mask.length];
+			PackedBits.set(fieldMask, field[0], field[1], -1L);
+			byte[] expected = new byte[mask.length];
+			PackedBits.set(expected, field[0], field[1], fieldValue);
+			for (int i = 0; i < mask.length; i++) {
+				if (((mask[i] & fieldMask[i]) & (value[i] ^ expected[i])) != 0) {
+					return null;
+				}
+			}
+			byte[] newMask = mask.clone();
+			byte[] newValue = value.clone();
+			byte[] newFixed = fixed.clone();
+			for (int i = 0; i < mask.length; i++) {
+				newMask[i] |= fieldMask[i];
+				newValue[i] |= expected[i];
+				newFixed[i] |= fieldMask[i];
+			}
+			return new Test(this, newMask, newValue, newFixed, offsets.length);
+		}
+
+		/**
+		 * @return this test with the field compared with a range, or with a
+		 *         set of values if set is not null
+		 */
+		Test with(int[] field, long min, long max, long[] set) {
+			int n = offsets.length;
+			Test test = new Test(this, mask, value, fixed, n + 1);
+			test.offsets[n] = field[0];
+			test.lengths[n] = field[1];
+			test.mins[n] = min;
+			test.maxs[n] = max;
+			test.sets[n] = set;
+			return test;
+		}
+
+		boolean matches(CharSequence binary) {
+			if (binary.length() != layout.getLength()) {
+				return false;
+			}
+			for (int i = 0; i < mask.length; i++) {
+				if (mask[i] != 0) {
+					int start = i << 3;
+					int n = Math.min(8, binary.length() - start);
+					long b = CodecFields.parseBits(binary, start, n);
+					if (b < 0 || (((int) b << (8 - n)) & mask[i]) != (value[i] & 0xff)) {
+						return false;
+					}
+				}
+			}
+			for (int i = 0; i < offsets.length; i++) {
+				if (!accepts(i, CodecFields.parseBits(binary, offsets[i], lengths[i]))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean matches(byte[] buffer, int offset, int length) {
+			if (length != mask.length) {
+				return false;
+			}
+			for (int i = 0; i < mask.length; i++) {
+				if ((byte) (buffer[offset + i] & mask[i]) != value[i]) {
+					return false;
+				}
+			}
+			for (int i = 0; i < offsets.length; i++) {
+				if (!accepts(i, PackedBits.get(buffer, offset, offsets[i], lengths[i]))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean accepts(int field, long fieldValue) {
+			if (fieldValue < 0) {
+				return false;
+			}
+			if (sets[field] != null) {
+				return Arrays.binarySearch(sets[field], fieldValue) >= 0;
+			}
+			return fieldValue >= mins[field] && fieldValue <= maxs[field];
+		}
+	}
+}
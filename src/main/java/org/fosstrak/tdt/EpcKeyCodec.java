@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Turns EPCs into fixed-width keys whose unsigned byte order is the order of
+ * their fields, e.g. for sorted key-value stores, and back. Obtained from
+ * {@link TDTEngine#keyCodec(String...)}.
+ * 
+ * <p>
+ * A key is the id of the scheme, the index of the binary option (which e.g.
+ * tells the length of the company prefix), then each field of the binary
+ * encoding in the order of its bits, apart from the filter value. Each field
+ * takes as many bytes as its widest encoding in the scheme needs; integers
+ * are big-endian and padded with leading zeros, other values such as
+ * alphanumeric serial numbers are padded with trailing zeros, so that both
+ * sort as they should. All keys of a scheme have the same length, and the
+ * keys of one class, such as one GTIN, are contiguous and ordered by serial
+ * number.
+ * </p>
+ * 
+ * <p>
+ * The ids of the schemes and options follow from the definitions that the
+ * engine had loaded when the codec was created; keys stay valid as long as
+ * the same definitions are used. A codec is immutable and may be shared
+ * between threads.
+ * </p>
+ */
+public final class EpcKeyCodec {
+
+	private static final Pattern BINARY = Pattern.compile("[01]+");
+
+	private final TDTEngine engine;
+
+	// by id, for all the schemes with a binary encoding
+	private final String[] schemeNames;
+
+	// by id, null for the schemes the codec is not restricted to
+	private final SchemeKey[] schemes;
+
+	EpcKeyCodec(TDTEngine engine, List<BinaryLayout> layouts, String[] restrictTo) {
+		this.engine = engine;
+		Set<String> names = new TreeSet<String>();
+		for (BinaryLayout layout : layouts) {
+			names.add(layout.getSchemeName());
+		}
+		if (names.size() > 256) {
+			throw new TDTException("Too many schemes for one byte of the keys: " + names.size());
+		}
+		schemeNames = names.toArray(new String[names.size()]);
+		schemes = new SchemeKey[schemeNames.length];
+		List<String> restricted = restrictTo.length == 0 ? null : Arrays.asList(restrictTo);
+		for (int id = 0; id < schemeNames.length; id++) {
+			if (restricted == null || restricted.contains(schemeNames[id])) {
+				List<BinaryLayout> own = new ArrayList<BinaryLayout>();
+				for (BinaryLayout layout : layouts) {
+					if (layout.getSchemeName().equals(schemeNames[id])) {
+						own.add(layout);
+					}
+				}
+				schemes[id] = new SchemeKey(id, own);
+			}
+		}
+	}
+
+	/**
+	 * @return the names of the schemes, indexed by the id in the first byte
+	 *         of the keys
+	 */
+	public String[] getSchemeNames() {
+		return schemeNames.clone();
+	}
+
+	/**
+	 * @return the number of bytes of the keys of a scheme
+	 * @throws TDTException
+	 *             if the codec does not handle the scheme
+	 */
+	public int getKeyLength(String schemeName) {
+		for (SchemeKey scheme : schemes) {
+			if (scheme != null && scheme.name.equals(schemeName)) {
+				return scheme.length;
+			}
+		}
+		throw new TDTException("No keys for scheme " + schemeName);
+	}
+
+	/**
+	 * Returns the key of an EPC of any level.
+	 * 
+	 * @param inputParameters
+	 *            additional parameters, as for
+	 *            {@link TDTEngine#convert(String, Map, LevelTypeList)}
+	 * @throws TDTException
+	 *             if the EPC cannot be converted, or its binary encoding is
+	 *             not that of a single scheme of the codec
+	 */
+	public byte[] encode(String input, Map<String, String> inputParameters) {
+		Match match = find(input, inputParameters);
+		byte[] key = new byte[match.scheme.length];
+		write(match, key, 0);
+		return key;
+	}
+
+	/**
+	 * Writes the key of an EPC of any level into key at offset.
+	 * 
+	 * @return the index in key after the key
+	 */
+	public int encode(String input, Map<String, String> inputParameters, byte[] key, int offset) {
+		Match match = find(input, inputParameters);
+		Arrays.fill(key, offset, offset + match.scheme.length, (byte) 0);
+		write(match, key, offset);
+		return offset + match.scheme.length;
+	}
+
+	/**
+	 * Translates a key back to the EPC at the given level. The filter value
+	 * is not part of the key and comes out as 0.
+	 * 
+	 * @param inputParameters
+	 *            additional parameters, as for
+	 *            {@link TDTEngine#convert(String, Map, LevelTypeList)}
+	 * @throws TDTException
+	 *             if key at offset is not a key of this codec
+	 */
+	public String decode(byte[] key, int offset, Map<String, String> inputParameters, LevelTypeList outputLevel) {
+		int id = key[offset] & 0xff;
+		SchemeKey scheme = id < schemes.length ? schemes[id] : null;
+		int option = key[offset + 1] & 0xff;
+		if (scheme == null || option >= scheme.options.length) {
+			throw new TDTException("Not a key of a known scheme and option: " + id + "/" + option);
+		}
+		OptionKey layout = scheme.options[option];
+		byte[] mask = new byte[PackedBits.bytes(layout.layout.getLength())];
+		byte[] packed = new byte[mask.length];
+		layout.layout.setLiteralBits(mask, packed);
+		int start = (offset + 2) * 8;
+		for (int i = 0; i < scheme.fieldNames.length; i++) {
+			int width = scheme.widths[i] * 8;
+			int field = start + (layout.integer[i] ? width - layout.lengths[i] : 0);
+			// bits outside of the field in this option must be 0
+			for (int bit = start; bit < start + width; bit++) {
+				if ((bit < field || bit >= field + layout.lengths[i]) && PackedBits.get(key, 0, bit, 1) != 0) {
+					throw new TDTException("Field " + scheme.fieldNames[i] + " of the key does not fit option "
+							+ option + " of " + scheme.name);
+				}
+			}
+			for (int bit = 0; bit < layout.lengths[i]; bit++) {
+				PackedBits.set(packed, layout.offsets[i] + bit, 1, PackedBits.get(key, 0, field + bit, 1));
+			}
+			start += width;
+		}
+		StringBuilder binary = new StringBuilder(layout.layout.getLength());
+		for (int bit = 0; bit < layout.layout.getLength(); bit++) {
+			binary.append(PackedBits.get(packed, 0, bit, 1) == 0 ? '0' : '1');
+		}
+		return engine.convertBinary(scheme.name, binary.toString(), inputParameters, outputLevel);
+	}
+
+	/**
+	 * @return the only scheme and option whose layout the binary encoding of
+	 *         the input has; the scheme of input at other levels is known
+	 *         from its prefix
+	 */
+	private Match find(String input, Map<String, String> inputParameters) {
+		String binary = input;
+		String schemeName = null;
+		if (!BINARY.matcher(input).matches()) {
+			Map<String, String> parameters = new HashMap<String, String>(inputParameters);
+			// the filter value is not part of the key, so e.g. a pure identity URI needs none
+			if (!parameters.containsKey("filter")) {
+				parameters.put("filter", "0");
+			}
+			schemeName = engine.getSchemeName(input, parameters);
+			binary = engine.convert(input, parameters, LevelTypeList.BINARY);
+		}
+		Match match = null;
+		for (SchemeKey scheme : schemes) {
+			if (scheme == null || (schemeName != null && !schemeName.equals(scheme.name))) {
+				continue;
+			}
+			for (int option = 0; option < scheme.options.length; option++) {
+				if (scheme.options[option].layout.matches(binary)) {
+					if (match != null) {
+						throw new TDTException("Both " + match.scheme.name + " and " + scheme.name
+								+ " encode " + binary + "; restrict the codec to one of them");
+					}
+					match = new Match(scheme, option, binary);
+				}
+			}
+		}
+		if (match == null) {
+			throw new TDTException("No binary encoding of the codec matches " + binary);
+		}
+		return match;
+	}
+
+	private static void write(Match match, byte[] key, int offset) {
+		String binary = match.binary;
+		SchemeKey scheme = match.scheme;
+		OptionKey layout = scheme.options[match.option];
+		key[offset] = (byte) scheme.id;
+		key[offset + 1] = (byte) match.option;
+		int start = (offset + 2) * 8;
+		for (int i = 0; i < scheme.fieldNames.length; i++) {
+			int width = scheme.widths[i] * 8;
+			int field = start + (layout.integer[i] ? width - layout.lengths[i] : 0);
+			for (int bit = 0; bit < layout.lengths[i]; bit++) {
+				if (binary.charAt(layout.offsets[i] + bit) == '1') {
+					PackedBits.set(key, 0, field + bit, 1, 1);
+				}
+			}
+			start += width;
+		}
+	}
+
+	private static final class Match {
+		final SchemeKey scheme;
+
+		final int option;
+
+		final String binary;
+
+		Match(SchemeKey scheme, int option, String binary) {
+			this.scheme = scheme;
+			this.option = option;
+			this.binary = binary;
+		}
+	}
+
+	/** the fields of the keys of one scheme */
+	private static final class SchemeKey {
+		final int id;
+
+		final String name;
+
+		// in the order of their bits, without the filter value
+		final String[] fieldNames;
+
+		// number of bytes of each field
+		final int[] widths;
+
+		// number of bytes of a key
+		final int length;
+
+		// one per distinct pattern, in the order of the definitions
+		final OptionKey[] options;
+
+		SchemeKey(int id, List<BinaryLayout> layouts) {
+			this.id = id;
+			this.name = layouts.get(0).getSchemeName();
+			List<String> names = new ArrayList<String>();
+			Map<String, BinaryLayout> distinct = new LinkedHashMap<String, BinaryLayout>();
+			for (BinaryLayout layout : layouts) {
+				if (!distinct.containsKey(layout.getPattern())) {
+					distinct.put(layout.getPattern(), layout);
+					for (String field : layout.getFieldNames()) {
+						if (!field.equals("filter") && !names.contains(field)) {
+							names.add(field);
+						}
+					}
+				}
+			}
+			if (distinct.size() > 256) {
+				throw new TDTException("Too many options of " + name + " for one byte of the keys");
+			}
+			fieldNames = names.toArray(new String[names.size()]);
+			options = new OptionKey[distinct.size()];
+			int option = 0;
+			for (BinaryLayout layout : distinct.values()) {
+				options[option++] = new OptionKey(layout, fieldNames);
+			}
+			widths = new int[fieldNames.length];
+			int bytes = 2;
+			for (int i = 0; i < fieldNames.length; i++) {
+				for (OptionKey key : options) {
+					widths[i] = Math.max(widths[i], PackedBits.bytes(key.lengths[i]));
+				}
+				bytes += widths[i];
+			}
+			length = bytes;
+		}
+	}
+
+	/** where the fields of a key are in the binary encoding of one option */
+	private static final class OptionKey {
+		final BinaryLayout layout;
+
+		// offset and number of bits of each field of the key, 0 bits if the option does not have it
+		final int[] offsets;
+
+		final int[] lengths;
+
+		final boolean[] integer;
+
+		OptionKey(BinaryLayout layout, String[] fieldNames) {
+			this.layout = layout;
+			offsets = new int[fieldNames.length];
+			lengths = new int[fieldNames.length];
+			integer = new boolean[fieldNames.length];
+			for (int i = 0; i < fieldNames.length; i++) {
+				int[] field = layout.getField(fieldNames[i]);
+				if (field != null) {
+					offsets[i] = field[0];
+					lengths[i] = field[1];
+					integer[i] = field[2] != 0;
+				}
+			}
+		}
+	}
+}
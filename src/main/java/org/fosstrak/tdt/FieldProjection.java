@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads a few fields of EPCs without converting them, e.g. to route a read by
+ * its GS1 Company Prefix or filter value. Obtained from
+ * {@link TDTEngine#projection(String...)}.
+ * 
+ * <p>
+ * The fields of a binary EPC are read straight from its bits: the layout of
+ * each binary option is worked out once from its pattern, and the input is
+ * only checked against the literal bits of the layout, such as the header and
+ * partition value. The other fields, the rules and the grammar are skipped
+ * altogether. Values are the unsigned integers that the bits encode, so e.g.
+ * the company prefix 0614141 is read as 614141. The same fields can be
+ * overwritten in place with {@link #patch(byte[], int, int, long[])}, or
+ * decoded into the columns of an {@link EpcColumns} for many EPCs at once.
+ * </p>
+ * 
+ * <p>
+ * A FieldProjection may be shared between threads. It follows the
+ * definitions of the engine when they are reloaded.
+ * </p>
+ */
+public final class FieldProjection {
+
+	/** the result of a match with more than one layout */
+	private static final Entry AMBIGUOUS = new Entry(null, 0);
+
+	private final TDTEngine engine;
+
+	private final String[] fieldNames;
+
+	// the schemes whose layouts are used, or null for all of them
+	private final Set<String> schemeNames;
+
+	private final AtomicReference<Layouts> layouts = new AtomicReference<Layouts>();
+
+	FieldProjection(TDTEngine engine, String[] fieldNames) {
+		this(engine, fieldNames, null);
+	}
+
+	private FieldProjection(TDTEngine engine, String[] fieldNames, Set<String> schemeNames) {
+		this.engine = engine;
+		this.fieldNames = fieldNames.clone();
+		this.schemeNames = schemeNames;
+	}
+
+	/**
+	 * Returns a projection of the same fields that only reads EPCs of the
+	 * given schemes. This resolves binary EPCs that more than one scheme
+	 * could encode, such as SGTIN-96 and LGTIN-96, which share their header.
+	 * 
+	 * @param schemes
+	 *            names of the schemes, e.g. SGTIN-96
+	 */
+	public FieldProjection restrictTo(String... schemes) {
+		return new FieldProjection(engine, fieldNames, new HashSet<String>(Arrays.asList(schemes)));
+	}
+
+	/**
+	 * @return the names of the fields, in the order of the values
+	 */
+	public String[] getFieldNames() {
+		return fieldNames.clone();
+	}
+
+	/**
+	 * Reads the fields of a binary EPC.
+	 * 
+	 * @param binary
+	 *            the binary EPC, as a string of 0 and 1
+	 * @param values
+	 *            receives the value of each field, in the order of
+	 *            {@link #getFieldNames()}
+	 * @return false if binary is not a binary EPC of a single known layout, or
+	 *         one of the fields is not an integer in it; the values are then
+	 *         undefined
+	 */
+	public boolean project(CharSequence binary, long[] values) {
+		Entry match = find(binary);
+		if (match == null) {
+			return false;
+		}
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (match.offsets[i] < 0) {
+				return false;
+			}
+			values[i] = CodecFields.parseBits(binary, match.offsets[i], match.lengths[i]);
+			if (values[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the fields of a packed binary EPC.
+	 * 
+	 * @param buffer
+	 *            holds the EPC, with the first bit in the most significant bit
+	 *            of the first byte
+	 * @param offset
+	 *            index of the first byte of the EPC
+	 * @param length
+	 *            number of bytes of the EPC
+	 * @param values
+	 *            receives the value of each field, in the order of
+	 *            {@link #getFieldNames()}
+	 * @return false if the EPC is not of a single known layout, or one of the
+	 *         fields is not an integer in it; the values are then undefined
+	 */
+	public boolean project(byte[] buffer, int offset, int length, long[] values) {
+		Entry match = find(buffer, offset, length);
+		if (match == null) {
+			return false;
+		}
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (match.offsets[i] < 0) {
+				return false;
+			}
+			values[i] = PackedBits.get(buffer, offset, match.offsets[i], match.lengths[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * Overwrites the fields of a binary EPC in place, e.g. to change its
+	 * filter value or serial number.
+	 * 
+	 * @param binary
+	 *            the binary EPC, as a string of 0 and 1
+	 * @param values
+	 *            the new value of each field, in the order of
+	 *            {@link #getFieldNames()}
+	 * @return false if binary is not a binary EPC of a single known layout, or
+	 *         one of the fields is not an integer in it; nothing is written
+	 *         then
+	 * @throws TDTException
+	 *             if a value is out of the range of its field; nothing is
+	 *             written then
+	 */
+	public boolean patch(StringBuilder binary, long[] values) {
+		Entry match = find(binary);
+		if (!isPatchable(match, values)) {
+			return false;
+		}
+		for (int i = 0; i < fieldNames.length; i++) {
+			for (int bit = 0; bit < match.lengths[i]; bit++) {
+				long set = (values[i] >>> (match.lengths[i] - 1 - bit)) & 1;
+				binary.setCharAt(match.offsets[i] + bit, set == 0 ? '0' : '1');
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Overwrites the fields of a packed binary EPC in place, e.g. to change
+	 * its filter value or serial number.
+	 * 
+	 * @param buffer
+	 *            holds the EPC, with the first bit in the most significant bit
+	 *            of the first byte
+	 * @param offset
+	 *            index of the first byte of the EPC
+	 * @param length
+	 *            number of bytes of the EPC
+	 * @param values
+	 *            the new value of each field, in the order of
+	 *            {@link #getFieldNames()}
+	 * @return false if the EPC is not of a single known layout, or one of the
+	 *         fields is not an integer in it; nothing is written then
+	 * @throws TDTException
+	 *             if a value is out of the range of its field; nothing is
+	 *             written then
+	 */
+	public boolean patch(byte[] buffer, int offset, int length, long[] values) {
+		Entry match = find(buffer, offset, length);
+		if (!isPatchable(match, values)) {
+			return false;
+		}
+		for (int i = 0; i < fieldNames.length; i++) {
+			PackedBits.set(buffer, offset, match.offsets[i], match.lengths[i], values[i]);
+		}
+		return true;
+	}
+
+	private boolean isPatchable(Entry match, long[] values) {
+		if (match == null) {
+			return false;
+		}
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (match.offsets[i] < 0) {
+				return false;
+			}
+		}
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (values[i] < match.minimums[i] || values[i] > match.maximums[i]) {
+				throw new TDTException("Value " + values[i] + " of field " + fieldNames[i] + " is not between "
+						+ match.minimums[i] + " and " + match.maximums[i]);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns empty columns for the fields of the projection, to be filled by
+	 * {@link #decode(byte[], int, int, int, EpcColumns)}. The columns must be
+	 * created anew once the definitions of the engine are reloaded.
+	 * 
+	 * @param capacity
+	 *            number of rows that the columns can hold
+	 */
+	public EpcColumns columns(int capacity) {
+		Layouts current = layouts();
+		if (current.schemeNames.length > Byte.MAX_VALUE) {
+			throw new TDTException("Too many schemes for the columns: " + current.schemeNames.length);
+		}
+		return new EpcColumns(current, fieldNames, current.schemeNames, current.types, capacity);
+	}
+
+	/**
+	 * Decodes packed binary EPCs of the same number of bytes, stored one
+	 * after the other, into the next rows of the columns. Integer fields are
+	 * read straight from the bits; only fields encoded otherwise are left to
+	 * the engine.
+	 * 
+	 * @param buffer
+	 *            holds the EPCs, with the first bit of each in the most
+	 *            significant bit of its first byte
+	 * @param offset
+	 *            index of the first byte of the first EPC
+	 * @param length
+	 *            number of bytes of each EPC
+	 * @param count
+	 *            number of EPCs
+	 * @return the number of EPCs decoded, which is less than count once the
+	 *         columns are full
+	 * @throws TDTException
+	 *             if the columns were created before the definitions were
+	 *             reloaded
+	 */
+	public int decode(byte[] buffer, int offset, int length, int count, EpcColumns columns) {
+		Layouts current = layoutsOf(columns);
+		int decoded = Math.min(count, columns.getCapacity() - columns.size);
+		for (int n = 0; n < decoded; n++) {
+			append(columns, find(current, buffer, offset, length), buffer, offset, null);
+			offset += length;
+		}
+		return decoded;
+	}
+
+	/**
+	 * Decodes a binary EPC into the next row of the columns, as
+	 * {@link #decode(byte[], int, int, int, EpcColumns)} does.
+	 * 
+	 * @param binary
+	 *            the binary EPC, as a string of 0 and 1
+	 * @return false if the columns are full
+	 */
+	public boolean decode(CharSequence binary, EpcColumns columns) {
+		Layouts current = layoutsOf(columns);
+		if (columns.size == columns.getCapacity()) {
+			return false;
+		}
+		append(columns, find(current, binary), null, 0, binary);
+		return true;
+	}
+
+	/**
+	 * Returns an aggregator that groups the EPCs decoded by this projection
+	 * by class and compresses their serial numbers into runs; see
+	 * {@link ClassAggregator}.
+	 * 
+	 * @param serialField
+	 *            name of the field that holds the serial number; the other
+	 *            fields of the projection make up the class
+	 * @param spillDirectory
+	 *            directory of the temporary files, or null for the default
+	 *            one
+	 * @param maxSerials
+	 *            number of serial numbers held in memory before the runs
+	 *            found so far are written to a temporary file
+	 * @throws TDTException
+	 *             if schemes of the projection share a binary layout, such
+	 *             as SGTIN-96 and LGTIN-96, since the class of their EPCs
+	 *             would be unknown; use {@link #restrictTo(String...)} to
+	 *             choose one of them
+	 */
+	public ClassAggregator aggregator(String serialField, File spillDirectory, int maxSerials) {
+		Layouts current = layouts();
+		for (Entry[] entries : current.byHeader) {
+			checkNotShared(entries);
+		}
+		checkNotShared(current.others);
+		return new ClassAggregator(fieldNames, serialField, spillDirectory, maxSerials);
+	}
+
+	private static void checkNotShared(Entry[] entries) {
+		for (int i = 0; entries != null && i < entries.length; i++) {
+			if (entries[i].schemeId < 0) {
+				throw new TDTException("The binary layout of " + entries[i].layout.getSchemeName()
+						+ " is shared with another scheme; use restrictTo to aggregate one of them");
+			}
+		}
+	}
+
+	private Layouts layoutsOf(EpcColumns columns) {
+		Layouts current = layouts();
+		if (columns.layouts != current) {
+			throw new TDTException("The columns were created for other definitions or another projection");
+		}
+		return current;
+	}
+
+	/**
+	 * Fills the next row of the columns from the EPC in buffer at offset, or
+	 * in binary if buffer is null.
+	 */
+	private void append(EpcColumns columns, Entry match, byte[] buffer, int offset, CharSequence binary) {
+		int row = columns.size++;
+		columns.schemeIds[row] = match == null ? -1 : (byte) match.schemeId;
+		Map<String, String> extracted = null;
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (match == null || !match.present[i]) {
+				columns.set(i, -1);
+			} else if (match.offsets[i] >= 0) {
+				columns.set(i, buffer != null ? PackedBits.get(buffer, offset, match.offsets[i], match.lengths[i])
+						: CodecFields.parseBits(binary, match.offsets[i], match.lengths[i]));
+			} else {
+				// not an integer, so the column holds Strings
+				if (extracted == null) {
+					extracted = extract(match.layout, buffer, offset, binary);
+				}
+				columns.strings[i][row] = extracted.get(fieldNames[i]);
+			}
+		}
+	}
+
+	private Map<String, String> extract(BinaryLayout layout, byte[] buffer, int offset, CharSequence binary) {
+		StringBuilder bits = new StringBuilder(layout.getLength());
+		if (buffer != null) {
+			for (int i = 0; i < layout.getLength(); i++) {
+				bits.append(PackedBits.get(buffer, offset, i, 1) == 0 ? '0' : '1');
+			}
+		} else {
+			bits.append(binary);
+		}
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("taglength", Integer.toString(layout.getLength()));
+		return engine.extractFields(bits.toString(), parameters);
+	}
+
+	/**
+	 * @return the entry of the only layout that binary has, or null
+	 */
+	private Entry find(CharSequence binary) {
+		return find(layouts(), binary);
+	}
+
+	private Entry find(Layouts current, CharSequence binary) {
+		Entry match = null;
+		if (binary.length() >= 8) {
+			long header = CodecFields.parseBits(binary, 0, 8);
+			if (header >= 0) {
+				match = current.match(current.byHeader[(int) header], binary, null);
+			}
+		}
+		if (match != AMBIGUOUS) {
+			match = current.match(current.others, binary, match);
+		}
+		return match == AMBIGUOUS ? null : match;
+	}
+
+	/**
+	 * @return the entry of the only layout that the packed EPC has, or null
+	 */
+	private Entry find(byte[] buffer, int offset, int length) {
+		return find(layouts(), buffer, offset, length);
+	}
+
+	private Entry find(Layouts current, byte[] buffer, int offset, int length) {
+		Entry match = null;
+		if (length > 0) {
+			match = current.match(current.byHeader[buffer[offset] & 0xff], buffer, offset, length, null);
+		}
+		if (match != AMBIGUOUS) {
+			match = current.match(current.others, buffer, offset, length, match);
+		}
+		return match == AMBIGUOUS ? null : match;
+	}
+
+	/**
+	 * Reads the fields of an EPC of any level, as
+	 * {@link TDTEngine#extractFields(String, Map)} does, with the values as
+	 * they appear at the tag-encoding and pure identity levels.
+	 * 
+	 * @return the value of each field, in the order of
+	 *         {@link #getFieldNames()}; fields that the input does not have
+	 *         are left out
+	 */
+	public Map<String, String> project(String input, Map<String, String> inputParameters) {
+		Map<String, String> fields = engine.extractFields(input, inputParameters);
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String name : fieldNames) {
+			if (fields.containsKey(name)) {
+				values.put(name, fields.get(name));
+			}
+		}
+		return values;
+	}
+
+	private Layouts layouts() {
+		List<BinaryLayout> source = engine.getBinaryLayouts();
+		Layouts current = layouts.get();
+		while (current == null || current.source != source) {
+			// concurrent callers agree on one instance, which columns are checked against
+			Layouts created = new Layouts(source, fieldNames, schemeNames);
+			if (layouts.compareAndSet(current, created)) {
+				return created;
+			}
+			current = layouts.get();
+		}
+		return current;
+	}
+
+	/** the requested fields of the options that share a pattern */
+	private static final class Entry {
+		final BinaryLayout layout;
+
+		// -1 where the options do not agree on an integer field
+		final int[] offsets;
+
+		final int[] lengths;
+
+		final long[] minimums;
+
+		final long[] maximums;
+
+		// whether the options have the field, however it is encoded
+		final boolean[] present;
+
+		// index of the scheme in Layouts.schemeNames, -1 if the options belong to several
+		int schemeId;
+
+		Entry(BinaryLayout layout, int fields) {
+			this.layout = layout;
+			present = new boolean[fields];
+			offsets = new int[fields];
+			lengths = new int[fields];
+			minimums = new long[fields];
+			maximums = new long[fields];
+		}
+	}
+
+	/** the layouts of the definitions loaded in the engine, by header */
+	static final class Layouts {
+		final List<BinaryLayout> source;
+
+		final Entry[][] byHeader = new Entry[256][];
+
+		final Entry[] others;
+
+		final String[] schemeNames;
+
+		// type of the column of each field in EpcColumns
+		final byte[] types;
+
+		Layouts(List<BinaryLayout> source, String[] fieldNames, Set<String> schemeNames) {
+			this.source = source;
+			Map<String, List<BinaryLayout>> byPattern = new LinkedHashMap<String, List<BinaryLayout>>();
+			for (BinaryLayout layout : source) {
+				if (schemeNames != null && !schemeNames.contains(layout.getSchemeName())) {
+					continue;
+				}
+				List<BinaryLayout> same = byPattern.get(layout.getPattern());
+				if (same == null) {
+					same = new ArrayList<BinaryLayout>();
+					byPattern.put(layout.getPattern(), same);
+				}
+				same.add(layout);
+			}
+
+			Map<Integer, List<Entry>> headers = new HashMap<Integer, List<Entry>>();
+			List<Entry> rest = new ArrayList<Entry>();
+			List<String> schemes = new ArrayList<String>();
+			types = new byte[fieldNames.length];
+			for (List<BinaryLayout> same : byPattern.values()) {
+				Entry entry = new Entry(same.get(0), fieldNames.length);
+				boolean shared = false;
+				for (BinaryLayout layout : same) {
+					if (!schemes.contains(layout.getSchemeName())) {
+						schemes.add(layout.getSchemeName());
+					}
+					shared |= !layout.getSchemeName().equals(entry.layout.getSchemeName());
+				}
+				entry.schemeId = shared ? -1 : schemes.indexOf(entry.layout.getSchemeName());
+				for (int i = 0; i < fieldNames.length; i++) {
+					int[] field = same.get(0).getIntegerField(fieldNames[i]);
+					entry.present[i] = same.get(0).hasField(fieldNames[i]);
+					entry.maximums[i] = Long.MAX_VALUE;
+					for (BinaryLayout layout : same) {
+						int[] other = layout.getIntegerField(fieldNames[i]);
+						if (other == null || field == null || !Arrays.equals(field, other)) {
+							field = null;
+						} else {
+							// values must be valid in each of the options
+							long[] range = layout.getRange(fieldNames[i]);
+							entry.minimums[i] = Math.max(entry.minimums[i], range[0]);
+							entry.maximums[i] = Math.min(entry.maximums[i], range[1]);
+						}
+					}
+					entry.offsets[i] = field == null ? -1 : field[0];
+					entry.lengths[i] = field == null ? 0 : field[1];
+					byte type = !entry.present[i] ? EpcColumns.INT : field == null ? EpcColumns.STRING
+							: field[1] > 31 ? EpcColumns.LONG : EpcColumns.INT;
+					types[i] = (byte) Math.max(types[i], type);
+				}
+				int header = entry.layout.getHeader();
+				if (header < 0) {
+					rest.add(entry);
+				} else {
+					List<Entry> list = headers.get(header);
+					if (list == null) {
+						list = new ArrayList<Entry>();
+						headers.put(header, list);
+					}
+					list.add(entry);
+				}
+			}
+			for (Map.Entry<Integer, List<Entry>> e : headers.entrySet()) {
+				byHeader[e.getKey()] = e.getValue().toArray(new Entry[e.getValue().size()]);
+			}
+			others = rest.toArray(new Entry[rest.size()]);
+			this.schemeNames = schemes.toArray(new String[schemes.size()]);
+		}
+
+		/**
+		 * @return the only entry that matches binary, taking into account the
+		 *         one already found, null if none does or AMBIGUOUS if more
+		 *         than one does
+		 */
+		Entry match(Entry[] entries, CharSequence binary, Entry found) {
+			if (entries == null) {
+				return found;
+			}
+			for (Entry entry : entries) {
+				if (entry.layout.matches(binary)) {
+					if (found != null) {
+						return AMBIGUOUS;
+					}
+					found = entry;
+				}
+			}
+			return found;
+		}
+
+		/**
+		 * @return the only entry that matches the packed EPC, as
+		 *         {@link #match(Entry[], CharSequence, Entry)}
+		 */
+		Entry match(Entry[] entries, byte[] buffer, int offset, int length, Entry found) {
+			if (entries == null) {
+				return found;
+			}
+			for (Entry entry : entries) {
+				if (entry.layout.matches(buffer, offset, length)) {
+					if (found != null) {
+						return AMBIGUOUS;
+					}
+					found = entry;
+				}
+			}
+			return found;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+import org.epcglobalinc.tdt.Scheme;
+
+/**
+ * Base class of the codecs that org.fosstrak.tdt.build.CodecGenerator
+ * generates from the scheme definitions at build time. A generated codec
+ * converts between the binary, tag-encoding and pure identity levels with the
+ * offsets, lengths and limits of each option written out in its code, and is
+ * only bound to a loaded definition whose {@link SchemeDigest} is the one it
+ * was generated from.
+ */
+abstract class GeneratedCodec implements EpcCodec {
+
+	private final String schemeName;
+
+	private final String digest;
+
+	GeneratedCodec(String schemeName, String digest) {
+		this.schemeName = schemeName;
+		this.digest = digest;
+	}
+
+	public String getSchemeName() {
+		return schemeName;
+	}
+
+	/**
+	 * @return the digest of the definition the codec was generated from
+	 */
+	String getDigest() {
+		return digest;
+	}
+
+	public EpcCodec bind(Scheme scheme) {
+		return digest.equals(SchemeDigest.of(scheme)) ? this : null;
+	}
+
+	static boolean isSupported(LevelTypeList level) {
+		return level == LevelTypeList.BINARY || level == LevelTypeList.TAG_ENCODING
+				|| level == LevelTypeList.PURE_IDENTITY;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+/**
+ * Codec for GIAI-96, where the company prefix is followed by a numeric
+ * individual asset reference, of up to 25 digits together.
+ */
+public class Giai96Codec extends PartitionCodec {
+
+	public Giai96Codec() {
+		super("GIAI-96", 0x34, "urn:epc:tag:giai-96:", "urn:epc:id:giai:", 82, 25, true, 0);
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+/**
+ * Codec for GRAI-96, where the company prefix and the asset type have 12
+ * digits together, followed by a 38-bit serial number.
+ */
+public class Grai96Codec extends PartitionCodec {
+
+	public Grai96Codec() {
+		super("GRAI-96", 0x33, "urn:epc:tag:grai-96:", "urn:epc:id:grai:", 44, 12, false, 38);
+	}
+}
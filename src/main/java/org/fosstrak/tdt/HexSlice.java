@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Arrays;
+
+/**
+ * A view of the bits of a hexadecimal value as a sequence of the characters
+ * 0 and 1, so that a hex EPC can be handed to the binary codecs without
+ * building the binary String first. Like {@link CharSlice}, the view is
+ * reset for each value and must not be kept after the conversion.
+ */
+final class HexSlice implements CharSequence {
+
+	private static final byte[] NIBBLES = new byte[128];
+
+	static {
+		Arrays.fill(NIBBLES, (byte) -1);
+		for (int i = 0; i < 10; i++) {
+			NIBBLES['0' + i] = (byte) i;
+		}
+		for (int i = 0; i < 6; i++) {
+			NIBBLES['A' + i] = (byte) (10 + i);
+			NIBBLES['a' + i] = (byte) (10 + i);
+		}
+	}
+
+	private CharSequence hex;
+
+	// index in hex of the first digit
+	private int digits;
+
+	// index of the first bit, counted from the most significant bit of the first digit
+	private int start;
+
+	private int length;
+
+	/**
+	 * @return the value of a hex digit, or -1 if c is not one
+	 */
+	static int nibble(char c) {
+		return c < 128 ? NIBBLES[c] : -1;
+	}
+
+	HexSlice reset(CharSequence hex, int digits, int start, int length) {
+		this.hex = hex;
+		this.digits = digits;
+		this.start = start;
+		this.length = length;
+		return this;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+		}
+		int bit = start + index;
+		return (nibble(hex.charAt(digits + (bit >>> 2))) & (8 >>> (bit & 3))) == 0 ? '0' : '1';
+	}
+
+	public CharSequence subSequence(int from, int to) {
+		if (from < 0 || to > length || from > to) {
+			throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + length);
+		}
+		return toString().substring(from, to);
+	}
+
+	@Override
+	public String toString() {
+		char[] bits = new char[length];
+		for (int i = 0; i < length; i++) {
+			bits[i] = charAt(i);
+		}
+		return new String(bits);
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.epcglobalinc.tdt.EpcTagDataTranslation;
+import org.epcglobalinc.tdt.LevelTypeList;
+import org.epcglobalinc.tdt.Scheme;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A LazyScheme is a lightweight stand-in for one scheme of a TDT definition
+ * file. When the engine starts, only the attributes needed for the prefix
+ * index (the scheme name, its tagLength and the prefixMatch of each level) are
+ * read with a SAX scan of the file. The full definition is unmarshalled using
+ * JAXB the first time {@link #getScheme()} is called, i.e. the first time an
+ * input value matches one of the prefixes of the scheme.
+ */
+class LazyScheme {
+
+	private final URL url;
+
+	private final String name;
+
+	private final BigInteger tagLength;
+
+	private final Map<LevelTypeList, String> prefixes = new EnumMap<LevelTypeList, String>(LevelTypeList.class);
+
+	private final JAXBContext context;
+
+	private volatile Scheme scheme;
+
+	private LazyScheme(URL url, String name, BigInteger tagLength, JAXBContext context) {
+		this.url = url;
+		this.name = name;
+		this.tagLength = tagLength;
+		this.context = context;
+	}
+
+	public URL getURL() {
+		return url;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public BigInteger getTagLength() {
+		return tagLength;
+	}
+
+	/**
+	 * @return the prefixMatch value of each level of the scheme that declares
+	 *         one, keyed by level type
+	 */
+	public Map<LevelTypeList, String> getPrefixes() {
+		return prefixes;
+	}
+
+	public boolean isLoaded() {
+		return scheme != null;
+	}
+
+	/**
+	 * Returns the full definition of the scheme, unmarshalling the definition
+	 * file on first use. Concurrent callers block until the first of them has
+	 * finished loading, so that each definition is only unmarshalled once.
+	 */
+	public Scheme getScheme() {
+		Scheme s = scheme;
+		if (s == null) {
+			synchronized (this) {
+				s = scheme;
+				if (s == null) {
+					s = load();
+					scheme = s;
+				}
+			}
+		}
+		return s;
+	}
+
+	private Scheme load() {
+		try {
+			URLConnection urlcon = url.openConnection();
+			urlcon.connect();
+			InputStream in = urlcon.getInputStream();
+			try {
+				// the unmarshaller is not thread-safe, so each load uses its own
+				JAXBElement<EpcTagDataTranslation> el = context.createUnmarshaller().unmarshal(
+						new StreamSource(in), EpcTagDataTranslation.class);
+				for (Scheme s : el.getValue().getScheme()) {
+					if (name.equals(s.getName())) {
+						return s;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new TDTException("Could not load scheme " + name + " from " + url + ": " + e.getMessage());
+		} catch (JAXBException e) {
+			throw new TDTException("Could not load scheme " + name + " from " + url + ": " + e.getMessage());
+		}
+		throw new TDTException("Scheme " + name + " is no longer defined in " + url);
+	}
+
+	/**
+	 * Reads the scheme and level attributes of a TDT definition file without
+	 * unmarshalling it.
+	 *
+	 * @param url
+	 *            location of the TDT definition file
+	 * @param context
+	 *            JAXB context used later on to load the full definition
+	 * @return one LazyScheme for each scheme element in the file
+	 * @throws IOException
+	 *             thrown if the url is unreachable or the file is not well-formed
+	 */
+	static List<LazyScheme> scan(final URL url, final JAXBContext context) throws IOException {
+		final List<LazyScheme> schemes = new ArrayList<LazyScheme>();
+		DefaultHandler handler = new DefaultHandler() {
+			private LazyScheme current;
+
+			public void startElement(String uri, String localName, String qName, Attributes attributes) {
+				String element = localName.length() > 0 ? localName : qName;
+				if (element.equals("scheme")) {
+					String tagLength = attributes.getValue("tagLength");
+					current = new LazyScheme(url, attributes.getValue("name"),
+							tagLength == null ? null : new BigInteger(tagLength), context);
+					schemes.add(current);
+				} else if (element.equals("level") && current != null) {
+					String prefix = attributes.getValue("prefixMatch");
+					if (prefix != null) {
+						current.prefixes.put(LevelTypeList.fromValue(attributes.getValue("type")), prefix);
+					}
+				}
+			}
+		};
+
+		URLConnection urlcon = url.openConnection();
+		urlcon.connect();
+		InputStream in = urlcon.getInputStream();
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			factory.newSAXParser().parse(in, handler);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e.getMessage());
+		} catch (SAXException e) {
+			throw new IOException("Could not scan " + url + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+		return schemes;
+	}
+}
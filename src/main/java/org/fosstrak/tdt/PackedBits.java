@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+/**
+ * Reads and writes bit fields of packed binary EPCs, in which the bits are
+ * stored in bytes with the first bit of the EPC in the most significant bit
+ * of the first byte, as they are read from the EPC memory bank of a tag. None
+ * of the methods allocate, apart from {@link #pack(CharSequence)}.
+ */
+final class PackedBits {
+
+	private PackedBits() {
+	}
+
+	/**
+	 * @return the number of bytes of a packed EPC of the given number of bits
+	 */
+	static int bytes(int bits) {
+		return (bits + 7) >>> 3;
+	}
+
+	/**
+	 * @return the value of length bits, at most 63, starting at bit start of
+	 *         the packed EPC at offset in buffer
+	 */
+	static long get(byte[] buffer, int offset, int start, int length) {
+		long value = 0;
+		int bit = start;
+		int end = start + length;
+		while (bit < end) {
+			int b = buffer[offset + (bit >>> 3)] & 0xff;
+			int used = bit & 7;
+			int n = Math.min(8 - used, end - bit);
+			value = (value << n) | ((b >>> (8 - used - n)) & ((1 << n) - 1));
+			bit += n;
+		}
+		return value;
+	}
+
+	/**
+	 * Sets length bits, at most 64, starting at bit start of packed to the
+	 * lowest bits of value.
+	 */
+	static void set(byte[] packed, int start, int length, long value) {
+		set(packed, 0, start, length, value);
+	}
+
+	/**
+	 * Sets length bits, at most 64, starting at bit start of the packed EPC
+	 * at offset in buffer to the lowest bits of value.
+	 */
+	static void set(byte[] buffer, int offset, int start, int length, long value) {
+		for (int i = 0; i < length; i++) {
+			int bit = start + i;
+			int mask = 0x80 >>> (bit & 7);
+			if (((value >>> (length - 1 - i)) & 1) != 0) {
+				buffer[offset + (bit >>> 3)] |= mask;
+			} else {
+				buffer[offset + (bit >>> 3)] &= ~mask;
+			}
+		}
+	}
+
+	/**
+	 * @return the packed form of a binary EPC given as a string of 0 and 1,
+	 *         with the bits after the last one in the last byte set to 0
+	 * @throws TDTException
+	 *             if binary has characters other than 0 and 1
+	 */
+	static byte[] pack(CharSequence binary) {
+		byte[] packed = new byte[bytes(binary.length())];
+		for (int i = 0; i < binary.length(); i++) {
+			char c = binary.charAt(i);
+			if (c == '1') {
+				packed[i >>> 3] |= 0x80 >>> (i & 7);
+			} else if (c != '0') {
+				throw new TDTException("Not a binary EPC: " + binary);
+			}
+		}
+		return packed;
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Map;
+
+import org.epcglobalinc.tdt.Level;
+import org.epcglobalinc.tdt.LevelTypeList;
+import org.epcglobalinc.tdt.Option;
+import org.epcglobalinc.tdt.Scheme;
+
+/**
+ * Codec for the 96-bit GS1 schemes whose binary encoding consists of a
+ * header, a filter, a partition value, a GS1 Company Prefix and a reference
+ * of which the partition value gives the number of bits and digits, and
+ * optionally a numeric serial number.
+ * 
+ * Fields are read straight from the characters of the input into longs and
+ * written straight into the output buffer, so a conversion allocates
+ * nothing. Only canonical values are converted: anything out of range, with
+ * leading zeros where the generic engine would drop them, or with trailing
+ * characters is left to the generic engine.
+ * 
+ * When bound to a definition, a partition is only enabled if the definition
+ * has exactly one binary option for it and the patterns of its options are
+ * those implemented here. Partitions in which the reference has no digits are
+ * left to the generic engine.
+ */
+class PartitionCodec implements EpcCodec {
+
+	/** number of digits of the GS1 Company Prefix for each partition value */
+	private static final int[] COMPANY_PREFIX_DIGITS = { 12, 11, 10, 9, 8, 7, 6 };
+
+	/** number of bits of the GS1 Company Prefix for each partition value */
+	private static final int[] COMPANY_PREFIX_BITS = { 40, 37, 34, 30, 27, 24, 20 };
+
+	private static final int LENGTH = 96;
+
+	// header, filter and partition
+	private static final int FIELDS_OFFSET = 14;
+
+	private final String schemeName;
+
+	private final int header;
+
+	private final String tagPrefix;
+
+	private final String purePrefix;
+
+	// bits and digits of the company prefix and the reference together
+	private final int partitionBits;
+
+	private final int partitionDigits;
+
+	// the reference is a number without leading zeros instead of a fixed number of digits
+	private final boolean variableReference;
+
+	private final int serialBits;
+
+	private final int serialDigits;
+
+	// partitions that agree with the definition; null until bound
+	private final boolean[] enabled;
+
+	/**
+	 * @param schemeName
+	 *            name of the scheme, e.g. SGTIN-96
+	 * @param header
+	 *            the 8-bit header of the binary encoding
+	 * @param tagPrefix
+	 *            the tag-encoding URI up to the filter, e.g.
+	 *            urn:epc:tag:sgtin-96:
+	 * @param purePrefix
+	 *            the pure identity URI up to the company prefix, e.g.
+	 *            urn:epc:id:sgtin:
+	 * @param partitionBits
+	 *            number of bits of the company prefix and reference together
+	 * @param partitionDigits
+	 *            number of digits of the company prefix and reference
+	 *            together, or the maximum number if the reference has a
+	 *            variable number of digits
+	 * @param variableReference
+	 *            true if the reference is a number without leading zeros
+	 * @param serialBits
+	 *            number of bits of the serial number, or 0 if there is none
+	 */
+	PartitionCodec(String schemeName, int header, String tagPrefix, String purePrefix, int partitionBits,
+			int partitionDigits, boolean variableReference, int serialBits) {
+		this.schemeName = schemeName;
+		this.header = header;
+		this.tagPrefix = tagPrefix;
+		this.purePrefix = purePrefix;
+		this.partitionBits = partitionBits;
+		this.partitionDigits = partitionDigits;
+		this.variableReference = variableReference;
+		this.serialBits = serialBits;
+		this.serialDigits = serialBits == 0 ? 0 : Long.toString((1L << serialBits) - 1).length();
+		this.enabled = null;
+	}
+
+	private PartitionCodec(PartitionCodec codec, boolean[] enabled) {
+		this.schemeName = codec.schemeName;
+		this.header = codec.header;
+		this.tagPrefix = codec.tagPrefix;
+		this.purePrefix = codec.purePrefix;
+		this.partitionBits = codec.partitionBits;
+		this.partitionDigits = codec.partitionDigits;
+		this.variableReference = codec.variableReference;
+		this.serialBits = codec.serialBits;
+		this.serialDigits = codec.serialDigits;
+		this.enabled = enabled;
+	}
+
+	public String getSchemeName() {
+		return schemeName;
+	}
+
+	public EpcCodec bind(Scheme scheme) {
+		if (scheme.getTagLength() == null || scheme.getTagLength().intValue() != LENGTH) {
+			return null;
+		}
+		boolean[] agreed = new boolean[COMPANY_PREFIX_DIGITS.length];
+		boolean any = false;
+		for (int partition = 0; partition < agreed.length; partition++) {
+			agreed[partition] = agrees(scheme, partition);
+			any |= agreed[partition];
+		}
+		return any ? new PartitionCodec(this, agreed) : null;
+	}
+
+	/**
+	 * Checks that the definition has exactly one option for the partition in
+	 * each of the binary, tag-encoding and pure identity levels, and that
+	 * their patterns are the ones implemented by this codec.
+	 */
+	private boolean agrees(Scheme scheme, int partition) {
+		if (partitionDigits == COMPANY_PREFIX_DIGITS[partition]) {
+			// the generic engine does not convert an empty reference
+			return false;
+		}
+		String key = Integer.toString(COMPANY_PREFIX_DIGITS[partition]);
+		String binaryPrefix = bits(header, 8) + "([01]{3})" + bits(partition, 3);
+		int binary = 0;
+		int tag = 0;
+		int pure = 0;
+		for (Level level : scheme.getLevel()) {
+			for (Option option : level.getOption()) {
+				String pattern = option.getPattern();
+				if (level.getType() == LevelTypeList.BINARY) {
+					if (pattern != null && pattern.startsWith(binaryPrefix)) {
+						if (!key.equals(option.getOptionKey()) || !pattern.equals(binaryPattern(partition))) {
+							return false;
+						}
+						binary++;
+					}
+				} else if (key.equals(option.getOptionKey())) {
+					if (level.getType() == LevelTypeList.TAG_ENCODING) {
+						if (!uriPattern(partition, true).equals(pattern)) {
+							return false;
+						}
+						tag++;
+					} else if (level.getType() == LevelTypeList.PURE_IDENTITY) {
+						if (!uriPattern(partition, false).equals(pattern)) {
+							return false;
+						}
+						pure++;
+					}
+				}
+			}
+		}
+		return binary == 1 && tag == 1 && pure == 1;
+	}
+
+	private String binaryPattern(int partition) {
+		int companyPrefixBits = COMPANY_PREFIX_BITS[partition];
+		StringBuilder pattern = new StringBuilder();
+		pattern.append(bits(header, 8)).append("([01]{3})").append(bits(partition, 3));
+		pattern.append("([01]{").append(companyPrefixBits).append("})");
+		pattern.append("([01]{").append(partitionBits - companyPrefixBits).append("})");
+		if (serialBits > 0) {
+			pattern.append("([01]{").append(serialBits).append("})");
+		}
+		pattern.append(bits(0, LENGTH - FIELDS_OFFSET - partitionBits - serialBits));
+		return pattern.toString();
+	}
+
+	private String uriPattern(int partition, boolean tag) {
+		int companyPrefixDigits = COMPANY_PREFIX_DIGITS[partition];
+		StringBuilder pattern = new StringBuilder();
+		if (tag) {
+			pattern.append(tagPrefix).append("([0-7]{1})\\.");
+		} else {
+			pattern.append(purePrefix);
+		}
+		pattern.append("([0-9]{").append(companyPrefixDigits).append("})\\.");
+		if (variableReference) {
+			pattern.append("([0-9]{1,").append(partitionDigits - companyPrefixDigits).append("})");
+		} else {
+			pattern.append("([0-9]{").append(partitionDigits - companyPrefixDigits).append("})");
+		}
+		if (serialBits > 0) {
+			pattern.append("\\.([0-9]{1,").append(serialDigits).append("})");
+		}
+		return pattern.toString();
+	}
+
+	private static String bits(long value, int length) {
+		StringBuilder s = new StringBuilder(length);
+		CodecFields.appendBits(s, value, length);
+		return s.toString();
+	}
+
+	public boolean convert(CharSequence input, LevelTypeList inputLevel, Map<String, String> inputParameters,
+			LevelTypeList outputLevel, StringBuilder out) {
+		if (enabled == null || !isSupported(outputLevel)) {
+			return false;
+		}
+		long filter;
+		int partition;
+		long companyPrefix;
+		long reference;
+		long serial = 0;
+
+		if (inputLevel == LevelTypeList.BINARY) {
+			if (input.length() != LENGTH || CodecFields.parseBits(input, 0, 8) != header) {
+				return false;
+			}
+			filter = CodecFields.parseBits(input, 8, 3);
+			partition = (int) CodecFields.parseBits(input, 11, 3);
+			if (filter < 0 || !isEnabled(partition)) {
+				return false;
+			}
+			int companyPrefixBits = COMPANY_PREFIX_BITS[partition];
+			int pos = FIELDS_OFFSET;
+			companyPrefix = CodecFields.parseBits(input, pos, companyPrefixBits);
+			reference = CodecFields.parseBits(input, pos + companyPrefixBits, partitionBits - companyPrefixBits);
+			pos += partitionBits;
+			if (serialBits > 0) {
+				serial = CodecFields.parseBits(input, pos, serialBits);
+				pos += serialBits;
+			}
+			if (companyPrefix < 0 || reference < 0 || serial < 0
+					|| CodecFields.parseBits(input, pos, LENGTH - pos) != 0) {
+				return false;
+			}
+			if (!CodecFields.fitsDigits(companyPrefix, COMPANY_PREFIX_DIGITS[partition])) {
+				return false;
+			}
+			if (!variableReference
+					&& !CodecFields.fitsDigits(reference, partitionDigits - COMPANY_PREFIX_DIGITS[partition])) {
+				return false;
+			}
+
+		} else if (inputLevel == LevelTypeList.TAG_ENCODING || inputLevel == LevelTypeList.PURE_IDENTITY) {
+			int pos;
+			if (inputLevel == LevelTypeList.TAG_ENCODING) {
+				if (!CodecFields.startsWith(input, tagPrefix, 0)) {
+					return false;
+				}
+				pos = tagPrefix.length();
+				if (input.length() < pos + 2 || input.charAt(pos + 1) != '.') {
+					return false;
+				}
+				filter = input.charAt(pos) - '0';
+				if (filter < 0 || filter > 7) {
+					return false;
+				}
+				pos += 2;
+			} else {
+				if (!CodecFields.startsWith(input, purePrefix, 0)) {
+					return false;
+				}
+				pos = purePrefix.length();
+				filter = CodecFields.parameter(inputParameters, "filter");
+				if ((filter < 0 || filter > 7) && outputLevel != LevelTypeList.PURE_IDENTITY) {
+					return false;
+				}
+			}
+			int dot = CodecFields.indexOf(input, '.', pos);
+			partition = dot < 0 ? -1 : partitionOf(dot - pos);
+			if (!isEnabled(partition)) {
+				return false;
+			}
+			companyPrefix = CodecFields.parseDigits(input, pos, dot);
+			pos = dot + 1;
+			int end = serialBits > 0 ? CodecFields.indexOf(input, '.', pos) : input.length();
+			if (end < 0) {
+				return false;
+			}
+			int referenceDigits = partitionDigits - COMPANY_PREFIX_DIGITS[partition];
+			if (variableReference) {
+				reference = CodecFields.parseNumber(input, pos, end, referenceDigits);
+			} else {
+				reference = end - pos == referenceDigits ? CodecFields.parseDigits(input, pos, end) : -1;
+			}
+			if (serialBits > 0) {
+				serial = CodecFields.parseNumber(input, end + 1, input.length(), serialDigits);
+			}
+			if (companyPrefix < 0 || reference < 0 || serial < 0) {
+				return false;
+			}
+			if (reference >= 1L << (partitionBits - COMPANY_PREFIX_BITS[partition]) || serial >= 1L << serialBits) {
+				return false;
+			}
+
+		} else {
+			return false;
+		}
+
+		int companyPrefixBits = COMPANY_PREFIX_BITS[partition];
+		int start = out.length();
+		if (outputLevel == LevelTypeList.BINARY) {
+			CodecFields.appendBits(out, header, 8);
+			CodecFields.appendBits(out, filter, 3);
+			CodecFields.appendBits(out, partition, 3);
+			CodecFields.appendBits(out, companyPrefix, companyPrefixBits);
+			CodecFields.appendBits(out, reference, partitionBits - companyPrefixBits);
+			CodecFields.appendBits(out, serial, serialBits);
+			CodecFields.appendBits(out, 0, LENGTH - (out.length() - start));
+		} else {
+			int companyPrefixDigits = COMPANY_PREFIX_DIGITS[partition];
+			if (outputLevel == LevelTypeList.TAG_ENCODING) {
+				out.append(tagPrefix).append((char) ('0' + filter)).append('.');
+			} else {
+				out.append(purePrefix);
+			}
+			CodecFields.appendDigits(out, companyPrefix, companyPrefixDigits);
+			out.append('.');
+			if (variableReference) {
+				out.append(reference);
+			} else {
+				CodecFields.appendDigits(out, reference, partitionDigits - companyPrefixDigits);
+			}
+			if (serialBits > 0) {
+				out.append('.').append(serial);
+			}
+		}
+		return true;
+	}
+
+	private static boolean isSupported(LevelTypeList level) {
+		return level == LevelTypeList.BINARY || level == LevelTypeList.TAG_ENCODING
+				|| level == LevelTypeList.PURE_IDENTITY;
+	}
+
+	private boolean isEnabled(int partition) {
+		return partition >= 0 && partition < enabled.length && enabled[partition];
+	}
+
+	/**
+	 * @return the partition value for a company prefix of the given number of
+	 *         digits, or -1 if there is none
+	 */
+	private static int partitionOf(int companyPrefixDigits) {
+		if (companyPrefixDigits < 6 || companyPrefixDigits > 12) {
+			return -1;
+		}
+		return 12 - companyPrefixDigits;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.epcglobalinc.tdt.Field;
+import org.epcglobalinc.tdt.Level;
+import org.epcglobalinc.tdt.Option;
+
+/**
+ * Compiles EPC pattern URIs, such as urn:epc:idpat:sgtin:0614141.*.*, into
+ * filters on binary EPCs. A pattern URI has the fields of a pure identity
+ * URI, each of which is a value, * for any value or [lo-hi] for a range of
+ * values. The options of the pure identity level of a scheme give the fields
+ * and the number of digits of each, which select the binary options that the
+ * pattern applies to.
+ */
+final class PatternUri {
+
+	private static final Pattern RANGE = Pattern.compile("\\[([0-9]{1,18})-([0-9]{1,18})\\]");
+
+	private static final Pattern NUMBER = Pattern.compile("[0-9]{0,18}");
+
+	private PatternUri() {
+	}
+
+	/**
+	 * @return the prefix of the pattern URIs of a scheme, e.g.
+	 *         urn:epc:idpat:sgtin: for the pure identity prefix
+	 *         urn:epc:id:sgtin, or null if it has no pattern URIs
+	 */
+	static String prefix(String pureIdentityPrefix) {
+		if (pureIdentityPrefix == null || !pureIdentityPrefix.startsWith("urn:epc:id:")) {
+			return null;
+		}
+		return "urn:epc:idpat:" + pureIdentityPrefix.substring("urn:epc:id:".length()) + ":";
+	}
+
+	/**
+	 * Compiles a pattern URI for one scheme.
+	 * 
+	 * @param uri
+	 *            the pattern URI, starting with the prefix of the scheme
+	 * @param schemeName
+	 *            name of the scheme
+	 * @param pureIdentity
+	 *            the pure identity level of the scheme
+	 * @param layouts
+	 *            the binary layouts of every scheme
+	 * @return a filter for the binary EPCs of the scheme that match the
+	 *         pattern, or null if no binary option of the scheme can match it
+	 */
+	static EpcFilter compile(String uri, String schemeName, Level pureIdentity, List<BinaryLayout> layouts) {
+		String prefix = prefix(pureIdentity.getPrefixMatch());
+		String[] components = uri.substring(prefix.length()).split("\\.", -1);
+		List<EpcFilter> filters = new ArrayList<EpcFilter>();
+		for (Option option : pureIdentity.getOption()) {
+			List<Field> fields = fieldsOf(option, prefix);
+			if (fields == null || fields.size() != components.length || !fits(fields, components)) {
+				continue;
+			}
+			for (BinaryLayout layout : layouts) {
+				if (layout.getSchemeName().equals(schemeName) && layout.getOptionKey().equals(option.getOptionKey())) {
+					EpcFilter filter = compile(layout, fields, components);
+					if (filter != null) {
+						filters.add(filter);
+					}
+				}
+			}
+		}
+		return filters.isEmpty() ? null : EpcFilter.anyOf(filters);
+	}
+
+	/**
+	 * @return the fields of a pure identity option in the order of its
+	 *         grammar, or null if the grammar is not the prefix followed by
+	 *         fields separated by dots
+	 */
+	private static List<Field> fieldsOf(Option option, String prefix) {
+		String[] tokens = option.getGrammar().trim().split("\\s+");
+		String expected = "'" + prefix.replace("urn:epc:idpat:", "urn:epc:id:") + "'";
+		if (tokens.length % 2 != 0 || !tokens[0].equals(expected)) {
+			return null;
+		}
+		List<Field> fields = new ArrayList<Field>();
+		for (int i = 1; i < tokens.length; i += 2) {
+			if (i > 1 && !tokens[i - 1].equals("'.'")) {
+				return null;
+			}
+			Field field = null;
+			for (Field f : option.getField()) {
+				if (f.getName().equals(tokens[i])) {
+					field = f;
+				}
+			}
+			if (field == null) {
+				return null;
+			}
+			fields.add(field);
+		}
+		return fields;
+	}
+
+	/**
+	 * @return true unless a value has a different number of digits than its
+	 *         field has in this option
+	 */
+	private static boolean fits(List<Field> fields, String[] components) {
+		for (int i = 0; i < components.length; i++) {
+			String component = components[i];
+			if (component.equals("*") || component.startsWith("[")) {
+				continue;
+			}
+			Field field = fields.get(i);
+			if (field.getLength() != null && field.getLength().intValue() != component.length()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the filter for one binary option, or null if a field that the
+	 *         pattern restricts is not an integer in it
+	 */
+	private static EpcFilter compile(BinaryLayout layout, List<Field> fields, String[] components) {
+		EpcFilter filter = new EpcFilter(Collections.singletonList(layout));
+		for (int i = 0; i < components.length; i++) {
+			String component = components[i];
+			if (component.equals("*")) {
+				continue;
+			}
+			String name = fields.get(i).getName();
+			if (layout.getIntegerField(name) == null) {
+				return null;
+			}
+			Matcher range = RANGE.matcher(component);
+			if (range.matches()) {
+				filter = filter.between(name, Long.parseLong(range.group(1)), Long.parseLong(range.group(2)));
+			} else if (NUMBER.matcher(component).matches()) {
+				// a field without digits, such as the asset type of GRAI-96 with 12-digit company prefixes, is 0
+				filter = filter.equalTo(name, component.length() == 0 ? 0 : Long.parseLong(component));
+			} else {
+				throw new TDTException("Invalid value " + component + " for field " + name + " in pattern URI");
+			}
+		}
+		return filter;
+	}
+}
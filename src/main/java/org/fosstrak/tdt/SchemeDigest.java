@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.epcglobalinc.tdt.Field;
+import org.epcglobalinc.tdt.InputFormatList;
+import org.epcglobalinc.tdt.Level;
+import org.epcglobalinc.tdt.LevelTypeList;
+import org.epcglobalinc.tdt.ModeList;
+import org.epcglobalinc.tdt.Option;
+import org.epcglobalinc.tdt.PadDirectionList;
+import org.epcglobalinc.tdt.Rule;
+import org.epcglobalinc.tdt.Scheme;
+
+/**
+ * Digest of the parts of a scheme definition that conversions between its
+ * binary, tag-encoding and pure identity levels depend on. A generated codec
+ * records the digest of the definition it was generated from and is only used
+ * with a loaded definition that has the same digest.
+ * 
+ * The build-time generator, org.fosstrak.tdt.build.CodecGenerator, computes
+ * the digest from the attributes in the XML file; both must produce the same
+ * text: one line per scheme, level, option, field and rule, with the
+ * attribute values separated by '|' and missing attributes left empty.
+ */
+final class SchemeDigest {
+
+	private SchemeDigest() {
+	}
+
+	static String of(Scheme scheme) {
+		StringBuilder text = new StringBuilder();
+		line(text, "scheme", scheme.getName(), scheme.getOptionKey(), string(scheme.getTagLength()));
+		for (Level level : scheme.getLevel()) {
+			LevelTypeList type = level.getType();
+			if (type != LevelTypeList.BINARY && type != LevelTypeList.TAG_ENCODING
+					&& type != LevelTypeList.PURE_IDENTITY) {
+				continue;
+			}
+			line(text, "level", type.value(), level.getPrefixMatch());
+			for (Option option : level.getOption()) {
+				line(text, "option", option.getOptionKey(), option.getPattern(), option.getGrammar());
+				for (Field field : option.getField()) {
+					line(text, "field", string(field.getSeq()), field.getName(), string(field.getBitLength()),
+							field.getCharacterSet(), field.getCompaction(), field.getPadChar(),
+							value(field.getPadDir()), value(field.getBitPadDir()), field.getDecimalMinimum(),
+							field.getDecimalMaximum(), string(field.getLength()));
+				}
+			}
+			for (Rule rule : level.getRule()) {
+				line(text, "rule", value(rule.getType()), value(rule.getInputFormat()), string(rule.getSeq()),
+						rule.getNewFieldName(), rule.getFunction());
+			}
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.toString().getBytes("UTF-8"));
+			return String.format("%040x", new BigInteger(1, digest));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static void line(StringBuilder text, String... values) {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				text.append('|');
+			}
+			if (values[i] != null) {
+				text.append(values[i]);
+			}
+		}
+		text.append('\n');
+	}
+
+	private static String string(BigInteger value) {
+		return value == null ? null : value.toString();
+	}
+
+	private static String value(PadDirectionList value) {
+		return value == null ? null : value.value();
+	}
+
+	private static String value(ModeList value) {
+		return value == null ? null : value.value();
+	}
+
+	private static String value(InputFormatList value) {
+		return value == null ? null : value.value();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories holding the scheme and auxiliary files of a
+ * {@link TDTEngine} and reloads the engine when any of their files is
+ * created, modified or deleted. Changes are collected until the directories
+ * have been quiet for a while, so that copying a new set of schemes causes a
+ * single reload instead of one per file.
+ */
+class SchemeWatcher implements Runnable {
+
+	private final TDTEngine engine;
+
+	private final WatchService watchService;
+
+	private final long quietPeriod;
+
+	private Thread thread;
+
+	SchemeWatcher(TDTEngine engine, Set<Path> dirs, long quietPeriod) throws IOException {
+		this.engine = engine;
+		this.quietPeriod = quietPeriod;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		try {
+			for (Path dir : dirs) {
+				dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			}
+		} catch (IOException e) {
+			watchService.close();
+			throw e;
+		}
+	}
+
+	void start() {
+		thread = new Thread(this, "TDT scheme watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			System.out.println("IOException: " + e);
+		}
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				drain(watchService.take());
+				// wait until no more changes arrive within the quiet period
+				WatchKey key;
+				while ((key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS)) != null) {
+					drain(key);
+				}
+				try {
+					engine.reload();
+				} catch (Exception e) {
+					// keep the previous definitions and wait for the next change
+					System.out.println("Could not reload TDT definitions: " + e);
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// stopped
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private static void drain(WatchKey key) {
+		key.pollEvents();
+		key.reset();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+/**
+ * The memory bank, bit pointer, length and mask of one Gen2 Select command,
+ * as computed by {@link TDTEngine#selectMasks(String, java.util.Map)}. The
+ * pointer counts from the start of the EPC memory bank, in which the EPC
+ * starts at bit 0x20, after the StoredCRC and the PC word.
+ */
+public final class SelectMask {
+
+	/** the EPC memory bank */
+	public static final int EPC_BANK = 1;
+
+	/** bit pointer of the first bit of the EPC in the EPC memory bank */
+	public static final int EPC_OFFSET = 0x20;
+
+	private final int pointer;
+
+	private final String bits;
+
+	SelectMask(int pointer, String bits) {
+		this.pointer = pointer;
+		this.bits = bits;
+	}
+
+	/**
+	 * @return the memory bank, always {@link #EPC_BANK}
+	 */
+	public int getMemoryBank() {
+		return EPC_BANK;
+	}
+
+	/**
+	 * @return the bit pointer into the memory bank
+	 */
+	public int getPointer() {
+		return pointer;
+	}
+
+	/**
+	 * @return the number of bits of the mask
+	 */
+	public int getLength() {
+		return bits.length();
+	}
+
+	/**
+	 * @return the mask as a string of 0 and 1
+	 */
+	public String getMaskBits() {
+		return bits;
+	}
+
+	/**
+	 * @return the mask packed into bytes, the first bit in the most
+	 *         significant bit of the first byte and the bits after the last
+	 *         one set to 0
+	 */
+	public byte[] getMask() {
+		return PackedBits.pack(bits);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof SelectMask)) {
+			return false;
+		}
+		SelectMask other = (SelectMask) o;
+		return pointer == other.pointer && bits.equals(other.bits);
+	}
+
+	public int hashCode() {
+		return pointer * 31 + bits.hashCode();
+	}
+
+	public String toString() {
+		return "Select(bank=" + EPC_BANK + ", pointer=0x" + Integer.toHexString(pointer) + ", length=" + bits.length()
+				+ ", mask=" + bits + ")";
+	}
+}
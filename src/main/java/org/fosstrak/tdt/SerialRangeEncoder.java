@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+/**
+ * Encodes EPCs that differ only in their serial number, e.g. to commission
+ * the tags of one GTIN. Obtained from
+ * {@link TDTEngine#serialRangeEncoder(String, java.util.Map, String)}, which
+ * converts one EPC of the range with the engine; the encoder then only
+ * writes the bits of the serial number into a copy of that EPC, so none of
+ * the rules or grammars are run again.
+ * 
+ * <p>
+ * Encoders are immutable and may be shared between threads. None of the
+ * methods allocate.
+ * </p>
+ */
+public final class SerialRangeEncoder {
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	// the binary EPC that the others are derived from
+	private final String template;
+
+	private final byte[] packed;
+
+	private final int serialOffset;
+
+	private final int serialLength;
+
+	// leading zero bits of the hex form, which has a whole number of digits
+	private final int hexPadding;
+
+	SerialRangeEncoder(String template, int serialOffset, int serialLength) {
+		this.template = template;
+		this.packed = PackedBits.pack(template);
+		this.serialOffset = serialOffset;
+		this.serialLength = serialLength;
+		this.hexPadding = (4 - template.length() % 4) % 4;
+	}
+
+	/**
+	 * @return the number of bits of the EPCs
+	 */
+	public int getLength() {
+		return template.length();
+	}
+
+	/**
+	 * @return the largest serial number that the EPCs can hold
+	 */
+	public long getMaximumSerial() {
+		return serialLength == 63 ? Long.MAX_VALUE : (1L << serialLength) - 1;
+	}
+
+	/**
+	 * Appends the binary EPC with the given serial number.
+	 */
+	public void appendBinary(long serial, StringBuilder out) {
+		checkRange(serial, 1);
+		out.append(template, 0, serialOffset);
+		CodecFields.appendBits(out, serial, serialLength);
+		out.append(template, serialOffset + serialLength, template.length());
+	}
+
+	/**
+	 * Appends the EPC with the given serial number in hex, as
+	 * {@link TDTEngine#bin2hex(String)} writes it.
+	 */
+	public void appendHex(long serial, StringBuilder out) {
+		checkRange(serial, 1);
+		int digits = (template.length() + hexPadding) / 4;
+		for (int digit = 0; digit < digits; digit++) {
+			int nibble = 0;
+			for (int i = digit * 4 - hexPadding; i < digit * 4 - hexPadding + 4; i++) {
+				nibble = (nibble << 1) | (i < 0 ? 0 : bit(serial, i));
+			}
+			out.append(HEX_DIGITS[nibble]);
+		}
+	}
+
+	private int bit(long serial, int i) {
+		if (i >= serialOffset && i < serialOffset + serialLength) {
+			return (int) (serial >>> (serialOffset + serialLength - 1 - i)) & 1;
+		}
+		return template.charAt(i) - '0';
+	}
+
+	/**
+	 * Writes packed binary EPCs with consecutive serial numbers one after the
+	 * other, each of them {@link PackedBits#bytes(int)} of
+	 * {@link #getLength()} bytes long, with the first bit in the most
+	 * significant bit of the first byte.
+	 * 
+	 * @param firstSerial
+	 *            serial number of the first EPC
+	 * @param count
+	 *            number of EPCs
+	 * @param buffer
+	 *            receives the EPCs
+	 * @param offset
+	 *            index in buffer of the first byte of the first EPC
+	 * @return the index in buffer after the last EPC
+	 */
+	public int encode(long firstSerial, int count, byte[] buffer, int offset) {
+		checkRange(firstSerial, count);
+		int length = packed.length;
+		int first = serialOffset >>> 3;
+		int last = (serialOffset + serialLength - 1) >>> 3;
+		long serial = firstSerial;
+		for (int n = 0; n < count; n++) {
+			System.arraycopy(packed, 0, buffer, offset, length);
+			// the bits of the serial number, from the last byte to the first
+			int end = serialOffset + serialLength;
+			long value = serial;
+			for (int i = last; i >= first; i--) {
+				int low = Math.max(serialOffset, i << 3);
+				int high = Math.min(end, (i + 1) << 3);
+				int bits = high - low;
+				int shift = ((i + 1) << 3) - high;
+				int mask = ((1 << bits) - 1) << shift;
+				buffer[offset + i] = (byte) ((buffer[offset + i] & ~mask) | (((int) value << shift) & mask));
+				value >>>= bits;
+			}
+			serial++;
+			offset += length;
+		}
+		return offset;
+	}
+
+	private void checkRange(long firstSerial, int count) {
+		if (firstSerial < 0 || count < 0 || firstSerial > getMaximumSerial() - Math.max(count - 1, 0)) {
+			throw new TDTException("Serial numbers " + firstSerial + " to " + (firstSerial + count - 1)
+					+ " do not fit in " + serialLength + " bits");
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+/**
+ * Codec for SSCC-96, where the company prefix and the serial reference
+ * (including the extension digit) have 17 digits together, followed by 24
+ * unused bits.
+ */
+public class Sscc96Codec extends PartitionCodec {
+
+	public Sscc96Codec() {
+		super("SSCC-96", 0x31, "urn:epc:tag:sscc-96:", "urn:epc:id:sscc:", 58, 17, false, 0);
+	}
+}
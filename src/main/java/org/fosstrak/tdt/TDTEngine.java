@@ -21,24 +21,37 @@
 package org.fosstrak.tdt;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.UnsupportedEncodingException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,14 +61,7 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.MarshalException;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.ValidationException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.epcglobalinc.tdt.EpcTagDataTranslation;
 import org.epcglobalinc.tdt.Field;
@@ -68,8 +74,6 @@ import org.epcglobalinc.tdt.Option;
 import org.epcglobalinc.tdt.PadDirectionList;
 import org.epcglobalinc.tdt.Rule;
 import org.epcglobalinc.tdt.Scheme;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
 
 /**
  * 
@@ -93,24 +97,95 @@ public class TDTEngine {
 
 	
 	/**
-	 * prefix_tree_map is a map of levels to prefix trees. Each prefix tree is a
-	 * Trie structure (see wikipedia) that is useful for quickly finding a
-	 * matching prefix.
+	 * The registry holds everything loaded from the scheme and auxiliary
+	 * files. Each conversion reads the current registry once and uses it
+	 * throughout, so that {@link #reload()} can publish a newly loaded
+	 * registry by swapping the reference, without any locking on the
+	 * conversion path. Conversions that are in flight during a reload finish
+	 * against the registry they started with.
+	 */
+	private final AtomicReference<Registry> registry = new AtomicReference<Registry>();
+
+	/** JAXB context shared by all unmarshallers of this engine. */
+	private JAXBContext jaxbContext;
+
+	/**
+	 * Where the registry is loaded from, as passed to the constructor, so that
+	 * it can be loaded again by {@link #reload()}.
+	 */
+	private final List<URL> schemeDirectories = new ArrayList<URL>();
+	private final List<URL> schemeFiles = new ArrayList<URL>();
+	private URL auxiliaryURL;
+	private boolean lazy;
+
+	// reading the schemes directory inside a jar may fail; the default
+	// constructor has always carried on with the auxiliary file regardless
+	private boolean ignoreListingErrors;
+
+	/** Watches the scheme and auxiliary directories, if started. */
+	private SchemeWatcher watcher;
+
+	/** false to send every conversion through the generic engine */
+	private volatile boolean codecsEnabled = true;
+
+	/**
+	 * The GS1 Company Prefixes added with {@link #addListOfGCPs(InputStream)},
+	 * used to find the length of the company prefix when it is not supplied.
 	 */
-	private Map<LevelTypeList, PrefixTree<PrefixMatch>> prefix_tree_map = new HashMap<LevelTypeList, PrefixTree<PrefixMatch>>();
+	private volatile CompanyPrefixLengthIndex gcp_lengths = CompanyPrefixLengthIndex.EMPTY;
+
+	/** The compiled list of GCPs set with {@link #setCompiledListOfGCPs(File)}. */
+	private volatile CompanyPrefixLengthIndex gcp_file_lengths = CompanyPrefixLengthIndex.EMPTY;
 
 	/**
-	 * HashMap gs1cpi is an associative array providing a lookup between either
-	 * a GS1 Company Prefix and the corresponding integer-based Company Prefix
-	 * Index, where one of these has been registered for use with 64-bit EPCs -
-	 * or the reverse lookup from Company Prefix Index to GS1 Company Prefix.
-	 * Note that this is an optimization to avoid having to do an xpath trawl
-	 * through the CPI table each time.
+	 * For the prefixMatch of each level whose input begins with a GS1 key, the
+	 * number of digits between the prefix and the GS1 Company Prefix.
 	 */
-	private HashMap<String, String> gs1cpi = new HashMap<String, String>();
+	private static final Map<String, Integer> COMPANY_PREFIX_OFFSETS = new HashMap<String, Integer>();
+	static {
+		for (String prefix : new String[] { "gtin=", "sscc=", "grai=", "01", "00", "8003", "(01)", "(00)", "(8003)" }) {
+			COMPANY_PREFIX_OFFSETS.put(prefix, 1);
+		}
+		for (String prefix : new String[] { "gln=", "giai=", "gsrn=", "gdti=", "grai13=", "414", "8004", "8018", "253",
+				"(414)", "(8004)", "(8018)", "(253)" }) {
+			COMPANY_PREFIX_OFFSETS.put(prefix, 0);
+		}
+	}
 
-	/** The gepc64 table xml. */
-	private String GEPC64xml;
+	/** separates the tokens of a grammar */
+	private static final Pattern GRAMMAR_SEPARATOR = Pattern.compile("\\s+");
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/** the steps that conversion plans are composed of, see {@link #composePlan} */
+	private static final MethodHandle EXTRACT_BINARY_FIELD;
+	private static final MethodHandle EXTRACT_FIELD;
+	private static final MethodHandle PROCESS_RULES;
+	private static final MethodHandle FORMAT_BINARY_FIELD;
+	private static final MethodHandle CHECK_OUTPUT_FIELD;
+	private static final MethodHandle BUILD_GRAMMAR;
+	private static final MethodHandle END_OF_EXTRACTION;
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			EXTRACT_BINARY_FIELD = lookup.findVirtual(TDTEngine.class, "extractBinaryField", MethodType.methodType(
+					void.class, String.class, int.class, Field.class, Field.class, Map.class, Matcher.class));
+			EXTRACT_FIELD = lookup.findVirtual(TDTEngine.class, "extractField", MethodType.methodType(void.class,
+					String.class, int.class, Field.class, Map.class, Matcher.class));
+			PROCESS_RULES = lookup.findVirtual(TDTEngine.class, "processRules", MethodType.methodType(void.class,
+					Registry.class, Map.class, Rule.class));
+			FORMAT_BINARY_FIELD = lookup.findVirtual(TDTEngine.class, "formatBinaryField", MethodType.methodType(
+					void.class, String.class, Field.class, Field.class, Map.class));
+			CHECK_OUTPUT_FIELD = lookup.findVirtual(TDTEngine.class, "checkOutputField", MethodType.methodType(
+					void.class, Field.class, Field.class, LevelTypeList.class, Map.class));
+			BUILD_GRAMMAR = lookup.findVirtual(TDTEngine.class, "buildGrammar", MethodType.methodType(String.class,
+					String[].class, LevelTypeList.class, Map.class));
+			END_OF_EXTRACTION = lookup.findStatic(TDTEngine.class, "endOfExtraction",
+					MethodType.methodType(void.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 
 	// ----------------/
 	// - Constructors -/
@@ -149,7 +224,6 @@ public class TDTEngine {
 
 		
 		try {
-			Unmarshaller unmar = getUnmarshaller();
 			URL confdirurl;
 			if (confdir.endsWith("/")) {
 				confdirurl = new URL("file","localhost",confdir);
@@ -157,23 +231,9 @@ public class TDTEngine {
 				confdirurl = new URL("file","localhost",confdir+"/");
 			}
 
-			URL scheme = new URL(confdirurl,"schemes/");
-			URL auxGEPC64table = new URL(confdirurl,"auxiliary/ManagerTranslation.xml");
-
-			Set<String> schemes = new HashSet<String>();
-
-			URLConnection urlcon = scheme.openConnection();
-			urlcon.connect();
-			BufferedReader in = new BufferedReader(new InputStreamReader(urlcon.getInputStream()));
-			String line;
-			for (; (line = in.readLine()) != null;) {
-				if (line.endsWith(".xml")) {
-					URL defurl = new URL(scheme,line);
-					loadEpcTagDataTranslation(unmar, defurl);
-					schemes.add(line);
-				}
-			}
-			loadGEPC64Table(unmar, auxGEPC64table);
+			schemeDirectories.add(new URL(confdirurl,"schemes/"));
+			auxiliaryURL = new URL(confdirurl,"auxiliary/ManagerTranslation.xml");
+			registry.set(loadRegistry());
 		} catch (MalformedURLException e) {
 			throw new FileNotFoundException(e.getMessage());
 		} catch (IOException e) {
@@ -199,34 +259,35 @@ public class TDTEngine {
 	 *             thrown if the schemes could not be parsed
 	 */
 	public TDTEngine() throws IOException, JAXBException {
-				
-		Unmarshaller unmar = getUnmarshaller();
-
-		URL auxiliary = this.getClass().getClassLoader().getResource("auxiliary/ManagerTranslation.xml");
-
-		URL schemesdir = this.getClass().getClassLoader().getResource("schemes/");
+		this(false);
+	}
 
-        String inputSchemeLine;
-		
-		try {
-		URL parent = new URL(schemesdir,".");
-		URLConnection urlcon = schemesdir.openConnection();
-		BufferedReader dis = new BufferedReader(new InputStreamReader(urlcon.getInputStream()));
-		
-		while ((inputSchemeLine = dis.readLine()) != null) {
-			if (inputSchemeLine.endsWith(".xml")) {
-				URL schemeURL = new URL(schemesdir, inputSchemeLine);
-				loadEpcTagDataTranslation(unmar, schemeURL);				
-			}
-		}
-		dis.close();
-        } catch (MalformedURLException me) {
-            System.out.println("MalformedURLException: " + me);
-        } catch (IOException ioe) {
-            System.out.println("IOException: " + ioe);
-        }
-				
-		loadGEPC64Table(unmar, auxiliary);
+	/**
+	 * Constructor for a new Tag Data Translation engine that loads the schemes
+	 * included on the classpath in a directory called schemes, in the same way
+	 * as {@link #TDTEngine()}.
+	 * 
+	 * If lazy is true, the engine only reads the name, tagLength and
+	 * prefixMatch attributes of each scheme at startup in order to build its
+	 * prefix index. The full definition of a scheme is unmarshalled the first
+	 * time an input value matches one of its prefixes, so schemes that are
+	 * never used cost neither startup time nor heap. Lazy loading is
+	 * thread-safe; concurrent conversions wait for the first of them to load
+	 * the scheme.
+	 * 
+	 * @param lazy
+	 *            true if schemes should be loaded on first use
+	 * @throws IOException
+	 *             thrown if the url is unreachable
+	 * @throws JAXBException
+	 *             thrown if the schemes could not be parsed
+	 */
+	public TDTEngine(boolean lazy) throws IOException, JAXBException {
+		this.lazy = lazy;
+		this.ignoreListingErrors = true;
+		auxiliaryURL = this.getClass().getClassLoader().getResource("auxiliary/ManagerTranslation.xml");
+		schemeDirectories.add(this.getClass().getClassLoader().getResource("schemes/"));
+		registry.set(loadRegistry());
 	}
 
 	/**
@@ -245,19 +306,9 @@ public class TDTEngine {
 	 */
 	public TDTEngine(URL auxiliary, URL schemes) throws IOException,
 			JAXBException {
-		Unmarshaller unmar = getUnmarshaller();
-		URLConnection urlcon = schemes.openConnection();
-		urlcon.connect();
-		BufferedReader in = new BufferedReader(new InputStreamReader(urlcon
-				.getInputStream()));
-		String line;
-		for (; (line = in.readLine()) != null;) {
-			if (line.endsWith(".xml")) {
-				loadEpcTagDataTranslation(unmar, new URL(schemes.toString()
-						+ line));
-			}
-		}
-		loadGEPC64Table(unmar, auxiliary);
+		auxiliaryURL = auxiliary;
+		schemeDirectories.add(schemes);
+		registry.set(loadRegistry());
 	}
 
 	/**
@@ -278,26 +329,141 @@ public class TDTEngine {
 	 */
 	public TDTEngine(URL auxiliary, Set<URL> schemes, boolean absolute)
 			throws JAXBException, IOException {
+		auxiliaryURL = auxiliary;
+		if (absolute) {
+			schemeFiles.addAll(schemes);
+		} else {
+			schemeDirectories.addAll(schemes);
+		}
+		registry.set(loadRegistry());
+	}
+
+	/**
+	 * Loads a new registry from the scheme directories, scheme files and
+	 * auxiliary file that were passed to the constructor.
+	 */
+	private Registry loadRegistry() throws IOException, JAXBException {
+		Registry reg = new Registry(auxiliaryURL);
 		Unmarshaller unmar = getUnmarshaller();
-		for (URL scheme : schemes) {
-			if (absolute) {
-				loadEpcTagDataTranslation(unmar, scheme);
-				continue;
+		for (URL dir : schemeDirectories) {
+			try {
+				for (URL schemeURL : listSchemeFiles(dir)) {
+					loadScheme(reg, unmar, schemeURL);
+				}
+			} catch (IOException ioe) {
+				if (!ignoreListingErrors) {
+					throw ioe;
+				}
+				System.out.println("IOException: " + ioe);
 			}
+		}
+		for (URL schemeURL : schemeFiles) {
+			loadScheme(reg, unmar, schemeURL);
+		}
+		loadGEPC64Table(reg, unmar, auxiliaryURL);
+		buildCodecRoutes(reg);
+		return reg;
+	}
+
+	private void loadScheme(Registry reg, Unmarshaller unmar, URL schemeURL)
+			throws IOException, JAXBException {
+		if (lazy) {
+			indexEpcTagDataTranslation(reg, schemeURL);
+		} else {
+			loadEpcTagDataTranslation(reg, unmar, schemeURL);
+		}
+	}
 
-			URLConnection urlcon = scheme.openConnection();
-			urlcon.connect();
-			BufferedReader in = new BufferedReader(new InputStreamReader(urlcon
-					.getInputStream()));
+	/**
+	 * Lists the files ending in .xml within a directory.
+	 */
+	private static List<URL> listSchemeFiles(URL dir) throws IOException {
+		List<URL> files = new ArrayList<URL>();
+		if (!dir.toString().endsWith("/")) {
+			dir = new URL(dir.toString() + "/");
+		}
+		URLConnection urlcon = dir.openConnection();
+		urlcon.connect();
+		BufferedReader in = new BufferedReader(new InputStreamReader(urlcon.getInputStream()));
+		try {
 			String line;
-			for (; (line = in.readLine()) != null;) {
+			while ((line = in.readLine()) != null) {
 				if (line.endsWith(".xml")) {
-					loadEpcTagDataTranslation(unmar, new URL(schemes.toString()
-							+ line));
+					files.add(new URL(dir, line));
 				}
 			}
+		} finally {
+			in.close();
+		}
+		return files;
+	}
+
+	/**
+	 * Loads all scheme and auxiliary files again and publishes them
+	 * atomically. Conversions that started before the swap complete against
+	 * the previous definitions; if loading fails, the previous definitions
+	 * remain in use.
+	 * 
+	 * @throws IOException
+	 *             thrown if a url is unreachable
+	 * @throws JAXBException
+	 *             thrown if a file could not be parsed
+	 */
+	public void reload() throws IOException, JAXBException {
+		Registry reg = loadRegistry();
+		registry.set(reg);
+		debugprintln("Reloaded TDT definitions");
+	}
+
+	/**
+	 * Starts watching the directories of the scheme and auxiliary files for
+	 * changes. After a change, the definitions are reloaded in a background
+	 * thread and published with {@link #reload()}. Only directories on the
+	 * local file system can be watched.
+	 * 
+	 * @param quietPeriod
+	 *            milliseconds without further changes to wait for before
+	 *            reloading, so that a set of files being copied is picked up
+	 *            in a single reload
+	 * @throws IOException
+	 *             thrown if a directory is not on the local file system or
+	 *             cannot be watched
+	 */
+	public synchronized void startWatching(long quietPeriod) throws IOException {
+		if (watcher != null) {
+			return;
+		}
+		Set<Path> dirs = new LinkedHashSet<Path>();
+		for (URL dir : schemeDirectories) {
+			dirs.add(toPath(dir));
+		}
+		for (URL file : schemeFiles) {
+			dirs.add(toPath(file).getParent());
+		}
+		dirs.add(toPath(auxiliaryURL).getParent());
+		watcher = new SchemeWatcher(this, dirs, quietPeriod);
+		watcher.start();
+	}
+
+	/**
+	 * Stops watching for changes to the scheme and auxiliary files.
+	 */
+	public synchronized void stopWatching() {
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+
+	private static Path toPath(URL url) throws IOException {
+		if (!"file".equals(url.getProtocol())) {
+			throw new IOException("Only local files can be watched: " + url);
+		}
+		try {
+			return new File(url.toURI()).toPath();
+		} catch (URISyntaxException e) {
+			throw new IOException("Only local files can be watched: " + url);
 		}
-		loadGEPC64Table(unmar, auxiliary);
 	}
 
 	/**
@@ -307,9 +473,22 @@ public class TDTEngine {
 	 * @throws JAXBException
 	 */
 	private Unmarshaller getUnmarshaller() throws JAXBException {
-		JAXBContext context = JAXBContext.newInstance(
-				EpcTagDataTranslation.class, GEPC64.class, GEPC64Entry.class);
-		return context.createUnmarshaller();
+		return getJAXBContext().createUnmarshaller();
+	}
+
+	/**
+	 * Returns the JAXB context. It is created once and shared, since creating
+	 * a context is expensive and a context is thread-safe.
+	 * 
+	 * @return
+	 * @throws JAXBException
+	 */
+	private synchronized JAXBContext getJAXBContext() throws JAXBException {
+		if (jaxbContext == null) {
+			jaxbContext = JAXBContext.newInstance(
+					EpcTagDataTranslation.class, GEPC64.class, GEPC64Entry.class);
+		}
+		return jaxbContext;
 	}
 
 	/**
@@ -321,7 +500,7 @@ public class TDTEngine {
 	 * @throws IOException
 	 * @throws JAXBException
 	 */
-	private void loadEpcTagDataTranslation(Unmarshaller unmar, URL schemeUrl)
+	private void loadEpcTagDataTranslation(Registry reg, Unmarshaller unmar, URL schemeUrl)
 			throws IOException, JAXBException {
 		URLConnection urlcon = schemeUrl.openConnection();
 		urlcon.connect();
@@ -332,7 +511,43 @@ public class TDTEngine {
 				new StreamSource(urlcon.getInputStream()),
 				EpcTagDataTranslation.class);
 		EpcTagDataTranslation tdt = el.getValue();
-		initFromTDT(tdt);
+		initFromTDT(reg, tdt);
+	}
+
+	/**
+	 * Scan an xml file from the given url and add the prefixes of its schemes
+	 * to the prefix trees, without unmarshalling it. Each definition is loaded
+	 * the first time an input matches one of its prefixes.
+	 * 
+	 * @param schemeUrl
+	 * @throws IOException
+	 * @throws JAXBException
+	 */
+	private void indexEpcTagDataTranslation(Registry reg, URL schemeUrl)
+			throws IOException, JAXBException {
+		for (LazyScheme ls : LazyScheme.scan(schemeUrl, getJAXBContext())) {
+			reg.lazy_schemes.put(ls.getName(), ls);
+			for (Map.Entry<LevelTypeList, String> prefix : ls.getPrefixes().entrySet()) {
+				PrefixTree<PrefixMatch> prefix_tree = reg.prefix_tree_map.get(prefix.getKey());
+				if (prefix_tree == null) {
+					prefix_tree = new PrefixTree<PrefixMatch>();
+					reg.prefix_tree_map.put(prefix.getKey(), prefix_tree);
+				}
+				PrefixMatch match = new PrefixMatch(ls, prefix.getKey());
+				prefix_tree.insert(prefix.getValue(), match);
+				reg.prefixes.add(match);
+				debugprintln("Insert into prefix_tree Prefix: "+prefix.getValue()+" : Scheme="+ls.getName()+" (not loaded) ; TagLength="+prefix.getKey());
+			}
+		}
+	}
+
+	/**
+	 * @return true if the named scheme has been indexed lazily and its
+	 *         definition has already been loaded
+	 */
+	boolean isLazySchemeLoaded(String name) {
+		LazyScheme ls = registry.get().lazy_schemes.get(name);
+		return ls != null && ls.isLoaded();
 	}
 
 	/**
@@ -343,7 +558,7 @@ public class TDTEngine {
 	 * @throws IOException
 	 * @throws JAXBException
 	 */
-	private void loadGEPC64Table(Unmarshaller unmar, URL auxiliary)
+	private void loadGEPC64Table(Registry reg, Unmarshaller unmar, URL auxiliary)
 			throws IOException, JAXBException {
 		URLConnection urlcon = auxiliary.openConnection();
 		urlcon.connect();
@@ -353,9 +568,7 @@ public class TDTEngine {
 		GEPC64 cpilookup = el.getValue();
 		for (GEPC64Entry entry : cpilookup.getEntry()) {
 			String comp = entry.getCompanyPrefix();
-			String indx = entry.getIndex().toString();
-			gs1cpi.put(indx, comp);
-			gs1cpi.put(comp, indx);
+			reg.gs1cpi.put(entry.getIndex().intValue(), comp);
 		}
 	}
 
@@ -479,22 +692,213 @@ public class TDTEngine {
 	// - Methods -/
 	// -----------/
 
+	/**
+	 * Everything loaded from one set of scheme and auxiliary files. A registry
+	 * is filled in while it is being loaded and is not modified once it has
+	 * been published, apart from the caches that are filled in on first use.
+	 */
+	private static class Registry {
+		/**
+		 * prefix_tree_map is a map of levels to prefix trees. Each prefix tree
+		 * is a map of prefixes to a scheme / level combination.
+		 */
+		final Map<LevelTypeList, PrefixTree<PrefixMatch>> prefix_tree_map = new HashMap<LevelTypeList, PrefixTree<PrefixMatch>>();
+
+		/**
+		 * gs1cpi provides a lookup between a GS1 Company Prefix and the
+		 * corresponding integer-based Company Prefix Index, where one has
+		 * been registered for use with 64-bit EPCs, in both directions. Note
+		 * that this is an optimization to avoid having to do an xpath trawl
+		 * through the CPI table each time.
+		 */
+		final CompanyPrefixIndexTable gs1cpi = new CompanyPrefixIndexTable();
+
+		/** schemes indexed without being loaded, by scheme name */
+		final Map<String, LazyScheme> lazy_schemes = new HashMap<String, LazyScheme>();
+
+		/** tables used by TABLELOOKUP rules other than tdt64bitcpi */
+		final AuxiliaryTables tables;
+
+		/** every entry of the prefix trees */
+		final List<PrefixMatch> prefixes = new ArrayList<PrefixMatch>();
+
+		/** prefixes whose input values may be converted by a codec */
+		CodecRoute[] codec_routes = new CodecRoute[0];
+
+		/** compiled patterns of the options, filled in on first use */
+		final Map<Option, Pattern> option_patterns = new ConcurrentHashMap<Option, Pattern>();
+
+		/** conversion plans, composed on first use, see {@link TDTEngine#findPlan} */
+		final Map<PlanKey, MethodHandle> plans = new ConcurrentHashMap<PlanKey, MethodHandle>();
+
+		/** extraction plans, composed on first use, see {@link TDTEngine#findExtraction} */
+		final Map<Option, MethodHandle> extractions = new ConcurrentHashMap<Option, MethodHandle>();
+
+		/** layouts of the binary options, see {@link TDTEngine#getBinaryLayouts} */
+		volatile List<BinaryLayout> binary_layouts;
+
+		/** bit lengths of the binary options by header, see {@link TDTEngine#getHeaderLengths} */
+		volatile int[][] header_lengths;
+
+		Registry(URL auxiliary) {
+			tables = new AuxiliaryTables(auxiliary);
+		}
+	}
+
 	private class PrefixMatch {
 		private Scheme s;
 		private Level level;
 
+		// used instead of s and level for schemes that are loaded on first use
+		private LazyScheme lazy;
+		private LevelTypeList levelType;
+
 		public PrefixMatch(Scheme s, Level level) {
 			this.s = s;
 			this.level = level;
 		}
 
+		public PrefixMatch(LazyScheme lazy, LevelTypeList levelType) {
+			this.lazy = lazy;
+			this.levelType = levelType;
+		}
+
 		public Scheme getScheme() {
+			if (lazy != null) {
+				return lazy.getScheme();
+			}
 			return s;
 		}
 
 		public Level getLevel() {
+			if (lazy != null) {
+				return findLevel(lazy.getScheme(), levelType);
+			}
 			return level;
 		}
+
+		/**
+		 * The name and tag length are known without loading the scheme, so
+		 * candidate schemes of a different length are never loaded.
+		 */
+		public String getSchemeName() {
+			if (lazy != null) {
+				return lazy.getName();
+			}
+			return s.getName();
+		}
+
+		public BigInteger getTagLength() {
+			if (lazy != null) {
+				return lazy.getTagLength();
+			}
+			return s.getTagLength();
+		}
+
+		public LevelTypeList getLevelType() {
+			if (lazy != null) {
+				return levelType;
+			}
+			return level.getType();
+		}
+
+		public String getPrefix() {
+			if (lazy != null) {
+				return lazy.getPrefixes().get(levelType);
+			}
+			return level.getPrefixMatch();
+		}
+	}
+
+	/**
+	 * A prefix of a level of a scheme for which a codec is available. Values
+	 * that start with the prefix are only passed to the codec if no other
+	 * scheme or level of the same tag length whose prefix overlaps with it
+	 * would match them as well, i.e. if the generic engine would select the
+	 * same scheme and level. The first of the codecs for the scheme that can
+	 * be bound to its definition is used; binding happens on first use, so
+	 * lazily loaded schemes stay unloaded until then.
+	 */
+	private static class CodecRoute {
+		final String prefix;
+		final LevelTypeList level;
+		final String tagLength;
+		private final PrefixMatch match;
+		private final List<EpcCodec> codecs;
+		private final List<PrefixMatch> overlapping;
+
+		private volatile boolean bound;
+		private EpcCodec boundCodec;
+		private Pattern[] overlappingPatterns;
+
+		CodecRoute(PrefixMatch match, List<EpcCodec> codecs, List<PrefixMatch> overlapping) {
+			this.prefix = match.getPrefix();
+			this.level = match.getLevelType();
+			this.tagLength = match.getTagLength().toString();
+			this.match = match;
+			this.codecs = codecs;
+			this.overlapping = overlapping;
+		}
+
+		/**
+		 * @param schemeKnown
+		 *            true if the caller has already chosen the scheme, so
+		 *            that overlapping prefixes of other schemes are ignored
+		 * @return true if the converted value was appended to output, false if
+		 *         the value is left to the generic engine
+		 */
+		boolean convert(CharSequence input, Map<String, String> inputParameters, LevelTypeList outputLevel,
+				ConversionContext context, StringBuilder output, boolean schemeKnown) {
+			if (!bound) {
+				bind();
+			}
+			if (boundCodec == null) {
+				return false;
+			}
+			// findPrefixMatch chooses between overlapping prefixes by
+			// matching the patterns of all their options, and takes a level
+			// only if it is the one level with a matching option. The codec
+			// only accepts values that match an option of its own level, so
+			// its level is the choice exactly when no overlapping option
+			// matches. SGTIN-96 and LGTIN-96 have the same binary options,
+			// so findPrefixMatch chooses neither and neither does the route.
+			for (int i = 0; !schemeKnown && i < overlappingPatterns.length; i++) {
+				if (context.matcher(overlappingPatterns[i], input).lookingAt()) {
+					return false;
+				}
+			}
+			int mark = output.length();
+			if (!boundCodec.convert(input, level, inputParameters, outputLevel, output)) {
+				output.setLength(mark);
+				return false;
+			}
+			return true;
+		}
+
+		private synchronized void bind() {
+			if (bound) {
+				return;
+			}
+			try {
+				List<Pattern> patterns = new ArrayList<Pattern>();
+				for (PrefixMatch other : overlapping) {
+					for (Option option : other.getLevel().getOption()) {
+						patterns.add(Pattern.compile("^" + option.getPattern() + "$"));
+					}
+				}
+				overlappingPatterns = patterns.toArray(new Pattern[patterns.size()]);
+				Scheme scheme = match.getScheme();
+				for (EpcCodec codec : codecs) {
+					boundCodec = codec.bind(scheme);
+					if (boundCodec != null) {
+						break;
+					}
+				}
+			} catch (TDTException e) {
+				boundCodec = null;
+			}
+			bound = true;
+		}
 	}
 
 	private class PrefixMatch2 {
@@ -522,7 +926,7 @@ public class TDTEngine {
 	}
 
 	/** initialise various indices */
-	private void initFromTDT(EpcTagDataTranslation tdt) {
+	private void initFromTDT(Registry reg, EpcTagDataTranslation tdt) {
 		for (Scheme ss : tdt.getScheme()) {
 			// create an index so that we can find a scheme based on tag length
 
@@ -530,25 +934,47 @@ public class TDTEngine {
 				String s = level.getPrefixMatch();
 				if (s != null) {
 					// insert into prefix tree according to level type.
-					PrefixTree<PrefixMatch> prefix_tree = prefix_tree_map
+					PrefixTree<PrefixMatch> prefix_tree = reg.prefix_tree_map
 							.get(level.getType());
 					if (prefix_tree == null) {
 						prefix_tree = new PrefixTree<PrefixMatch>();
-						prefix_tree_map.put(level.getType(), prefix_tree);
+						reg.prefix_tree_map.put(level.getType(), prefix_tree);
 					}
-					prefix_tree.insert(s, new PrefixMatch(ss, level));
+					PrefixMatch match = new PrefixMatch(ss, level);
+					prefix_tree.insert(s, match);
+					reg.prefixes.add(match);
 					debugprintln("Insert into prefix_tree Prefix: "+s+" : Scheme="+ss.getName()+" ; TagLength="+level.getType());
 				}
+				prepareTables(reg, level);
 			}
 
 		}
 	}
 
+	/**
+	 * Load the tables of any TABLELOOKUP rules of a level into the auxiliary
+	 * table indexes. Tables that cannot be loaded now are tried again on
+	 * their first lookup.
+	 */
+	private void prepareTables(Registry reg, Level level) {
+		for (Rule rule : level.getRule()) {
+			String function = rule.getFunction();
+			if (function != null && function.startsWith("TABLELOOKUP(")
+					&& !function.contains(",tdt64bitcpi,")) {
+				try {
+					reg.tables.prepare(rule);
+				} catch (TDTException e) {
+					debugprintln("Could not load table for " + function + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
 	/**
 	 * Given an input string, and optionally a tag length, find a scheme / level
 	 * with a matching prefix and tag length.
 	 */
-	private PrefixMatch2 findPrefixMatch(String input, String strTagLength) {
+	private PrefixMatch2 findPrefixMatch(Registry reg, String input, String strTagLength) {
 
 		debugprintln("PrefixMatch with 2 parameters: specified strTagLength = "+strTagLength);
 		debugprintln("input was: "+input);
@@ -558,7 +984,7 @@ public class TDTEngine {
 		List<PrefixMatch> match_list = new ArrayList<PrefixMatch>();
 		List<PrefixMatch> alt_match_list = new ArrayList<PrefixMatch>();
 
-		for (PrefixTree<PrefixMatch> tree : prefix_tree_map.values()) {
+		for (PrefixTree<PrefixMatch> tree : reg.prefix_tree_map.values()) {
 
 			List<PrefixMatch> list = tree.search(input);
 
@@ -572,11 +998,11 @@ public class TDTEngine {
 
 					for (PrefixMatch match : list) {
 						BigInteger tagLength = new BigInteger(strTagLength);
-						BigInteger schemeTagLength = match.getScheme().getTagLength();
+						BigInteger schemeTagLength = match.getTagLength();
 						if (tagLength.compareTo(schemeTagLength) == 0) {
 							match_list.add(match);
 						debugprintln("Added to match_list");
-						debugprintln("Matched scheme :"+match.getScheme().getName().toString());
+						debugprintln("Matched scheme :"+match.getSchemeName());
 						debugprintln("scheme taglength = "+ schemeTagLength);
 						debugprintln("tagLength = "+tagLength);
 						realTagLength=Integer.parseInt(schemeTagLength.toString());
@@ -586,7 +1012,7 @@ public class TDTEngine {
 							alt_match_list.add(match);
 							realTagLength=Integer.parseInt(schemeTagLength.toString());
 						debugprintln("Added to alt_match_list");
-						debugprintln("Matched scheme :"+match.getScheme().getName().toString());
+						debugprintln("Matched scheme :"+match.getSchemeName());
 						debugprintln("scheme taglength = "+ schemeTagLength);
 						debugprintln("tagLength = "+tagLength);
 						debugprintln("realTagLength = "+realTagLength);
@@ -643,7 +1069,7 @@ public class TDTEngine {
 	 * Given an input string, level, and optionally a tag length, find a
 	 * matching prefix.
 	 */
-	private PrefixMatch2 findPrefixMatch(String input, String strTagLength,
+	private PrefixMatch2 findPrefixMatch(Registry reg, String input, String strTagLength,
 			LevelTypeList level_type) {
 		
 		debugprintln("PrefixMatch with 3 parameters: specified strTagLength = "+strTagLength);
@@ -651,7 +1077,7 @@ public class TDTEngine {
 		int realTagLength=Integer.parseInt(strTagLength);
 		List<PrefixMatch> match_list = new ArrayList<PrefixMatch>();
 		List<PrefixMatch> alt_match_list = new ArrayList<PrefixMatch>();
-		PrefixTree<PrefixMatch> tree = prefix_tree_map.get(level_type);
+		PrefixTree<PrefixMatch> tree = reg.prefix_tree_map.get(level_type);
 		assert tree != null;
 		List<PrefixMatch> list = tree.search(input);
 		if (!list.isEmpty()) {
@@ -660,11 +1086,11 @@ public class TDTEngine {
 			else {
 				BigInteger tagLength = new BigInteger(strTagLength);
 				for (PrefixMatch match : list)
-					if (match.getScheme().getTagLength().compareTo(tagLength) == 0) {
+					if (match.getTagLength().compareTo(tagLength) == 0) {
 						match_list.add(match);
 					} else {
 						alt_match_list.add(match);
-						realTagLength = Integer.parseInt(match.getScheme().getTagLength().toString());
+						realTagLength = Integer.parseInt(match.getTagLength().toString());
 					}
 			}
 		}
@@ -710,6 +1136,137 @@ public class TDTEngine {
 
 	}
 
+	/**
+	 * Finds the prefixes whose input values can be passed to one of the
+	 * codecs. A prefix is left to the generic engine if another prefix of the
+	 * same level extends it, since the prefix tree would then not always find
+	 * it, or if a scheme without a tag length overlaps with it.
+	 */
+	private void buildCodecRoutes(Registry reg) {
+		Map<String, List<EpcCodec>> codecs = new HashMap<String, List<EpcCodec>>();
+		for (EpcCodec codec : findCodecs()) {
+			List<EpcCodec> list = codecs.get(codec.getSchemeName());
+			if (list == null) {
+				list = new ArrayList<EpcCodec>();
+				codecs.put(codec.getSchemeName(), list);
+			}
+			list.add(codec);
+		}
+		List<CodecRoute> routes = new ArrayList<CodecRoute>();
+		for (PrefixMatch match : reg.prefixes) {
+			List<EpcCodec> candidates = codecs.get(match.getSchemeName());
+			LevelTypeList type = match.getLevelType();
+			if (candidates == null || match.getTagLength() == null || (type != LevelTypeList.BINARY
+					&& type != LevelTypeList.TAG_ENCODING && type != LevelTypeList.PURE_IDENTITY)) {
+				continue;
+			}
+			String prefix = match.getPrefix();
+			List<PrefixMatch> overlapping = new ArrayList<PrefixMatch>();
+			boolean usable = true;
+			for (PrefixMatch other : reg.prefixes) {
+				String otherPrefix = other.getPrefix();
+				if (other == match || !(prefix.startsWith(otherPrefix) || otherPrefix.startsWith(prefix))) {
+					continue;
+				}
+				if (other.getTagLength() == null
+						|| (other.getLevelType() == type && otherPrefix.length() > prefix.length())) {
+					usable = false;
+					break;
+				}
+				if (other.getTagLength().equals(match.getTagLength())) {
+					overlapping.add(other);
+				}
+			}
+			if (usable) {
+				routes.add(new CodecRoute(match, candidates, overlapping));
+				debugprintln("Codec for "+match.getSchemeName()+" handles prefix "+prefix);
+			}
+		}
+		reg.codec_routes = routes.toArray(new CodecRoute[routes.size()]);
+	}
+
+	/**
+	 * Returns the codecs generated from the scheme definitions at build time,
+	 * followed by those found with {@link ServiceLoader}. A generated codec
+	 * only binds to the definition it was generated from, so the codecs found
+	 * with ServiceLoader are used for definitions that have been changed.
+	 */
+	private static List<EpcCodec> findCodecs() {
+		List<EpcCodec> codecs = new ArrayList<EpcCodec>();
+		try {
+			Class<?> generated = Class.forName(TDTEngine.class.getPackage().getName() + ".GeneratedCodecs");
+			codecs.addAll(Arrays.asList((EpcCodec[]) generated.getDeclaredField("CODECS").get(null)));
+		} catch (ClassNotFoundException e) {
+			// built without generating the codecs
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Could not load generated codecs: " + e);
+		}
+		for (EpcCodec codec : ServiceLoader.load(EpcCodec.class, TDTEngine.class.getClassLoader())) {
+			codecs.add(codec);
+		}
+		return codecs;
+	}
+
+	/**
+	 * Converts the input with a codec if one handles it. As for the generic
+	 * engine, the taglength parameter is set if the conversion succeeds.
+	 * 
+	 * @param inputLevel
+	 *            the level of the input, or null if it is not known
+	 * @return true if the converted value was appended to output, false if the
+	 *         input is left to the generic engine
+	 */
+	private boolean convertWithCodec(Registry reg, CharSequence input, String tagLength, LevelTypeList inputLevel,
+			Map<String, String> inputParameters, LevelTypeList outputLevel, ConversionContext context,
+			StringBuilder output) {
+		if (!codecsEnabled || tagLength == null) {
+			return false;
+		}
+		for (CodecRoute route : reg.codec_routes) {
+			if (CodecFields.startsWith(input, route.prefix, 0) && tagLength.equals(route.tagLength)
+					&& (inputLevel == null || inputLevel == route.level)) {
+				if (route.convert(input, inputParameters, outputLevel, context, output, false)) {
+					inputParameters.put("taglength", route.tagLength);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Converts the input with a codec, as {@link #convert(String, Map, LevelTypeList)}
+	 * would.
+	 * 
+	 * @return the converted value, or null if the input would be left to the
+	 *         generic engine
+	 */
+	String convertWithCodec(String input, Map<String, String> inputParameters, LevelTypeList outputLevel) {
+		ConversionContext context = ConversionContext.forCurrentThread();
+		StringBuilder output = context.output();
+		if (convertWithCodec(registry.get(), input, inputParameters.get("taglength"), null, inputParameters,
+				outputLevel, context, output)) {
+			return output.toString();
+		}
+		return null;
+	}
+
+	/**
+	 * Enables or disables the codecs, e.g. to compare their results with those
+	 * of the generic engine.
+	 */
+	void setCodecsEnabled(boolean enabled) {
+		codecsEnabled = enabled;
+	}
+
+	/**
+	 * @return the number of conversion plans composed since the definitions
+	 *         were last loaded
+	 */
+	int getPlanCount() {
+		return registry.get().plans.size();
+	}
+
 
 
 	/**
@@ -740,9 +1297,38 @@ public class TDTEngine {
 	public String convert(String input, LevelTypeList inputLevel,
 			String tagLength, Map<String, String> suppliedInputParameters,
 			LevelTypeList outputLevel) {
+		return convert(input, inputLevel, tagLength, suppliedInputParameters, outputLevel,
+				ConversionContext.forCurrentThread());
+	}
+
+	/**
+	 * Translates the input string of a specified input level to a specified
+	 * outbound level of the same coding scheme, as
+	 * {@link #convert(String, LevelTypeList, String, Map, LevelTypeList)}
+	 * does, reusing the buffers of the given context.
+	 * 
+	 * @param context
+	 *            buffers reused from one conversion to the next, which must
+	 *            not be used by another conversion at the same time
+	 */
+	public String convert(String input, LevelTypeList inputLevel,
+			String tagLength, Map<String, String> suppliedInputParameters,
+			LevelTypeList outputLevel, ConversionContext context) {
 
-		debugprintln("convert (line 699)");			
 		Map<String, String> inputParameters=suppliedInputParameters;
+
+		if (input.startsWith("urn:epc:")) {
+		input = uriunescape(input);
+		}
+
+		Registry reg = registry.get();
+		StringBuilder output = context.output();
+		if (inputLevel != null
+				&& convertWithCodec(reg, input, tagLength, inputLevel, inputParameters, outputLevel, context, output)) {
+			return output.toString();
+		}
+
+		debugprintln("convert (line 699)");			
 		debugprintln("inputParameters were");
 		Iterator i=inputParameters.keySet().iterator();
 		while (i.hasNext()) {
@@ -751,11 +1337,7 @@ public class TDTEngine {
 		}
 		debugprintln("End of inputParameters");
 
-		if (input.startsWith("urn:epc:")) {
-		input = uriunescape(input);
-		}
-
-		PrefixMatch2 matchtemp = findPrefixMatch(input, tagLength, inputLevel);
+		PrefixMatch2 matchtemp = findPrefixMatch(reg, input, tagLength, inputLevel);
 		PrefixMatch match = new PrefixMatch(matchtemp.getScheme(),matchtemp.getLevel());
 		inputParameters.put("taglength",matchtemp.getTaglength());
 
@@ -767,7 +1349,7 @@ public class TDTEngine {
 		
 
 
-		return convertLevel(match.getScheme(), match.getLevel(), input, inputParameters, outputLevel);
+		return convertLevel(reg, match.getScheme(), match.getLevel(), input, inputParameters, outputLevel, context);
 	}
 
 	/**
@@ -792,13 +1374,42 @@ public class TDTEngine {
 	 */
 	public String convert(String input, Map<String, String> suppliedInputParameters,
 			LevelTypeList outputLevel) {
+		return convert(input, suppliedInputParameters, outputLevel, ConversionContext.forCurrentThread());
+	}
+
+	/**
+	 * Translates a String input to a specified outbound level of the same
+	 * coding scheme, as {@link #convert(String, Map, LevelTypeList)} does,
+	 * reusing the buffers of the given context. Conversions handled by a
+	 * codec allocate nothing apart from the returned String.
+	 * 
+	 * @param context
+	 *            buffers reused from one conversion to the next, which must
+	 *            not be used by another conversion at the same time
+	 */
+	public String convert(String input, Map<String, String> suppliedInputParameters,
+			LevelTypeList outputLevel, ConversionContext context) {
+
+		Map<String, String> inputParameters=suppliedInputParameters;
+
+		// in principle, the user should provide a
+		// TagLengthList object in the parameter list.
+		String tagLength = inputParameters.get("taglength");
+
+		if (input.startsWith("urn:epc:")) {
+		input = uriunescape(input);
+		}
+
+		Registry reg = registry.get();
+		StringBuilder output = context.output();
+		if (convertWithCodec(reg, input, tagLength, null, inputParameters, outputLevel, context, output)) {
+			return output.toString();
+		}
 
 		debugprintln("convert (line 748)");
 		debugprintln("===============================================");
 		debugprintln("CONVERT "+input+" to "+outputLevel.toString());
 
-		Map<String, String> inputParameters=suppliedInputParameters;
-
 		debugprintln("GS1 CP length = "+inputParameters.get("gs1companyprefixlength"));
 
 		
@@ -810,24 +1421,11 @@ public class TDTEngine {
 		}
 		debugprintln("End of inputParameters");
 
-		String tagLength = null;
-		String decodedinput;
-		String encoded;
-		
-		if (inputParameters.containsKey("taglength")) {
-			// in principle, the user should provide a
-			// TagLengthList object in the parameter list.
-			String s = inputParameters.get("taglength");
-			tagLength = s;
-			
-			debugprintln("taglength was provided.  tagLength = "+s);
+		if (tagLength != null) {
+			debugprintln("taglength was provided.  tagLength = "+tagLength);
 		}
 
-		if (input.startsWith("urn:epc:")) {
-		input = uriunescape(input);
-		}
-
-		PrefixMatch2 matchtemp = findPrefixMatch(input, tagLength);
+		PrefixMatch2 matchtemp = findPrefixMatch(reg, input, tagLength);
 		
 		PrefixMatch match = new PrefixMatch(matchtemp.getScheme(),matchtemp.getLevel());
 		inputParameters.put("taglength",matchtemp.getTaglength());
@@ -837,44 +1435,673 @@ public class TDTEngine {
 		
 			debugprintln("[line 786] matchtemp.getLevel().getType() = "+matchtemp.getLevel().getType().toString());
 		
-				debugprintln("reached line 788");
-		
-		// if a URI is supplied, remember to perform URL decoding on it before passing it to the convertLevel() method
-		
-		
 		// if a URI is returned, remember to perform URL encoding on it before returning it as output
 		
-		return convertLevel(match.getScheme(), match.getLevel(), input, inputParameters, outputLevel);
-				
-				
+		return convertLevel(reg, match.getScheme(), match.getLevel(), input, inputParameters, outputLevel, context);
+	}
+
+	/**
+	 * Translates a String input to several outbound levels of the same coding
+	 * scheme at once. The scheme, level and option of the input are matched
+	 * and its fields extracted only once; for each outbound level only the
+	 * FORMAT rules and the formatting of that level are run.
+	 * 
+	 * @param input
+	 *            the identifier to be converted.
+	 * @param inputParameters
+	 *            additional parameters, as for
+	 *            {@link #convert(String, Map, LevelTypeList)}
+	 * @param outputLevels
+	 *            the outbound levels required for the output.
+	 * @return the identifier converted to each of the outbound levels, in the
+	 *         order of {@link LevelTypeList}.
+	 */
+	public Map<LevelTypeList, String> convert(String input, Map<String, String> inputParameters,
+			Set<LevelTypeList> outputLevels) {
+		return convert(input, inputParameters, outputLevels, ConversionContext.forCurrentThread());
+	}
+
+	/**
+	 * Translates a String input to several outbound levels of the same coding
+	 * scheme at once, as {@link #convert(String, Map, Set)} does, reusing the
+	 * buffers of the given context.
+	 * 
+	 * @param context
+	 *            buffers reused from one conversion to the next, which must
+	 *            not be used by another conversion at the same time
+	 */
+	public Map<LevelTypeList, String> convert(String input, Map<String, String> inputParameters,
+			Set<LevelTypeList> outputLevels, ConversionContext context) {
+		Map<LevelTypeList, String> outputs = new EnumMap<LevelTypeList, String>(LevelTypeList.class);
+		String tagLength = inputParameters.get("taglength");
+
+		if (input.startsWith("urn:epc:")) {
+			input = uriunescape(input);
+		}
+
+		Registry reg = registry.get();
+		for (LevelTypeList outputLevel : outputLevels) {
+			StringBuilder output = context.output();
+			if (convertWithCodec(reg, input, tagLength, null, inputParameters, outputLevel, context, output)) {
+				outputs.put(outputLevel, output.toString());
+			}
+		}
+		if (outputs.size() == outputLevels.size()) {
+			return outputs;
+		}
+
+		debugprintln("CONVERT "+input+" to "+outputLevels);
+
+		PrefixMatch2 match = findPrefixMatch(reg, input, tagLength);
+		inputParameters.put("taglength",match.getTaglength());
+
+		Map<String, String> extraparams = context.fields(inputParameters);
+		Option matchingOption = extractLevel(reg, match.getScheme(), match.getLevel(), input, extraparams, context);
+		for (LevelTypeList outputLevel : outputLevels) {
+			if (!outputs.containsKey(outputLevel)) {
+				// the FORMAT rules add to the fields, so each level starts from the extracted ones
+				Map<String, String> fields = new HashMap<String, String>(extraparams);
+				outputs.put(outputLevel, formatLevel(reg, match.getScheme(), matchingOption, fields, outputLevel));
+			}
+		}
+		return outputs;
+	}
+
+	/**
+	 * Extracts the fields of an identifier of any level without converting
+	 * it. The EXTRACT rules of the input level are run, but no FORMAT rules,
+	 * checks or grammar of an outbound level.
+	 * 
+	 * @param input
+	 *            the identifier whose fields are extracted.
+	 * @param inputParameters
+	 *            additional parameters, as for
+	 *            {@link #convert(String, Map, LevelTypeList)}
+	 * @return the fields of the input and those derived from them by the
+	 *         EXTRACT rules, by name, with the values they have at the
+	 *         tag-encoding and pure identity levels.
+	 */
+	public Map<String, String> extractFields(String input, Map<String, String> inputParameters) {
+		String tagLength = inputParameters.get("taglength");
+
+		if (input.startsWith("urn:epc:")) {
+			input = uriunescape(input);
+		}
+
+		Registry reg = registry.get();
+		PrefixMatch2 match = findPrefixMatch(reg, input, tagLength);
+		inputParameters.put("taglength",match.getTaglength());
+
+		ConversionContext context = ConversionContext.forCurrentThread();
+		Map<String, String> extraparams = context.fields(inputParameters);
+		extractLevel(reg, match.getScheme(), match.getLevel(), input, extraparams, context);
+		return new HashMap<String, String>(extraparams);
+	}
+
+	/**
+	 * Returns a projection that reads the given fields of EPCs without
+	 * converting them. Fields of binary EPCs are read straight from their
+	 * bits; see {@link FieldProjection}.
+	 * 
+	 * @param fieldNames
+	 *            names of the fields as they appear in the definitions, e.g.
+	 *            gs1companyprefix or filter
+	 */
+	public FieldProjection projection(String... fieldNames) {
+		return new FieldProjection(this, fieldNames);
+	}
+
+	/**
+	 * Returns a filter that matches the binary EPCs of the given schemes, to
+	 * be narrowed down by conditions on their fields; see {@link EpcFilter}.
+	 * 
+	 * @param schemeNames
+	 *            names of the schemes, e.g. SGTIN-96
+	 * @throws TDTException
+	 *             if a scheme is not defined or has no binary encoding made
+	 *             of fixed-width fields
+	 */
+	public EpcFilter filter(String... schemeNames) {
+		List<BinaryLayout> layouts = new ArrayList<BinaryLayout>();
+		for (String schemeName : schemeNames) {
+			int found = layouts.size();
+			for (BinaryLayout layout : getBinaryLayouts()) {
+				if (layout.getSchemeName().equals(schemeName)) {
+					layouts.add(layout);
+				}
+			}
+			if (layouts.size() == found) {
+				throw new TDTException("No binary layout for scheme " + schemeName);
+			}
+		}
+		return new EpcFilter(layouts);
+	}
+
+	/**
+	 * Computes the Gen2 Select commands that make a reader singulate only
+	 * the tags of a scheme with the given field values. The positions of the
+	 * fields are taken from the BINARY level of the scheme; the number of
+	 * digits of each value selects the options, e.g. the partition of a
+	 * GS1 Company Prefix. The commands are meant to be applied one after the
+	 * other, each of them keeping only the tags that match it. If the values
+	 * leave more than one option, only the bits that the options have in
+	 * common are selected.
+	 * 
+	 * @param schemeName
+	 *            name of the scheme, e.g. SGTIN-96
+	 * @param fieldValues
+	 *            values of some of the fields, as they appear at the
+	 *            tag-encoding level, e.g. filter=3 and
+	 *            gs1companyprefix=0614141
+	 * @return one Select command for each run of bits that the values fix
+	 * @throws TDTException
+	 *             if the scheme has no binary option for the values, or a
+	 *             field is not a number in its binary encoding
+	 */
+	public List<SelectMask> selectMasks(String schemeName, Map<String, String> fieldValues) {
+		Registry reg = registry.get();
+		Level tagLevel = null;
+		for (PrefixMatch match : reg.prefixes) {
+			if (match.getLevelType() == LevelTypeList.TAG_ENCODING && match.getSchemeName().equals(schemeName)) {
+				tagLevel = match.getLevel();
+			}
+		}
+		if (tagLevel == null) {
+			throw new TDTException("No tag-encoding level for scheme " + schemeName);
+		}
+
+		List<EpcFilter> filters = new ArrayList<EpcFilter>();
+		for (BinaryLayout layout : getBinaryLayouts()) {
+			if (!layout.getSchemeName().equals(schemeName)) {
+				continue;
+			}
+			Option tagOption = null;
+			for (Option option : tagLevel.getOption()) {
+				if (option.getOptionKey().equals(layout.getOptionKey())) {
+					tagOption = option;
+				}
+			}
+			EpcFilter filter = tagOption == null ? null : new EpcFilter(Collections.singletonList(layout));
+			for (Map.Entry<String, String> value : fieldValues.entrySet()) {
+				if (filter == null) {
+					break;
+				}
+				Field field = findField(tagOption, value.getKey(), tagLevel);
+				if (field != null && field.getLength() != null
+						&& field.getLength().intValue() != value.getValue().length()) {
+					// the value has the digits of another option
+					filter = null;
+				} else if (layout.getIntegerField(value.getKey()) == null || !value.getValue().matches("[0-9]{1,18}")) {
+					throw new TDTException("Cannot select " + value.getKey() + "=" + value.getValue() + " in "
+							+ schemeName);
+				} else {
+					filter = filter.equalTo(value.getKey(), Long.parseLong(value.getValue()));
+				}
+			}
+			if (filter != null) {
+				filters.add(filter);
+			}
+		}
+		if (filters.isEmpty()) {
+			throw new TDTException("No binary option of " + schemeName + " has the values " + fieldValues);
+		}
+		return EpcFilter.anyOf(filters).selectMasks();
+	}
+
+	/**
+	 * Returns an encoder for binary EPCs that differ from the given one only
+	 * in their serial number. The input is converted once; the encoder then
+	 * writes the serial numbers straight into the bits of the result, see
+	 * {@link SerialRangeEncoder}.
+	 * 
+	 * @param input
+	 *            an EPC of the range at any level, e.g.
+	 *            gtin=00037000302414;serial=0
+	 * @param inputParameters
+	 *            additional parameters, as for
+	 *            {@link #convert(String, Map, LevelTypeList)}
+	 * @param serialField
+	 *            name of the field that holds the serial number, e.g. serial
+	 * @throws TDTException
+	 *             if the serial number is not a number in the binary encoding
+	 */
+	public SerialRangeEncoder serialRangeEncoder(String input, Map<String, String> inputParameters,
+			String serialField) {
+		String binary = convert(input, inputParameters, LevelTypeList.BINARY);
+		int[] field = null;
+		for (BinaryLayout layout : getBinaryLayouts()) {
+			int[] other = layout.getIntegerField(serialField);
+			if (other != null && layout.matches(binary)) {
+				if (field != null && !Arrays.equals(field, other)) {
+					throw new TDTException("More than one binary option matches " + binary);
+				}
+				field = other;
+			}
+		}
+		if (field == null) {
+			throw new TDTException("No integer field " + serialField + " in the binary encoding of " + input);
+		}
+		return new SerialRangeEncoder(binary, field[0], field[1]);
+	}
+
+	/**
+	 * Returns a parser for the contents of EPC memory banks read from Gen2
+	 * tags, which translates their EPCs without slicing them out of the bank
+	 * first; see {@link EpcBankParser}. A parser is not thread-safe.
+	 * 
+	 * @param verifyCrc
+	 *            whether the StoredCRC of each bank is checked against its PC
+	 *            and EPC
+	 */
+	public EpcBankParser epcBankParser(boolean verifyCrc) {
+		return new EpcBankParser(this, getHeaderLengths(), verifyCrc);
+	}
+
+	/**
+	 * Returns a codec that turns EPCs into fixed-width keys that sort by
+	 * their fields, and back; see {@link EpcKeyCodec}.
+	 * 
+	 * @param schemeNames
+	 *            names of the schemes that the codec handles, e.g. SGTIN-96 to
+	 *            tell its binary EPCs from those of LGTIN-96; none for all
+	 *            of them
+	 */
+	public EpcKeyCodec keyCodec(String... schemeNames) {
+		return new EpcKeyCodec(this, getBinaryLayouts(), schemeNames);
+	}
+
+	/**
+	 * Creates a compact archive of packed binary EPCs; see
+	 * {@link EpcArchiveWriter}.
+	 * 
+	 * @param blockSize
+	 *            number of EPCs of each block
+	 * @param schemeNames
+	 *            names of the schemes that the scheme ids of the archive
+	 *            refer to, e.g. SGTIN-96 to tell its EPCs from those of
+	 *            LGTIN-96; none for all of them
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public EpcArchiveWriter archiveWriter(File file, int blockSize, String... schemeNames) throws IOException {
+		return new EpcArchiveWriter(file, blockSize, getBinaryLayouts(), schemeNames);
+	}
+
+	/**
+	 * Opens an archive written by {@link #archiveWriter(File, int, String...)};
+	 * see {@link EpcArchiveReader}.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read or is not an EPC archive
+	 */
+	public EpcArchiveReader openArchive(File file) throws IOException {
+		return new EpcArchiveReader(file);
+	}
+
+	/**
+	 * Creates a converter for files of packed binary EPCs; see
+	 * {@link BulkConverter}.
+	 * 
+	 * @param outputLevel
+	 *            the outbound level required for the output
+	 * @param inputParameters
+	 *            additional parameters, as for
+	 *            {@link #convert(String, Map, LevelTypeList)}; the taglength
+	 *            is set from the record length
+	 * @param schemeName
+	 *            name of the scheme of every EPC of the files, e.g. SGTIN-96
+	 *            to tell its EPCs from those of LGTIN-96, or null to find the
+	 *            scheme of each EPC from its header
+	 */
+	public BulkConverter bulkConverter(LevelTypeList outputLevel, Map<String, String> inputParameters,
+			String schemeName) {
+		return new BulkConverter(this, outputLevel, inputParameters, schemeName);
+	}
+
+	/**
+	 * Compiles an EPC pattern URI, such as urn:epc:idpat:sgtin:0614141.*.*,
+	 * into a filter that matches the binary EPCs of every tag length whose
+	 * pure identity URI matches the pattern. Each field of the pattern is a
+	 * value, * for any value or [lo-hi] for a range of values.
+	 * 
+	 * @throws TDTException
+	 *             if the pattern does not apply to any binary encoding
+	 */
+	public EpcFilter compilePattern(String patternUri) {
+		Registry reg = registry.get();
+		List<EpcFilter> filters = new ArrayList<EpcFilter>();
+		for (PrefixMatch match : reg.prefixes) {
+			String prefix = match.getLevelType() == LevelTypeList.PURE_IDENTITY ? PatternUri.prefix(match.getPrefix())
+					: null;
+			if (prefix != null && patternUri.startsWith(prefix)) {
+				EpcFilter filter = PatternUri.compile(patternUri, match.getSchemeName(), match.getLevel(),
+						getBinaryLayouts());
+				if (filter != null) {
+					filters.add(filter);
+				}
+			}
+		}
+		if (filters.isEmpty()) {
+			throw new TDTException("Pattern " + patternUri + " does not match any binary encoding");
+		}
+		return EpcFilter.anyOf(filters);
+	}
+
+	/**
+	 * @return the layouts of the options of the BINARY level of each scheme,
+	 *         worked out on first use. Schemes that are loaded on first use
+	 *         are loaded. The same list is returned until the definitions are
+	 *         reloaded, since projections compare it by identity.
+	 */
+	List<BinaryLayout> getBinaryLayouts() {
+		Registry reg = registry.get();
+		List<BinaryLayout> layouts = reg.binary_layouts;
+		if (layouts == null) {
+			synchronized (reg) {
+				layouts = reg.binary_layouts;
+				if (layouts == null) {
+					layouts = new ArrayList<BinaryLayout>();
+					for (PrefixMatch match : reg.prefixes) {
+						if (match.getLevelType() == LevelTypeList.BINARY) {
+							for (Option option : match.getLevel().getOption()) {
+								BinaryLayout layout = BinaryLayout.parse(match.getSchemeName(), option);
+								if (layout != null) {
+									layouts.add(layout);
+								}
+							}
+						}
+					}
+					reg.binary_layouts = layouts;
+				}
+			}
+		}
+		return layouts;
+	}
+
+	/**
+	 * @return the bit lengths of the binary options of the current
+	 *         definitions, indexed by header, see
+	 *         {@link BinaryLayout#lengthsByHeader(List)}
+	 */
+	int[][] getHeaderLengths() {
+		Registry reg = registry.get();
+		int[][] lengths = reg.header_lengths;
+		if (lengths == null) {
+			lengths = BinaryLayout.lengthsByHeader(getBinaryLayouts());
+			reg.header_lengths = lengths;
+		}
+		return lengths;
+	}
+
+	/**
+	 * @return the name of the scheme of an input of any level, as the
+	 *         prefixes of the levels and the taglength parameter tell it
+	 */
+	String getSchemeName(String input, Map<String, String> inputParameters) {
+		if (input.startsWith("urn:epc:")) {
+			input = uriunescape(input);
+		}
+		return findPrefixMatch(registry.get(), input, inputParameters.get("taglength")).getScheme().getName();
+	}
+
+	/**
+	 * Translates a binary EPC of the given scheme to a specified outbound
+	 * level without looking up its prefix, e.g. for EPCs whose header is
+	 * shared by more than one scheme.
+	 */
+	String convertBinary(String schemeName, String binary, Map<String, String> inputParameters,
+			LevelTypeList outputLevel) {
+		Registry reg = registry.get();
+		for (PrefixMatch match : reg.prefixes) {
+			if (match.getLevelType() == LevelTypeList.BINARY && match.getSchemeName().equals(schemeName)) {
+				Map<String, String> parameters = new HashMap<String, String>(inputParameters);
+				parameters.put("taglength", Integer.toString(binary.length()));
+				return convertLevel(reg, match.getScheme(), match.getLevel(), binary, parameters, outputLevel,
+						ConversionContext.forCurrentThread());
+			}
+		}
+		throw new TDTException("Scheme " + schemeName + " has no binary level");
+	}
+
+	/**
+	 * Translates a binary EPC of the given scheme and appends the result to
+	 * output, as {@link #convertBinary(String, String, Map, LevelTypeList)}
+	 * does. If a codec handles the scheme, the bits are read in place.
+	 */
+	void convertBinary(String schemeName, CharSequence binary, Map<String, String> inputParameters,
+			LevelTypeList outputLevel, ConversionContext context, StringBuilder output) {
+		if (codecsEnabled) {
+			String tagLength = Integer.toString(binary.length());
+			for (CodecRoute route : registry.get().codec_routes) {
+				if (route.level == LevelTypeList.BINARY && route.match.getSchemeName().equals(schemeName)
+						&& tagLength.equals(route.tagLength) && CodecFields.startsWith(binary, route.prefix, 0)
+						&& route.convert(binary, inputParameters, outputLevel, context, output, true)) {
+					return;
+				}
+			}
+		}
+		output.append(convertBinary(schemeName, binary.toString(), inputParameters, outputLevel));
+	}
+
+	/**
+	 * Translates the characters of input between start and end to a specified
+	 * outbound level of the same coding scheme, as
+	 * {@link #convert(String, Map, LevelTypeList)} does, and appends the
+	 * result to output. Values that a codec converts are read in place and
+	 * written straight into output, without any intermediate String; other
+	 * values are copied once for the generic engine.
+	 * 
+	 * @param input
+	 *            buffer holding the identifier to be converted
+	 * @param start
+	 *            index of the first character of the identifier
+	 * @param end
+	 *            index after the last character of the identifier
+	 * @param inputParameters
+	 *            additional parameters, as for
+	 *            {@link #convert(String, Map, LevelTypeList)}
+	 * @param outputLevel
+	 *            the outbound level required for the output
+	 * @param output
+	 *            buffer the converted identifier is appended to; nothing is
+	 *            appended if the conversion fails
+	 * @param context
+	 *            buffers reused from one conversion to the next, which must
+	 *            not be used by another conversion at the same time
+	 */
+	public void convert(CharSequence input, int start, int end, Map<String, String> inputParameters,
+			LevelTypeList outputLevel, StringBuilder output, ConversionContext context) {
+		CharSlice value = context.slice(input, start, end);
+		// escaped URIs are unescaped by the generic path
+		boolean escaped = CodecFields.startsWith(value, "urn:epc:", 0) && CodecFields.indexOf(value, '%', 0) >= 0;
+		if (!escaped && convertWithCodec(registry.get(), value, inputParameters.get("taglength"), null,
+				inputParameters, outputLevel, context, output)) {
+			return;
+		}
+		output.append(convert(value.toString(), inputParameters, outputLevel, context));
+	}
+
+	/**
+	 * Translates the characters of input between start and end to a specified
+	 * outbound level and appends the result to output, as
+	 * {@link #convert(CharSequence, int, int, Map, LevelTypeList, StringBuilder, ConversionContext)}
+	 * does. Output that is not a StringBuilder is built in a buffer of the
+	 * context first and appended in one call.
+	 * 
+	 * @throws IOException
+	 *             thrown if output cannot be appended to
+	 */
+	public void convert(CharSequence input, int start, int end, Map<String, String> inputParameters,
+			LevelTypeList outputLevel, Appendable output, ConversionContext context) throws IOException {
+		if (output instanceof StringBuilder) {
+			convert(input, start, end, inputParameters, outputLevel, (StringBuilder) output, context);
+			return;
+		}
+		StringBuilder staged = context.staging();
+		convert(input, start, end, inputParameters, outputLevel, staged, context);
+		output.append(staged);
+	}
+
+	/**
+	 * Translates a binary EPC in hex notation to a specified outbound level,
+	 * as {@link #convert(String, Map, LevelTypeList)} translates the binary
+	 * EPC. The digits may hold the EPC as {@link #bin2hex(String)} writes it,
+	 * with up to 3 zero bits in front, or as it is read from the EPC bank of a
+	 * tag, with zero bits after it up to the end of the last digit or 16-bit
+	 * word. The scheme and the length of the EPC are found in one step from
+	 * the header and the number of digits, and the digits are read by the
+	 * codecs as bits in place, so no binary String is built.
+	 * 
+	 * @param inputParameters
+	 *            additional parameters, as for
+	 *            {@link #convert(String, Map, LevelTypeList)}; the taglength
+	 *            is set from the digits
+	 * @throws TDTException
+	 *             if the digits do not hold the header and length of a binary
+	 *             encoding
+	 */
+	public String convertHex(String hex, Map<String, String> inputParameters, LevelTypeList outputLevel) {
+		ConversionContext context = ConversionContext.forCurrentThread();
+		StringBuilder output = context.staging();
+		convertHex(hex, 0, hex.length(), inputParameters, outputLevel, output, context);
+		return output.toString();
+	}
+
+	/**
+	 * Translates the hex digits of input between start and end to a specified
+	 * outbound level, as {@link #convertHex(String, Map, LevelTypeList)}
+	 * does, and appends the result to output, reusing the buffers of the
+	 * given context.
+	 */
+	public void convertHex(CharSequence input, int start, int end, Map<String, String> inputParameters,
+			LevelTypeList outputLevel, StringBuilder output, ConversionContext context) {
+		HexSlice bits = hexBits(input, start, end, context);
+		convert(bits, 0, bits.length(), context.parameters(inputParameters, bits.length()), outputLevel,
+				output, context);
+	}
+
+	/**
+	 * Translates the input to the binary level and writes the result in hex,
+	 * as {@link #bin2hex(String)} does.
+	 */
+	public String convertToHex(String input, Map<String, String> inputParameters) {
+		return bin2hex(convert(input, inputParameters, LevelTypeList.BINARY));
+	}
+
+	/**
+	 * Finds the bits of the EPC held in the hex digits between start and end
+	 * from its header and the number of digits.
+	 */
+	private HexSlice hexBits(CharSequence input, int start, int end, ConversionContext context) {
+		int digits = end - start;
+		for (int i = start; i < end; i++) {
+			if (HexSlice.nibble(input.charAt(i)) < 0) {
+				throw new TDTException("Not a hexadecimal EPC: " + input.subSequence(start, end));
+			}
+		}
+		if (digits >= 3) {
+			int[][] lengths = getHeaderLengths();
+			int first = (HexSlice.nibble(input.charAt(start)) << 8) | (HexSlice.nibble(input.charAt(start + 1)) << 4)
+					| HexSlice.nibble(input.charAt(start + 2));
+			// as read from a tag: the header in the first two digits, zero bits after the EPC
+			int[] known = lengths[first >>> 4];
+			for (int i = 0; known != null && i < known.length; i++) {
+				int length = known[i];
+				if ((length + 3) / 4 == digits || (length + 15) / 16 * 4 == digits) {
+					HexSlice bits = context.hex(input, start, 0, digits * 4);
+					if (zeros(bits, length, digits * 4)) {
+						return context.hex(input, start, 0, length);
+					}
+				}
+			}
+			// as bin2hex writes it: zero bits in front of the EPC up to a whole digit
+			for (int padding = 1; padding < 4; padding++) {
+				known = lengths[(first >>> (4 - padding)) & 0xff];
+				for (int i = 0; known != null && i < known.length; i++) {
+					if (known[i] == digits * 4 - padding && (first >>> (12 - padding)) == 0) {
+						return context.hex(input, start, padding, known[i]);
+					}
+				}
+			}
+		}
+		throw new TDTException("No binary encoding has the header and length of " + input.subSequence(start, end));
+	}
+
+	private static boolean zeros(CharSequence bits, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (bits.charAt(i) != '0') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * If the input begins with a GS1 key and gs1companyprefixlength has not
+	 * been supplied, look up the length of its company prefix in the list of
+	 * GS1 Company Prefixes. The length is put into the fields of this
+	 * conversion only, never into the caller's parameters, which may be
+	 * reused for keys of other companies.
+	 */
+	private void inferCompanyPrefixLength(String input, Level level, Map<String, String> fields) {
+		if (fields.containsKey("gs1companyprefixlength") || level.getPrefixMatch() == null) {
+			return;
+		}
+		Integer offset = COMPANY_PREFIX_OFFSETS.get(level.getPrefixMatch());
+		if (offset != null && input.startsWith(level.getPrefixMatch())) {
+			int length = getCompanyPrefixLength(input, level.getPrefixMatch().length() + offset);
+			if (length > 0) {
+				fields.put("gs1companyprefixlength", Integer.toString(length));
+				debugprintln("gs1companyprefixlength has been set to "+length);
+			}
+		}
 	}
 
 	/**
 	 * convert from a particular scheme / level
 	 */
-	private String convertLevel(Scheme tdtscheme, Level tdtlevel, String input,
-			Map<String, String> inputParameters, LevelTypeList outboundlevel) {
+	private String convertLevel(Registry reg, Scheme tdtscheme, Level tdtlevel, String input,
+			Map<String, String> inputParameters, LevelTypeList outboundlevel, ConversionContext context) {
 		
 		
 		debugprintln("convertLevel (line 820) - 19:12 21st October 2010");
 		debugprintln("===============================================");
 		debugprintln("CONVERT "+input+" to "+outboundlevel.toString());
 		
-		String outboundstring;
 		Map<String, String> extraparams =
 		// new NoisyMap
-		(new HashMap<String, String>(inputParameters));
+		context.fields(inputParameters);
+		Option matchingOption = extractLevel(reg, tdtscheme, tdtlevel, input, extraparams, context);
+		String outboundstring = formatLevel(reg, tdtscheme, matchingOption, extraparams, outboundlevel);
+
+		debugprintln("RESULT after building grammar = " + outboundstring);
+		debugprintln("===============================================================================");
+		debugprintln("");
+		return outboundstring;
+	}
+
+	/**
+	 * Selects the option of the input level that matches the input and runs
+	 * its extraction plan, which leaves the fields of the input and those
+	 * derived from them by the EXTRACT rules in extraparams.
+	 *
+	 * @return the matching option
+	 */
+	private Option extractLevel(Registry reg, Scheme tdtscheme, Level tdtlevel, String input,
+			Map<String, String> extraparams, ConversionContext context) {
 
 		// get the scheme's option key, which is the name of a
 		// parameter whose value is matched to the option key of the
 		// level.
 
+		inferCompanyPrefixLength(input, tdtlevel, extraparams);
+
 		String optionValue;
 		String optionkey = tdtscheme.getOptionKey();
 		debugprintln("optionkey for scheme = "+optionkey);
 		debugprintln("tdtlevel.getType() = "+tdtlevel.getType().toString());
 		if (!((tdtlevel.getType() == LevelTypeList.TAG_ENCODING) || (tdtlevel.getType() == LevelTypeList.PURE_IDENTITY) || (tdtlevel.getType() == LevelTypeList.BINARY) )) {
-		optionValue = inputParameters.get(optionkey);
+		optionValue = extraparams.get(optionkey);
 		} else {
 		optionValue=null;
 		}
@@ -903,7 +2130,7 @@ public class TDTEngine {
 				debugprintln("opt.getOptionKey() = "+opt.getOptionKey());
 				debugprintln("Pattern = "+opt.getPattern());
 				
-				Matcher matcher = Pattern.compile("^"+opt.getPattern()).matcher(input);
+				Matcher matcher = context.matcher(optionPattern(reg, opt), input);
 				debugprintln("lookingAt ^"+opt.getPattern());
 				if (matcher.lookingAt()) {
 						debugprintln("MATCHED!");
@@ -941,473 +2168,561 @@ public class TDTEngine {
 				prefixMatcher=matcher_map.get(matchingOptionKey);
 		}
 
-		optionValue = matchingOptionKey;
-		debugprintln("optionValue = "+optionValue);
-		
-		Level tdtoutlevel = findLevel(tdtscheme, outboundlevel);
-
-		debugprint("tdtoutlevel prefixMatch = ");
-		if (tdtoutlevel.getPrefixMatch() != null) {
-		debugprintln(tdtoutlevel.getPrefixMatch().toString()); 
-		} else {
-			debugprintln("null");	
+		debugprintln("optionValue = "+matchingOptionKey);
+		if (matchingOption == null) {
+			// no single option matched; the lookup reports the error
+			findOption(tdtlevel, matchingOptionKey);
 		}
-			
-		Level tdttagurilevel = findLevel(tdtscheme, LevelTypeList.TAG_ENCODING);
-		Level tdtbinarylevel = findLevel(tdtscheme, LevelTypeList.BINARY);
 
-		
-		debugprint("tdttagurilevel prefixMatch = ");
-		debugprintln(tdttagurilevel.getPrefixMatch().toString());
-		
-		
-		Option tdtoutoption = findOption(tdtoutlevel, optionValue);
-		
-		debugprint("tdtoutoption pattern = ");
-		if (tdtoutoption.getPattern() != null) {
-		debugprintln(tdtoutoption.getPattern().toString());
-		} else {
-			debugprintln("null");	
+		MethodHandle extraction = findExtraction(reg, tdtscheme, tdtlevel, matchingOption);
+		try {
+			extraction.invokeExact(extraparams, prefixMatcher);
+		} catch (Throwable e) {
+			throw rethrow(e);
 		}
-			
-		Option tdttagurioption = findOption(tdttagurilevel, optionValue);
-		Option tdtbinaryoption = findOption(tdtbinarylevel, optionValue);
-
-		debugprint("tdttagurioption pattern = ");
-		debugprintln(tdttagurioption.getPattern().toString());
-
-		// EXTRACTION of values or each of the fields.
-		
-		// consider all fields within the matching option
-		for (Field field : matchingOption.getField()) {
-			BigInteger seq = field.getSeq();
-			String strfieldname = field.getName();
-			PadDirectionList padDir = field.getPadDir();
-			PadDirectionList taguriPadDir;
-			PadDirectionList bitPadDir = field.getBitPadDir();
-			String padChar = field.getPadChar();
-			String taguriPadChar;
-			String outPadChar;
-			int requiredLength = -1; // -1 indicates that no length is specified
-			if (field.getLength() != null) {
-				requiredLength = field.getLength().intValue();
-			}
-			
-
-			debugprintln("---------------------------------------------------------");
-			debugprintln("fieldname = "+strfieldname);
-			String strfieldvaluematched = prefixMatcher.group(seq.intValue());
-			debugprintln("strfieldvaluematched = "+strfieldvaluematched);
-			debugprintln("---------------------------------------------------------");
-
-			Field outputfield = findField(tdtoutoption, strfieldname, tdtoutlevel);
-//			debugprintln("outputfield characterset = "+outputfield.getCharacterSet().toString());
-			
-			Field tagurifield = findField(tdttagurioption, strfieldname, tdttagurilevel);
-			Field binaryfield = findField(tdtbinaryoption, strfieldname, tdtbinarylevel);
+		return matchingOption;
+	}
 
+	/**
+	 * Runs the plan that formats the fields extracted from a value that
+	 * matched an option to the outbound level. The FORMAT rules of the plan
+	 * add to extraparams.
+	 */
+	private String formatLevel(Registry reg, Scheme tdtscheme, Option matchingOption,
+			Map<String, String> extraparams, LevelTypeList outboundlevel) {
+		MethodHandle plan = findPlan(reg, tdtscheme, matchingOption, outboundlevel);
+		try {
+			return (String) plan.invokeExact(extraparams);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
 
-			if (tdtlevel.getType() == LevelTypeList.BINARY ) {
-				debugprintln("Converting from BINARY to NON-BINARY - see Figure 9b");
-				String result9blayer1;
-				String result9blayer2;
-				String result9blayer3;
-				
-				if (binaryfield.getCompaction() != null) {
-					if (binaryfield.getBitPadDir() != null) {
-						// strip leading/trailing bits at the bitPadDir edge until a multiple of compaction bits is obtained	
-						
-						
-						int intcompaction = -1;
-						String strCompaction = binaryfield.getCompaction();
-						if (strCompaction.equals("5-bit")) { intcompaction = 5; }
-						if (strCompaction.equals("6-bit")) { intcompaction = 6; }
-						if (strCompaction.equals("7-bit")) { intcompaction = 7; }
-						if (strCompaction.equals("8-bit")) { intcompaction = 8; }
-						
-						if (intcompaction > -1) {
-						result9blayer1 = stripbinarypadding(strfieldvaluematched, binaryfield.getBitPadDir(), intcompaction);
-						} else {
-						result9blayer1 = strfieldvaluematched;
-						debugprintln("Invalid value for compaction");
-						}
+	/**
+	 * The steps of a plan do not throw checked exceptions, but invoking a
+	 * method handle declares Throwable.
+	 */
+	private static RuntimeException rethrow(Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new TDTException(e.toString());
+	}
 
-						} else {
-						// do nothing
-						result9blayer1 = strfieldvaluematched;
-					}
-				
-				// convert the sequence of bits into characters, considering that each byte may have been compacted, as indicated by the compaction attribute
-				
-						result9blayer2 = binaryToString(result9blayer1,binaryfield.getCompaction());
-				
-				// check that the string value only contains characters from the permitted character set
-						debugprintln("9b: Checking that result "+result9blayer2+" is within character set "+tagurifield.getCharacterSet());
-						checkWithinCharacterSet(strfieldname, result9blayer2, tagurifield.getCharacterSet());
-					
-				} else {
-					if (binaryfield.getBitPadDir() != null) {
-						// strip leading/trailing bits at the bitPadDir edge until the first non-zero bit is encountered	
+	/**
+	 * Returns the compiled pattern of an option, anchored at the start of the
+	 * input.
+	 */
+	private static Pattern optionPattern(Registry reg, Option option) {
+		Pattern pattern = reg.option_patterns.get(option);
+		if (pattern == null) {
+			pattern = Pattern.compile("^" + option.getPattern());
+			reg.option_patterns.put(option, pattern);
+		}
+		return pattern;
+	}
 
-						result9blayer1 = stripbinarypadding(strfieldvaluematched, binaryfield.getBitPadDir(), 0);
+	/**
+	 * Returns the plan for extracting the fields of a value that matched an
+	 * option of an input level. Like the plans for the outbound levels, it is
+	 * composed on first use and kept with the registry.
+	 */
+	private MethodHandle findExtraction(Registry reg, Scheme tdtscheme, Level tdtlevel, Option matchingOption) {
+		MethodHandle plan = reg.extractions.get(matchingOption);
+		if (plan == null) {
+			plan = composeExtraction(reg, tdtscheme, tdtlevel, matchingOption);
+			reg.extractions.put(matchingOption, plan);
+		}
+		return plan;
+	}
 
-					} else {
-						// do nothing	
-						result9blayer1 = strfieldvaluematched;
-					}
-				
-				// consider the sequence of bits as an unsigned integer and convert this integer into a numeric string
-				
-						result9blayer2 = bin2dec(result9blayer1);
-				
-				debugprintln("9b: Intermediate results at layer 2="+result9blayer2);
-				
-				// check that the numeric value is not less than the specified minimum nor greater than the specified maximum
+	/**
+	 * Returns the plan for formatting the fields extracted from a value that
+	 * matched an option to the outbound level. Plans are composed on first
+	 * use and kept with the registry, so that the levels, options and fields
+	 * involved are only looked up once per combination of scheme, option,
+	 * input level and outbound level.
+	 */
+	private MethodHandle findPlan(Registry reg, Scheme tdtscheme, Option matchingOption,
+			LevelTypeList outboundlevel) {
+		PlanKey key = new PlanKey(matchingOption, outboundlevel);
+		MethodHandle plan = reg.plans.get(key);
+		if (plan == null) {
+			plan = composePlan(reg, tdtscheme, matchingOption.getOptionKey(), outboundlevel);
+			reg.plans.put(key, plan);
+		}
+		return plan;
+	}
 
-//*** min/max check should happen at the latest possible stage, as building grammar - not here
+	/**
+	 * Composes the extraction of the fields of the input option and the
+	 * EXTRACT rules of the input level into a single method handle of type
+	 * (Map, Matcher)void. Each step is one of the methods below with the
+	 * fields and rules it works on bound as arguments, so that they are
+	 * looked up once. The plans are held in maps and invoked through
+	 * non-constant handles, so the JIT does not specialise the steps for a
+	 * plan; rule functions are still interpreted by processRules.
+	 */
+	private MethodHandle composeExtraction(Registry reg, Scheme tdtscheme, Level tdtlevel, Option matchingOption) {
+		String optionValue = matchingOption.getOptionKey();
+		Level tdttagurilevel = findLevel(tdtscheme, LevelTypeList.TAG_ENCODING);
+		Level tdtbinarylevel = findLevel(tdtscheme, LevelTypeList.BINARY);
+		Option tdttagurioption = findOption(tdttagurilevel, optionValue);
+		Option tdtbinaryoption = findOption(tdtbinarylevel, optionValue);
 
-					if (result9blayer2.length() > 0) {
-						debugprintln("9b: Checking min/max for result9blayer2="+result9blayer2);
+		List<MethodHandle> steps = new ArrayList<MethodHandle>();
 
-						if (tagurifield.getDecimalMinimum() != null) {
-							debugprintln("9b: Checking minimum :"+tagurifield.getDecimalMinimum());
-							checkMinimum(strfieldname, new BigInteger(result9blayer2), tagurifield.getDecimalMinimum());
-						}
-						if (tagurifield.getDecimalMaximum() != null) {
-							debugprintln("9b: Checking maximum :"+tagurifield.getDecimalMaximum());
-							checkMaximum(strfieldname, new BigInteger(result9blayer2), tagurifield.getDecimalMaximum());
-						}
-					}
-					
-					debugprintln("9b: end if after checking min/max");
-				}
-				
-				
-				debugprintln("9b: Finished checking min/max");
-				if (binaryfield.getPadChar() != null) {
-					if (tagurifield.getPadChar() != null) {
-						// invalid TDT file	
-						result9blayer3=result9blayer2;
-						debugprintln("9b: Invalid TDT file");
-					} else {
-						debugprintln("9b: Preparing to strip pad characters if required");
-						// strip at the padDir edge any successive instances of the character indicated by padChar attribute (padChar and padDir read from the binary level)	
-						result9blayer3 = stripPadChar(result9blayer2, binaryfield.getPadDir(), binaryfield.getPadChar());
-					}
-				
-				} else {
-					if (tagurifield.getPadChar() != null) {
-						debugprintln("9b: Preparing to apply pad characters if required");
-						// pad at the padDir edge with character indicated by padChar attribute to reach a total length of characters indicated by length attribute (padChar, padDir, length read from the binary level)
-						result9blayer3 = applyPadChar(result9blayer2, tagurifield.getPadDir(), tagurifield.getPadChar(), tagurifield.getLength().intValue());
-					} else {
-						// do nothing
-						result9blayer3 = result9blayer2;
-					}
-				
-				}
-				
-				
-				
-				debugprintln("9b\tFinal result result9blayer3 = "+result9blayer3);
-				debugprintln("tagurifield.getLength() = "+tagurifield.getLength());
-				if ((tagurifield!=null) && (tagurifield.getLength() != null) && (tagurifield.getLength().intValue() == 0)) {
-				extraparams.put(strfieldname,"");
-				} else {
-				extraparams.put(strfieldname,result9blayer3);
-				}
+		// EXTRACTION of values for each of the fields
+		for (Field field : matchingOption.getField()) {
+			String strfieldname = field.getName();
+			Field tagurifield = findField(tdttagurioption, strfieldname, tdttagurilevel);
+			if (tdtlevel.getType() == LevelTypeList.BINARY) {
+				Field binaryfield = findField(tdtbinaryoption, strfieldname, tdtbinarylevel);
+				steps.add(MethodHandles.insertArguments(EXTRACT_BINARY_FIELD, 0, this, strfieldname,
+						field.getSeq().intValue(), tagurifield, binaryfield));
 			} else {
-	
-			
-				// this deals with the situation where the input is not BINARY
-				debugprintln("Converting from non-binary levels at line 1060");
-				debugprintln("Fieldname = "+strfieldname);
-				debugprintln("Value = "+strfieldvaluematched);
-				debugprintln("Line 1063");
-				if (tagurifield != null) {
-				debugprintln("Permitted character set = "+tagurifield.getCharacterSet());
-				debugprintln("Line 1066");
-				debugprintln("Decimal min = "+tagurifield.getDecimalMinimum());
-				debugprintln("Decimal max = "+tagurifield.getDecimalMaximum());
-				debugprintln("");
-				
-				// check that the value is within the permitted character set (if this is defined for the field at the TAG_ENCODING level)
-
-// *** min/max check should happen while building grammar - not here.
-
-				if (tagurifield.getCharacterSet() != null) {
-					debugprintln("9b else: check character set");
-					checkWithinCharacterSet(strfieldname, strfieldvaluematched, tagurifield.getCharacterSet());
-				}
-				
-				// check that the value is not less than the minimum permitted decimal value (if this is defined for the field at the TAG_ENCODING level)				
-				if ((tagurifield.getDecimalMinimum() != null) && (strfieldvaluematched.length() > 0)) {
-					debugprintln("9b else: checkMin");
-					checkMinimum(strfieldname, new BigInteger(strfieldvaluematched), tagurifield.getDecimalMinimum());
-				}
-				
-				// check that the value is not greater than the maximum permitted decimal value (if this is defined for the field at the TAG_ENCODING level)								
-				if ((tagurifield.getDecimalMaximum() != null) && (strfieldvaluematched.length() > 0)) {
-					debugprintln("9b else: checkMax");
-					checkMaximum(strfieldname, new BigInteger(strfieldvaluematched), tagurifield.getDecimalMaximum());
-				}
-
-				} else {
-				debugprintln("tagurifield was null (field "+strfieldname+" ) is not defined in the tag-encoding URI");
-				}
-
-				if (tagurifield != null) {
-				debugprintln("tagurifield.getLength() = "+tagurifield.getLength());
-				}
-				if ((tagurifield!=null) && (tagurifield.getLength() != null) && (tagurifield.getLength().intValue() == 0)) {
-				extraparams.put(strfieldname,"");
-				} else {
-				extraparams.put(strfieldname,strfieldvaluematched);
-				}
-
-				
+				steps.add(MethodHandles.insertArguments(EXTRACT_FIELD, 0, this, strfieldname,
+						field.getSeq().intValue(), tagurifield));
 			}
-	
-
-			
-		} // for each field;
+		}
 
 		/**
 		 * the EXTRACT rules are performed after parsing the input, in order to
 		 * determine additional fields that are to be derived from the fields
-		 * obtained by the pattern match process
+		 * obtained by the pattern match process. The FORMAT rules are
+		 * performed before formatting the output, in order to determine
+		 * additional fields that are required for preparation of the outbound
+		 * format
 		 */
+		addRules(reg, steps, tdtlevel, ModeList.EXTRACT);
+
+		MethodHandle plan = MethodHandles.dropArguments(END_OF_EXTRACTION, 0, Map.class, Matcher.class);
+		for (int i = steps.size() - 1; i >= 0; i--) {
+			plan = MethodHandles.foldArguments(plan, steps.get(i));
+		}
+		return plan;
+	}
+
+	/**
+	 * Composes the steps of formatting the fields to the outbound level into
+	 * a single method handle of type (Map)String. The steps run in the same
+	 * order as they are listed in the definition: FORMAT rules of the
+	 * outbound level, binary encoding of the outbound fields, checks of the
+	 * outbound fields and finally the grammar.
+	 */
+	private MethodHandle composePlan(Registry reg, Scheme tdtscheme, String optionValue,
+			LevelTypeList outboundlevel) {
+		Level tdtoutlevel = findLevel(tdtscheme, outboundlevel);
+		Level tdttagurilevel = findLevel(tdtscheme, LevelTypeList.TAG_ENCODING);
+		Level tdtbinarylevel = findLevel(tdtscheme, LevelTypeList.BINARY);
+		Option tdtoutoption = findOption(tdtoutlevel, optionValue);
+		Option tdttagurioption = findOption(tdttagurilevel, optionValue);
+		Option tdtbinaryoption = findOption(tdtbinarylevel, optionValue);
 
-		debugprintln("Processing RULE elements of type 'EXTRACT'");
-		int seq = 0;
-		for (Rule tdtrule : tdtlevel.getRule()) {
-			if (tdtrule.getType() == ModeList.EXTRACT) {
-				debugprintln("Rule #"+tdtrule.getSeq().intValue()+": "+tdtrule.getNewFieldName());
-				assert seq < tdtrule.getSeq().intValue() : "Rule out of sequence order";
-				seq = tdtrule.getSeq().intValue();
-				processRules(extraparams, tdtrule);
+		List<MethodHandle> steps = new ArrayList<MethodHandle>();
+		addRules(reg, steps, tdtoutlevel, ModeList.FORMAT);
+
+		if (tdtoutlevel.getType() == LevelTypeList.BINARY) {
+			for (Field field : tdtoutoption.getField()) {
+				String strfieldname = field.getName();
+				Field tagurifield = findField(tdttagurioption, strfieldname, tdttagurilevel);
+				Field binaryfield = findField(tdtbinaryoption, strfieldname, tdtbinarylevel);
+				steps.add(MethodHandles.insertArguments(FORMAT_BINARY_FIELD, 0, this, strfieldname, tagurifield,
+						binaryfield));
 			}
 		}
 
-		debugprintln("Finished processing 'EXTRACT' rules");
-
-		/**
-		 * Now we need to consider the corresponding output level and output
-		 * option. The scheme must remain the same, as must the value of
-		 * optionkey (to select the corresponding option element nested within
-		 * the required outbound level)
-		 */
-
-//		Level tdtoutlevel = findLevel(tdtscheme, outboundlevel);
-//		Option tdtoutoption = findOption(tdtoutlevel, optionValue);
+		for (Field testfield : tdtoutoption.getField()) {
+			Field tagurifield = testfield;
+			if (outboundlevel == LevelTypeList.BINARY) {
+				tagurifield = findField(tdttagurioption, testfield.getName(), tdttagurilevel);
+				if (tagurifield == null) {
+					// e.g. gs1companyprefixindex of the 64-bit schemes is only a binary field
+					tagurifield = testfield;
+				}
+			}
+			steps.add(MethodHandles.insertArguments(CHECK_OUTPUT_FIELD, 0, this, testfield, tagurifield,
+					outboundlevel));
+		}
 
-		/**
-		 * the FORMAT rules are performed before formatting the output, in order
-		 * to determine additional fields that are required for preparation of
-		 * the outbound format
-		 */
+		MethodHandle plan = MethodHandles.insertArguments(BUILD_GRAMMAR, 0, this,
+				GRAMMAR_SEPARATOR.split(tdtoutoption.getGrammar()), outboundlevel);
+		for (int i = steps.size() - 1; i >= 0; i--) {
+			plan = MethodHandles.foldArguments(plan, steps.get(i));
+		}
+		return plan;
+	}
 
-		debugprintln("Processing RULE elements of type 'FORMAT'");
-		seq = 0;
-		for (Rule tdtrule : tdtoutlevel.getRule()) {
-			if (tdtrule.getType() == ModeList.FORMAT) {
-				debugprintln("Rule #"+tdtrule.getSeq().intValue()+": "+tdtrule.getNewFieldName());
+	private void addRules(Registry reg, List<MethodHandle> steps, Level level, ModeList type) {
+		int seq = 0;
+		for (Rule tdtrule : level.getRule()) {
+			if (tdtrule.getType() == type) {
 				assert seq < tdtrule.getSeq().intValue() : "Rule out of sequence order";
 				seq = tdtrule.getSeq().intValue();
-				processRules(extraparams, tdtrule);
+				MethodHandle rule = MethodHandles.insertArguments(PROCESS_RULES, 0, this, reg);
+				rule = MethodHandles.insertArguments(rule, 1, tdtrule);
+				if (type == ModeList.EXTRACT) {
+					rule = MethodHandles.dropArguments(rule, 1, Matcher.class);
+				}
+				steps.add(rule);
 			}
 		}
+	}
 
-		/**
-		 * Now we need to ensure that all fields required for the outbound
-		 * grammar are suitably padded etc. processPadding takes care of firstly
-		 * padding the non-binary fields if padChar and padDir, length are
-		 * specified then (if necessary) converting to binary and padding the
-		 * binary representation to the left with zeros if the bit string is has
-		 * fewer bits than the bitLength attribute specifies. N.B. TDTv1.1 will
-		 * be more specific about bit-level padding rather than assuming that it
-		 * is always to the left with the zero bit.
-		 */
-
-		debugprintln("Finished processing 'FORMAT' rules");
+	/**
+	 * Last step of an extraction plan, which has no result.
+	 */
+	private static void endOfExtraction() {
+	}
 
-		if (tdtoutlevel.getType() == LevelTypeList.BINARY ) {
-		debugprintln("Converting output fields from NON-BINARY to BINARY - see Figure 9a");
-		
-		for (Field field : tdtoutoption.getField()) {
-		
+	/**
+	 * Step of a plan: converts a field of a BINARY input to its value at the
+	 * non-binary levels - see Figure 9b.
+	 */
+	private void extractBinaryField(String strfieldname, int group, Field tagurifield, Field binaryfield,
+			Map<String, String> extraparams, Matcher prefixMatcher) {
+		debugprintln("---------------------------------------------------------");
+		debugprintln("fieldname = "+strfieldname);
+		String strfieldvaluematched = prefixMatcher.group(group);
+		debugprintln("strfieldvaluematched = "+strfieldvaluematched);
+		debugprintln("---------------------------------------------------------");
+
+		debugprintln("Converting from BINARY to NON-BINARY - see Figure 9b");
+		String result9blayer1;
+		String result9blayer2;
+		String result9blayer3;
 		
-			String strfieldname = field.getName();
-			Field tagurifield = findField(tdttagurioption, strfieldname, tdttagurilevel);
-			Field binaryfield = findField(tdtbinaryoption, strfieldname, tdtbinarylevel);
-			String strfieldvaluematched = extraparams.get(strfieldname);
-
-			debugprintln("Output field: "+strfieldname+" had value "+strfieldvaluematched);
-
-			String result9alayer1;
-			
-			if (tagurifield !=null) {
-			
-				if (tagurifield.getPadChar() != null) {
-					if (binaryfield.getPadChar() != null) {
-						debugprintln("9a Invalid TDT definition file");
-						result9alayer1="";
-					} else {
-						// Strip non-binary field of any successive pad characters tagurifield.getPadChar() at edge tagurifield.getPadDir()
-						result9alayer1 = stripPadChar(strfieldvaluematched,tagurifield.getPadDir(),tagurifield.getPadChar());
-					}
-				
+		if (binaryfield.getCompaction() != null) {
+			if (binaryfield.getBitPadDir() != null) {
+				// strip leading/trailing bits at the bitPadDir edge until a multiple of compaction bits is obtained	
 				
-				} else {
-					if (binaryfield.getPadChar() != null) {
-						// Pad the non-binary field with pad characters binaryfield.getPadChar() at the edge binaryfield.getPadDir() to reach a total length of binaryfield.getLength() characters
-						result9alayer1 = applyPadChar(strfieldvaluematched, binaryfield.getPadDir(), binaryfield.getPadChar(), binaryfield.getLength().intValue());
-					} else {
-						// do not pad this field at the non-binary level
-						result9alayer1 = strfieldvaluematched;
-						
-					}
 				
-				}
-						debugprintln("\tIntermediate Result for Fig 9a at layer 1="+result9alayer1);
-				
-				String result9alayer2;
+				int intcompaction = -1;
+				String strCompaction = binaryfield.getCompaction();
+				if (strCompaction.equals("5-bit")) { intcompaction = 5; }
+				if (strCompaction.equals("6-bit")) { intcompaction = 6; }
+				if (strCompaction.equals("7-bit")) { intcompaction = 7; }
+				if (strCompaction.equals("8-bit")) { intcompaction = 8; }
 				
-				if (binaryfield.getCompaction() != null) {
-					// treat the field as an alphanumeric field
-					// check that all of its characters are within the allowed character set
-					checkWithinCharacterSet(strfieldname, result9alayer1, tagurifield.getCharacterSet());
-					// convert to binary using the compaction method specified for that field at binary level
-					result9alayer2 = stringToBinary(result9alayer1,binaryfield.getCompaction().toString());
+				if (intcompaction > -1) {
+				result9blayer1 = stripbinarypadding(strfieldvaluematched, binaryfield.getBitPadDir(), intcompaction);
 				} else {
-					// check that the non-binary value is not less than the minimum nor greater than the maximum value permitted
-					if (result9alayer1.length() > 0) {
-					checkMinimum(strfieldname, new BigInteger(result9alayer1), tagurifield.getDecimalMinimum());
-					checkMaximum(strfieldname, new BigInteger(result9alayer1), tagurifield.getDecimalMaximum());
-					}
-					// treat the numeric field as as an unsigned integer and convert this integer into a sequence of bits
-					result9alayer2 = dec2bin(result9alayer1);
+				result9blayer1 = strfieldvaluematched;
+				debugprintln("Invalid value for compaction");
 				}
-				
-					debugprintln("\tIntermediate Result for Fig 9a at layer 2="+result9alayer2);
-				
-				
-				String result9alayer3;
-				
-				if (binaryfield.getBitPadDir() != null) {
-					debugprintln("9a Pad with leading/trailing bits at the "+binaryfield.getBitPadDir()+" edge to reach a total of "+binaryfield.getBitLength()+" bits");
-					result9alayer3 = applyPadChar(result9alayer2, binaryfield.getBitPadDir(), "0", binaryfield.getBitLength().intValue());
+
 				} else {
-					debugprintln("9a Don't pad at binary level");
-					result9alayer3 = result9alayer2;
-				}
-				
-						debugprintln("\tFinal Result for Fig 9a at layer 3="+result9alayer3);
+				// do nothing
+				result9blayer1 = strfieldvaluematched;
+			}
+		
+		// convert the sequence of bits into characters, considering that each byte may have been compacted, as indicated by the compaction attribute
+		
+				result9blayer2 = binaryToString(result9blayer1,binaryfield.getCompaction());
+		
+		// check that the string value only contains characters from the permitted character set
+				debugprintln("9b: Checking that result "+result9blayer2+" is within character set "+tagurifield.getCharacterSet());
+				checkWithinCharacterSet(strfieldname, result9blayer2, tagurifield.getCharacterSet());
+			
+		} else {
+			if (binaryfield.getBitPadDir() != null) {
+				// strip leading/trailing bits at the bitPadDir edge until the first non-zero bit is encountered	
+
+				result9blayer1 = stripbinarypadding(strfieldvaluematched, binaryfield.getBitPadDir(), 0);
 
-						debugprintln("Need to put this value into extraparams as the value for key "+strfieldname);
-						
-						debugprintln("binaryfield.getBitLength() = "+binaryfield.getBitLength());
-						
-						if ((binaryfield.getBitLength() != null) && (binaryfield.getBitLength().intValue() == 0)) {
-						extraparams.put(strfieldname,"");
-						} else {
-						extraparams.put(strfieldname,result9alayer3);
-						}
 			} else {
-				String result9alayer3;
-				
-				if (binaryfield.getBitPadDir() != null) {
-					debugprintln("9a Pad with leading/trailing bits at the "+binaryfield.getBitPadDir()+" edge to reach a total of "+binaryfield.getBitLength()+" bits");
-					result9alayer3 = applyPadChar(dec2bin(strfieldvaluematched), binaryfield.getBitPadDir(), "0", binaryfield.getBitLength().intValue());
-				} else {
-					debugprintln("9a Don't pad at binary level");
-					result9alayer3 = dec2bin(strfieldvaluematched);
-				}
-				
-				debugprintln("binaryfield.getBitLength() = "+binaryfield.getBitLength());
+				// do nothing	
+				result9blayer1 = strfieldvaluematched;
+			}
+		
+		// consider the sequence of bits as an unsigned integer and convert this integer into a numeric string
+		
+				result9blayer2 = bin2dec(result9blayer1);
+		
+		debugprintln("9b: Intermediate results at layer 2="+result9blayer2);
+		
+		// check that the numeric value is not less than the specified minimum nor greater than the specified maximum
 
-				if ((binaryfield.getBitLength() != null) && (binaryfield.getBitLength().intValue() == 0)) {
-				extraparams.put(strfieldname,"");
-				} else {
-				extraparams.put(strfieldname,result9alayer3);
-				}
+//*** min/max check should happen at the latest possible stage, as building grammar - not here
 
+			if (result9blayer2.length() > 0) {
+				debugprintln("9b: Checking min/max for result9blayer2="+result9blayer2);
 
+				if (tagurifield.getDecimalMinimum() != null) {
+					debugprintln("9b: Checking minimum :"+tagurifield.getDecimalMinimum());
+					checkMinimum(strfieldname, new BigInteger(result9blayer2), tagurifield.getDecimalMinimum());
+				}
+				if (tagurifield.getDecimalMaximum() != null) {
+					debugprintln("9b: Checking maximum :"+tagurifield.getDecimalMaximum());
+					checkMaximum(strfieldname, new BigInteger(result9blayer2), tagurifield.getDecimalMaximum());
+				}
+			}
+			
+			debugprintln("9b: end if after checking min/max");
+		}
+		
+		
+		debugprintln("9b: Finished checking min/max");
+		if (binaryfield.getPadChar() != null) {
+			if (tagurifield.getPadChar() != null) {
+				// invalid TDT file	
+				result9blayer3=result9blayer2;
+				debugprintln("9b: Invalid TDT file");
+			} else {
+				debugprintln("9b: Preparing to strip pad characters if required");
+				// strip at the padDir edge any successive instances of the character indicated by padChar attribute (padChar and padDir read from the binary level)	
+				result9blayer3 = stripPadChar(result9blayer2, binaryfield.getPadDir(), binaryfield.getPadChar());
+			}
+		
+		} else {
+			if (tagurifield.getPadChar() != null) {
+				debugprintln("9b: Preparing to apply pad characters if required");
+				// pad at the padDir edge with character indicated by padChar attribute to reach a total length of characters indicated by length attribute (padChar, padDir, length read from the binary level)
+				result9blayer3 = applyPadChar(result9blayer2, tagurifield.getPadDir(), tagurifield.getPadChar(), tagurifield.getLength().intValue());
+			} else {
+				// do nothing
+				result9blayer3 = result9blayer2;
 			}
 		
 		}
 		
+		
+		
+		debugprintln("9b\tFinal result result9blayer3 = "+result9blayer3);
+		debugprintln("tagurifield.getLength() = "+tagurifield.getLength());
+		if ((tagurifield!=null) && (tagurifield.getLength() != null) && (tagurifield.getLength().intValue() == 0)) {
+		extraparams.put(strfieldname,"");
+		} else {
+		extraparams.put(strfieldname,result9blayer3);
 		}
+	}
+
+	/**
+	 * Step of a plan: checks and stores a field of a non-binary input.
+	 */
+	private void extractField(String strfieldname, int group, Field tagurifield, Map<String, String> extraparams,
+			Matcher prefixMatcher) {
+		debugprintln("---------------------------------------------------------");
+		debugprintln("fieldname = "+strfieldname);
+		String strfieldvaluematched = prefixMatcher.group(group);
+		debugprintln("strfieldvaluematched = "+strfieldvaluematched);
+		debugprintln("---------------------------------------------------------");
+
+		// this deals with the situation where the input is not BINARY
+		debugprintln("Converting from non-binary levels at line 1060");
+		debugprintln("Fieldname = "+strfieldname);
+		debugprintln("Value = "+strfieldvaluematched);
+		debugprintln("Line 1063");
+		if (tagurifield != null) {
+		debugprintln("Permitted character set = "+tagurifield.getCharacterSet());
+		debugprintln("Line 1066");
+		debugprintln("Decimal min = "+tagurifield.getDecimalMinimum());
+		debugprintln("Decimal max = "+tagurifield.getDecimalMaximum());
+		debugprintln("");
+		
+		// check that the value is within the permitted character set (if this is defined for the field at the TAG_ENCODING level)
+
+// *** min/max check should happen while building grammar - not here.
 
+		if (tagurifield.getCharacterSet() != null) {
+			debugprintln("9b else: check character set");
+			checkWithinCharacterSet(strfieldname, strfieldvaluematched, tagurifield.getCharacterSet());
+		}
+		
+		// check that the value is not less than the minimum permitted decimal value (if this is defined for the field at the TAG_ENCODING level)				
+		if ((tagurifield.getDecimalMinimum() != null) && (strfieldvaluematched.length() > 0)) {
+			debugprintln("9b else: checkMin");
+			checkMinimum(strfieldname, new BigInteger(strfieldvaluematched), tagurifield.getDecimalMinimum());
+		}
+		
+		// check that the value is not greater than the maximum permitted decimal value (if this is defined for the field at the TAG_ENCODING level)								
+		if ((tagurifield.getDecimalMaximum() != null) && (strfieldvaluematched.length() > 0)) {
+			debugprintln("9b else: checkMax");
+			checkMaximum(strfieldname, new BigInteger(strfieldvaluematched), tagurifield.getDecimalMaximum());
+		}
 
+		} else {
+		debugprintln("tagurifield was null (field "+strfieldname+" ) is not defined in the tag-encoding URI");
+		}
 
+		if (tagurifield != null) {
+		debugprintln("tagurifield.getLength() = "+tagurifield.getLength());
+		}
+		if ((tagurifield!=null) && (tagurifield.getLength() != null) && (tagurifield.getLength().intValue() == 0)) {
+		extraparams.put(strfieldname,"");
+		} else {
+		extraparams.put(strfieldname,strfieldvaluematched);
+		}
+	}
 
+	/**
+	 * Step of a plan: converts an outbound field from its non-binary value to
+	 * its BINARY value - see Figure 9a.
+	 */
+	private void formatBinaryField(String strfieldname, Field tagurifield, Field binaryfield,
+			Map<String, String> extraparams) {
+		String strfieldvaluematched = extraparams.get(strfieldname);
 
+		debugprintln("Output field: "+strfieldname+" had value "+strfieldvaluematched);
 
-/*		// debugprintln(" prior to processPadding, " + extraparams);
-		for (Field field : tdtoutoption.getField()) {
-			// processPadding(extraparams, field, outboundlevel, tdtoutoption);
+		String result9alayer1;
+		
+		if (tagurifield !=null) {
+		
+			if (tagurifield.getPadChar() != null) {
+				if (binaryfield.getPadChar() != null) {
+					debugprintln("9a Invalid TDT definition file");
+					result9alayer1="";
+				} else {
+					// Strip non-binary field of any successive pad characters tagurifield.getPadChar() at edge tagurifield.getPadDir()
+					result9alayer1 = stripPadChar(strfieldvaluematched,tagurifield.getPadDir(),tagurifield.getPadChar());
+				}
 			
 			
-			// *** TDT 1.4 TODO this might need some updating
+			} else {
+				if (binaryfield.getPadChar() != null) {
+					// Pad the non-binary field with pad characters binaryfield.getPadChar() at the edge binaryfield.getPadDir() to reach a total length of binaryfield.getLength() characters
+					result9alayer1 = applyPadChar(strfieldvaluematched, binaryfield.getPadDir(), binaryfield.getPadChar(), binaryfield.getLength().intValue());
+				} else {
+					// do not pad this field at the non-binary level
+					result9alayer1 = strfieldvaluematched;
+					
+				}
+			
+			}
+					debugprintln("\tIntermediate Result for Fig 9a at layer 1="+result9alayer1);
 			
-			padField(extraparams, field);
-			if (outboundlevel == LevelTypeList.BINARY)
-				binaryPadding(extraparams, field);
-		}
-*/
-		/**
-		 * Construct the output from the specified grammar (in ABNF format)
-		 * together with the field values stored in inputparams
-		 */
-		debugprintln("Building final grammar");
+			String result9alayer2;
+			
+			if (binaryfield.getCompaction() != null) {
+				// treat the field as an alphanumeric field
+				// check that all of its characters are within the allowed character set
+				checkWithinCharacterSet(strfieldname, result9alayer1, tagurifield.getCharacterSet());
+				// convert to binary using the compaction method specified for that field at binary level
+				result9alayer2 = stringToBinary(result9alayer1,binaryfield.getCompaction().toString());
+			} else {
+				// check that the non-binary value is not less than the minimum nor greater than the maximum value permitted
+				if (result9alayer1.length() > 0) {
+				checkMinimum(strfieldname, new BigInteger(result9alayer1), tagurifield.getDecimalMinimum());
+				checkMaximum(strfieldname, new BigInteger(result9alayer1), tagurifield.getDecimalMaximum());
+				}
+				// treat the numeric field as as an unsigned integer and convert this integer into a sequence of bits
+				result9alayer2 = dec2bin(result9alayer1);
+			}
+			
+				debugprintln("\tIntermediate Result for Fig 9a at layer 2="+result9alayer2);
+			
+			
+			String result9alayer3;
+			
+			if (binaryfield.getBitPadDir() != null) {
+				debugprintln("9a Pad with leading/trailing bits at the "+binaryfield.getBitPadDir()+" edge to reach a total of "+binaryfield.getBitLength()+" bits");
+				result9alayer3 = applyPadChar(result9alayer2, binaryfield.getBitPadDir(), "0", binaryfield.getBitLength().intValue());
+			} else {
+				debugprintln("9a Don't pad at binary level");
+				result9alayer3 = result9alayer2;
+			}
+			
+					debugprintln("\tFinal Result for Fig 9a at layer 3="+result9alayer3);
+
+					debugprintln("Need to put this value into extraparams as the value for key "+strfieldname);
+					
+					debugprintln("binaryfield.getBitLength() = "+binaryfield.getBitLength());
+					
+					if ((binaryfield.getBitLength() != null) && (binaryfield.getBitLength().intValue() == 0)) {
+					extraparams.put(strfieldname,"");
+					} else {
+					extraparams.put(strfieldname,result9alayer3);
+					}
+		} else {
+			String result9alayer3;
+			
+			if (binaryfield.getBitPadDir() != null) {
+				debugprintln("9a Pad with leading/trailing bits at the "+binaryfield.getBitPadDir()+" edge to reach a total of "+binaryfield.getBitLength()+" bits");
+				result9alayer3 = applyPadChar(dec2bin(strfieldvaluematched), binaryfield.getBitPadDir(), "0", binaryfield.getBitLength().intValue());
+			} else {
+				debugprintln("9a Don't pad at binary level");
+				result9alayer3 = dec2bin(strfieldvaluematched);
+			}
+			
+			debugprintln("binaryfield.getBitLength() = "+binaryfield.getBitLength());
 
+			if ((binaryfield.getBitLength() != null) && (binaryfield.getBitLength().intValue() == 0)) {
+			extraparams.put(strfieldname,"");
+			} else {
+			extraparams.put(strfieldname,result9alayer3);
+			}
 
-// *** need to do check min/max just before building grammar - not earlier
-// *** may need to pass additional fields into buildGrammar in order to do this
 
-// *** logic is flawed here.  We cannot test for fields that do not appear in the grammar string
-// *** instead we need to extract these from the grammar string and check against constraints expressed in either the rules of type="FORMAT" or the field in tdtoutoption.
-		
-		for (Field testfield : tdtoutoption.getField()) {
+		}
+	}
+
+	/**
+	 * Step of a plan: checks the value of an outbound field against the
+	 * minimum, maximum and character set of the field. For BINARY output,
+	 * the presence of the constraints is taken from the field at the
+	 * TAG_ENCODING level.
+	 */
+	private void checkOutputField(Field testfield, Field tagurifield, LevelTypeList outboundlevel,
+			Map<String, String> extraparams) {
 		String testfieldname = testfield.getName();
 		debugprintln("Field to be checked: "+testfieldname+" = "+extraparams.get(testfieldname));
 		if (outboundlevel == LevelTypeList.BINARY) {
-			Field tagurifield = findField(tdttagurioption, testfieldname, tdttagurilevel);
 			if (tagurifield.getDecimalMinimum() != null) {
-			debugprintln("Decimal minimum = "+tagurifield.getDecimalMinimum());
-			checkMinimum(testfieldname, new BigInteger(bin2dec(extraparams.get(testfieldname))), testfield.getDecimalMinimum());			
+				debugprintln("Decimal minimum = "+tagurifield.getDecimalMinimum());
+				checkMinimum(testfieldname, new BigInteger(bin2dec(extraparams.get(testfieldname))), testfield.getDecimalMinimum());
 			}
 			if (tagurifield.getDecimalMaximum() != null) {
-			debugprintln("Decimal maximum = "+tagurifield.getDecimalMaximum());
-			checkMaximum(testfieldname, new BigInteger(bin2dec(extraparams.get(testfieldname))), testfield.getDecimalMaximum());			
+				debugprintln("Decimal maximum = "+tagurifield.getDecimalMaximum());
+				checkMaximum(testfieldname, new BigInteger(bin2dec(extraparams.get(testfieldname))), testfield.getDecimalMaximum());
 			}
 		} else {
 			if (testfield.getDecimalMinimum() != null) {
-			debugprintln("Decimal minimum = "+testfield.getDecimalMinimum());
-			checkMinimum(testfieldname, new BigInteger(extraparams.get(testfieldname)), testfield.getDecimalMinimum());			
+				debugprintln("Decimal minimum = "+testfield.getDecimalMinimum());
+				checkMinimum(testfieldname, new BigInteger(extraparams.get(testfieldname)), testfield.getDecimalMinimum());
 			}
 			if (testfield.getDecimalMaximum() != null) {
-			debugprintln("Decimal maximum = "+testfield.getDecimalMaximum());
-			checkMaximum(testfieldname, new BigInteger(extraparams.get(testfieldname)), testfield.getDecimalMaximum());
+				debugprintln("Decimal maximum = "+testfield.getDecimalMaximum());
+				checkMaximum(testfieldname, new BigInteger(extraparams.get(testfieldname)), testfield.getDecimalMaximum());
 			}
 			if (testfield.getCharacterSet() != null) {
-			debugprintln("Character set = "+testfield.getCharacterSet());
-			checkWithinCharacterSet(testfieldname, extraparams.get(testfieldname), testfield.getCharacterSet());
+				debugprintln("Character set = "+testfield.getCharacterSet());
+				checkWithinCharacterSet(testfieldname, extraparams.get(testfieldname), testfield.getCharacterSet());
 			}
 		}
-		}
+	}
 
-		// need to get fields for tdtoutoption
-		// then check each one for min/max, charSet
+	/**
+	 * Identifies a conversion plan: the option of the input level that
+	 * matched, which also determines the scheme and the input level, and the
+	 * outbound level. Options are compared by identity, as each registry
+	 * holds its own definitions.
+	 */
+	private static class PlanKey {
+		private final Option option;
+		private final LevelTypeList outboundlevel;
 
-		outboundstring = buildGrammar(tdtoutoption.getGrammar(), extraparams, outboundlevel);
+		PlanKey(Option option, LevelTypeList outboundlevel) {
+			this.option = option;
+			this.outboundlevel = outboundlevel;
+		}
 
-		// debugprintln("final extraparams = " + extraparams);
-		debugprintln("RESULT after building grammar = " + outboundstring);
-		debugprintln("===============================================================================");
-		debugprintln("");
-		return outboundstring;
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof PlanKey)) {
+				return false;
+			}
+			PlanKey other = (PlanKey) o;
+			return option == other.option && outboundlevel == other.outboundlevel;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(option) * 31 + outboundlevel.hashCode();
+		}
 	}
 
 	/**
@@ -1543,22 +2858,20 @@ public class TDTEngine {
  * An example is SGLN-195, where the hex representation would be padded to 49 hex characters, resulting in 196 bits after hex2bin
  * so we would need to try firstly converting 196 bits (i.e. offset 0), then 195 bits (offset = 1), then 194 bits (offset=2), then 193 bits (offset=3)
  * until we find one of these which successfully converts.
+ * {@link #convertHex(String, Map, LevelTypeList)} does this in one step, from the header and the number of digits.
  */
 public String hex2bin(String hex) {
-int lenhex = hex.length();
-
-debugprintln("(line 1407) hex = "+hex);
-if (hex.length() == 0) {
-return "";
-} else {
-BigInteger bin = new BigInteger(hex.toLowerCase(), 16);
-StringBuffer stringbin = new StringBuffer(bin.toString(2)); 
-int padlength = lenhex*4 - stringbin.length();
-if (padlength > 0) {
-stringbin.insert(0,"00000000000000000000000000000000000000000000000000000000000000".substring(0,padlength));
-}
-return stringbin.toString();
-}
+	char[] bits = new char[hex.length() * 4];
+	for (int i = 0; i < hex.length(); i++) {
+		int nibble = HexSlice.nibble(hex.charAt(i));
+		if (nibble < 0) {
+			throw new NumberFormatException("For input string: \"" + hex + "\"");
+		}
+		for (int j = 0; j < 4; j++) {
+			bits[i * 4 + j] = (nibble & (8 >>> j)) == 0 ? '0' : '1';
+		}
+	}
+	return new String(bits);
 }
 
 /**
@@ -1568,21 +2881,20 @@ return stringbin.toString();
  * in order to reach a length corresponding to 1/4 of the length of the binary string, rounded up to the nearest integer.
  */
 public String bin2hex(String binary) {
-int lenbin = binary.length();
-int lenhex = ((lenbin + 3)/4);
-
-debugprintln("(line 1428) binary = "+binary);
-if (binary.length() == 0) {
-return "";
-} else {
-BigInteger hex = new BigInteger(binary, 2);
-StringBuffer rawhex= new StringBuffer(hex.toString(16).toUpperCase());
-int padlength = lenhex-rawhex.length();
-if (padlength > 0) {
-rawhex.insert(0,"0000".substring(0,padlength));
-}
-return rawhex.toString();
-}
+	char[] hex = new char[(binary.length() + 3) / 4];
+	int padding = hex.length * 4 - binary.length();
+	for (int digit = 0; digit < hex.length; digit++) {
+		int nibble = 0;
+		for (int i = digit * 4 - padding; i < digit * 4 - padding + 4; i++) {
+			char c = i < 0 ? '0' : binary.charAt(i);
+			if (c != '0' && c != '1') {
+				throw new NumberFormatException("For input string: \"" + binary + "\"");
+			}
+			nibble = (nibble << 1) | (c - '0');
+		}
+		hex[digit] = HEX_DIGITS[nibble];
+	}
+	return new String(hex);
 }
 
 
@@ -1595,8 +2907,15 @@ return rawhex.toString();
 	 * extraparams hashmap.
 	 */
 	private String buildGrammar(String grammar, Map<String, String> extraparams, LevelTypeList outboundlevel) {
+		return buildGrammar(GRAMMAR_SEPARATOR.split(grammar), outboundlevel, extraparams);
+	}
+
+	/**
+	 * Returns a string built from the tokens of a grammar that has already
+	 * been split.
+	 */
+	private String buildGrammar(String[] fields, LevelTypeList outboundlevel, Map<String, String> extraparams) {
 		StringBuilder outboundstring = new StringBuilder();
-		String[] fields = Pattern.compile("\\s+").split(grammar);
 		for (int i = 0; i < fields.length; i++) {
 			String formattedparam;
 			if (fields[i].substring(0, 1).equals("'")) {
@@ -1897,7 +3216,7 @@ return rawhex.toString();
 	 * rules defined in the TDT definition files. Typically used for string
 	 * processing functions, lookup in tables, calculation of check digits etc.
 	 */
-	private void processRules(Map<String, String> extraparams, Rule tdtrule) {
+	private void processRules(Registry reg, Map<String, String> extraparams, Rule tdtrule) {
 		String tdtfunction = tdtrule.getFunction();
 		int openbracket = tdtfunction.indexOf("(");
 		assert openbracket != -1;
@@ -1939,19 +3258,29 @@ return rawhex.toString();
 				String s = extraparams.get(parameter[0]);
 				assert s != null : tdtfunction + " when " + parameter[0]
 						+ " is null";
-				String t = gs1cpi.get(s);
-				assert t != null : "gs1cpi[" + s + "] is null";
+				String t;
+				if (parameter[2].equals("gs1companyprefixindex")) {
+					t = reg.gs1cpi.getCompanyPrefix(s);
+				} else {
+					int index = reg.gs1cpi.getIndex(s);
+					t = index < 0 ? null : Integer.toString(index);
+				}
+				if (t == null) {
+					throw new TDTException("No entry for " + s + " in table " + parameter[1]);
+				}
 				assert newfieldname != null;
 				extraparams.put(newfieldname, t);
 				debugprintln("Rule result: "+newfieldname+" = "+t);
-				// extraparams.put(newfieldname,
-				// gs1cpi.get(extraparams.get(parameter[0])));
-			} else { // JPB! the following is untested
-				String tdtxpath = tdtrule.getTableXPath();
-				String tdttableurl = tdtrule.getTableURL();
-				String tdtxpathsub = tdtxpath.replaceAll("\\$1", extraparams.get(parameter[0]));
-				extraparams.put(newfieldname, xpathlookup("ManagerTranslation.xml", tdtxpathsub));
-				debugprintln("TABLELOOKUP Rule result: "+newfieldname+" = "+xpathlookup("ManagerTranslation.xml", tdtxpathsub));
+			} else {
+				String s = extraparams.get(parameter[0]);
+				assert s != null : tdtfunction + " when " + parameter[0]
+						+ " is null";
+				String t = reg.tables.lookup(tdtrule, s);
+				if (t == null) {
+					throw new TDTException("No entry for " + s + " in table " + parameter[1]);
+				}
+				extraparams.put(newfieldname, t);
+				debugprintln("TABLELOOKUP Rule result: "+newfieldname+" = "+t);
 			}
 		}
 
@@ -2186,51 +3515,6 @@ return rawhex.toString();
 		return rv;
 	}
 
-	/**
-	 * 
-	 * Performs an XPATH lookup in an xml document. The document has been loaded
-	 * into a private member. The XPATH expression is supplied as the second
-	 * string parameter The return value is of type string e.g. this is
-	 * currently used primarily for looking up the Company Prefix Index for
-	 * encoding a GS1 Company Prefix into a 64-bit EPC tag
-	 * 
-	 */
-	private String xpathlookup(String xml, String expression) {
-
-		try {
-
-			// Parse the XML as a W3C document.
-			DocumentBuilder builder = DocumentBuilderFactory.newInstance()
-					.newDocumentBuilder();
-			Document document = builder.parse(GEPC64xml);
-
-			XPath xpath = XPathFactory.newInstance().newXPath();
-
-			String rv = (String) xpath.evaluate(expression, document,
-					XPathConstants.STRING);
-
-			return rv;
-
-		} catch (ParserConfigurationException e) {
-			System.err.println("ParserConfigurationException caught...");
-			e.printStackTrace();
-			return null;
-		} catch (XPathExpressionException e) {
-			System.err.println("XPathExpressionException caught...");
-			e.printStackTrace();
-			return null;
-		} catch (SAXException e) {
-			System.err.println("SAXException caught...");
-			e.printStackTrace();
-			return null;
-		} catch (IOException e) {
-			System.err.println("IOException caught...");
-			e.printStackTrace();
-			return null;
-		}
-
-	}
-
 	// auxiliary functions
 
 	/**
@@ -2255,6 +3539,10 @@ return rawhex.toString();
 	 * Converts URI escaped characters back into original characters
 	 */
    private static String uriunescape(String in) {
+	if (in.indexOf('%') < 0) {
+		// nothing is escaped
+		return in;
+	}
 	in = in.replaceAll("%25","%");
    	in = in.replaceAll("%3[Ff]","?");
    	in = in.replaceAll("%22","\\");
@@ -2539,13 +3827,17 @@ return rawhex.toString();
 	/** 
 	 * adds a list of global company prefixes (GCPs) to the current list of GCPs.
 	 * The list of GCPs is used to convert a GTIN and serial or an SSCC to an 
-	 * EPC number when the user does not provide length of the GCP.
+	 * EPC number when the user does not provide length of the GCP. It is also
+	 * used by the convert methods to determine gs1companyprefixlength when it
+	 * is not among the input parameters.
 	 * 
 	 * The method expects the individual GCPs to be on a new line each. It is up 
 	 * to the user to determine wher the GCPs are read from (normal file, network, 
-	 * onsepc.com)
+	 * onsepc.com). The digits at the start of each line are taken as a GCP; any
+	 * further columns and lines that do not start with a GCP of 4 to 12 digits
+	 * are ignored.
 	 * 
-	 *  @param inputstream 
+	 *  @param source 
 	 *  			a reference to a source of GCPs 
 	 * @throws IOException 
 	 */
@@ -2554,30 +3846,66 @@ return rawhex.toString();
 		
 		BufferedReader br = new BufferedReader(new InputStreamReader(
 	            source, "US-ASCII"));
+		CompanyPrefixLengthIndex.Builder builder = new CompanyPrefixLengthIndex.Builder();
+		int count = 0;
 	    try {
 	      String line;
 	      while ((line = br.readLine()) != null) {
-	        //debugprintln(line);
+	        if (builder.addLine(line)) {
+	          count++;
+	        }
 	      }
 	    } finally {
 	      br.close();
-	    }	   
+	    }
+	    synchronized (this) {
+	      gcp_lengths = builder.add(gcp_lengths).build();
+	    }
+	    debugprintln("Added "+count+" GCPs, "+gcp_lengths.size()+" GCPs in total");
+	}
+	
+	/**
+	 * uses a list of global company prefixes (GCPs) compiled with
+	 * {@link CompanyPrefixListCompiler}, in addition to any GCPs added with
+	 * addListOfGCPs. The file is memory-mapped rather than read into the heap,
+	 * and is mapped only once however many engines use it, so that lists of
+	 * millions of GCPs cost almost no heap. Setting a file replaces any file
+	 * set before.
+	 * 
+	 * @param compiled
+	 *            the compiled list of GCPs
+	 * @throws IOException
+	 *             thrown if the file cannot be read or was not written by
+	 *             CompanyPrefixListCompiler
+	 */
+	public void setCompiledListOfGCPs(File compiled) throws IOException {
+		gcp_file_lengths = CompanyPrefixLengthIndex.map(compiled);
+		debugprintln("Mapped "+gcp_file_lengths.size()+" GCPs from "+compiled);
+	}
+
+	/**
+	 * @return the length of the longest known GCP that the digits from start
+	 *         begin with, or -1 if there is none
+	 */
+	private int getCompanyPrefixLength(CharSequence s, int start) {
+		return Math.max(gcp_lengths.getLength(s, start), gcp_file_lengths.getLength(s, start));
 	}
 	
 	/**
 	 * converts a GTIN and serial number to the pure identity representation of an EPC. 
 	 * The method looks up the length of the global company prefix from a list that can 
-	 * loaded into the TDT engine.
+	 * loaded into the TDT engine via addListOfGCPs.
 	 * 
-	 *  @params gtin
-	 *  @params serial
-	 *  @returns pure identity EPC
-	 *  
+	 *  @param gtin GTIN-8, GTIN-12, GTIN-13 or GTIN-14
+	 *  @param serial
+	 *  @return pure identity EPC
+	 *  @throws TDTException if the GTIN is invalid or does not begin with a known GCP
 	 */ 
 	
 	public String convertGTINandSerialToPureIdentityEPC(String gtin, String serial) {
 		
-		return " ";
+		gtin = gs1Key(gtin, 14, "GTIN");
+		return convertGTINandSerialToPureIdentityEPC(gtin, serial, lookupCompanyPrefixLength(gtin, 1));
 		
 	}
 	
@@ -2585,30 +3913,38 @@ return rawhex.toString();
 	 * converts a GTIN and serial number to the pure identity representation of an EPC. 
 	 * The length of the global company prefix is provided as a method parameter.
 	 * 
-	 *  @params gtin
-	 *  @params serial
-	 *  @params length of global company prefix
-	 *  @returns pure identity EPC
-	 *  
+	 *  @param gtin GTIN-8, GTIN-12, GTIN-13 or GTIN-14
+	 *  @param serial
+	 *  @param gcpLength length of global company prefix
+	 *  @return pure identity EPC
+	 *  @throws TDTException if the GTIN or the length is invalid
 	 */ 
 	
 	public String convertGTINandSerialToPureIdentityEPC(String gtin, String serial, int gcpLength) {
 		
-		return " ";
+		gtin = gs1Key(gtin, 14, "GTIN");
+		checkCompanyPrefixLength(gcpLength, 6, 12);
+		return "urn:epc:id:sgtin:" + gtin.substring(1, 1 + gcpLength) + "."
+				+ gtin.charAt(0) + gtin.substring(1 + gcpLength, 13) + "." + uriescape(serial);
 		
 	}
 	
 	/**
 	 * converts a pure identity EPC to gtin and serial. 
 	 * 
-	 *  @params epc in pure identity format
-	 *  @returns List with gtin and serial
-	 *  
+	 *  @param EPC epc in pure identity format
+	 *  @return List with gtin and serial
+	 *  @throws TDTException if the EPC is not a pure identity SGTIN
 	 */ 
 	
 	public List<String> convertPureIdentityEPCToGTINandSerial(String EPC) {
 		
-		return new ArrayList<String>();
+		String[] parts = pureIdentityParts(EPC, "urn:epc:id:sgtin:", 3);
+		String gtin = parts[1].charAt(0) + parts[0] + parts[1].substring(1);
+		List<String> rv = new ArrayList<String>();
+		rv.add(gtin + gs1checksum(gtin));
+		rv.add(uriunescape(parts[2]));
+		return rv;
 		
 	}
 	
@@ -2616,47 +3952,51 @@ return rawhex.toString();
 	/**
 	 * converts a SSCC to the pure identity representation of an EPC. The method looks up 
 	 * the length of the global company prefix from a list that can loaded into the TDT 
-	 * engine via the addGCPs  
+	 * engine via addListOfGCPs.
 	 * 
-	 *  @params gtin
-	 *  @params serial
-	 *  @returns pure identity EPC
-	 *  
+	 *  @param sscc
+	 *  @return pure identity EPC
+	 *  @throws TDTException if the SSCC is invalid or does not begin with a known GCP
 	 */ 
 	
 	public String convertSSCCToPureIdentityEPC(String sscc) {
 		
-		return " ";
+		sscc = gs1Key(sscc, 18, "SSCC");
+		return convertSSCCToPureIdentityEPC(sscc, lookupCompanyPrefixLength(sscc, 1));
 		
 	}
 	
 	/**
 	 * converts a SSCC to the pure identity representation of an EPC. 
 	 * The length of the global company prefix is provided as a method parameter.
-	 *  @params gtin
-	 *  @params serial
-	 *  @params length of global company prefix
-	 *  @returns pure identity EPC
-	 *  
+	 *  @param sscc
+	 *  @param gcpLength length of global company prefix
+	 *  @return pure identity EPC
+	 *  @throws TDTException if the SSCC or the length is invalid
 	 */ 
 	
 	public String convertSSCCToPureIdentityEPC(String sscc, int gcpLength) {
 		
-		return " ";
+		sscc = gs1Key(sscc, 18, "SSCC");
+		checkCompanyPrefixLength(gcpLength, 6, 12);
+		return "urn:epc:id:sscc:" + sscc.substring(1, 1 + gcpLength) + "."
+				+ sscc.charAt(0) + sscc.substring(1 + gcpLength, 17);
 		
 	}
 	
 	/**
-	 * converts a pure identity EPC to gtin and serial. 
+	 * converts a pure identity EPC to an SSCC. 
 	 * 
-	 *  @params epc in pure identity format
-	 *  @returns List with gtin and serial
-	 *  
+	 *  @param EPC epc in pure identity format
+	 *  @return SSCC
+	 *  @throws TDTException if the EPC is not a pure identity SSCC
 	 */ 
 	
 	public String convertPureIdentityEPCToSSCC(String EPC) {
 		
-		return " ";
+		String[] parts = pureIdentityParts(EPC, "urn:epc:id:sscc:", 2);
+		String sscc = parts[1].charAt(0) + parts[0] + parts[1].substring(1);
+		return sscc + gs1checksum(sscc);
 		
 	}
 	
@@ -2665,35 +4005,86 @@ return rawhex.toString();
 	/**
 	 * converts a GLN and serial to the pure identity representation of an EPC. The method looks up 
 	 * the length of the global company prefix from a list that can loaded into the TDT 
-	 * engine. 
+	 * engine via addListOfGCPs. 
 	 * 
-	 *  @params gtin
-	 *  @params serial
-	 *  @returns pure identity EPC
-	 *  
+	 *  @param gln
+	 *  @param serial
+	 *  @return pure identity EPC
+	 *  @throws TDTException if the GLN is invalid or does not begin with a known GCP
 	 */ 
 	
 	public String convertGLNandSerialToPureIdentityEPC(String gln, String serial) {
 		
-		return " ";
+		gln = gs1Key(gln, 13, "GLN");
+		return convertGLNandSerialToPureIdentityEPC(gln, serial, lookupCompanyPrefixLength(gln, 0));
 		
 	}
 	
 	/**
 	 * converts a GLN and serial to the pure identity representation of an EPC.
 	 * The length of the global company prefix is provided as a method parameter.
-	 *  @params gtin
-	 *  @params serial
-	 *  @params length of global company prefix
-	 *  @returns pure identity EPC
-	 *  
+	 *  @param gln
+	 *  @param serial
+	 *  @param gcpLength length of global company prefix
+	 *  @return pure identity EPC
+	 *  @throws TDTException if the GLN or the length is invalid
 	 */ 
 	
 	public String convertGLNandSerialToPureIdentityEPC(String gln, String serial, int gcpLength) {
 		
-		return " ";
+		gln = gs1Key(gln, 13, "GLN");
+		checkCompanyPrefixLength(gcpLength, 6, 12);
+		return "urn:epc:id:sgln:" + gln.substring(0, gcpLength) + "."
+				+ gln.substring(gcpLength, 12) + "." + uriescape(serial);
 		
 	}
+
+	/**
+	 * Checks the digits and check digit of a GS1 key, padding a shorter GTIN
+	 * with leading zeros.
+	 */
+	private String gs1Key(String key, int length, String name) {
+		if (key == null || !key.matches("[0-9]+")
+				|| (key.length() != length && !(length == 14 && key.matches("[0-9]{8}|[0-9]{12,13}")))) {
+			throw new TDTException("Invalid " + name + ": " + key);
+		}
+		while (key.length() < length) {
+			key = "0" + key;
+		}
+		if (!gs1checksum(key.substring(0, length - 1)).equals(key.substring(length - 1))) {
+			throw new TDTException("Invalid check digit in " + name + ": " + key);
+		}
+		return key;
+	}
+
+	private int lookupCompanyPrefixLength(String key, int start) {
+		int length = getCompanyPrefixLength(key, start);
+		if (length < 0) {
+			throw new TDTException("No GS1 Company Prefix is known for " + key);
+		}
+		return length;
+	}
+
+	private static void checkCompanyPrefixLength(int gcpLength, int min, int max) {
+		if (gcpLength < min || gcpLength > max) {
+			throw new TDTException("Invalid GS1 Company Prefix length " + gcpLength);
+		}
+	}
+
+	/**
+	 * Splits a pure identity URI with the given prefix into its dot-separated
+	 * parts.
+	 */
+	private static String[] pureIdentityParts(String epc, String prefix, int count) {
+		if (epc == null || !epc.startsWith(prefix)) {
+			throw new TDTException("Not a " + prefix + " URI: " + epc);
+		}
+		String[] parts = epc.substring(prefix.length()).split("\\.", count);
+		if (parts.length != count || parts[0].length() == 0 || parts[1].length() == 0) {
+			throw new TDTException("Invalid " + prefix + " URI: " + epc);
+		}
+		return parts;
+	}
 	
 	
 	
@@ -2705,9 +4096,11 @@ return rawhex.toString();
 	 */ 
 	
 	public String convertBinaryEPCToPureIdentityEPC(String binary) {
-		
-		return " ";
-		
+		ConversionContext context = ConversionContext.forCurrentThread();
+		StringBuilder output = context.staging();
+		convert(binary, 0, binary.length(), context.parameters(Collections.<String, String> emptyMap(),
+				binary.length()), LevelTypeList.PURE_IDENTITY, output, context);
+		return output.toString();
 	}
 	
 	/**
@@ -2717,10 +4110,8 @@ return rawhex.toString();
 	 *  
 	 */ 
 	
-	public String convertHexEPCToPureIdentityEPC(String binary) {
-		
-		return " ";
-		
+	public String convertHexEPCToPureIdentityEPC(String hex) {
+		return convertHex(hex, Collections.<String, String> emptyMap(), LevelTypeList.PURE_IDENTITY);
 	}
 	
 	public String getVersion() {
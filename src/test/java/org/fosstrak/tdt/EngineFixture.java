@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.bind.JAXBException;
+
+/**
+ * The engine and the input parameters that the tests have in common. The
+ * engine with the default definitions is loaded once and shared, since
+ * loading the definitions takes longer than most tests.
+ */
+final class EngineFixture
+{
+
+    private static TDTEngine engine;
+
+    private EngineFixture() {
+    }
+
+    /**
+     * @return the engine with the default definitions, which the tests must
+     *         not reconfigure
+     */
+    static synchronized TDTEngine engine() throws IOException, JAXBException {
+	if (engine == null) {
+	    engine = new TDTEngine();
+	}
+	return engine;
+    }
+
+    /**
+     * @return new parameters holding only the given taglength
+     */
+    static Map<String, String> parameters(String tagLength) {
+	Map<String, String> parameters = new HashMap<String, String>();
+	parameters.put("taglength", tagLength);
+	return parameters;
+    }
+
+    /**
+     * @return new parameters for a 96-bit SGTIN with filter 3 and a company
+     *         prefix of 7 digits
+     */
+    static Map<String, String> sgtinParameters() {
+	Map<String, String> parameters = parameters("96");
+	parameters.put("filter", "3");
+	parameters.put("gs1companyprefixlength", "7");
+	return parameters;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.Rule;
+
+public class TestAuxiliaryTables extends TestCase
+{
+
+    private static final String TABLE = "http://www.onsepc.com/ManagerTranslation.xml";
+
+    private AuxiliaryTables tables;
+
+    protected void setUp() {
+	tables = new AuxiliaryTables(getClass().getClassLoader().getResource("auxiliary/ManagerTranslation.xml"));
+    }
+
+    private static Rule rule(String xpath) {
+	Rule rule = new Rule();
+	rule.setTableURL(TABLE);
+	rule.setTableXPath(xpath);
+	return rule;
+    }
+
+    public void testIndexedLookup() {
+	Rule decode = rule("/GEPC64Table/entry[@index='$1']/@companyPrefix");
+	Rule encode = rule("/GEPC64Table/entry[@companyPrefix='$1']/@index");
+	Assert.assertEquals("0037000", tables.lookup(decode, "1"));
+	Assert.assertEquals("0681131", tables.lookup(decode, "6"));
+	Assert.assertEquals("16", tables.lookup(encode, "0016000"));
+	Assert.assertNull(tables.lookup(decode, "2"));
+	Assert.assertNull(tables.lookup(encode, "9999999"));
+    }
+
+    public void testXPathFallback() {
+	// not of the form /rows[column='$1']/column, so it is evaluated with XPath
+	Rule decode = rule("string(/GEPC64Table/entry[@index=$1]/@companyPrefix)");
+	Assert.assertEquals("0037000", tables.lookup(decode, "1"));
+	Assert.assertEquals("0808736", tables.lookup(decode, "7"));
+	Assert.assertNull(tables.lookup(decode, "2"));
+    }
+
+    public void testMissingTable() {
+	Rule decode = rule("/GEPC64Table/entry[@index='$1']/@companyPrefix");
+	decode.setTableURL("file:/nonexistent/NoSuchTable.xml");
+	try {
+	    tables.lookup(decode, "1");
+	    Assert.fail("missing table should not load");
+	} catch (TDTException e) {
+	    // expected
+	}
+    }
+
+    public void testFailedTableIsNotReloaded() throws Exception {
+	File file = File.createTempFile("BrokenTable", ".xml");
+	try {
+	    write(file, "<GEPC64Table><entry");
+	    Rule decode = rule("/GEPC64Table/entry[@index='$1']/@companyPrefix");
+	    decode.setTableURL(file.toURI().toString());
+	    String message = null;
+	    try {
+		tables.lookup(decode, "1");
+		Assert.fail("broken table should not load");
+	    } catch (TDTException e) {
+		message = e.getMessage();
+	    }
+	    // repaired, but the failure is remembered
+	    write(file, "<GEPC64Table><entry index='1' companyPrefix='0037000'/></GEPC64Table>");
+	    try {
+		tables.lookup(decode, "1");
+		Assert.fail("failure should be cached");
+	    } catch (TDTException e) {
+		Assert.assertEquals(message, e.getMessage());
+	    }
+	} finally {
+	    file.delete();
+	}
+    }
+
+    private static void write(File file, String content) throws IOException {
+	Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+	try {
+	    out.write(content);
+	} finally {
+	    out.close();
+	}
+    }
+
+}
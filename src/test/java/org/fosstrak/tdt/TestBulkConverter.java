@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that BulkConverter translates a file of packed binary EPCs as
+ * TDTEngine translates each EPC on its own.
+ */
+public class TestBulkConverter extends TestCase
+{
+
+    private TDTEngine engine;
+
+    private File records;
+
+    private File output;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+	records = File.createTempFile("TestBulkConverter", ".bin");
+	output = File.createTempFile("TestBulkConverter", ".txt");
+    }
+
+    protected void tearDown() {
+	records.delete();
+	output.delete();
+    }
+
+    public void testLines() throws IOException {
+	List<String> binary = new ArrayList<String>();
+	for (int serial = 0; serial < 1000; serial++) {
+	    binary.add(engine.convert("urn:epc:tag:gid-96:95100000.12345." + serial, EngineFixture.sgtinParameters(),
+		    LevelTypeList.BINARY));
+	    binary.add(engine.convert("urn:epc:tag:sscc-96:3.0614141." + (1234567890L + serial),
+		    EngineFixture.sgtinParameters(), LevelTypeList.BINARY));
+	}
+	// no scheme has the header 11111111
+	binary.add(ones(96));
+	write(binary);
+
+	BulkConverter converter = engine.bulkConverter(LevelTypeList.PURE_IDENTITY, EngineFixture.sgtinParameters(),
+		null);
+	Assert.assertEquals(2000, converter.convert(records, 12, output, 0, 3));
+	String[] lines = read().split("\n", -1);
+	Assert.assertEquals(binary.size() + 1, lines.length);
+	for (int i = 0; i < 2000; i++) {
+	    Assert.assertEquals(engine.convert(binary.get(i), EngineFixture.sgtinParameters(),
+		    LevelTypeList.PURE_IDENTITY), lines[i]);
+	}
+	Assert.assertEquals("", lines[2000]);
+	Assert.assertEquals("", lines[2001]);
+    }
+
+    public void testFixedWidth() throws IOException {
+	List<String> binary = new ArrayList<String>();
+	SerialRangeEncoder encoder = engine.serialRangeEncoder("urn:epc:tag:sgtin-96:3.0614141.812345.0",
+		EngineFixture.sgtinParameters(), "serial");
+	StringBuilder out = new StringBuilder();
+	for (long serial = 5000; serial < 5500; serial++) {
+	    out.setLength(0);
+	    encoder.appendBinary(serial, out);
+	    binary.add(out.toString());
+	}
+	write(binary);
+
+	int width = 48;
+	BulkConverter converter = engine.bulkConverter(LevelTypeList.TAG_ENCODING, new HashMap<String, String>(),
+		"SGTIN-96");
+	Assert.assertEquals(500, converter.convert(records, 12, output, width, 4));
+	Assert.assertEquals(500 * width, output.length());
+	String text = read();
+	for (int i = 0; i < 500; i++) {
+	    String record = text.substring(i * width, (i + 1) * width);
+	    Assert.assertEquals('\n', record.charAt(width - 1));
+	    Assert.assertEquals("urn:epc:tag:sgtin-96:3.0614141.812345." + (5000 + i), record.trim());
+	}
+
+	// translations that do not fit are left blank
+	Assert.assertEquals(0, converter.convert(records, 12, output, 20, 2));
+	Assert.assertEquals(500 * 20, output.length());
+	Assert.assertEquals("", read().trim());
+    }
+
+    public void testMoreChunksThanThreads() throws Exception {
+	List<String> binary = new ArrayList<String>();
+	for (int serial = 0; serial < 2000; serial++) {
+	    binary.add(engine.convert("urn:epc:tag:gid-96:95100000.12345." + serial, EngineFixture.parameters("96"),
+		    LevelTypeList.BINARY));
+	}
+	write(binary);
+	File directory = Files.createTempDirectory("TestBulkConverter").toFile();
+	final File lines = new File(directory, "epcs.txt");
+	final BulkConverter converter = engine.bulkConverter(LevelTypeList.PURE_IDENTITY,
+		EngineFixture.parameters("96"), null);
+	try {
+	    // 1000 chunks of 2 records on 2 threads
+	    Assert.assertEquals(2000, converter.convert(records, 12, lines, 0, 2, 2));
+	    String[] read = read(lines).split("\n");
+	    for (int i = 0; i < 2000; i++) {
+		Assert.assertEquals("urn:epc:id:gid:95100000.12345." + i, read[i]);
+	    }
+	    Assert.assertEquals(1, directory.list().length);
+
+	    // the generic engine fails on a record of zeros without a filter, so the
+	    // first chunk fails while most of the others are still queued
+	    binary.add(0, zeros(96));
+	    write(binary);
+	    final IOException[] failure = new IOException[1];
+	    Thread conversion = new Thread() {
+		public void run() {
+		    try {
+			converter.convert(records, 12, lines, 0, 2, 2);
+		    } catch (IOException e) {
+			failure[0] = e;
+		    }
+		}
+	    };
+	    // a conversion that hangs must not keep the JVM alive
+	    conversion.setDaemon(true);
+	    conversion.start();
+	    conversion.join(60000);
+	    Assert.assertFalse("the conversion does not return", conversion.isAlive());
+	    Assert.assertNotNull(failure[0]);
+	    // the parts of the chunks are deleted
+	    Assert.assertEquals(1, directory.list().length);
+	} finally {
+	    for (File file : directory.listFiles()) {
+		file.delete();
+	    }
+	    directory.delete();
+	}
+    }
+
+    public void testPartialRecord() throws IOException {
+	FileOutputStream out = new FileOutputStream(records);
+	out.write(new byte[13]);
+	out.close();
+	try {
+	    engine.bulkConverter(LevelTypeList.PURE_IDENTITY, new HashMap<String, String>(), null).convert(records,
+		    12, output, 0, 1);
+	    fail();
+	} catch (IOException e) {
+	    // expected
+	}
+    }
+
+    private void write(List<String> binary) throws IOException {
+	FileOutputStream out = new FileOutputStream(records);
+	try {
+	    for (String bits : binary) {
+		byte[] record = new byte[bits.length() / 8];
+		for (int i = 0; i < bits.length(); i++) {
+		    if (bits.charAt(i) == '1') {
+			record[i / 8] |= 0x80 >>> (i % 8);
+		    }
+		}
+		out.write(record);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    private String read() throws IOException {
+	return read(output);
+    }
+
+    private static String read(File file) throws IOException {
+	RandomAccessFile in = new RandomAccessFile(file, "r");
+	try {
+	    byte[] bytes = new byte[(int) in.length()];
+	    in.readFully(bytes);
+	    return new String(bytes, "US-ASCII");
+	} finally {
+	    in.close();
+	}
+    }
+
+    private static String zeros(int length) {
+	return ones(length).replace('1', '0');
+    }
+
+    private static String ones(int length) {
+	StringBuilder bits = new StringBuilder();
+	for (int i = 0; i < length; i++) {
+	    bits.append('1');
+	}
+	return bits.toString();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Checks that a ClassAggregator finds the same runs of serial numbers
+ * whether or not it spills them to disk.
+ */
+public class TestClassAggregator extends TestCase
+{
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testInMemory() throws IOException {
+	Assert.assertEquals(expected(), aggregate(1000000, null));
+    }
+
+    public void testSpill() throws IOException {
+	File directory = new File(System.getProperty("java.io.tmpdir"), "TestClassAggregator");
+	directory.mkdirs();
+	try {
+	    Assert.assertEquals(expected(), aggregate(10, directory));
+	    Assert.assertEquals(0, directory.list().length);
+	} finally {
+	    directory.delete();
+	}
+    }
+
+    public void testSharedLayout() {
+	// LGTIN-96 has the binary layout of SGTIN-96
+	FieldProjection projection = engine.projection("gs1companyprefix", "itemref", "serial");
+	try {
+	    projection.aggregator("serial", null, 1000);
+	    Assert.fail("the scheme of an SGTIN-96 EPC cannot be told");
+	} catch (TDTException e) {
+	    // expected
+	}
+	Assert.assertNotNull(projection.restrictTo("SGTIN-96").aggregator("serial", null, 1000));
+    }
+
+    private static List<String> expected() {
+	List<String> expected = new ArrayList<String>();
+	expected.add("SGTIN-96 614141/812345: 1-100 200-205");
+	expected.add("SGTIN-96 614141/812346: 7 9");
+	expected.add("skipped 1");
+	return expected;
+    }
+
+    private List<String> aggregate(int maxSerials, File spillDirectory) throws IOException {
+	FieldProjection projection = engine.projection("gs1companyprefix", "itemref", "serial").restrictTo(
+		"SGTIN-96");
+	// each serial number once or twice, in random order
+	List<long[]> reads = new ArrayList<long[]>();
+	for (long serial = 1; serial <= 100; serial++) {
+	    reads.add(new long[] { 812345, serial });
+	    if (serial % 3 == 0) {
+		reads.add(new long[] { 812345, serial });
+	    }
+	}
+	for (long serial = 200; serial <= 205; serial++) {
+	    reads.add(new long[] { 812345, serial });
+	}
+	reads.add(new long[] { 812346, 9 });
+	reads.add(new long[] { 812346, 7 });
+	Collections.shuffle(reads, new Random(42));
+
+	byte[] buffer = new byte[12 * (reads.size() + 1)];
+	Map<Long, SerialRangeEncoder> encoders = new HashMap<Long, SerialRangeEncoder>();
+	for (int i = 0; i < reads.size(); i++) {
+	    long itemref = reads.get(i)[0];
+	    SerialRangeEncoder encoder = encoders.get(itemref);
+	    if (encoder == null) {
+		Map<String, String> parameters = EngineFixture.parameters("96");
+		encoder = engine.serialRangeEncoder("urn:epc:tag:sgtin-96:3.0614141." + itemref + ".0", parameters,
+			"serial");
+		encoders.put(itemref, encoder);
+	    }
+	    encoder.encode(reads.get(i)[1], 1, buffer, 12 * i);
+	}
+	// the last EPC is all zeros, which is not an SGTIN
+
+	ClassAggregator aggregator = projection.aggregator("serial", spillDirectory, maxSerials);
+	EpcColumns columns = projection.columns(16);
+	int count = reads.size() + 1;
+	for (int offset = 0; offset < count; offset += columns.size()) {
+	    columns.clear();
+	    projection.decode(buffer, 12 * offset, 12, count - offset, columns);
+	    aggregator.add(columns);
+	}
+
+	final List<String> classes = new ArrayList<String>();
+	aggregator.finish(new ClassAggregator.Handler() {
+	    public void classRanges(String schemeName, long[] classValues, long[] firsts, long[] lasts, int runs) {
+		StringBuilder s = new StringBuilder(schemeName + " " + classValues[0] + "/" + classValues[1] + ":");
+		for (int i = 0; i < runs; i++) {
+		    s.append(' ').append(firsts[i]);
+		    if (lasts[i] != firsts[i]) {
+			s.append('-').append(lasts[i]);
+		    }
+		}
+		classes.add(s.toString());
+	    }
+	});
+	classes.add("skipped " + aggregator.getSkipped());
+	return classes;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+public class TestCompanyPrefixIndexTable extends TestCase
+{
+
+    public void testBothDirections() {
+	CompanyPrefixIndexTable t = new CompanyPrefixIndexTable();
+	t.put(1, "0037000");
+	t.put(16, "0016000");
+	t.put(37, "8901296");
+	Assert.assertEquals(3, t.size());
+
+	Assert.assertEquals("0037000", t.getCompanyPrefix(1));
+	Assert.assertEquals("0037000", t.getCompanyPrefix("1"));
+	Assert.assertEquals(1, t.getIndex("0037000"));
+	Assert.assertEquals(16, t.getIndex("0016000"));
+	Assert.assertEquals(37, t.getIndex("8901296"));
+
+	// leading zeros are significant
+	Assert.assertEquals(-1, t.getIndex("037000"));
+	Assert.assertEquals(-1, t.getIndex("00037000"));
+	Assert.assertEquals(-1, t.getIndex("0016000".subSequence(1, 7)));
+
+	Assert.assertNull(t.getCompanyPrefix(2));
+	Assert.assertNull(t.getCompanyPrefix(100000));
+	Assert.assertNull(t.getCompanyPrefix("x"));
+	Assert.assertEquals(-1, t.getIndex("abc"));
+	Assert.assertEquals(-1, t.getIndex(""));
+	Assert.assertEquals(-1, t.getIndex("1234567890123"));
+    }
+
+    public void testReplace() {
+	CompanyPrefixIndexTable t = new CompanyPrefixIndexTable();
+	t.put(5, "0037000");
+	t.put(5, "0044000");
+	Assert.assertEquals(1, t.size());
+	Assert.assertEquals("0044000", t.getCompanyPrefix(5));
+	Assert.assertEquals(5, t.getIndex("0044000"));
+	Assert.assertEquals(-1, t.getIndex("0037000"));
+    }
+
+    public void testLargeTable() {
+	CompanyPrefixIndexTable t = new CompanyPrefixIndexTable();
+	for (int i = 0; i < 16384; i++) {
+	    t.put(i, String.format("%09d", 7919L * i));
+	}
+	Assert.assertEquals(16384, t.size());
+	for (int i = 0; i < 16384; i++) {
+	    String s = String.format("%09d", 7919L * i);
+	    Assert.assertEquals(s, t.getCompanyPrefix(i));
+	    Assert.assertEquals(i, t.getIndex(s));
+	}
+    }
+
+    public void testEngineEncodesIndex() throws Exception {
+	TDTEngine engine = new TDTEngine();
+	Map<String,String> params = new HashMap<String,String>();
+	params.put("taglength", "64");
+	params.put("filter", "3");
+	params.put("gs1companyprefixlength", "7");
+	String binary = engine.convert("urn:epc:tag:sscc-64:3.0037000.0302414785", params, LevelTypeList.BINARY);
+	// header, filter, then 0037000 as company prefix index 1
+	Assert.assertTrue(binary, binary.startsWith("00001000" + "011" + "00000000000001"));
+    }
+
+}
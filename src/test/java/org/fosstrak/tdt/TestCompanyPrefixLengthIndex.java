@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+public class TestCompanyPrefixLengthIndex extends TestCase
+{
+
+    private static final String GCPS = "GCP,Name\n0037000,A\n\"0614141\",B\n061414199,C\n12,too short\n4000001\n";
+
+    public void testLongestPrefix() {
+	CompanyPrefixLengthIndex.Builder b = new CompanyPrefixLengthIndex.Builder();
+	Assert.assertTrue(b.add("0614141", 0, 7));
+	Assert.assertTrue(b.add("061414199", 0, 9));
+	Assert.assertTrue(b.add("0614141", 0, 7));
+	Assert.assertFalse(b.add("123", 0, 3));
+	Assert.assertFalse(b.add("12a456", 0, 6));
+	CompanyPrefixLengthIndex index = b.build();
+	Assert.assertEquals(2, index.size());
+
+	Assert.assertEquals(7, index.getLength("10614141123452", 1));
+	Assert.assertEquals(9, index.getLength("10614141991234", 1));
+	Assert.assertEquals(7, index.getLength("sscc=106141410000000011", 6));
+	Assert.assertEquals(-1, index.getLength("10037000123452", 1));
+	Assert.assertEquals(-1, index.getLength("1061", 1));
+
+	CompanyPrefixLengthIndex merged = new CompanyPrefixLengthIndex.Builder().add(index).build();
+	Assert.assertEquals(2, merged.size());
+	Assert.assertEquals(9, merged.getLength("061414199", 0));
+    }
+
+    public void testGS1KeysWithoutLength() throws Exception {
+	TDTEngine engine = new TDTEngine();
+	engine.addListOfGCPs(new ByteArrayInputStream(GCPS.getBytes("US-ASCII")));
+
+	Assert.assertEquals("urn:epc:id:sgtin:0614141.812345.6789",
+			    engine.convertGTINandSerialToPureIdentityEPC("80614141123458", "6789"));
+	Assert.assertEquals("urn:epc:id:sgtin:0614141.812345.6789",
+			    engine.convertGTINandSerialToPureIdentityEPC("80614141123458", "6789", 7));
+	List<String> gtin = engine.convertPureIdentityEPCToGTINandSerial("urn:epc:id:sgtin:0614141.812345.6789");
+	Assert.assertEquals("80614141123458", gtin.get(0));
+	Assert.assertEquals("6789", gtin.get(1));
+
+	Assert.assertEquals("urn:epc:id:sscc:0614141.1234567890",
+			    engine.convertSSCCToPureIdentityEPC("106141412345678908"));
+	Assert.assertEquals("106141412345678908",
+			    engine.convertPureIdentityEPCToSSCC("urn:epc:id:sscc:0614141.1234567890"));
+
+	Assert.assertEquals("urn:epc:id:sgln:0614141.12345.400",
+			    engine.convertGLNandSerialToPureIdentityEPC("0614141123452", "400"));
+
+	try {
+	    engine.convertSSCCToPureIdentityEPC("106141412345678909");
+	    Assert.fail("wrong check digit");
+	} catch (TDTException e) {
+	    // expected
+	}
+	try {
+	    engine.convertGTINandSerialToPureIdentityEPC("00712345678911", "1");
+	    Assert.fail("unknown company prefix");
+	} catch (TDTException e) {
+	    // expected
+	}
+    }
+
+    public void testConvertInfersLength() throws Exception {
+	TDTEngine engine = new TDTEngine();
+	engine.addListOfGCPs(new ByteArrayInputStream(GCPS.getBytes("US-ASCII")));
+	Map<String,String> params = new HashMap<String,String>();
+	params.put("taglength", "96");
+	params.put("filter", "3");
+	Assert.assertEquals("urn:epc:tag:sscc-96:3.0037000.0302414785",
+			    engine.convert("sscc=000370003024147856", params, LevelTypeList.TAG_ENCODING));
+	Assert.assertNull(params.get("gs1companyprefixlength"));
+    }
+
+    public void testReusedParameters() throws Exception {
+	TDTEngine engine = new TDTEngine();
+	engine.addListOfGCPs(new ByteArrayInputStream(GCPS.getBytes("US-ASCII")));
+	Map<String,String> params = new HashMap<String,String>();
+	params.put("taglength", "96");
+	params.put("filter", "3");
+	Assert.assertEquals("urn:epc:tag:sscc-96:3.0037000.0302414785",
+			    engine.convert("sscc=000370003024147856", params, LevelTypeList.TAG_ENCODING));
+	// a company prefix of another length, converted with the same map
+	Assert.assertEquals("urn:epc:tag:sscc-96:3.061414199.01234567",
+			    engine.convert("sscc=006141419912345679", params, LevelTypeList.TAG_ENCODING));
+    }
+
+}
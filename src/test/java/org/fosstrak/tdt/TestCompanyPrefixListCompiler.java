@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class TestCompanyPrefixListCompiler extends TestCase
+{
+
+    private File list;
+    private File compiled;
+
+    protected void setUp() throws Exception {
+	list = File.createTempFile("gcp", ".csv");
+	compiled = File.createTempFile("gcp", ".bin");
+	StringBuilder sb = new StringBuilder("GCP,Name\r\n");
+	for (int i = 0; i < 50000; i++) {
+	    // prefixes of 7 digits starting with 0 and of 9 digits starting with 9
+	    sb.append(String.format("%07d", i * 17)).append(",company ").append(i).append("\r\n");
+	    sb.append('"').append(String.format("%09d", 900000000 + i * 31)).append("\"\r\n");
+	}
+	sb.append("0614141");
+	OutputStream out = new FileOutputStream(list);
+	out.write(sb.toString().getBytes("US-ASCII"));
+	out.close();
+    }
+
+    protected void tearDown() {
+	list.delete();
+	compiled.delete();
+    }
+
+    public void testCompileAndMap() throws Exception {
+	int count = CompanyPrefixListCompiler.compile(list, compiled, 4);
+	CompanyPrefixLengthIndex index = CompanyPrefixLengthIndex.map(compiled);
+	Assert.assertEquals(count, index.size());
+	Assert.assertTrue(count > 99000);
+	Assert.assertSame(index, CompanyPrefixLengthIndex.map(compiled));
+
+	for (int i = 0; i < 50000; i += 7) {
+	    Assert.assertEquals(7, index.getLength(String.format("%07d", i * 17) + "123456", 0));
+	    Assert.assertEquals(9, index.getLength(String.format("%09d", 900000000 + i * 31) + "1234", 0));
+	}
+	Assert.assertEquals(7, index.getLength("0614141000000", 0));
+
+	// the same result with one thread
+	File single = File.createTempFile("gcp", ".bin");
+	try {
+	    Assert.assertEquals(count, CompanyPrefixListCompiler.compile(list, single, 1));
+	    Assert.assertEquals(compiled.length(), single.length());
+	} finally {
+	    single.delete();
+	}
+    }
+
+    public void testRecompileWhileMapped() throws Exception {
+	CompanyPrefixListCompiler.compile(list, compiled, 2);
+	CompanyPrefixLengthIndex index = CompanyPrefixLengthIndex.map(compiled);
+
+	OutputStream out = new FileOutputStream(list);
+	out.write("0614141\r\n".getBytes("US-ASCII"));
+	out.close();
+	Assert.assertEquals(1, CompanyPrefixListCompiler.compile(list, compiled, 2));
+
+	// the file is replaced, not overwritten, so the old mapping still reads
+	Assert.assertEquals(7, index.getLength(String.format("%07d", 17 * 17) + "123456", 0));
+	Assert.assertEquals(9, index.getLength("9000000311234", 0));
+	Assert.assertEquals(1, CompanyPrefixLengthIndex.map(compiled).size());
+	for (String name : compiled.getAbsoluteFile().getParentFile().list()) {
+	    Assert.assertFalse(name, name.startsWith(compiled.getName() + "."));
+	}
+    }
+
+    public void testMappingReleased() throws Exception {
+	int count = CompanyPrefixListCompiler.compile(list, compiled, 2);
+	WeakReference<CompanyPrefixLengthIndex> unused =
+	    new WeakReference<CompanyPrefixLengthIndex>(CompanyPrefixLengthIndex.map(compiled));
+
+	// the cache does not keep an index that is no longer used, nor its mapping
+	for (int i = 0; i < 50 && unused.get() != null; i++) {
+	    System.gc();
+	    Thread.sleep(10);
+	}
+	Assert.assertNull(unused.get());
+	CompanyPrefixLengthIndex index = CompanyPrefixLengthIndex.map(compiled);
+	Assert.assertEquals(count, index.size());
+	Assert.assertSame(index, CompanyPrefixLengthIndex.map(compiled));
+    }
+
+    public void testNotCompiled() throws Exception {
+	try {
+	    CompanyPrefixLengthIndex.map(list);
+	    Assert.fail("a text list cannot be mapped");
+	} catch (IOException e) {
+	    // expected
+	}
+    }
+
+    public void testEngine() throws Exception {
+	CompanyPrefixListCompiler.compile(list, compiled, 3);
+	TDTEngine engine = new TDTEngine();
+	engine.setCompiledListOfGCPs(compiled);
+	Assert.assertEquals("urn:epc:id:sscc:0614141.1234567890",
+			    engine.convertSSCCToPureIdentityEPC("106141412345678908"));
+    }
+
+}
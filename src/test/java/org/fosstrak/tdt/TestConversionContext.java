@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks conversions that reuse a ConversionContext.
+ */
+public class TestConversionContext extends TestCase
+{
+
+    private static final String SGTIN = "urn:epc:tag:sgtin-96:3.0614141.812345.6789";
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testSameResults() {
+	ConversionContext context = new ConversionContext();
+	String[] inputs = { SGTIN, "urn:epc:tag:sscc-96:3.0614141.1234567890", "urn:epc:tag:gid-96:0614141.12345.400" };
+	for (String input : inputs) {
+	    for (LevelTypeList level : new LevelTypeList[] { LevelTypeList.BINARY, LevelTypeList.PURE_IDENTITY }) {
+		Assert.assertEquals(input, engine.convert(input, EngineFixture.sgtinParameters(), level),
+			engine.convert(input, EngineFixture.sgtinParameters(), level, context));
+	    }
+	}
+    }
+
+    public void testSliceToStringBuilder() {
+	ConversionContext context = new ConversionContext();
+	String buffer = "read 1: " + SGTIN + ", read 2: urn:epc:id:sgtin:0614141.812345.6789";
+	int start = buffer.indexOf(SGTIN);
+	StringBuilder output = new StringBuilder("epc=");
+	engine.convert(buffer, start, start + SGTIN.length(), EngineFixture.sgtinParameters(),
+		LevelTypeList.PURE_IDENTITY, output, context);
+	Assert.assertEquals("epc=" + engine.convert(SGTIN, EngineFixture.sgtinParameters(),
+		LevelTypeList.PURE_IDENTITY), output.toString());
+
+	// SGTIN-198 is left to the generic engine
+	Map<String, String> parameters = EngineFixture.sgtinParameters();
+	parameters.put("taglength", "198");
+	buffer = "[urn:epc:tag:sgtin-198:3.0614141.812345.ABC]";
+	output.setLength(0);
+	engine.convert(buffer, 1, buffer.length() - 1, parameters, LevelTypeList.PURE_IDENTITY, output, context);
+	Assert.assertEquals("urn:epc:id:sgtin:0614141.812345.ABC", output.toString());
+    }
+
+    public void testFailedConversionAppendsNothing() {
+	ConversionContext context = new ConversionContext();
+	StringBuilder output = new StringBuilder("epc=");
+	String buffer = "urn:epc:tag:sgtin-96:9.0614141.812345.6789";
+	try {
+	    engine.convert(buffer, 0, buffer.length(), EngineFixture.sgtinParameters(), LevelTypeList.BINARY, output,
+		    context);
+	    fail("filter out of range");
+	} catch (TDTException e) {
+	    // expected
+	}
+	Assert.assertEquals("epc=", output.toString());
+    }
+
+    public void testSliceToWriter() throws IOException {
+	ConversionContext context = new ConversionContext();
+	StringWriter output = new StringWriter();
+	String buffer = "<" + SGTIN + ">";
+	engine.convert(buffer, 1, buffer.length() - 1, EngineFixture.sgtinParameters(), LevelTypeList.BINARY, output,
+		context);
+	output.write('\n');
+	engine.convert(buffer, 1, buffer.length() - 1, EngineFixture.sgtinParameters(), LevelTypeList.PURE_IDENTITY,
+		output, context);
+	Assert.assertEquals(engine.convert(SGTIN, EngineFixture.sgtinParameters(), LevelTypeList.BINARY) + "\n"
+		+ engine.convert(SGTIN, EngineFixture.sgtinParameters(), LevelTypeList.PURE_IDENTITY), output.toString());
+    }
+
+    public void testSteadyStateAllocation() {
+	com.sun.management.ThreadMXBean threads = allocationCounter();
+	if (threads == null) {
+	    return;
+	}
+	ConversionContext context = new ConversionContext();
+	Map<String, String> parameters = EngineFixture.sgtinParameters();
+	String expected = engine.convert(SGTIN, EngineFixture.sgtinParameters(), LevelTypeList.BINARY);
+	for (int i = 0; i < 20000; i++) {
+	    engine.convert(SGTIN, parameters, LevelTypeList.BINARY, context);
+	}
+
+	long thread = Thread.currentThread().getId();
+	int conversions = 10000;
+	long before = threads.getThreadAllocatedBytes(thread);
+	for (int i = 0; i < conversions; i++) {
+	    engine.convert(SGTIN, parameters, LevelTypeList.BINARY, context);
+	}
+	long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+	// the size of a String like the returned one depends on the JVM, e.g. on compact strings
+	char[] chars = expected.toCharArray();
+	String[] strings = new String[conversions];
+	before = threads.getThreadAllocatedBytes(thread);
+	for (int i = 0; i < conversions; i++) {
+	    strings[i] = new String(chars);
+	}
+	long string = (threads.getThreadAllocatedBytes(thread) - before) / conversions;
+
+	// the returned String and nothing else
+	Assert.assertTrue(allocated / conversions + " bytes per conversion, " + string + " per String",
+		allocated / conversions - string <= 24);
+	Assert.assertEquals(expected, engine.convert(SGTIN, parameters, LevelTypeList.BINARY, context));
+    }
+
+    public void testZeroCopyAllocation() {
+	com.sun.management.ThreadMXBean threads = allocationCounter();
+	if (threads == null) {
+	    return;
+	}
+	ConversionContext context = new ConversionContext();
+	Map<String, String> parameters = EngineFixture.sgtinParameters();
+	StringBuilder buffer = new StringBuilder("read 1: ").append(SGTIN).append(';');
+	int start = buffer.indexOf(SGTIN);
+	int end = start + SGTIN.length();
+	StringBuilder output = new StringBuilder(128);
+	for (int i = 0; i < 20000; i++) {
+	    output.setLength(0);
+	    engine.convert(buffer, start, end, parameters, LevelTypeList.BINARY, output, context);
+	}
+
+	long thread = Thread.currentThread().getId();
+	int conversions = 10000;
+	long before = threads.getThreadAllocatedBytes(thread);
+	for (int i = 0; i < conversions; i++) {
+	    output.setLength(0);
+	    engine.convert(buffer, start, end, parameters, LevelTypeList.BINARY, output, context);
+	}
+	long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+	Assert.assertTrue(allocated / conversions + " bytes per conversion", allocated / conversions < 8);
+	Assert.assertEquals(engine.convert(SGTIN, EngineFixture.sgtinParameters(), LevelTypeList.BINARY),
+		output.toString());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+	if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+	    return null;
+	}
+	com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+		.getThreadMXBean();
+	if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+	    return null;
+	}
+	return threads;
+    }
+}
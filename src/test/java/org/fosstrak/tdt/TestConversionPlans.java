@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.net.URL;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that the generic engine composes one conversion plan per option and
+ * outbound level of schemes loaded from URLs, and reuses it.
+ */
+public class TestConversionPlans extends TestCase
+{
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	Set<URL> schemes = new HashSet<URL>();
+	schemes.add(getClass().getClassLoader().getResource("schemes/SGTIN-96.xml"));
+	schemes.add(getClass().getClassLoader().getResource("schemes/GID-96.xml"));
+	engine = new TDTEngine(getClass().getClassLoader().getResource("auxiliary/ManagerTranslation.xml"),
+		schemes, true);
+	engine.setCodecsEnabled(false);
+    }
+
+    public void testPlansAreReused() {
+	Assert.assertEquals(0, engine.getPlanCount());
+	String binary = convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", LevelTypeList.BINARY);
+	Assert.assertEquals(1, engine.getPlanCount());
+	Assert.assertEquals("urn:epc:tag:sgtin-96:3.0614141.812345.6789", convert(binary, LevelTypeList.TAG_ENCODING));
+	Assert.assertEquals(2, engine.getPlanCount());
+
+	// same option and outbound level
+	String other = convert("urn:epc:tag:sgtin-96:1.0614141.712345.42", LevelTypeList.BINARY);
+	Assert.assertEquals(2, engine.getPlanCount());
+	Assert.assertEquals("urn:epc:tag:sgtin-96:1.0614141.712345.42", convert(other, LevelTypeList.TAG_ENCODING));
+	Assert.assertEquals(2, engine.getPlanCount());
+
+	// another option of the same level
+	convert("urn:epc:tag:sgtin-96:3.061414.1812345.6789", LevelTypeList.BINARY);
+	Assert.assertEquals(3, engine.getPlanCount());
+	Assert.assertEquals("urn:epc:id:gid:0614141.12345.400",
+		convert("urn:epc:tag:gid-96:0614141.12345.400", LevelTypeList.PURE_IDENTITY));
+	Assert.assertEquals(4, engine.getPlanCount());
+    }
+
+    public void testNoPlanWithoutMatchingOption() {
+	convert("urn:epc:tag:gid-96:0614141.12345.400", LevelTypeList.BINARY);
+	try {
+	    convert("urn:epc:tag:gid-96:0614141.12345", LevelTypeList.BINARY);
+	    fail("serial missing");
+	} catch (TDTException e) {
+	    // expected
+	}
+	Assert.assertEquals(1, engine.getPlanCount());
+    }
+
+    public void testReloadDiscardsPlans() throws Exception {
+	convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", LevelTypeList.BINARY);
+	engine.reload();
+	Assert.assertEquals(0, engine.getPlanCount());
+	Assert.assertEquals("urn:epc:id:sgtin:0614141.812345.6789",
+		convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", LevelTypeList.PURE_IDENTITY));
+	Assert.assertEquals(1, engine.getPlanCount());
+    }
+
+    public void testSeveralLevelsAtOnce() {
+	Set<LevelTypeList> levels = EnumSet.of(LevelTypeList.BINARY, LevelTypeList.PURE_IDENTITY,
+		LevelTypeList.ONS_HOSTNAME);
+	Map<String, String> parameters = new HashMap<String, String>();
+	parameters.put("taglength", "96");
+	Map<LevelTypeList, String> outputs = engine.convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789",
+		parameters, levels);
+	Assert.assertEquals(levels, outputs.keySet());
+	Assert.assertEquals(3, engine.getPlanCount());
+	for (LevelTypeList level : levels) {
+	    Assert.assertEquals(convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", level), outputs.get(level));
+	}
+	Assert.assertEquals(3, engine.getPlanCount());
+
+	// some levels handled by the codecs, the others by the engine
+	engine.setCodecsEnabled(true);
+	outputs = engine.convert("urn:epc:tag:gid-96:0614141.12345.400", parameters, levels);
+	Assert.assertEquals("urn:epc:id:gid:0614141.12345.400", outputs.get(LevelTypeList.PURE_IDENTITY));
+	Assert.assertEquals(convert("urn:epc:tag:gid-96:0614141.12345.400", LevelTypeList.BINARY),
+		outputs.get(LevelTypeList.BINARY));
+	Assert.assertEquals(convert("urn:epc:tag:gid-96:0614141.12345.400", LevelTypeList.ONS_HOSTNAME),
+		outputs.get(LevelTypeList.ONS_HOSTNAME));
+    }
+
+    private String convert(String input, LevelTypeList level) {
+	Map<String, String> parameters = new HashMap<String, String>();
+	parameters.put("taglength", "96");
+	return engine.convert(input, parameters, level);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that an archive written by EpcArchiveWriter reads back the same
+ * EPCs, block by block.
+ */
+public class TestEpcArchive extends TestCase
+{
+
+    private TDTEngine engine;
+
+    private File file;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+	file = File.createTempFile("TestEpcArchive", ".epca");
+    }
+
+    protected void tearDown() {
+	file.delete();
+    }
+
+    public void testRoundTrip() throws IOException {
+	List<String> epcs = new ArrayList<String>();
+	for (String gtin : new String[] { "0614141.812345", "0614141.812346" }) {
+	    SerialRangeEncoder encoder = engine.serialRangeEncoder("urn:epc:tag:sgtin-96:3." + gtin + ".0",
+		    EngineFixture.parameters("96"), "serial");
+	    StringBuilder out = new StringBuilder();
+	    for (long serial = 5000; serial < 6000; serial++) {
+		out.setLength(0);
+		encoder.appendBinary(serial, out);
+		epcs.add("SGTIN-96 " + out);
+	    }
+	}
+	for (int serial = 0; serial < 10; serial++) {
+	    epcs.add("GID-96 "
+		    + engine.convert("urn:epc:tag:gid-96:95100000.12345." + serial, EngineFixture.parameters("96"),
+			    LevelTypeList.BINARY));
+	}
+	epcs.add("null 000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000001");
+	Collections.shuffle(epcs, new Random(7));
+
+	EpcArchiveWriter writer = engine.archiveWriter(file, 256, "SGTIN-96", "GID-96");
+	for (String epc : epcs) {
+	    writer.add(epc.substring(epc.indexOf(' ') + 1));
+	}
+	writer.close();
+	// much less than the 12 bytes of each packed EPC
+	Assert.assertTrue(file.length() + " bytes", file.length() < 4 * epcs.size());
+
+	EpcArchiveReader reader = engine.openArchive(file);
+	try {
+	    Assert.assertEquals(epcs.size(), reader.getCount());
+	    Assert.assertEquals((epcs.size() + 255) / 256, reader.getBlockCount());
+	    Assert.assertEquals(epcs.size() % 256, reader.getCount(reader.getBlockCount() - 1));
+	    final String[] schemeNames = reader.getSchemeNames();
+	    final List<String> read = new ArrayList<String>();
+	    // blocks in reverse order, to check that each can be read on its own
+	    for (int block = reader.getBlockCount() - 1; block >= 0; block--) {
+		final List<String> sorted = new ArrayList<String>();
+		reader.read(block, new EpcArchiveReader.Visitor() {
+		    public void epc(int schemeId, byte[] packed, int bitLength) {
+			StringBuilder binary = new StringBuilder();
+			for (int i = 0; i < bitLength; i++) {
+			    binary.append(PackedBits.get(packed, 0, i, 1));
+			}
+			sorted.add(binary.toString());
+			read.add((schemeId < 0 ? "null" : schemeNames[schemeId]) + " " + binary);
+		    }
+		});
+		List<String> copy = new ArrayList<String>(sorted);
+		Collections.sort(copy);
+		Assert.assertEquals(copy, sorted);
+	    }
+	    Assert.assertEquals(new HashSet<String>(epcs), new HashSet<String>(read));
+	    Assert.assertEquals(epcs.size(), read.size());
+
+	    FieldProjection projection = engine.projection("itemref", "serial").restrictTo("SGTIN-96");
+	    EpcColumns columns = projection.columns(reader.getCount(0));
+	    Assert.assertEquals(reader.getCount(0), reader.decode(0, projection, columns));
+	    Set<Long> itemrefs = new HashSet<Long>();
+	    for (int row = 0; row < columns.size(); row++) {
+		if (columns.getSchemeIds()[row] >= 0) {
+		    itemrefs.add(columns.getLong(row, "itemref"));
+		    Assert.assertTrue(columns.getLong(row, "serial") >= 5000);
+		}
+	    }
+	    Assert.assertTrue(itemrefs.contains(812345L));
+	} finally {
+	    reader.close();
+	}
+    }
+
+    public void testNotAnArchive() throws IOException {
+	FileOutputStream out = new FileOutputStream(file);
+	out.write(new byte[64]);
+	out.close();
+	try {
+	    engine.openArchive(file).close();
+	    Assert.fail();
+	} catch (IOException e) {
+	}
+    }
+}
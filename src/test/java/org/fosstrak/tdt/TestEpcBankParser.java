@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that an EpcBankParser finds the EPC in the contents of an EPC
+ * memory bank and translates it as the engine translates the binary EPC.
+ */
+public class TestEpcBankParser extends TestCase
+{
+
+    private static final String GID = "urn:epc:tag:gid-96:95100000.12345.400";
+
+    private static final String SGTIN = "urn:epc:tag:sgtin-198:3.0614141.812345.6789AB";
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testCrc16() {
+	ByteBuffer check = ByteBuffer.wrap("123456789".getBytes());
+	Assert.assertEquals(0xD64E, EpcBankParser.crc16(check, 0, 9, 0xffff) ^ 0xffff);
+    }
+
+    public void testParse() {
+	String binary = engine.convert(GID, EngineFixture.parameters("96"), LevelTypeList.BINARY);
+	EpcBankParser parser = engine.epcBankParser(true);
+	ByteBuffer bank = bank(binary, 0, false);
+	CharSequence epc = parser.parse(bank);
+	Assert.assertEquals(binary, epc.toString());
+	Assert.assertEquals(0x3000, parser.getPc());
+	Assert.assertEquals(4, parser.getEpcOffset());
+	Assert.assertEquals(96, parser.getEpcLength());
+	Assert.assertEquals(0, bank.position());
+
+	StringBuilder out = new StringBuilder();
+	parser.convert(bank, new HashMap<String, String>(), LevelTypeList.PURE_IDENTITY, out);
+	Assert.assertEquals("urn:epc:id:gid:95100000.12345.400", out.toString());
+    }
+
+    public void testXpcAndPosition() {
+	String binary = engine.convert(GID, EngineFixture.parameters("96"), LevelTypeList.BINARY);
+	EpcBankParser parser = engine.epcBankParser(true);
+	ByteBuffer bank = bank(binary, 0x0040, false);
+	// from a larger buffer in little-endian order; the words stay big-endian
+	ByteBuffer larger = ByteBuffer.allocate(bank.limit() + 3).order(ByteOrder.LITTLE_ENDIAN);
+	larger.position(3);
+	larger.put(bank);
+	larger.position(3);
+	Assert.assertEquals(binary, parser.parse(larger).toString());
+	Assert.assertEquals(3 + 4, parser.getEpcOffset());
+	Assert.assertEquals(0x0040, parser.getXpcW1());
+	Assert.assertEquals(0, parser.getXpcW2());
+	Assert.assertEquals(3, larger.position());
+    }
+
+    public void testXpcW2() {
+	String binary = engine.convert(GID, EngineFixture.parameters("96"), LevelTypeList.BINARY);
+	EpcBankParser parser = engine.epcBankParser(true);
+	ByteBuffer bank = bank(binary, 0x8040, false);
+	Assert.assertEquals(binary, parser.parse(bank).toString());
+	Assert.assertEquals(0x8040, parser.getXpcW1());
+	Assert.assertEquals(0x1234, parser.getXpcW2());
+
+	// a bank read only up to the end of the EPC still gives the EPC
+	bank.limit(4 + 12);
+	Assert.assertEquals(binary, parser.parse(bank).toString());
+	Assert.assertEquals(4, parser.getEpcOffset());
+	Assert.assertEquals(0, parser.getXpcW1());
+    }
+
+    public void testLengthFromHeader() {
+	String binary = engine.convert(SGTIN, EngineFixture.parameters("198"), LevelTypeList.BINARY);
+	EpcBankParser parser = engine.epcBankParser(true);
+	ByteBuffer bank = bank(binary, 0, false);
+	Assert.assertEquals(binary, parser.parse(bank).toString());
+	Assert.assertEquals(13 << 11, parser.getPc());
+	Assert.assertEquals(198, parser.getEpcLength());
+    }
+
+    public void testBatch() {
+	String binary = engine.convert(GID, EngineFixture.parameters("96"), LevelTypeList.BINARY);
+	ByteBuffer good = bank(binary, 0, false);
+	ByteBuffer corrupt = bank(binary, 0, true);
+	ByteBuffer iso = bank(binary, 0, false);
+	iso.put(2, (byte) (iso.get(2) | 0x01));
+	ByteBuffer truncated = (ByteBuffer) bank(binary, 0, false).limit(10);
+
+	String[] results = engine.epcBankParser(true).convert(new ByteBuffer[] { good, corrupt, iso, truncated },
+		new HashMap<String, String>(), LevelTypeList.TAG_ENCODING);
+	Assert.assertEquals(GID, results[0]);
+	Assert.assertNull(results[1]);
+	Assert.assertNull(results[2]);
+	Assert.assertNull(results[3]);
+
+	// without the check, the corrupt StoredCRC is ignored
+	Assert.assertEquals(GID, engine.epcBankParser(false).convert(new ByteBuffer[] { corrupt },
+		new HashMap<String, String>(), LevelTypeList.TAG_ENCODING)[0]);
+    }
+
+
+    /**
+     * Lays out a bank as in the memory of a tag, with the XI bit set and an
+     * XPC_W1 word at 210h if xpc is not 0, an XPC_W2 word of 0x1234 at 220h
+     * if xpc announces it, and a StoredCRC that is wrong if corrupt is set.
+     */
+    private static ByteBuffer bank(String binary, int xpc, boolean corrupt) {
+	int words = (binary.length() + 15) / 16;
+	byte[] epc = new byte[words * 2];
+	byte[] packed = PackedBits.pack(binary);
+	System.arraycopy(packed, 0, epc, 0, packed.length);
+	int pc = (words << 11) | (xpc != 0 ? 0x0200 : 0);
+	ByteBuffer bank = ByteBuffer.allocate(xpc != 0 ? 0x46 : 4 + epc.length);
+	bank.putShort(2, (short) pc);
+	int crc = EpcBankParser.crc16(bank, 2, 4, 0xffff);
+	crc = EpcBankParser.crc16(ByteBuffer.wrap(epc), 0, epc.length, crc) ^ 0xffff;
+	bank.putShort(0, (short) (corrupt ? ~crc : crc));
+	bank.position(4);
+	bank.put(epc);
+	if (xpc != 0) {
+	    bank.putShort(0x42, (short) xpc);
+	    if ((xpc & 0x8000) != 0) {
+		bank.putShort(0x44, (short) 0x1234);
+	    }
+	}
+	bank.clear();
+	return bank;
+    }
+}
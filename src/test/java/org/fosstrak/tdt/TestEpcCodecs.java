@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Compares the results of the codecs with those of the generic engine.
+ */
+public class TestEpcCodecs extends TestCase
+{
+
+    private static final String[] SCHEMES = { "SGTIN-96", "SSCC-96", "SGLN-96", "GRAI-96", "GIAI-96" };
+
+    private static final LevelTypeList[] LEVELS = { LevelTypeList.BINARY, LevelTypeList.TAG_ENCODING,
+	    LevelTypeList.PURE_IDENTITY };
+
+    // bits of the company prefix by number of digits
+    private static final int[] COMPANY_PREFIX_BITS = { 0, 0, 0, 0, 0, 20, 20, 24, 27, 30, 34, 37, 40 };
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = engine(SCHEMES);
+    }
+
+    private TDTEngine engine(String... schemeNames) throws Exception {
+	Set<URL> schemes = new HashSet<URL>();
+	for (String scheme : schemeNames) {
+	    schemes.add(getClass().getClassLoader().getResource("schemes/" + scheme + ".xml"));
+	}
+	return new TDTEngine(getClass().getClassLoader().getResource("auxiliary/ManagerTranslation.xml"),
+		schemes, true);
+    }
+
+    public void testSameAsGenericEngine() {
+	Random random = new Random(42);
+	int converted = 0;
+	for (String tag : tagURIs(random)) {
+	    List<String> inputs = new ArrayList<String>();
+	    inputs.add(tag);
+	    for (LevelTypeList level : new LevelTypeList[] { LevelTypeList.BINARY, LevelTypeList.PURE_IDENTITY }) {
+		String output = convert(tag, level, false);
+		if (!output.startsWith("!")) {
+		    inputs.add(output);
+		    if (level == LevelTypeList.BINARY) {
+			// e.g. the unused bits of SSCC-96
+			inputs.add(output.substring(0, 95) + (output.endsWith("0") ? "1" : "0"));
+		    }
+		}
+	    }
+	    for (String input : inputs) {
+		for (LevelTypeList level : LEVELS) {
+		    String expected = convert(input, level, false);
+		    Assert.assertEquals(input + " to " + level, expected, convert(input, level, true));
+		    if (engine.convertWithCodec(input, parameters(), level) != null) {
+			converted++;
+		    }
+		}
+	    }
+	}
+	Assert.assertTrue(converted > 1000);
+    }
+
+    public void testSharedBinaryHeader() throws Exception {
+	TDTEngine shared = engine("SGTIN-96", "LGTIN-96");
+	int converted = 0;
+	for (String tag : tagURIs(new Random(42))) {
+	    String binary = convert(engine, tag, LevelTypeList.BINARY, false);
+	    if (!tag.startsWith("urn:epc:tag:sgtin-96:") || binary.startsWith("!")) {
+		continue;
+	    }
+	    for (LevelTypeList level : LEVELS) {
+		// the options are the same, so neither scheme is chosen
+		Assert.assertEquals(binary + " to " + level, convert(shared, binary, level, false),
+			convert(shared, binary, level, true));
+		// the scheme given
+		String expected = convertBinary(shared, binary, level, false);
+		Assert.assertEquals(binary + " to " + level, expected, convertBinary(shared, binary, level, true));
+		if (!expected.startsWith("!")) {
+		    converted++;
+		}
+	    }
+	}
+	Assert.assertTrue(converted > 100);
+    }
+
+    public void testCodecsAreUsed() {
+	Assert.assertEquals("urn:epc:id:sgtin:0614141.812345.6789",
+		engine.convertWithCodec("urn:epc:tag:sgtin-96:3.0614141.812345.6789", parameters(), LevelTypeList.PURE_IDENTITY));
+	Assert.assertEquals("urn:epc:tag:sscc-96:3.0614141.1234567890",
+		engine.convertWithCodec("urn:epc:id:sscc:0614141.1234567890", parameters(), LevelTypeList.TAG_ENCODING));
+	Assert.assertEquals("urn:epc:id:sgln:0614141.12345.400",
+		engine.convertWithCodec("urn:epc:tag:sgln-96:3.0614141.12345.400", parameters(), LevelTypeList.PURE_IDENTITY));
+	Assert.assertNotNull(engine.convertWithCodec("urn:epc:tag:grai-96:3.0614141.12345.400", parameters(), LevelTypeList.BINARY));
+	Assert.assertNotNull(engine.convertWithCodec("urn:epc:tag:giai-96:3.0614141.12345400", parameters(), LevelTypeList.BINARY));
+
+	// the definition has two binary options for partition 110
+	String binary = convert("urn:epc:tag:sgtin-96:3.061414.1812345.6789", LevelTypeList.BINARY, false);
+	Assert.assertNull(engine.convertWithCodec(binary, parameters(), LevelTypeList.TAG_ENCODING));
+
+	// not canonical
+	Assert.assertNull(engine.convertWithCodec("urn:epc:tag:sgtin-96:3.0614141.812345.06789", parameters(), LevelTypeList.BINARY));
+	Assert.assertNull(engine.convertWithCodec("urn:epc:tag:sgtin-96:3.0614141.812345.274877906944", parameters(), LevelTypeList.BINARY));
+    }
+
+    public void testOverlappingPrefixes() throws Exception {
+	TDTEngine all = new TDTEngine();
+	String sgtin = "urn:epc:tag:sgtin-96:3.0614141.812345.6789";
+	String sscc = "urn:epc:tag:sscc-96:3.0614141.1234567890";
+
+	// LGTIN-96 shares the binary header of SGTIN-96
+	String binary = engine.convert(sgtin, parameters(), LevelTypeList.BINARY);
+	Assert.assertNotNull(all.convertWithCodec(sgtin, parameters(), LevelTypeList.BINARY));
+	Assert.assertNull(all.convertWithCodec(binary, parameters(), LevelTypeList.TAG_ENCODING));
+
+	// the prefix of the SSCC element string is a prefix of every binary header
+	binary = engine.convert(sscc, parameters(), LevelTypeList.BINARY);
+	Assert.assertEquals(sscc, all.convertWithCodec(binary, parameters(), LevelTypeList.TAG_ENCODING));
+	Assert.assertEquals(sscc, all.convert(binary, parameters(), LevelTypeList.TAG_ENCODING));
+    }
+
+    private String convert(String input, LevelTypeList level, boolean codecs) {
+	return convert(engine, input, level, codecs);
+    }
+
+    private static String convert(TDTEngine engine, String input, LevelTypeList level, boolean codecs) {
+	engine.setCodecsEnabled(codecs);
+	try {
+	    return engine.convert(input, parameters(), level);
+	} catch (RuntimeException e) {
+	    return "!" + e.getClass().getName();
+	} catch (Error e) {
+	    return "!" + e.getClass().getName();
+	} finally {
+	    engine.setCodecsEnabled(true);
+	}
+    }
+
+    private static String convertBinary(TDTEngine engine, String binary, LevelTypeList level, boolean codecs) {
+	engine.setCodecsEnabled(codecs);
+	try {
+	    StringBuilder output = new StringBuilder();
+	    engine.convertBinary("SGTIN-96", binary, parameters(), level, new ConversionContext(), output);
+	    return output.toString();
+	} catch (RuntimeException e) {
+	    return "!" + e.getClass().getName();
+	} catch (Error e) {
+	    return "!" + e.getClass().getName();
+	} finally {
+	    engine.setCodecsEnabled(true);
+	}
+    }
+
+    private static Map<String, String> parameters() {
+	Map<String, String> parameters = new HashMap<String, String>();
+	parameters.put("taglength", "96");
+	parameters.put("filter", "3");
+	return parameters;
+    }
+
+    private static List<String> tagURIs(Random random) {
+	List<String> uris = new ArrayList<String>();
+	for (int length = 5; length <= 12; length++) {
+	    for (int i = 0; i < 10; i++) {
+		String prefix = random.nextInt(8) + "." + digits(random, length) + ".";
+		uris.add("urn:epc:tag:sgtin-96:" + prefix + digits(random, 13 - length) + "." + number(random, 38));
+		uris.add("urn:epc:tag:sscc-96:" + prefix + digits(random, 17 - length));
+		uris.add("urn:epc:tag:sgln-96:" + prefix + digits(random, 12 - length) + "." + number(random, 41));
+		uris.add("urn:epc:tag:grai-96:" + prefix + digits(random, 12 - length) + "." + number(random, 38));
+		uris.add("urn:epc:tag:giai-96:" + prefix + number(random, 82 - COMPANY_PREFIX_BITS[length]));
+	    }
+	}
+	uris.add("urn:epc:tag:sgtin-96:3.0614141.812345.0");
+	uris.add("urn:epc:tag:sgtin-96:3.0614141.812345.007");
+	uris.add("urn:epc:tag:sgtin-96:3.0614141.812345.274877906943");
+	uris.add("urn:epc:tag:sgtin-96:3.0614141.812345.274877906944");
+	uris.add("urn:epc:tag:sgtin-96:8.0614141.812345.6789");
+	uris.add("urn:epc:tag:sgtin-96:3.0614141.812345.6789.1");
+	uris.add("urn:epc:tag:sgtin-96:3.0614141.81234.6789");
+	uris.add("urn:epc:tag:sscc-96:3.0614141.12345678901");
+	uris.add("urn:epc:tag:sgln-96:3.061414112345..5678");
+	uris.add("urn:epc:tag:sgln-96:3.0614141.12345.2199023255552");
+	uris.add("urn:epc:tag:grai-96:3.061414112345..0");
+	uris.add("urn:epc:tag:giai-96:3.061414.4611686018427387903");
+	uris.add("urn:epc:tag:giai-96:3.061414.4611686018427387904");
+	uris.add("urn:epc:tag:giai-96:3.0614141.0012");
+	return uris;
+    }
+
+    private static String digits(Random random, int length) {
+	StringBuilder s = new StringBuilder();
+	for (int i = 0; i < length; i++) {
+	    s.append((char) ('0' + random.nextInt(10)));
+	}
+	return s.toString();
+    }
+
+    private static String number(Random random, int bits) {
+	return Long.toString(random.nextLong() >>> (64 - bits) >>> random.nextInt(bits));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that EpcColumns hold the same fields as a FieldProjection reads one
+ * EPC at a time.
+ */
+public class TestEpcColumns extends TestCase
+{
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testDecode() {
+	FieldProjection projection = engine.projection("filter", "gs1companyprefix", "serial").restrictTo(
+		"SGTIN-96", "SGTIN-198");
+	int count = 5;
+	byte[] buffer = new byte[12 * count];
+	for (int i = 0; i < count - 1; i++) {
+	    String binary = engine.convert("urn:epc:tag:sgtin-96:" + (i % 2 == 0 ? 3 : 1) + ".0614141.812345."
+		    + (1000 + i), EngineFixture.parameters("96"), LevelTypeList.BINARY);
+	    System.arraycopy(PackedBits.pack(binary), 0, buffer, 12 * i, 12);
+	}
+	// the last EPC is all zeros, which is not an SGTIN
+
+	EpcColumns columns = projection.columns(count + 1);
+	Assert.assertEquals(count, projection.decode(buffer, 0, 12, count, columns));
+	Assert.assertEquals(count, columns.size());
+	String binary = engine.convert("urn:epc:tag:sgtin-198:3.0614141.812345.AB12", EngineFixture.parameters("198"),
+		LevelTypeList.BINARY);
+	Assert.assertTrue(projection.decode(binary, columns));
+	Assert.assertFalse(projection.decode(binary, columns));
+
+	int[] filters = columns.getInts("filter");
+	long[] companyPrefixes = columns.getLongs("gs1companyprefix");
+	String[] serials = columns.getStrings("serial");
+	Assert.assertNotNull(filters);
+	Assert.assertNotNull(companyPrefixes);
+	Assert.assertNotNull(serials);
+	Assert.assertNull(columns.getLongs("filter"));
+
+	byte[] schemeIds = columns.getSchemeIds();
+	String[] schemeNames = columns.getSchemeNames();
+	for (int i = 0; i < count - 1; i++) {
+	    Assert.assertEquals("SGTIN-96", schemeNames[schemeIds[i]]);
+	    Assert.assertEquals(i % 2 == 0 ? 3 : 1, filters[i]);
+	    Assert.assertEquals(614141L, companyPrefixes[i]);
+	    Assert.assertEquals(Integer.toString(1000 + i), serials[i]);
+	    Assert.assertEquals(1000 + i, columns.getLong(i, "serial"));
+	}
+	Assert.assertEquals(-1, schemeIds[count - 1]);
+	Assert.assertEquals(-1, filters[count - 1]);
+	Assert.assertNull(serials[count - 1]);
+	Assert.assertEquals("SGTIN-198", schemeNames[schemeIds[count]]);
+	Assert.assertEquals(614141L, companyPrefixes[count]);
+	Assert.assertEquals("AB12", serials[count]);
+	Assert.assertEquals(-1, columns.getLong(count, "serial"));
+
+	columns.clear();
+	Assert.assertEquals(0, columns.size());
+	Assert.assertEquals(2, projection.decode(buffer, 0, 12, 2, columns));
+    }
+
+    public void testSharedLayout() {
+	// SGTIN-96 and LGTIN-96 have the same binary layout
+	FieldProjection projection = engine.projection("gs1companyprefix");
+	String binary = engine.convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY);
+	EpcColumns columns = projection.columns(1);
+	Assert.assertTrue(projection.decode(binary, columns));
+	Assert.assertEquals(-1, columns.getSchemeIds()[0]);
+	Assert.assertEquals(614141L, columns.getLong(0, "gs1companyprefix"));
+
+	try {
+	    projection.restrictTo("SGTIN-96").decode(binary, columns);
+	    Assert.fail();
+	} catch (TDTException e) {
+	}
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that compiled filters select the binary EPCs whose fields satisfy
+ * them, whether the EPCs are given as strings or packed.
+ */
+public class TestEpcFilter extends TestCase
+{
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testFields() {
+	EpcFilter filter = engine.filter("SGTIN-96").in("gs1companyprefix", 614141, 37000).equalTo("filter", 3)
+		.between("serial", 100, 999);
+	assertMatches(true, filter, "urn:epc:tag:sgtin-96:3.0614141.812345.100");
+	assertMatches(true, filter, "urn:epc:tag:sgtin-96:3.0614141.712345.999");
+	assertMatches(true, filter, "urn:epc:tag:sgtin-96:3.0037000.012345.500");
+	assertMatches(false, filter, "urn:epc:tag:sgtin-96:3.0614141.812345.99");
+	assertMatches(false, filter, "urn:epc:tag:sgtin-96:3.0614141.812345.1000");
+	assertMatches(false, filter, "urn:epc:tag:sgtin-96:1.0614141.812345.500");
+	assertMatches(false, filter, "urn:epc:tag:sgtin-96:3.0614142.812345.500");
+	assertMatches(false, filter, "urn:epc:tag:sgtin-96:3.06141414.12345.500");
+	assertMatches(false, filter, "urn:epc:tag:sscc-96:3.0614141.1234567890");
+    }
+
+    public void testSchemes() {
+	EpcFilter filter = engine.filter("SSCC-96", "GID-96");
+	assertMatches(true, filter, "urn:epc:tag:sscc-96:3.0614141.1234567890");
+	assertMatches(true, filter, "urn:epc:tag:gid-96:0614141.12345.400");
+	assertMatches(false, filter, "urn:epc:tag:sgtin-96:3.0614141.812345.100");
+
+	// only SSCC-96 has a filter value
+	filter = filter.equalTo("filter", 3);
+	assertMatches(true, filter, "urn:epc:tag:sscc-96:3.0614141.1234567890");
+	assertMatches(false, filter, "urn:epc:tag:gid-96:0614141.12345.400");
+
+	// contradicting conditions
+	assertMatches(false, filter.equalTo("filter", 2), "urn:epc:tag:sscc-96:3.0614141.1234567890");
+	assertMatches(false, filter.between("serialref", 10, 5), "urn:epc:tag:sscc-96:3.0614141.1234567890");
+	assertMatches(false, filter.in("gs1companyprefix"), "urn:epc:tag:sscc-96:3.0614141.1234567890");
+    }
+
+    public void testUnknownNames() {
+	try {
+	    engine.filter("SGTIN-97");
+	    fail("no such scheme");
+	} catch (TDTException e) {
+	    // expected
+	}
+	try {
+	    engine.filter("GID-96").equalTo("filter", 1);
+	    fail("no such field");
+	} catch (TDTException e) {
+	    // expected
+	}
+    }
+
+    public void testPatternUri() throws Exception {
+	EpcFilter filter = engine.compilePattern("urn:epc:idpat:sgtin:0614141.*.*");
+	assertMatches(true, filter, "urn:epc:tag:sgtin-96:3.0614141.812345.100");
+	assertMatches(true, filter, "urn:epc:tag:sgtin-96:0.0614141.712345.0");
+	assertMatches(false, filter, "urn:epc:tag:sgtin-96:3.0614142.812345.100");
+	assertMatches(false, filter, "urn:epc:tag:sscc-96:3.0614141.1234567890");
+	Map<String, String> parameters = EngineFixture.parameters("96");
+	parameters.put("taglength", "198");
+	String sgtin198 = engine.convert("urn:epc:tag:sgtin-198:3.0614141.812345.ABC", parameters, LevelTypeList.BINARY);
+	Assert.assertTrue(filter.matches(sgtin198));
+
+	filter = engine.compilePattern("urn:epc:idpat:sgtin:0614141.812345.[100-200]");
+	assertMatches(true, filter, "urn:epc:tag:sgtin-96:3.0614141.812345.150");
+	assertMatches(false, filter, "urn:epc:tag:sgtin-96:3.0614141.812345.201");
+	assertMatches(false, filter, "urn:epc:tag:sgtin-96:3.0614141.812346.150");
+	// alphanumeric serial numbers are not compared
+	Assert.assertFalse(filter.matches(sgtin198));
+
+	assertMatches(true, engine.compilePattern("urn:epc:idpat:gid:614141.12345.*"), "urn:epc:tag:gid-96:0614141.12345.400");
+	assertMatches(true, engine.compilePattern("urn:epc:idpat:sscc:0614141.*"), "urn:epc:tag:sscc-96:3.0614141.1234567890");
+	assertMatches(false, engine.compilePattern("urn:epc:idpat:sscc:0614141.*"), "urn:epc:tag:sscc-96:3.06141410.123456789");
+
+	String[] invalid = { "urn:epc:idpat:sgtin:0614141.*", "urn:epc:idpat:sgtin:061414x.*.*", "urn:epc:idpat:foo:*" };
+	for (String uri : invalid) {
+	    try {
+		engine.compilePattern(uri);
+		fail(uri);
+	    } catch (TDTException e) {
+		// expected
+	    }
+	}
+    }
+
+    public void testMatchAll() {
+	EpcFilter filter = EpcFilter.anyOf(engine.compilePattern("urn:epc:idpat:sgtin:0614141.*.[0-99]"),
+		engine.compilePattern("urn:epc:idpat:sscc:0614141.*"));
+	String[] tags = { "urn:epc:tag:sgtin-96:3.0614141.812345.10", "urn:epc:tag:sgtin-96:3.0614141.812345.100",
+		"urn:epc:tag:gid-96:0614141.12345.400", "urn:epc:tag:sscc-96:3.0614141.1234567890",
+		"urn:epc:tag:sgtin-96:3.0614141.812345.99" };
+	byte[] buffer = new byte[2 + 12 * tags.length];
+	for (int i = 0; i < tags.length; i++) {
+	    byte[] packed = PackedBits.pack(engine.convert(tags[i], EngineFixture.parameters("96"),
+		    LevelTypeList.BINARY));
+	    System.arraycopy(packed, 0, buffer, 2 + 12 * i, 12);
+	}
+	int[] matches = new int[tags.length];
+	Assert.assertEquals(3, filter.matchAll(buffer, 2, 12, tags.length, matches));
+	Assert.assertEquals(0, matches[0]);
+	Assert.assertEquals(3, matches[1]);
+	Assert.assertEquals(4, matches[2]);
+    }
+
+    public void testPackedBits() {
+	String binary = engine.convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY);
+	byte[] packed = PackedBits.pack(binary);
+	Assert.assertEquals(12, packed.length);
+	for (int start = 0; start < 96; start += 7) {
+	    int length = Math.min(40, 96 - start);
+	    Assert.assertEquals(CodecFields.parseBits(binary, start, length), PackedBits.get(packed, 0, start, length));
+	}
+	byte[] copy = new byte[12];
+	for (int start = 0; start < 96; start += 12) {
+	    PackedBits.set(copy, start, 12, PackedBits.get(packed, 0, start, 12));
+	}
+	Assert.assertTrue(Arrays.equals(packed, copy));
+    }
+
+    private void assertMatches(boolean expected, EpcFilter filter, String tag) {
+	String binary = engine.convert(tag, EngineFixture.parameters("96"), LevelTypeList.BINARY);
+	Assert.assertEquals(tag, expected, filter.matches(binary));
+	byte[] packed = PackedBits.pack(binary);
+	Assert.assertEquals(tag, expected, filter.matches(packed));
+	byte[] buffer = new byte[packed.length + 5];
+	System.arraycopy(packed, 0, buffer, 3, packed.length);
+	Assert.assertEquals(tag, expected, filter.matches(buffer, 3, packed.length));
+    }
+}
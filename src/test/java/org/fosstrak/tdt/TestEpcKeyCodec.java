@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that the keys of an EpcKeyCodec sort as the fields of the EPCs and
+ * translate back to the same EPCs.
+ */
+public class TestEpcKeyCodec extends TestCase
+{
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testSerialOrder() {
+	EpcKeyCodec codec = engine.keyCodec();
+	Assert.assertEquals(2 + 5 + 4 + 5, codec.getKeyLength("SGTIN-96"));
+	byte[] previous = null;
+	for (long serial : new long[] { 0, 9, 10, 100, 1041970, 274877906943L }) {
+	    String tag = "urn:epc:tag:sgtin-96:3.0614141.812345." + serial;
+	    byte[] key = codec.encode(tag, EngineFixture.parameters("96"));
+	    Assert.assertEquals(16, key.length);
+	    if (previous != null) {
+		Assert.assertTrue(tag, compare(previous, key) < 0);
+	    }
+	    previous = key;
+	    Assert.assertEquals("urn:epc:id:sgtin:0614141.812345." + serial,
+		    codec.decode(key, 0, EngineFixture.parameters("96"), LevelTypeList.PURE_IDENTITY));
+	}
+	// the next item reference sorts after every serial number of this one
+	Assert.assertTrue(compare(previous, codec.encode("urn:epc:tag:sgtin-96:3.0614141.812346.0",
+		EngineFixture.parameters("96"))) < 0);
+    }
+
+    public void testCanonical() {
+	EpcKeyCodec codec = engine.keyCodec();
+	byte[] key = codec.encode("urn:epc:tag:sgtin-96:3.0614141.812345.6789", EngineFixture.parameters("96"));
+	// the filter value is not part of the key
+	Assert.assertTrue(Arrays.equals(key, codec.encode("urn:epc:tag:sgtin-96:1.0614141.812345.6789",
+		EngineFixture.parameters("96"))));
+	Assert.assertTrue(Arrays.equals(key, codec.encode("urn:epc:id:sgtin:0614141.812345.6789",
+		EngineFixture.parameters("96"))));
+
+	// the binary encoding is shared with LGTIN-96 unless the codec is restricted
+	String binary = engine.convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY);
+	try {
+	    codec.encode(binary, EngineFixture.parameters("96"));
+	    Assert.fail();
+	} catch (TDTException e) {
+	}
+	EpcKeyCodec sgtin = engine.keyCodec("SGTIN-96");
+	byte[] buffer = new byte[20];
+	Assert.assertEquals(19, sgtin.encode(binary, EngineFixture.parameters("96"), buffer, 3));
+	Assert.assertTrue(Arrays.equals(key, Arrays.copyOfRange(buffer, 3, 19)));
+	Assert.assertEquals("SGTIN-96", sgtin.getSchemeNames()[key[0]]);
+
+	// another length of company prefix is another option
+	byte[] other = codec.encode("urn:epc:tag:sgtin-96:3.061414141.1234.6789", EngineFixture.parameters("96"));
+	Assert.assertEquals(key[0], other[0]);
+	Assert.assertTrue(key[1] != other[1]);
+	Assert.assertEquals("urn:epc:id:sgtin:061414141.1234.6789",
+		codec.decode(other, 0, EngineFixture.parameters("96"), LevelTypeList.PURE_IDENTITY));
+    }
+
+    public void testAlphanumeric() {
+	EpcKeyCodec codec = engine.keyCodec();
+	String[] serials = { "0", "A", "AB", "AB0", "B" };
+	byte[] previous = null;
+	for (String serial : serials) {
+	    String tag = "urn:epc:tag:sgtin-198:3.0614141.812345." + serial;
+	    byte[] key = codec.encode(tag, EngineFixture.parameters("198"));
+	    Assert.assertEquals(codec.getKeyLength("SGTIN-198"), key.length);
+	    if (previous != null) {
+		Assert.assertTrue(tag, compare(previous, key) < 0);
+	    }
+	    previous = key;
+	    Assert.assertEquals("urn:epc:id:sgtin:0614141.812345." + serial,
+		    codec.decode(key, 0, EngineFixture.parameters("198"), LevelTypeList.PURE_IDENTITY));
+	}
+    }
+
+    public void testInvalidKey() {
+	EpcKeyCodec codec = engine.keyCodec("GID-96");
+	byte[] key = codec.encode("urn:epc:id:gid:95100000.12345.400", EngineFixture.parameters("96"));
+	Assert.assertEquals("urn:epc:id:gid:95100000.12345.400",
+		codec.decode(key, 0, EngineFixture.parameters("96"), LevelTypeList.PURE_IDENTITY));
+	key[0]++;
+	try {
+	    codec.decode(key, 0, EngineFixture.parameters("96"), LevelTypeList.PURE_IDENTITY);
+	    Assert.fail();
+	} catch (TDTException e) {
+	}
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+	for (int i = 0; i < Math.min(a.length, b.length); i++) {
+	    if (a[i] != b[i]) {
+		return (a[i] & 0xff) - (b[i] & 0xff);
+	    }
+	}
+	return a.length - b.length;
+    }
+}
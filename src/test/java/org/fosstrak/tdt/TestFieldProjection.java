@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that a FieldProjection reads the same fields as the engine extracts.
+ */
+public class TestFieldProjection extends TestCase
+{
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testBinaryFields() {
+	FieldProjection projection = engine.projection("filter", "gs1companyprefix", "itemref");
+	long[] values = new long[3];
+	String[][] keys = { { "0614141", "812345" }, { "0614141412", "123" }, { "06141414", "12345" },
+		{ "061414141234", "5" } };
+	for (String[] key : keys) {
+	    String companyPrefix = key[0];
+	    String itemref = key[1];
+	    String binary = engine.convert("urn:epc:tag:sgtin-96:3." + companyPrefix + "." + itemref + ".6789",
+		    EngineFixture.parameters("96"), LevelTypeList.BINARY);
+	    Assert.assertTrue(companyPrefix, projection.project(binary, values));
+	    Assert.assertEquals(3, values[0]);
+	    Assert.assertEquals(Long.parseLong(companyPrefix), values[1]);
+	    Assert.assertEquals(Long.parseLong(itemref), values[2]);
+	}
+    }
+
+    public void testConcurrentFirstUse() throws Exception {
+	// the layouts are worked out by whichever thread comes first
+	TDTEngine fresh = new TDTEngine();
+	final FieldProjection projection = fresh.projection("filter", "gs1companyprefix");
+	final EpcColumns[] columns = new EpcColumns[8];
+	final CountDownLatch start = new CountDownLatch(1);
+	Thread[] threads = new Thread[columns.length];
+	for (int i = 0; i < threads.length; i++) {
+	    final int index = i;
+	    threads[i] = new Thread() {
+		public void run() {
+		    try {
+			start.await();
+			columns[index] = projection.columns(1);
+		    } catch (InterruptedException e) {
+			// columns[index] stays null
+		    }
+		}
+	    };
+	    threads[i].start();
+	}
+	start.countDown();
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+	for (EpcColumns c : columns) {
+	    Assert.assertSame(columns[0].layouts, c.layouts);
+	    Assert.assertSame(fresh.getBinaryLayouts(), c.layouts.source);
+	}
+    }
+
+    public void testSameAsExtraction() {
+	FieldProjection projection = engine.projection("filter", "gs1companyprefix", "serialref");
+	String binary = engine.convert("urn:epc:tag:sscc-96:2.0614141.1234567890", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY);
+	long[] values = new long[3];
+	Assert.assertTrue(projection.project(binary, values));
+	Map<String, String> fields = engine.extractFields(binary, EngineFixture.parameters("96"));
+	for (int i = 0; i < values.length; i++) {
+	    Assert.assertEquals(Long.parseLong(fields.get(projection.getFieldNames()[i])), values[i]);
+	}
+	Map<String, String> projected = projection.project(binary, EngineFixture.parameters("96"));
+	Assert.assertEquals("0614141", projected.get("gs1companyprefix"));
+	Assert.assertEquals(projected, projection.project("urn:epc:tag:sscc-96:2.0614141.1234567890",
+		EngineFixture.parameters("96")));
+    }
+
+    public void testUnknownInput() {
+	FieldProjection projection = engine.projection("gs1companyprefix");
+	long[] values = new long[1];
+	String binary = engine.convert("urn:epc:tag:gid-96:0614141.12345.400", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY);
+	// no such field in GID-96
+	Assert.assertFalse(projection.project(binary, values));
+	Assert.assertTrue(engine.projection("generalmanager").project(binary, values));
+	Assert.assertEquals(614141, values[0]);
+
+	Assert.assertFalse(projection.project("urn:epc:tag:gid-96:0614141.12345.400", values));
+	Assert.assertFalse(projection.project(binary.substring(1), values));
+	Assert.assertFalse(projection.project("11111111" + binary.substring(8), values));
+
+	// SGTIN-96 and LGTIN-96 share their layouts, but only SGTIN-96 has a serial
+	String sgtin = engine.convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY);
+	Assert.assertTrue(projection.project(sgtin, values));
+	Assert.assertFalse(engine.projection("serial").project(sgtin, values));
+    }
+
+    public void testPatch() {
+	String binary = engine.convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY);
+	String expected = engine.convert("urn:epc:tag:sgtin-96:1.0614141.812345.42", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY);
+	FieldProjection projection = engine.projection("filter", "serial");
+	// LGTIN-96 has a lot instead of a serial number
+	Assert.assertFalse(projection.patch(new StringBuilder(binary), new long[] { 1, 42 }));
+	projection = projection.restrictTo("SGTIN-96");
+
+	StringBuilder patched = new StringBuilder(binary);
+	Assert.assertTrue(projection.patch(patched, new long[] { 1, 42 }));
+	Assert.assertEquals(expected, patched.toString());
+
+	byte[] buffer = new byte[14];
+	System.arraycopy(PackedBits.pack(binary), 0, buffer, 2, 12);
+	Assert.assertTrue(projection.patch(buffer, 2, 12, new long[] { 1, 42 }));
+	long[] values = new long[2];
+	Assert.assertTrue(projection.project(buffer, 2, 12, values));
+	Assert.assertEquals(1, values[0]);
+	Assert.assertEquals(42, values[1]);
+	byte[] packed = PackedBits.pack(expected);
+	for (int i = 0; i < packed.length; i++) {
+	    Assert.assertEquals(packed[i], buffer[2 + i]);
+	}
+    }
+
+    public void testPatchRange() {
+	String binary = engine.convert("urn:epc:tag:sgtin-96:3.0614141.812345.6789", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY);
+	StringBuilder patched = new StringBuilder(binary);
+	try {
+	    engine.projection("filter").patch(patched, new long[] { 8 });
+	    fail("filter has 3 bits");
+	} catch (TDTException e) {
+	    // expected
+	}
+	try {
+	    // 24 bits, but at most 7 digits
+	    engine.projection("gs1companyprefix").patch(patched, new long[] { 10000000 });
+	    fail("company prefix too long");
+	} catch (TDTException e) {
+	    // expected
+	}
+	Assert.assertEquals(binary, patched.toString());
+	Assert.assertTrue(engine.projection("gs1companyprefix").patch(patched, new long[] { 9999999 }));
+	Assert.assertEquals(engine.convert("urn:epc:tag:sgtin-96:3.9999999.812345.6789", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY), patched.toString());
+
+	// not a known layout
+	Assert.assertFalse(engine.projection("filter").patch(new StringBuilder("0101"), new long[] { 1 }));
+    }
+}
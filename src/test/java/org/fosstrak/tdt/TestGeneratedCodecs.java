@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.EpcTagDataTranslation;
+import org.epcglobalinc.tdt.LevelTypeList;
+import org.epcglobalinc.tdt.Option;
+import org.epcglobalinc.tdt.Scheme;
+
+/**
+ * Checks the codecs generated from the scheme definitions at build time
+ * against the definitions and the generic engine.
+ */
+public class TestGeneratedCodecs extends TestCase
+{
+
+    private static final String[] SCHEMES = { "SGTIN-96", "SSCC-96", "SGLN-96", "GRAI-96", "GIAI-96", "GID-96",
+	    "GSRN-96", "GDTI-96" };
+
+    private static final LevelTypeList[] LEVELS = { LevelTypeList.BINARY, LevelTypeList.TAG_ENCODING,
+	    LevelTypeList.PURE_IDENTITY };
+
+    // bits of the company prefix by number of digits
+    private static final int[] COMPANY_PREFIX_BITS = { 0, 0, 0, 0, 0, 20, 20, 24, 27, 30, 34, 37, 40 };
+
+    private TDTEngine engine;
+
+    private Map<String, Scheme> schemes;
+
+    protected void setUp() throws Exception {
+	Set<URL> files = new HashSet<URL>();
+	schemes = new HashMap<String, Scheme>();
+	JAXBContext context = JAXBContext.newInstance(EpcTagDataTranslation.class);
+	for (String name : SCHEMES) {
+	    URL url = getClass().getClassLoader().getResource("schemes/" + name + ".xml");
+	    files.add(url);
+	    EpcTagDataTranslation tdt = context.createUnmarshaller()
+		    .unmarshal(new StreamSource(url.openStream()), EpcTagDataTranslation.class).getValue();
+	    schemes.put(name, tdt.getScheme().get(0));
+	}
+	engine = new TDTEngine(getClass().getClassLoader().getResource("auxiliary/ManagerTranslation.xml"), files,
+		true);
+	engine.setCodecsEnabled(false);
+    }
+
+    public void testDigestsMatchDefinitions() {
+	for (String name : SCHEMES) {
+	    Assert.assertNotNull(name, codec(name));
+	}
+    }
+
+    public void testChangedDefinitionIsNotBound() {
+	Scheme scheme = schemes.get("SSCC-96");
+	Option option = scheme.getLevel().get(1).getOption().get(0);
+	option.setPattern(option.getPattern() + "0");
+	Assert.assertNull(codec("SSCC-96"));
+    }
+
+    public void testSameAsGenericEngine() {
+	Random random = new Random(7);
+	int converted = 0;
+	Set<String> used = new HashSet<String>();
+	for (String tag : tagURIs(random)) {
+	    EpcCodec codec = codec(tag.substring("urn:epc:tag:".length(), tag.indexOf(':', "urn:epc:tag:".length()))
+		    .toUpperCase());
+	    String binary = generic(tag, LevelTypeList.BINARY);
+	    String pure = generic(tag, LevelTypeList.PURE_IDENTITY);
+	    String[] inputs = { binary, tag, pure };
+	    for (int i = 0; i < inputs.length; i++) {
+		if (inputs[i] == null) {
+		    continue;
+		}
+		for (LevelTypeList level : LEVELS) {
+		    StringBuilder actual = new StringBuilder();
+		    if (codec.convert(inputs[i], LEVELS[i], parameters(), level, actual)) {
+			Assert.assertEquals(inputs[i] + " to " + level, generic(inputs[i], level), actual.toString());
+			converted++;
+			used.add(codec.getSchemeName());
+		    }
+		}
+	    }
+	}
+	Assert.assertTrue(converted > 3000);
+	Assert.assertEquals(SCHEMES.length, used.size());
+    }
+
+    private EpcCodec codec(String name) {
+	for (EpcCodec codec : GeneratedCodecs.CODECS) {
+	    if (codec.getSchemeName().equals(name)) {
+		return codec.bind(schemes.get(name));
+	    }
+	}
+	return null;
+    }
+
+    private String generic(String input, LevelTypeList level) {
+	try {
+	    return engine.convert(input, parameters(), level);
+	} catch (RuntimeException e) {
+	    return null;
+	} catch (Error e) {
+	    return null;
+	}
+    }
+
+    private static Map<String, String> parameters() {
+	Map<String, String> parameters = new HashMap<String, String>();
+	parameters.put("taglength", "96");
+	parameters.put("filter", "1");
+	return parameters;
+    }
+
+    private static String[] tagURIs(Random random) {
+	List<String> uris = new ArrayList<String>();
+	for (int length = 5; length <= 12; length++) {
+	    for (int i = 0; i < 10; i++) {
+		String prefix = random.nextInt(8) + "." + digits(random, length) + ".";
+		uris.add("urn:epc:tag:sgtin-96:" + prefix + digits(random, 13 - length) + "." + number(random, 38));
+		uris.add("urn:epc:tag:sscc-96:" + prefix + digits(random, 17 - length));
+		uris.add("urn:epc:tag:sgln-96:" + prefix + digits(random, 12 - length) + "." + number(random, 41));
+		uris.add("urn:epc:tag:grai-96:" + prefix + digits(random, 12 - length) + "." + number(random, 38));
+		uris.add("urn:epc:tag:giai-96:" + prefix + number(random, 82 - COMPANY_PREFIX_BITS[length]));
+		uris.add("urn:epc:tag:gsrn-96:" + prefix + digits(random, 17 - length));
+		uris.add("urn:epc:tag:gdti-96:" + prefix + digits(random, 12 - length) + "." + number(random, 41));
+		uris.add("urn:epc:tag:gid-96:" + number(random, 28) + "." + number(random, 24) + "." + number(random, 36));
+	    }
+	}
+	uris.add("urn:epc:tag:sgtin-96:3.0614141.812345.007");
+	uris.add("urn:epc:tag:gid-96:0614141.12345.400");
+	uris.add("urn:epc:tag:gid-96:268435456.12345.400");
+	return uris.toArray(new String[uris.size()]);
+    }
+
+    private static String digits(Random random, int length) {
+	StringBuilder s = new StringBuilder();
+	for (int i = 0; i < length; i++) {
+	    s.append((char) ('0' + random.nextInt(10)));
+	}
+	return s.toString();
+    }
+
+    private static String number(Random random, int bits) {
+	return Long.toString(random.nextLong() >>> (64 - bits) >>> random.nextInt(bits));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that EPCs in hex notation are translated as the engine translates
+ * the same EPCs in binary, whatever the alignment of the digits.
+ */
+public class TestHexConversion extends TestCase
+{
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testHex2Bin() {
+	Assert.assertEquals("", engine.hex2bin(""));
+	Assert.assertEquals("0000101011111111", engine.hex2bin("0aFf"));
+	Assert.assertEquals("", engine.bin2hex(""));
+	Assert.assertEquals("0AFF", engine.bin2hex("0000101011111111"));
+	// right-aligned, with leading zero bits
+	Assert.assertEquals("5F", engine.bin2hex("1011111"));
+	try {
+	    engine.hex2bin("0G");
+	    Assert.fail();
+	} catch (NumberFormatException e) {
+	}
+    }
+
+    public void testPureIdentity() {
+	// SSCC-96 example of the TDS
+	Assert.assertEquals("urn:epc:id:sscc:0614141.1234567890",
+		engine.convertHexEPCToPureIdentityEPC("3174257BF4499602D2000000"));
+	Assert.assertEquals("urn:epc:id:sscc:0614141.1234567890",
+		engine.convertBinaryEPCToPureIdentityEPC(engine.hex2bin("3174257BF4499602D2000000")));
+	Assert.assertEquals("urn:epc:tag:sscc-96:3.0614141.1234567890",
+		engine.convertHex("3174257bf4499602d2000000", new HashMap<String, String>(), LevelTypeList.TAG_ENCODING));
+	Map<String, String> parameters = EngineFixture.parameters("96");
+	Assert.assertEquals("3174257BF4499602D2000000",
+		engine.convertToHex("urn:epc:tag:sscc-96:3.0614141.1234567890", parameters));
+    }
+
+    public void testAlignment() {
+	Map<String, String> parameters = EngineFixture.parameters("198");
+	String tag = "urn:epc:tag:sgtin-198:3.0614141.812345.6789";
+	String binary = engine.convert(tag, parameters, LevelTypeList.BINARY);
+	Assert.assertEquals(198, binary.length());
+
+	// as bin2hex writes it, with 2 zero bits in front
+	String hex = engine.convertToHex(tag, parameters);
+	Assert.assertEquals(50, hex.length());
+	Assert.assertEquals(engine.bin2hex(binary), hex);
+	Assert.assertEquals(tag, engine.convertHex(hex, new HashMap<String, String>(), LevelTypeList.TAG_ENCODING));
+
+	// as read from a tag, padded with zero bits to 13 words
+	String words = engine.bin2hex(binary + "0000000000");
+	Assert.assertEquals(52, words.length());
+	Assert.assertEquals(tag, engine.convertHex(words, new HashMap<String, String>(), LevelTypeList.TAG_ENCODING));
+
+	// in place within a larger buffer
+	StringBuilder out = new StringBuilder();
+	engine.convertHex("<" + words + ">", 1, 53, new HashMap<String, String>(), LevelTypeList.TAG_ENCODING, out,
+		new ConversionContext());
+	Assert.assertEquals(tag, out.toString());
+    }
+
+    public void testInvalid() {
+	String[] invalid = { "3174257BF4499602D200000", "3174257BF4499602D200000G", "FF74257BF4499602D2000000" };
+	for (String hex : invalid) {
+	    try {
+		engine.convertHexEPCToPureIdentityEPC(hex);
+		Assert.fail(hex);
+	    } catch (TDTException e) {
+	    }
+	}
+    }
+}
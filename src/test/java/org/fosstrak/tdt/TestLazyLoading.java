@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+public class TestLazyLoading extends TestCase
+{
+
+    private Map<String,String> params;
+
+    protected void setUp() {
+	params = new HashMap<String,String>();
+	params.put("taglength", "96");
+	params.put("filter", "3");
+	params.put("gs1companyprefixlength", "7");
+    }
+
+    public void testOnlyMatchingSchemeIsLoaded() throws Exception {
+	TDTEngine engine = new TDTEngine(true);
+	Assert.assertFalse(engine.isLazySchemeLoaded("SSCC-96"));
+
+	String s = engine.convert("urn:epc:tag:sscc-96:3.0037000.0302414785",
+				  params,
+				  LevelTypeList.BINARY);
+	Assert.assertEquals("001100010111010000000010010000100010000000010010000001100111101111000001000000000000000000000000", s);
+
+	Assert.assertTrue(engine.isLazySchemeLoaded("SSCC-96"));
+	Assert.assertFalse(engine.isLazySchemeLoaded("USDOD-96"));
+	Assert.assertFalse(engine.isLazySchemeLoaded("ADI-var"));
+	Assert.assertFalse(engine.isLazySchemeLoaded("GRAI-170"));
+    }
+
+    public void testSameResultsAsEagerLoading() throws Exception {
+	TDTEngine lazy = new TDTEngine(true);
+	TDTEngine eager = new TDTEngine();
+	String[] input = {
+	    "urn:epc:tag:sgtin-96:3.0037000.030241.1041970",
+	    "urn:epc:tag:grai-96:3.0037000.30241.274877906943",
+	    "urn:epc:id:giai:0037000.3024149267890123",
+	    "cageordodaac=2S194;serial=12345678901"
+	};
+	for (String s : input) {
+	    Map<String,String> p1 = new HashMap<String,String>(params);
+	    Map<String,String> p2 = new HashMap<String,String>(params);
+	    Assert.assertEquals(eager.convert(s, p1, LevelTypeList.BINARY),
+				lazy.convert(s, p2, LevelTypeList.BINARY));
+	}
+    }
+
+}
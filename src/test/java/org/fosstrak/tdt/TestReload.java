@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+public class TestReload extends TestCase
+{
+
+    private static final String SSCC = "urn:epc:tag:sscc-96:3.0037000.0302414785";
+    private static final String GRAI = "urn:epc:tag:grai-96:3.0037000.30241.274877906943";
+
+    private File dir;
+    private URL auxiliary;
+
+    protected void setUp() throws Exception {
+	dir = File.createTempFile("schemes", "");
+	dir.delete();
+	dir.mkdir();
+	copyScheme("SSCC-96.xml");
+	auxiliary = getClass().getClassLoader().getResource("auxiliary/ManagerTranslation.xml");
+    }
+
+    protected void tearDown() {
+	for (File f : dir.listFiles()) {
+	    f.delete();
+	}
+	dir.delete();
+    }
+
+    public void testReload() throws Exception {
+	TDTEngine engine = new TDTEngine(auxiliary, dir.toURI().toURL());
+	Assert.assertNotNull(convert(engine, SSCC));
+	Assert.assertNull(convert(engine, GRAI));
+
+	copyScheme("GRAI-96.xml");
+	new File(dir, "SSCC-96.xml").delete();
+	Assert.assertNull(convert(engine, GRAI));
+
+	engine.reload();
+	Assert.assertNull(convert(engine, SSCC));
+	Assert.assertEquals("001100110111010000000010010000100010000000011101100010000111111111111111111111111111111111111111", convert(engine, GRAI));
+    }
+
+    public void testFailedReloadKeepsDefinitions() throws Exception {
+	TDTEngine engine = new TDTEngine(auxiliary, dir.toURI().toURL());
+	OutputStream out = new FileOutputStream(new File(dir, "broken.xml"));
+	out.write("<epcTagDataTranslation".getBytes("US-ASCII"));
+	out.close();
+	try {
+	    engine.reload();
+	    Assert.fail("broken scheme file should not load");
+	} catch (Exception e) {
+	    // expected
+	}
+	Assert.assertNotNull(convert(engine, SSCC));
+    }
+
+    public void testWatching() throws Exception {
+	TDTEngine engine = new TDTEngine(auxiliary, dir.toURI().toURL());
+	engine.startWatching(200);
+	try {
+	    copyScheme("GRAI-96.xml");
+	    String s = null;
+	    for (int i = 0; i < 100 && s == null; i++) {
+		Thread.sleep(100);
+		s = convert(engine, GRAI);
+	    }
+	    Assert.assertNotNull(s);
+	} finally {
+	    engine.stopWatching();
+	}
+    }
+
+    private String convert(TDTEngine engine, String input) {
+	Map<String,String> params = new HashMap<String,String>();
+	params.put("taglength", "96");
+	try {
+	    return engine.convert(input, params, LevelTypeList.BINARY);
+	} catch (TDTException e) {
+	    return null;
+	}
+    }
+
+    private void copyScheme(String name) throws Exception {
+	InputStream in = getClass().getClassLoader().getResourceAsStream("schemes/" + name);
+	OutputStream out = new FileOutputStream(new File(dir, name));
+	byte[] buf = new byte[8192];
+	int n;
+	while ((n = in.read(buf)) > 0) {
+	    out.write(buf, 0, n);
+	}
+	in.close();
+	out.close();
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks the Gen2 Select commands computed from field values against the
+ * binary encodings of EPCs with and without those values.
+ */
+public class TestSelectMasks extends TestCase
+{
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testCompanyPrefix() {
+	Map<String, String> values = new HashMap<String, String>();
+	values.put("filter", "3");
+	values.put("gs1companyprefix", "0037000");
+	List<SelectMask> masks = engine.selectMasks("SGTIN-96", values);
+	// header, filter, partition and company prefix are contiguous
+	Assert.assertEquals(1, masks.size());
+	Assert.assertEquals(0x20, masks.get(0).getPointer());
+	Assert.assertEquals(8 + 3 + 3 + 24, masks.get(0).getLength());
+	Assert.assertEquals(SelectMask.EPC_BANK, masks.get(0).getMemoryBank());
+
+	Assert.assertTrue(selects(masks, "urn:epc:tag:sgtin-96:3.0037000.012345.6789"));
+	Assert.assertTrue(selects(masks, "urn:epc:tag:sgtin-96:3.0037000.099999.1"));
+	Assert.assertFalse(selects(masks, "urn:epc:tag:sgtin-96:1.0037000.012345.6789"));
+	Assert.assertFalse(selects(masks, "urn:epc:tag:sgtin-96:3.0037001.012345.6789"));
+	Assert.assertFalse(selects(masks, "urn:epc:tag:sgtin-96:3.00370001.12345.6789"));
+    }
+
+    public void testSeparateRuns() {
+	Map<String, String> values = new HashMap<String, String>();
+	values.put("gs1companyprefix", "0614141");
+	values.put("serial", "400");
+	List<SelectMask> masks = engine.selectMasks("SGTIN-96", values);
+	// the filter value separates the header from partition and company prefix
+	Assert.assertEquals(3, masks.size());
+	Assert.assertEquals(0x20, masks.get(0).getPointer());
+	Assert.assertEquals(8, masks.get(0).getLength());
+	Assert.assertEquals(0x20 + 11, masks.get(1).getPointer());
+	Assert.assertEquals(3 + 24, masks.get(1).getLength());
+	Assert.assertEquals(0x20 + 14 + 24 + 20, masks.get(2).getPointer());
+	Assert.assertEquals(38, masks.get(2).getLength());
+	Assert.assertTrue(selects(masks, "urn:epc:tag:sgtin-96:1.0614141.812345.400"));
+	Assert.assertFalse(selects(masks, "urn:epc:tag:sgtin-96:1.0614141.812345.401"));
+    }
+
+    public void testCommonBits() {
+	// without a company prefix, every partition is possible; the reserved bits are not selected
+	Map<String, String> values = new HashMap<String, String>();
+	values.put("filter", "2");
+	List<SelectMask> masks = engine.selectMasks("SSCC-96", values);
+	Assert.assertEquals(1, masks.size());
+	Assert.assertEquals("00110001010", masks.get(0).getMaskBits());
+	Assert.assertTrue(selects(masks, "urn:epc:tag:sscc-96:2.0614141.1234567890"));
+	Assert.assertTrue(selects(masks, "urn:epc:tag:sscc-96:2.06141410.123456789"));
+    }
+
+    public void testInvalidValues() {
+	Map<String, String> values = new HashMap<String, String>();
+	values.put("gs1companyprefix", "12345678901234");
+	try {
+	    engine.selectMasks("SGTIN-96", values);
+	    fail("no such partition");
+	} catch (TDTException e) {
+	    // expected
+	}
+	values.clear();
+	values.put("filter", "x");
+	try {
+	    engine.selectMasks("SGTIN-96", values);
+	    fail("not a number");
+	} catch (TDTException e) {
+	    // expected
+	}
+    }
+
+    private boolean selects(List<SelectMask> masks, String tag) {
+	Map<String, String> parameters = EngineFixture.parameters("96");
+	String binary = engine.convert(tag, parameters, LevelTypeList.BINARY);
+	for (SelectMask mask : masks) {
+	    int start = mask.getPointer() - SelectMask.EPC_OFFSET;
+	    if (!binary.substring(start, start + mask.getLength()).equals(mask.getMaskBits())) {
+		return false;
+	    }
+	}
+	return true;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2007 University of Cambridge
+ *
+ * This file is part of Fosstrak (www.fosstrak.org).
+ *
+ * Fosstrak is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License version 2.1, as published by the Free Software Foundation.
+ *
+ * Fosstrak is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Fosstrak; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package org.fosstrak.tdt;
+
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.epcglobalinc.tdt.LevelTypeList;
+
+/**
+ * Checks that a SerialRangeEncoder writes the same EPCs as the engine
+ * converts one at a time.
+ */
+public class TestSerialRangeEncoder extends TestCase
+{
+
+    private TDTEngine engine;
+
+    protected void setUp() throws Exception {
+	engine = EngineFixture.engine();
+    }
+
+    public void testSameAsConvert() {
+	SerialRangeEncoder encoder = engine.serialRangeEncoder("urn:epc:tag:sgtin-96:3.0037000.030241.0",
+		EngineFixture.parameters("96"), "serial");
+	Assert.assertEquals(96, encoder.getLength());
+	Assert.assertEquals(274877906943L, encoder.getMaximumSerial());
+
+	long first = 1041965;
+	int count = 10;
+	byte[] buffer = new byte[3 + 12 * count];
+	Assert.assertEquals(buffer.length, encoder.encode(first, count, buffer, 3));
+	StringBuilder out = new StringBuilder();
+	for (int i = 0; i < count; i++) {
+	    String binary = engine.convert("urn:epc:tag:sgtin-96:3.0037000.030241." + (first + i),
+		    EngineFixture.parameters("96"),
+		    LevelTypeList.BINARY);
+	    out.setLength(0);
+	    encoder.appendBinary(first + i, out);
+	    Assert.assertEquals(binary, out.toString());
+	    out.setLength(0);
+	    encoder.appendHex(first + i, out);
+	    Assert.assertEquals(engine.bin2hex(binary), out.toString());
+	    byte[] packed = PackedBits.pack(binary);
+	    for (int j = 0; j < packed.length; j++) {
+		Assert.assertEquals(packed[j], buffer[3 + 12 * i + j]);
+	    }
+	}
+    }
+
+    public void testLegacyInput() {
+	// fig 4 on page 13 of the TDT specification
+	Map<String, String> parameters = EngineFixture.parameters("96");
+	parameters.put("filter", "3");
+	parameters.put("gs1companyprefixlength", "7");
+	SerialRangeEncoder encoder = engine.serialRangeEncoder("gtin=00037000302414;serial=0", parameters, "serial");
+	StringBuilder out = new StringBuilder();
+	encoder.appendBinary(1041970, out);
+	Assert.assertEquals("001100000111010000000010010000100010000000011101100010000100000000000000000011111110011000110010",
+		out.toString());
+    }
+
+    public void testUnalignedLength() {
+	// GID-96 serial numbers end on a byte boundary, SSCC-96 serial references do not
+	SerialRangeEncoder encoder = engine.serialRangeEncoder("urn:epc:tag:sscc-96:3.0614141.1234567890",
+		EngineFixture.parameters("96"), "serialref");
+	StringBuilder out = new StringBuilder();
+	encoder.appendBinary(42, out);
+	Assert.assertEquals(engine.convert("urn:epc:tag:sscc-96:3.0614141.0000000042", EngineFixture.parameters("96"),
+		LevelTypeList.BINARY), out.toString());
+	byte[] buffer = new byte[12 * 2];
+	encoder.encode(41, 2, buffer, 0);
+	byte[] packed = PackedBits.pack(out);
+	for (int j = 0; j < packed.length; j++) {
+	    Assert.assertEquals(packed[j], buffer[12 + j]);
+	}
+    }
+
+    public void testRange() {
+	SerialRangeEncoder encoder = engine.serialRangeEncoder("urn:epc:tag:gid-96:0614141.12345.400",
+		EngineFixture.parameters("96"),
+		"serial");
+	byte[] buffer = new byte[12 * 2];
+	encoder.encode(encoder.getMaximumSerial() - 1, 2, buffer, 0);
+	try {
+	    encoder.encode(encoder.getMaximumSerial(), 2, buffer, 0);
+	    fail("serial number too large");
+	} catch (TDTException e) {
+	    // expected
+	}
+	try {
+	    engine.serialRangeEncoder("urn:epc:tag:gid-96:0614141.12345.400", EngineFixture.parameters("96"), "lot");
+	    fail("no such field");
+	} catch (TDTException e) {
+	    // expected
+	}
+    }
+}